@@ -104,6 +104,39 @@ public class RecordingSearcher extends IndexSearcher
     }
   }
 
+  /** Lower-level search API which scores only a single document.
+   *
+   * <p>Rather than iterating every matching document, the scorer is skipped
+   * directly to <code>targetDoc</code>. For span queries over chunked
+   * documents this means only the chunks of the target document are
+   * examined. {@link SpanHitCollector#collect(int,float,FieldSpanSource)}
+   * is called at most once, and only if the target document matches.
+   */
+  public void searchDoc(Query query, int targetDoc, SpanHitCollector results)
+    throws IOException 
+  {
+    // Build the scorer, keeping track of the recording scorers as above.
+    Scorer scorer;
+    SpanRecordingScorer[] recordingScorers;
+    synchronized (this) {
+      registered = new Vector();
+      scorer = query.weight(this).scorer(reader);
+      recordingScorers = (SpanRecordingScorer[])registered.toArray(
+        new SpanRecordingScorer[registered.size()]);
+      registered = null;
+    }
+    if (scorer == null)
+      return;
+    FieldSpanSource spanSource = new FieldSpanSource(recordingScorers);
+
+    // Jump to the document, and collect it if it matched.
+    if (!scorer.skipTo(targetDoc) || scorer.doc() != targetDoc)
+      return;
+    spanSource.curDoc = targetDoc;
+    float score = scorer.score(); // must call before recordSpans()
+    results.collect(targetDoc, score, spanSource);
+  }
+
   // Called while building the scorers for a query. All SpanRecordingScorers
   // will register themselves.
   //
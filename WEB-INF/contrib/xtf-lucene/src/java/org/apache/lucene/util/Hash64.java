@@ -16,6 +16,9 @@ package org.apache.lucene.util;
  * limitations under the License.
  */
 
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * Utility class that calculates good 64-bit hash codes for strings.
  * 
@@ -57,4 +60,29 @@ public class Hash64
       h = MAGIC_PRIME * h + s3.charAt(i);
     return h & 0x7fffffffffffffffL;
   }
+
+  /** 
+   * Continue a hash over a range of bytes. Start with a hash of zero, and
+   * pass the result of each call to the next.
+   */
+  public static long update(long h, byte[] bytes, int offset, int length) {
+    for (int i = offset; i < offset + length; i++)
+      h = MAGIC_PRIME * h + (bytes[i] & 0xff);
+    return h;
+  }
+
+  /** 
+   * Calculate a non-negative 64-bit hash code for the contents of a stream,
+   * reading it to the end. The stream is not closed.
+   */
+  public static long hash(InputStream in)
+    throws IOException 
+  {
+    byte[] buf = new byte[65536];
+    long h = 0;
+    int got;
+    while ((got = in.read(buf)) >= 0)
+      h = update(h, buf, 0, got);
+    return h & 0x7fffffffffffffffL;
+  }
 } // class Hash64
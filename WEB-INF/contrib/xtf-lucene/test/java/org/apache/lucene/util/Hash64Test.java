@@ -29,6 +29,8 @@ package org.apache.lucene.util;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.io.ByteArrayInputStream;
+
 import junit.framework.TestCase;
 
 /** 
@@ -46,4 +48,19 @@ public class Hash64Test extends TestCase
                Hash64.hash("askldhfiwuyeriquykjasdfkjahsdfoiweroiqu"));
     assertFalse(Hash64.hash("123456") == Hash64.hash("654321"));
   }
+
+  public void testStreamHash() throws Exception
+  {
+    byte[] a = "abcdefghij".getBytes("UTF-8");
+    byte[] b = "abcdefghik".getBytes("UTF-8");
+    long ha = Hash64.hash(new ByteArrayInputStream(a));
+    assertTrue(ha >= 0);
+    assertTrue(ha == Hash64.hash(new ByteArrayInputStream(a)));
+    assertFalse(ha == Hash64.hash(new ByteArrayInputStream(b)));
+    
+    // Hashing in pieces should give the same answer as all at once.
+    long h = Hash64.update(0, a, 0, 4);
+    h = Hash64.update(h, a, 4, a.length - 4);
+    assertTrue(ha == (h & 0x7fffffffffffffffL));
+  }
 }
@@ -29,10 +29,12 @@ package org.cdlib.xtf.cache;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.cdlib.xtf.util.EmbeddedList;
+import org.cdlib.xtf.util.Linkable;
 import org.cdlib.xtf.util.LinkableImpl;
 
 /**
@@ -40,6 +42,14 @@ import org.cdlib.xtf.util.LinkableImpl;
  * GeneratingCache. Contains the workhorse functions for maintaining
  * a cache, expiring entries based on age or count, checking dependencies,
  * and checking for a key.
+ * <br><br>
+ * 
+ * Looking up a key never locks the cache, so many threads can share one
+ * without waiting on each other. A hit just records when the entry was
+ * used; the age list is only put in order (under the lock) when entries
+ * are added or removed, and then only as far as needed to find the least
+ * recently used ones. Entries are never changed once they're in the map,
+ * except for their time of use and (in SimpleCache) their dependencies.
  */
 public abstract class Cache<K,V> 
 {
@@ -71,30 +81,9 @@ public abstract class Cache<K,V>
    * @param key   The key to look for.
    * @return      true iff the key has a valid entry in the cache.
    */
-  public synchronized boolean has(K key) 
-  {
-    cleanup();
-
-    if (keyMap.containsKey(key)) 
-    {
-      ListEntry entry = (ListEntry)keyMap.get(key);
-
-      // If dependency checks pass, freshen the entry and return.
-      if (dependenciesValid(key)) {
-        entry.lastUsedTime = System.currentTimeMillis();
-        ageList.moveToTail(entry);
-        cleanup();
-        return true;
-      }
-      else {
-        ageList.remove(entry);
-        keyMap.remove(key);
-        logAction("Removed (stale dependencies)", key, entry.value);
-        cleanup();
-      }
-    }
-
-    return false;
+  public boolean has(K key) {
+    ListEntry entry = keyMap.get(key);
+    return entry != null && checkEntry(entry);
   } // has()
 
   /**
@@ -106,8 +95,8 @@ public abstract class Cache<K,V>
    * @return      The time (in milliseconds from the epoch) that the entry
    *              was created, or zero if not present.
    */
-  public synchronized long lastSet(K key) {
-    ListEntry ent = (ListEntry)keyMap.get(key);
+  public long lastSet(K key) {
+    ListEntry ent = keyMap.get(key);
     return (ent == null) ? 0 : ent.setTime;
   } // lastSet()
 
@@ -117,22 +106,9 @@ public abstract class Cache<K,V>
    * @param key   The key to check
    * @return      true iff the cache entry for the key is still valid.
    */
-  public synchronized boolean dependenciesValid(K key) 
-  {
-    cleanup();
-
-    ListEntry ent = (ListEntry)keyMap.get(key);
-    if (ent == null)
-      return false;
-
-    Iterator i = ent.dependencies.iterator();
-    while (i.hasNext()) {
-      Dependency d = (Dependency)i.next();
-      if (!d.validate())
-        return false;
-    }
-
-    return true;
+  public boolean dependenciesValid(K key) {
+    ListEntry ent = keyMap.get(key);
+    return ent != null && dependenciesValid(ent);
   } // dependenciesValid()
 
   /**
@@ -142,11 +118,8 @@ public abstract class Cache<K,V>
    * @return      An iterator that will produce each dependency, or
    *              null if no dependencies.
    */
-  public synchronized Iterator getDependencies(K key) 
-  {
-    cleanup();
-
-    ListEntry ent = (ListEntry)keyMap.get(key);
+  public Iterator getDependencies(K key) {
+    ListEntry ent = keyMap.get(key);
     return (ent == null) ? new NullIterator() : ent.dependencies.iterator();
   } // getDependencies()
 
@@ -158,14 +131,12 @@ public abstract class Cache<K,V>
    */
   public synchronized V remove(K key) 
   {
-    cleanup();
-
     // If we have the key, remove it and return the object.
-    if (keyMap.containsKey(key)) {
-      ListEntry entry = (ListEntry)keyMap.get(key);
+    ListEntry entry = keyMap.remove(key);
+    if (entry != null) {
       ageList.remove(entry);
-      keyMap.remove(key);
       logAction("Removed", key, entry.value);
+      entryRemoved(key, entry.value);
       cleanup();
       return entry.value;
     }
@@ -179,16 +150,90 @@ public abstract class Cache<K,V>
    */
   public synchronized void clear() 
   {
+    // Let derived classes release the values.
+    for (ListEntry ent : keyMap.values())
+      entryRemoved(ent.key, ent.value);
+
     // Clear the list and map
     ageList = new EmbeddedList();
-    keyMap = new HashMap(maxEntries);
+    keyMap.clear();
+    ++clearCount;
   } // clear()
 
   /** Tells how many entries are currently cached */
-  public synchronized int size() {
+  public int size() {
     return keyMap.size();
   }
 
+  /**
+   * Add a new entry to the cache, replacing any existing entry for the
+   * same key. The entry goes at the tail of the age list, since it's the
+   * most recently used.
+   *
+   * @param entry   The entry to add, with its key, value, dependencies
+   *                and times filled in.
+   * @return        The entry that was replaced, or null if none.
+   */
+  protected synchronized ListEntry addEntry(ListEntry entry) 
+  {
+    ListEntry oldEntry = keyMap.put(entry.key, entry);
+    if (oldEntry != null) {
+      ageList.remove(oldEntry);
+      if (oldEntry.value != entry.value)
+        entryRemoved(oldEntry.key, oldEntry.value);
+    }
+    ageList.addTail(entry);
+    return oldEntry;
+  } // addEntry()
+
+  /**
+   * Check that an entry hasn't expired and that its dependencies are
+   * still valid. If so, freshen it; if not, remove it. Only locks the
+   * cache if the entry has to be removed.
+   *
+   * @param entry   The entry to check
+   * @return        true iff the entry may be used.
+   */
+  protected boolean checkEntry(ListEntry entry) 
+  {
+    long now = System.currentTimeMillis();
+    String reason;
+    if (isExpired(entry, now))
+      reason = "Expired due to over-age";
+    else if (!dependenciesValid(entry))
+      reason = "Removed (stale dependencies)";
+    else 
+    {
+      // Just record the time; the age list is fixed up later if need be
+      // (see cleanup().) Hot entries are used many times a millisecond,
+      // and there's no point in all those threads writing the same value.
+      //
+      if (entry.lastUsedTime != now)
+        entry.lastUsedTime = now;
+      return true;
+    }
+
+    synchronized (this) {
+      if (keyMap.remove(entry.key, entry)) {
+        ageList.remove(entry);
+        logAction(reason, entry.key, entry.value);
+        entryRemoved(entry.key, entry.value);
+      }
+    }
+    return false;
+  } // checkEntry()
+
+  /** Check all the dependencies of an entry. */
+  private boolean dependenciesValid(ListEntry entry) 
+  {
+    for (Iterator i = entry.dependencies.iterator(); i.hasNext();) {
+      Dependency d = (Dependency)i.next();
+      if (!d.validate())
+        return false;
+    }
+    return true;
+  } // dependenciesValid()
+
   /**
    * Maintains the maxEntries and maxTime constraints imposed on the cache.
    * Schedules additional cleanup when necessary.
@@ -199,14 +244,19 @@ public abstract class Cache<K,V>
     if (maxEntries >= 0) 
     {
       // Remove entries until we meet the maxEntries restriction.
-      while (ageList.getCount() > maxEntries) {
-        ListEntry ent = (ListEntry)ageList.removeHead();
+      while (ageList.getCount() > maxEntries) 
+      {
+        ListEntry ent = (ListEntry)ageList.getHead();
+        if (relist(ent))
+          continue;
+        ageList.remove(ent);
         logAction(
           "Expired to maintain max # cache entries... was " +
           (ageList.getCount() + 1) + ", must be <= " + maxEntries,
           ent.key,
           ent.value);
         keyMap.remove(ent.key);
+        entryRemoved(ent.key, ent.value);
       }
     }
 
@@ -217,9 +267,12 @@ public abstract class Cache<K,V>
       long maxTimeMillis = maxTime * 1000;
       long expireTime = System.currentTimeMillis() - maxTimeMillis;
       while (ageList.getCount() > 0 &&
-             ((ListEntry)ageList.getHead()).lastUsedTime < expireTime) 
+             ((ListEntry)ageList.getHead()).listedTime < expireTime) 
       {
-        ListEntry ent = (ListEntry)ageList.removeHead();
+        ListEntry ent = (ListEntry)ageList.getHead();
+        if (relist(ent))
+          continue;
+        ageList.remove(ent);
         logAction(
           "Expired due to over-age... age is " +
           ((System.currentTimeMillis() - ent.lastUsedTime) / 1000) +
@@ -227,10 +280,68 @@ public abstract class Cache<K,V>
           ent.key,
           ent.value);
         keyMap.remove(ent.key);
+        entryRemoved(ent.key, ent.value);
       }
     }
+
+    // Does the derived class have a constraint of its own?
+    while (ageList.getCount() > 0 && overLimit()) 
+    {
+      ListEntry ent = (ListEntry)ageList.getHead();
+      if (relist(ent))
+        continue;
+      ageList.remove(ent);
+      logAction("Expired to maintain cache limit", ent.key, ent.value);
+      keyMap.remove(ent.key);
+      entryRemoved(ent.key, ent.value);
+    }
   } // cleanup()
 
+  /**
+   * Entries are freshened without locking the cache (see
+   * {@link #checkEntry(ListEntry)}), so they're left where they were in
+   * the age list. Before such an entry is expired, this moves
+   * it to its proper place instead. The age list stays sorted by the time
+   * each entry was listed, and no entry can have been used before it was
+   * listed, so once the head is in its place it really is the least
+   * recently used.
+   *
+   * @param ent   The entry to check
+   * @return      true if the entry was moved, false if it was already in
+   *              its proper place.
+   */
+  private boolean relist(ListEntry ent) 
+  {
+    long usedTime = ent.lastUsedTime;
+    if (usedTime == ent.listedTime)
+      return false;
+
+    ageList.remove(ent);
+    ent.listedTime = usedTime;
+
+    // Recently used entries belong near the tail, so search from there.
+    Linkable pos = ageList.getTail();
+    while (pos != null && ((ListEntry)pos).listedTime > usedTime)
+      pos = pos.getPrev();
+    if (pos == null)
+      ageList.addHead(ent);
+    else
+      ageList.addAfter(pos, ent);
+    return true;
+  } // relist()
+
+  /**
+   * Checks whether an entry has gone unused for longer than the maximum
+   * time allowed.
+   *
+   * @param ent   The entry to check
+   * @param now   The current time (millis since epoch)
+   * @return      true if the entry is too old to use.
+   */
+  protected boolean isExpired(ListEntry ent, long now) {
+    return maxTime > 0 && ent.lastUsedTime < now - (maxTime * 1000L);
+  }
+
   /**
    * Derived classes can override this method to print out log messages
    * when significant things happen (entries are added, removed, expired,
@@ -243,6 +354,27 @@ public abstract class Cache<K,V>
   protected void logAction(String action, K key, V value) {
   }
 
+  /**
+   * Derived classes can override this method to release whatever a value
+   * holds (e.g. a file) when its entry leaves the cache for any reason.
+   * Called with the cache locked.
+   *
+   * @param key       The key of the entry
+   * @param value     The value it held
+   */
+  protected void entryRemoved(K key, V value) {
+  }
+
+  /**
+   * Derived classes can override this method to impose a limit of their
+   * own (e.g. on the total size of the values.) While it returns true,
+   * {@link #cleanup()} removes the least recently used entries. Called with
+   * the cache locked.
+   */
+  protected boolean overLimit() {
+    return false;
+  }
+
   /** Used to return an iterator that does nothing */
   protected class NullIterator implements Iterator 
   {
@@ -267,14 +399,20 @@ public abstract class Cache<K,V>
     /** The generated or set value for that key */
     V value;
 
-    /** The time (millis since epoch) since the entry was used */
-    long lastUsedTime;
+    /** The time (millis since epoch) the entry was last used */
+    volatile long lastUsedTime;
+
+    /**
+     * The last used time when the entry was put in its place in the age
+     * list. Behind lastUsedTime if the entry has been freshened since.
+     */
+    long listedTime;
 
     /** The time (millis since epoch) the entry was created */
     long setTime;
 
     /** Things this entry depends on */
-    LinkedList dependencies = new LinkedList();
+    List<Dependency> dependencies = new CopyOnWriteArrayList<Dependency>();
   } // class ListEntry
 
   /** Maximum number of entries the cache may contain */
@@ -286,8 +424,13 @@ public abstract class Cache<K,V>
    */
   private int maxTime;
 
-  /** Maintains a mapping of key to ListEntry, for fast key lookups */
-  protected HashMap<K,ListEntry> keyMap;
+  /**
+   * Maintains a mapping of key to ListEntry, for fast key lookups. It may
+   * be read without locking the cache, but is only changed with the lock
+   * held.
+   */
+  protected ConcurrentHashMap<K,ListEntry> keyMap = 
+    new ConcurrentHashMap<K,ListEntry>();
 
   /**
    * A list, kept sorted by descending age, of all the entries. This is
@@ -295,4 +438,7 @@ public abstract class Cache<K,V>
    * constraints (time or # of entries) are exceeded.
    */
   protected EmbeddedList ageList;
+
+  /** Incremented each time the cache is cleared */
+  protected int clearCount;
 } // class Cache
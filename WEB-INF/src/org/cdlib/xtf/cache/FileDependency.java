@@ -73,6 +73,16 @@ public class FileDependency extends Dependency
     return (file.canRead() && file.lastModified() == lastModified);
   }
 
+  /** Get the file we're tracking */
+  public File getFile() {
+    return file;
+  }
+
+  /** Get the modification time recorded for the file */
+  public long getLastModified() {
+    return lastModified;
+  }
+
   /** Make a human-readable representation */
   public String toString() {
     return "FileDependency(" + file.toString() + ":" + lastModified;
@@ -29,10 +29,20 @@ package org.cdlib.xtf.cache;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * A cache that generates an entry if one isn't found. The generate()
  * method must be supplied by the derived class.
+ * <br><br>
+ * 
+ * Generating a new entry doesn't lock the cache (nor does finding one
+ * that's already present.) Only one thread generates the value for a
+ * given key; others asking for the same key wait for it, while those
+ * asking for different keys carry on.
  */
 public abstract class GeneratingCache<K,V> extends Cache<K,V> 
 {
@@ -56,40 +66,57 @@ public abstract class GeneratingCache<K,V> extends Cache<K,V>
    * @param key   The key to look up
    * @return      Value corresponding to that key. Never null.
    */
-  public synchronized V find(K key)
+  public V find(final K key)
     throws Exception 
   {
-    // If we have already generated the value for this key, freshen the
-    // entry and return it.
-    //
-    if (has(key)) {
-      ListEntry entry = (ListEntry)keyMap.get(key);
-      return entry.value;
-    }
-
-    // Otherwise, create an entry and generate a value for it.
-    curEntry = new ListEntry();
-    curEntry.key = key;
-    curEntry.value = generate(key);
-
-    // Add it to the age list (at the tail, since it's the most recently
-    // used).
-    curEntry.lastUsedTime = curEntry.setTime = System.currentTimeMillis();
-    ageList.addTail(curEntry);
-
-    // Add it to the key map and log the action.
-    keyMap.put(key, curEntry);
-    logAction("Generated", key, curEntry.value);
+    while (true) 
+    {
+      // If we have already generated the value for this key, freshen the
+      // entry and return it.
+      //
+      ListEntry entry = keyMap.get(key);
+      if (entry != null && checkEntry(entry))
+        return entry.value;
 
-    // Clear the current entry to prevent any future refs to it.
-    V value = curEntry.value;
-    curEntry = null;
+      // Otherwise, generate a value, unless another thread is already
+      // doing so (in which case, wait for it.)
+      //
+      FutureTask<ListEntry> task = new FutureTask<ListEntry>(
+        new Callable<ListEntry>() {
+          public ListEntry call() throws Exception {
+            return generateEntry(key);
+          }
+        });
+      FutureTask<ListEntry> pending = pendingMap.putIfAbsent(key, task);
+      if (pending == null) 
+      {
+        try {
+          task.run();
+        }
+        finally {
+          pendingMap.remove(key, task);
+        }
+        pending = task;
+      }
 
-    // Since we've modified the age list, clean up if necessary.
-    cleanup();
+      try {
+        entry = pending.get();
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception)
+          throw (Exception)cause;
+        if (cause instanceof Error)
+          throw (Error)cause;
+        throw e;
+      }
 
-    // And return the generated value.
-    return value;
+      // If the value was made by another thread, it may already be stale
+      // by the time we get it. In that case, go around again.
+      //
+      if (pending == task || checkEntry(entry))
+        return entry.value;
+    } // while
   } // find()
 
   /**
@@ -99,14 +126,24 @@ public abstract class GeneratingCache<K,V> extends Cache<K,V>
    * @param d     The dependency to add
    */
   public void addDependency(Dependency d) {
-    assert curEntry != null : "addDependency() may only be called from within generate()";
-    curEntry.dependencies.add(d);
+    ListEntry entry = curEntry.get();
+    assert entry != null : "addDependency() may only be called from within generate()";
+    entry.dependencies.add(d);
+  }
+
+  /**
+   * Tells whether the current thread is inside the generate() method of
+   * this cache, and thus may call {@link #addDependency(Dependency)}.
+   */
+  public boolean isGenerating() {
+    return curEntry.get() != null;
   }
 
   /**
    * Called when find() fails to locate an entry for the given key. This
    * method must be supplied by the derived class, and must produce a value
-   * for the key, or throw an exception if it can't.
+   * for the key, or throw an exception if it can't. Several threads may
+   * call it at once, though never for the same key.
    *
    * @param   key         The key to generate a value for.
    * @return              The value for that key
@@ -115,6 +152,58 @@ public abstract class GeneratingCache<K,V> extends Cache<K,V>
   protected abstract V generate(K key)
     throws Exception;
 
-  /** The entry being generated */
-  private ListEntry curEntry;
+  /**
+   * Make a new entry for a key and add it to the cache. This is the only
+   * time the cache is locked during find(), and it's only locked after the
+   * value has been generated.
+   */
+  private ListEntry generateEntry(K key)
+    throws Exception 
+  {
+    int startClearCount;
+    synchronized (this) {
+      startClearCount = clearCount;
+    }
+
+    ListEntry entry = new ListEntry();
+    entry.key = key;
+
+    // Generate the value, collecting dependencies as we go.
+    ListEntry prevEntry = curEntry.get();
+    curEntry.set(entry);
+    try {
+      entry.value = generate(key);
+    }
+    finally {
+      curEntry.set(prevEntry);
+    }
+
+    entry.setTime = System.currentTimeMillis();
+    entry.lastUsedTime = entry.listedTime = entry.setTime;
+
+    synchronized (this) 
+    {
+      // If the cache was cleared while we were working, don't add the
+      // entry (its value may be based on things that have changed.)
+      //
+      if (clearCount != startClearCount)
+        return entry;
+
+      // Add it (replacing any stale entry for the key), and log the action.
+      addEntry(entry);
+      logAction("Generated", key, entry.value);
+
+      // Since we've modified the age list, clean up if necessary.
+      cleanup();
+    }
+
+    return entry;
+  } // generateEntry()
+
+  /** Keys whose values are being generated right now */
+  private ConcurrentHashMap<K, FutureTask<ListEntry>> pendingMap = 
+    new ConcurrentHashMap<K, FutureTask<ListEntry>>();
+
+  /** The entry being generated by each thread */
+  private ThreadLocal<ListEntry> curEntry = new ThreadLocal<ListEntry>();
 } // class GeneratingCache
@@ -69,35 +69,22 @@ public class SimpleCache<K,V> extends Cache<K,V>
    */
   public synchronized void set(K key, V value, Dependency dependency) 
   {
-    ListEntry entry;
-
-    // If we already have this key, replace the value.
-    if (has(key)) {
-      entry = (ListEntry)keyMap.get(key);
-      entry.value = value;
-      entry.dependencies.clear();
-      if (dependency != null)
-        entry.dependencies.add(dependency);
-      entry.setTime = System.currentTimeMillis();
-      logAction("Replaced", key, value);
-      return;
-    }
-
-    // Otherwise, add a new entry.
-    entry = new ListEntry();
+    // Make a new entry, rather than changing an existing one, since other
+    // threads may be looking at it.
+    //
+    ListEntry entry = new ListEntry();
     entry.key = key;
     entry.value = value;
     if (dependency != null)
       entry.dependencies.add(dependency);
+    entry.setTime = System.currentTimeMillis();
+    entry.lastUsedTime = entry.listedTime = entry.setTime;
 
-    // Add it to the age list (at the tail, since it's the most recently
-    // used).
-    entry.lastUsedTime = entry.setTime = System.currentTimeMillis();
-    ageList.addTail(entry);
-
-    // Add it to the key map and log the action.
-    keyMap.put(key, entry);
-    logAction("Added", key, value);
+    // Add it (replacing any old one), and log the action.
+    if (addEntry(entry) != null)
+      logAction("Replaced", key, value);
+    else
+      logAction("Added", key, value);
 
     // Since we've modified the age list, clean up if necessary.
     cleanup();
@@ -110,9 +97,10 @@ public class SimpleCache<K,V> extends Cache<K,V>
    * @return          The value for that key, or null if the key isn't
    *                  in the cache.
    */
-  public synchronized V get(K key) {
-    if (has(key))
-      return ((ListEntry)keyMap.get(key)).value;
+  public V get(K key) {
+    ListEntry entry = keyMap.get(key);
+    if (entry != null && checkEntry(entry))
+      return entry.value;
     else
       return null;
   } // get()
@@ -124,9 +112,9 @@ public class SimpleCache<K,V> extends Cache<K,V>
    * @param key       The key to add a dependency to
    * @param d         The dependency to add to it.
    */
-  public synchronized void addDependency(K key, Dependency d) {
-    if (!has(key))
-      return;
-    ((ListEntry)keyMap.get(key)).dependencies.add(d);
+  public void addDependency(K key, Dependency d) {
+    ListEntry entry = keyMap.get(key);
+    if (entry != null && checkEntry(entry))
+      entry.dependencies.add(d);
   } // addDependency()
 } // class SimpleCache
@@ -31,22 +31,24 @@ package org.cdlib.xtf.crossQuery;
  */
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.SocketException;
 import java.text.DecimalFormat;
 import java.util.Properties;
+import java.util.Set;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.stream.StreamSource;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.trace.TraceListener;
 import net.sf.saxon.tree.TreeBuilder;
 
+import org.cdlib.xtf.cache.CacheDependency;
+import org.cdlib.xtf.servletBase.ETagCache;
 import org.cdlib.xtf.servletBase.StylesheetCache;
+import org.cdlib.xtf.servletBase.StylesheetResultCache;
 import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.servletBase.TextServlet;
 import org.cdlib.xtf.servletBase.RedirectException;
@@ -77,6 +79,9 @@ public class CrossQuery extends TextServlet
   /** Used for stylesheet profiling, if enabled */
   protected TimeProfilingListener profListener;
 
+  /** Caches query routes and requests, if enabled */
+  private QueryRequestCache queryRequestCache;
+
   /**
    * Called by the superclass to find out the name of our specific config
    * file.
@@ -105,6 +110,19 @@ public class CrossQuery extends TextServlet
     return config;
   }
 
+  /**
+   * Adds the query router and parser to the stylesheets to warm up.
+   */
+  protected Set<String> getWarmUpSheets() 
+  {
+    Set<String> sheets = super.getWarmUpSheets();
+    if (config.queryRouterSheet != null)
+      sheets.add(config.queryRouterSheet);
+    if (config.queryParserSheet != null)
+      sheets.add(config.queryParserSheet);
+    return sheets;
+  } // getWarmUpSheets()
+
   /**
    * Handles the HTTP 'get' method. Initializes the servlet if nececssary,
    * then parses the HTTP request and processes it appropriately.
@@ -260,7 +278,8 @@ public class CrossQuery extends TextServlet
     }
 
     // Locate the stylesheet and make a tranformer.
-    Templates sheet = stylesheetCache.find(config.queryRouterSheet);
+    String sheetPath = config.queryRouterSheet;
+    Templates sheet = stylesheetCache.find(sheetPath);
     Transformer trans = sheet.newTransformer();
 
     // Stuff all the common config properties into the transformer in
@@ -274,13 +293,35 @@ public class CrossQuery extends TextServlet
     // Add the special computed attributes.
     stuffSpecialAttribs(req, trans);
 
+    String input = fmt.toString();
     if (Trace.getOutputLevel() >= Trace.debug) {
-      String tmp = fmt.toString();
+      String tmp = input;
       if (tmp.endsWith("\n"))
         tmp = tmp.substring(0, tmp.length() - 1);
       Trace.debug("*** queryRouter input ***\n" + tmp);
     }
 
+    // If we've routed this same request before, re-use the route.
+    QueryRequestCache cache = getQueryRequestCache(step);
+    String cacheKey = null;
+    CacheDependency cacheDep = null;
+    if (cache != null) 
+    {
+      cacheKey = cache.makeKey(sheetPath, sheet, trans, input);
+      QueryRoute route = cache.getRoute(cacheKey);
+      if (route != null) {
+        if (Trace.getOutputLevel() >= Trace.debug) {
+          Trace.debug("*** queryRouter output (cached) ***\n" +
+                      route.routerOutput);
+        }
+        if (route.errorGenSheet != null)
+          setErrorGenSheet(getRealPath(route.errorGenSheet));
+        return route;
+      }
+      cacheDep = cache.dependOn(sheetPath);
+      StylesheetResultCache.watchForUncacheable(trans);
+    }
+
     // Make sure errors get directed to the right place.
     if (!(trans.getErrorListener() instanceof XTFSaxonErrorListener))
       trans.setErrorListener(new XTFSaxonErrorListener());
@@ -309,9 +350,15 @@ public class CrossQuery extends TextServlet
       setErrorGenSheet(getRealPath(route.errorGenSheet));
 
     // Record extra stuff for debugging/step mode
-    route.routerInput = fmt.toString();
+    route.routerInput = input;
     route.routerOutput = XMLWriter.toString(queryRouteDoc, false);
 
+    // Cache the route for next time, unless the stylesheet relied on
+    // something besides its input.
+    //
+    if (cache != null && !TextServlet.checkUncacheable())
+      cache.putRoute(cacheKey, route, cacheDep);
+
     // All done.
     return route;
   } // runQueryRouter()
@@ -345,7 +392,8 @@ public class CrossQuery extends TextServlet
     }
 
     // Locate the query formatting stylesheet.
-    Templates genSheet = stylesheetCache.find(route.queryParserSheet);
+    String sheetPath = route.queryParserSheet;
+    Templates genSheet = stylesheetCache.find(sheetPath);
 
     // Make a transformer for this specific query.
     Transformer trans = genSheet.newTransformer();
@@ -363,13 +411,33 @@ public class CrossQuery extends TextServlet
     // Add the special computed attributes.
     stuffSpecialAttribs(req, trans);
 
+    String input = fmt.toString();
     if (Trace.getOutputLevel() >= Trace.debug) {
-      String tmp = fmt.toString();
+      String tmp = input;
       if (tmp.endsWith("\n"))
         tmp = tmp.substring(0, tmp.length() - 1);
       Trace.debug("*** queryParser input ***\n" + tmp);
     }
 
+    // If we've parsed this same request before, skip the stylesheet.
+    QueryRequestCache cache = getQueryRequestCache(step);
+    String cacheKey = null;
+    CacheDependency cacheDep = null;
+    if (cache != null) 
+    {
+      cacheKey = cache.makeKey(sheetPath, genSheet, trans, input);
+      QueryRequest queryReq = cache.getRequest(cacheKey);
+      if (queryReq != null) {
+        if (Trace.getOutputLevel() >= Trace.debug) {
+          Trace.debug("*** queryParser output (cached) ***\n" +
+                      queryReq.parserOutput);
+        }
+        return queryReq;
+      }
+      cacheDep = cache.dependOn(sheetPath);
+      StylesheetResultCache.watchForUncacheable(trans);
+    }
+
     // Make sure errors get directed to the right place.
     if (!(trans.getErrorListener() instanceof XTFSaxonErrorListener))
       trans.setErrorListener(new XTFSaxonErrorListener());
@@ -397,13 +465,47 @@ public class CrossQuery extends TextServlet
         getRealPath("")));
 
     // Fill in the auxiliary info
-    queryReq.parserInput = fmt.toString();
+    queryReq.parserInput = input;
     queryReq.parserOutput = XMLWriter.toString(queryReqDoc, false);
 
+    // Cache the request for next time, unless the stylesheet relied on
+    // something besides its input.
+    //
+    if (cache != null && !TextServlet.checkUncacheable())
+      cache.putRequest(cacheKey, queryReq, cacheDep);
+
     // All done.
     return queryReq;
   } // runQueryParser()
 
+  /**
+   * Gets the cache of query routes and requests, or null if caching is
+   * disabled or shouldn't be used for this request (for instance, in step
+   * mode or when profiling stylesheets.)
+   *
+   * @param step    The debugStep parameter, if any.
+   */
+  protected QueryRequestCache getQueryRequestCache(String step) 
+  {
+    if (config.queryCacheSize <= 0 || step != null ||
+        config.stylesheetProfiling)
+      return null;
+
+    // Make a new cache whenever the stylesheet cache is replaced (that is,
+    // when the servlet re-reads its configuration.)
+    //
+    synchronized (this) {
+      if (queryRequestCache == null ||
+          !queryRequestCache.isFor(stylesheetCache)) 
+      {
+        queryRequestCache = new QueryRequestCache(stylesheetCache,
+                                                  config.queryCacheSize,
+                                                  config.queryCacheExpire);
+      }
+      return queryRequestCache;
+    }
+  } // getQueryRequestCache()
+
   /**
    * Called right after the raw query request has been generated, but
    * before it is parsed. Gives us a chance to stop processing here in
@@ -446,6 +548,7 @@ public class CrossQuery extends TextServlet
     // transform instead of the stylesheet.
     //
     Transformer trans;
+    Templates displaySheet = null;
     String raw = req.getParameter("raw");
     if (raw == null)
       raw = (String) req.getAttribute("org.cdlib.xtf.servlet.raw");
@@ -465,7 +568,7 @@ public class CrossQuery extends TextServlet
     }
     else {
       // Locate the display stylesheet.
-      Templates displaySheet = stylesheetCache.find(queryRequest.displayStyle);
+      displaySheet = stylesheetCache.find(queryRequest.displayStyle);
 
       // Figure out the output mime type
       res.setContentType(calcMimeType(displaySheet));
@@ -485,24 +588,39 @@ public class CrossQuery extends TextServlet
     // Add the special computed parameters.
     stuffSpecialAttribs(req, trans);
 
+    // If the client already has the page (from the same query on the same
+    // version of the index), there's no need to format it again. The tag
+    // is weak since the page may include the query time.
+    //
+    ETagCache.Tracker etag = null;
+    if (displaySheet != null && step == null) 
+    {
+      long indexVersion = (queryRequest.indexPath == null) ? 0
+        : getIndexWarmer().getSearcher(queryRequest.indexPath).version();
+      etag = checkETag(queryRequest.displayStyle, displaySheet, trans,
+                       mainTagName + "|" + indexVersion + "|" + 
+                       queryRequest.parserInput + "|" + 
+                       queryRequest.parserOutput, 
+                       0, true, req, res);
+      if (etag != null && etag.notModified)
+        return;
+    }
+
     // Make an input document for it based on the document hits. Insert
-    // an attribute documenting how long the query took, including
-    // formatting the hits.
+    // an attribute documenting how long the query took. The hits are
+    // sent to the transformer as events, so there's no string to build
+    // and re-parse.
     //
     StringBuffer extraStuff = new StringBuffer();
     if (queryRequest.parserInput != null)
       extraStuff.append(queryRequest.parserInput);
     if (queryRequest.parserOutput != null)
       extraStuff.append(queryRequest.parserOutput);
-    String hitsString = queryResult.hitsToString(mainTagName,
-                                                 extraStuff.toString());
-    String prefix = "<" + mainTagName + " ";
-    assert hitsString.startsWith(prefix);
     long queryTime = System.currentTimeMillis() - startTime;
     String formattedTime = decimalFormat.format(queryTime / 1000.0);
-    hitsString = prefix + "queryTime=\"" + formattedTime + "\" " +
-                 hitsString.substring(prefix.length());
-    Source sourceDoc = new StreamSource(new StringReader(hitsString));
+    Source sourceDoc = queryResult.hitsToSource(mainTagName,
+                                                extraStuff.toString(),
+                                                formattedTime);
 
     // Make sure errors get directed to the right place.
     if (!(trans.getErrorListener() instanceof XTFSaxonErrorListener))
@@ -510,6 +628,7 @@ public class CrossQuery extends TextServlet
 
     // Do it!
     trans.transform(sourceDoc, createFilteredReceiver(trans, req, res));
+    finishETag(etag);
     
     // Print profile if requested.
     if (config.stylesheetProfiling) {
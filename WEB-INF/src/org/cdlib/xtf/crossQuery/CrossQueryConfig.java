@@ -47,6 +47,16 @@ public class CrossQueryConfig extends TextConfig
    */
   public String queryParserSheet;
 
+  /**
+   * Max # of query routes and requests to cache, so that repeated requests
+   * can skip the queryRouter and queryParser stylesheets. Zero disables the
+   * cache.
+   */
+  public int queryCacheSize = 0;
+
+  /** Max length of time (in seconds) to cache a query request. */
+  public int queryCacheExpire = 0;
+
   /** Default constructor */
   public CrossQueryConfig(CrossQuery servlet) {
     super(servlet);
@@ -88,6 +98,14 @@ public class CrossQueryConfig extends TextConfig
       queryParserSheet = servlet.getRealPath(strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("queryCache.size")) {
+      queryCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("queryCache.expire")) {
+      queryCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
 
     // Don't recognize it... see if the base class does.
     return super.handleProperty(tagAttr, strVal);
@@ -0,0 +1,126 @@
+package org.cdlib.xtf.crossQuery;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.HashMap;
+
+import org.cdlib.xtf.cache.Dependency;
+import org.cdlib.xtf.servletBase.StylesheetCache;
+import org.cdlib.xtf.servletBase.StylesheetResultCache;
+import org.cdlib.xtf.textEngine.QueryRequest;
+
+/**
+ * Caches the results of the queryRouter and queryParser stylesheets, so that
+ * repeated request shapes (the same search, facets and sort, say) can skip
+ * both transformations and the parsing of the resulting query. Entries are
+ * keyed by the stylesheet, the <code>&lt;parameters&gt;</code> block fed
+ * to it, and the parameters it declares; see {@link StylesheetResultCache}.
+ * <br><br>
+ *
+ * The cache keeps its own copies of the values, so callers are free to
+ * change the ones they put in or get back.
+ */
+public class QueryRequestCache extends StylesheetResultCache 
+{
+  /**
+   * Constructor - sets up the parameters of the cache.
+   *
+   * @param stylesheetCache  Cache holding the queryRouter and queryParser
+   *                         stylesheets.
+   * @param maxEntries       Maximum # of entries. Zero means no limit.
+   * @param maxTime          Time (in seconds) an entry can stay in the
+   *                         cache without being used. Zero means no limit.
+   */
+  public QueryRequestCache(StylesheetCache stylesheetCache, int maxEntries,
+                           int maxTime) 
+  {
+    super("QueryRequestCache", stylesheetCache, maxEntries, maxTime);
+  }
+
+  /**
+   * Gets a copy of the route cached for the given key.
+   *
+   * @return  The route, or null if not found.
+   */
+  public QueryRoute getRoute(String key) 
+  {
+    QueryRoute route = (QueryRoute)get(key);
+    return (route == null) ? null : copyRoute(route);
+  } // getRoute()
+
+  /**
+   * Records a copy of the route produced by a queryRouter stylesheet.
+   *
+   * @param key         Key formed by {@link #makeKey}
+   * @param route       The route to record
+   * @param dependency  Dependency on the stylesheet, from
+   *                    {@link #dependOn(String)}
+   */
+  public void putRoute(String key, QueryRoute route, Dependency dependency) {
+    set(key, copyRoute(route), dependency);
+  }
+
+  /**
+   * Gets a copy of the query request cached for the given key.
+   *
+   * @return  The query request, or null if not found.
+   */
+  public QueryRequest getRequest(String key) 
+  {
+    QueryRequest queryReq = (QueryRequest)get(key);
+    return (queryReq == null) ? null : (QueryRequest)queryReq.clone();
+  } // getRequest()
+
+  /**
+   * Records a copy of the query request parsed from the output of a
+   * queryParser stylesheet.
+   *
+   * @param key         Key formed by {@link #makeKey}
+   * @param queryReq    The query request to record
+   * @param dependency  Dependency on the stylesheet, from
+   *                    {@link #dependOn(String)}
+   */
+  public void putRequest(String key, QueryRequest queryReq,
+                         Dependency dependency) 
+  {
+    set(key, queryReq.clone(), dependency);
+  }
+
+  /** Makes a copy of a route that can be changed independently. */
+  private static QueryRoute copyRoute(QueryRoute route) 
+  {
+    QueryRoute copy = QueryRoute.createDefault(route.queryParserSheet);
+    copy.errorGenSheet = route.errorGenSheet;
+    copy.tokenizerMap = new HashMap(route.tokenizerMap);
+    copy.routerInput = route.routerInput;
+    copy.routerOutput = route.routerOutput;
+    return copy;
+  } // copyRoute()
+} // class QueryRequestCache
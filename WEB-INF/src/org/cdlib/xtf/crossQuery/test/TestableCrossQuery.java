@@ -118,10 +118,17 @@ public class TestableCrossQuery extends CrossQuery
   {
     DefaultQueryProcessor processor = new DefaultQueryProcessor();
     processor.setXtfHome(baseDir);
+    processor.setIndexWarmer(getIndexWarmer());
+    return processor;
+  }
+
+  /** For test mode, allow override of index warmer. Default to foreground warming. */
+  @Override
+  public synchronized IndexWarmer getIndexWarmer()
+  {
     if (indexWarmer == null)
       indexWarmer = new IndexWarmer(baseDir, 0);
-    processor.setIndexWarmer(indexWarmer);
-    return processor;
+    return indexWarmer;
   }
 
   /**
@@ -62,6 +62,12 @@ class Authenticator
   /** Caches nonce values for external log-ins */
   private StringCache loginCache;
 
+  /**
+   * Caches recent IP list decisions, keyed by list path and address, or
+   * null if disabled.
+   */
+  private StringCache ipDecisionCache;
+
   /** Servlet to get dependencies from */
   private DynaXML servlet;
 
@@ -89,6 +95,11 @@ class Authenticator
     ipListCache = new IpListCache(config.ipListCacheSize,
                                   config.ipListCacheExpire,
                                   config.dependencyCheckingEnabled);
+
+    ipDecisionCache = (config.ipDecisionCacheSize <= 0) ? null
+                      : new StringCache("IpDecisionCache",
+                                        config.ipDecisionCacheSize,
+                                        config.ipDecisionCacheExpire);
   } // constructor
 
   /** Utility method to check if a string is null or "" */
@@ -219,8 +230,44 @@ class Authenticator
     ipListCache.clear();
     authCache.clear();
     loginCache.clear();
+    if (ipDecisionCache != null)
+      ipDecisionCache.clear();
   } // clearCaches()
 
+  /**
+   * Checks whether an IP address is on the given list. The decision is
+   * remembered for a while, so that a client making many requests doesn't
+   * need the list (and its file dependency) consulted every time. Changes
+   * to the list are thus noticed only once the decision expires.
+   *
+   * @param listPath  Path of the IP list file
+   * @param ipAddr    Client's IP address
+   * @return          true if the address is on the list
+   */
+  private boolean isOnList(String listPath, String ipAddr)
+    throws Exception 
+  {
+    // If decisions aren't cached, go straight to the list.
+    if (ipDecisionCache == null)
+      return ipListCache.find(listPath).isApproved(ipAddr);
+
+    // Use a recent decision if we have one. Entries are expired relative
+    // to when they were made, not when they were last used.
+    //
+    String key = listPath + "|" + ipAddr;
+    String decision = ipDecisionCache.get(key);
+    if (decision != null &&
+        (config.ipDecisionCacheExpire <= 0 ||
+         System.currentTimeMillis() - ipDecisionCache.lastSet(key) <
+         config.ipDecisionCacheExpire * 1000L))
+      return decision.equals("yes");
+
+    IpList ipList = ipListCache.find(listPath);
+    boolean onList = ipList.isApproved(ipAddr);
+    ipDecisionCache.set(key, onList ? "yes" : "no");
+    return onList;
+  } // isOnList()
+
   /**
    * Uses an LDAP server to authorize user access with a username and
    * password. Name and password are gathered using the HTTP 'basic'
@@ -538,8 +585,7 @@ class Authenticator
           }
           break;
         case AuthSpec.TYPE_IP:
-          IpList ipList = ipListCache.find(((IPAuthSpec)spec).ipList);
-          boolean onList = ipList.isApproved(ipAddr);
+          boolean onList = isOnList(((IPAuthSpec)spec).ipList, ipAddr);
           if (spec.access == AuthSpec.ACCESS_ALLOW) {
             Trace.debug(
               "Auth allow IP " + ipAddr + ": on-list=" +
@@ -604,6 +650,22 @@ class Authenticator
     return buf.toString();
   } // bytesToHex()
 
+  /**
+   * Checks whether a list of authentication specs lets everyone in, so
+   * that the same page can be served to all comers.
+   *
+   * @param authSpecs   List of specs (as produced by processAuthTag())
+   * @return            true if all the specs are of type "all".
+   */
+  public boolean isUnrestricted(Vector authSpecs) 
+  {
+    for (int i = 0; i < authSpecs.size(); i++) {
+      if (((AuthSpec)authSpecs.get(i)).type != AuthSpec.TYPE_ALL)
+        return false;
+    }
+    return true;
+  } // isUnrestricted()
+
   /** Holds information on a particular authorization specification */
   private class AuthSpec {
     public static final int ACCESS_DENY = 0;
@@ -55,8 +55,25 @@ public class DocRequest
     authSpecs = new Vector(other.authSpecs);
     preFilter = other.preFilter;
     removeDoctypeDecl = other.removeDoctypeDecl;
+    fragmentURI = other.fragmentURI;
+    fragmentName = other.fragmentName;
+    fragmentIndex = other.fragmentIndex;
+    dynamic = other.dynamic;
   }
 
+  /**
+   * Makes a string covering everything about the request that determines
+   * which document is displayed, and how (except for the display
+   * stylesheet and its parameters.) Two requests with the same description
+   * produce the same page.
+   */
+  public String describe() 
+  {
+    return source + "|" + indexConfig + "|" + indexName + "|" + preFilter +
+           "|" + removeDoctypeDecl + "|" + fragmentURI + "|" + fragmentName +
+           "|" + fragmentIndex;
+  } // describe()
+
   /** Path to the display stylesheet (relative to servlet base dir) */
   public String style;
 
@@ -92,4 +109,23 @@ public class DocRequest
 
   /** Text query to run on the document, or null for none. */
   public QueryRequest query;
+
+  /** Namespace URI of the fragment element to render ("" for none) */
+  public String fragmentURI = "";
+
+  /**
+   * Name of an element to render on its own, instead of the whole
+   * document, or null to render the entire document.
+   */
+  public String fragmentName;
+
+  /** Which occurrence (1-based) of the fragment element to render */
+  public int fragmentIndex = 1;
+
+  /**
+   * Set if the page must be produced afresh for every request (for
+   * instance, because it shows something that changes.) Such pages are
+   * never served from the output cache.
+   */
+  public boolean dynamic = false;
 } // class DocRequest
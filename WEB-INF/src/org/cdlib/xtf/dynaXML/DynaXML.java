@@ -38,6 +38,7 @@ import java.net.SocketException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Properties;
+import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.ParserConfigurationException;
@@ -51,10 +52,14 @@ import net.sf.saxon.Configuration;
 import net.sf.saxon.Controller;
 import net.sf.saxon.instruct.Executable;
 import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.trace.TraceListener;
 import net.sf.saxon.trans.KeyManager;
 import net.sf.saxon.tree.TreeBuilder;
 
+import org.cdlib.xtf.cache.FileDependency;
+import org.cdlib.xtf.servletBase.ETagCache;
+import org.cdlib.xtf.servletBase.OutputCache;
 import org.cdlib.xtf.servletBase.RedirectException;
 import org.cdlib.xtf.servletBase.TextConfig;
 import org.cdlib.xtf.servletBase.TextServlet;
@@ -97,9 +102,15 @@ public class DynaXML extends TextServlet
   /** Holds global servlet configuration info */
   private DynaXMLConfig config;
 
+  /** Response buffer size used when rendering a document fragment */
+  private static final int FRAGMENT_BUFFER_SIZE = 4096;
+
   /** Locator used to find lazy and non-lazy document files */
   private DocLocator docLocator = createDocLocator();
 
+  /** Holds rendered pages, if enabled */
+  private OutputCache outputCache;
+
   /**
    * Called by the superclass to find out the name of our specific config
    * file.
@@ -132,6 +143,17 @@ public class DynaXML extends TextServlet
     return config;
   }
 
+  /**
+   * Adds the document request parser to the stylesheets to warm up.
+   */
+  protected Set<String> getWarmUpSheets() 
+  {
+    Set<String> sheets = super.getWarmUpSheets();
+    if (config.docLookupSheet != null)
+      sheets.add(config.docLookupSheet);
+    return sheets;
+  } // getWarmUpSheets()
+
   /**
   * Retrieves the IP address of the client who is requesting a page from
   * this servlet. Handles un-reverse-proxying if necessary.
@@ -182,10 +204,18 @@ public class DynaXML extends TextServlet
     }
 
     // Some broken proxies prepend "unknown" to the real IP address.
-    // To work around these, skip all characters until we hit a digit.
+    // To work around these, skip all characters until we hit a digit
+    // (or, for IPv6 addresses, a hex digit or colon.)
     //
-    while (ip.length() > 0 && !Character.isDigit(ip.charAt(0)))
-      ip = ip.substring(1);
+    if (ip.indexOf(':') >= 0) {
+      while (ip.length() > 0 && ip.charAt(0) != ':' &&
+             Character.digit(ip.charAt(0), 16) < 0)
+        ip = ip.substring(1);
+    }
+    else {
+      while (ip.length() > 0 && !Character.isDigit(ip.charAt(0)))
+        ip = ip.substring(1);
+    }
 
     // All done!
     return ip;
@@ -361,6 +391,39 @@ public class DynaXML extends TextServlet
       }
       else if (tagName.equalsIgnoreCase("preFilter"))
         info.preFilter = getRealPath(el.attrValue("path"));
+      else if (tagName.equalsIgnoreCase("fragment")) {
+        info.fragmentName = el.attrValue("element");
+        if (isEmpty(info.fragmentName))
+          throw new DynaXMLException(
+            "docReqParser must specify 'element' attribute of " + tagName +
+            " tag");
+        if (!isEmpty(el.attrValue("namespace")))
+          info.fragmentURI = el.attrValue("namespace");
+        if (!isEmpty(el.attrValue("index"))) 
+        {
+          try {
+            info.fragmentIndex = Integer.parseInt(el.attrValue("index"));
+          }
+          catch (NumberFormatException e) {
+            throw new DynaXMLException(
+              "Expected integer for index attribute of " + tagName +
+              " tag specified by docReqParser, but found '" +
+              el.attrValue("index") + "'");
+          }
+        }
+      }
+      else if (tagName.equalsIgnoreCase("dynamic")) {
+        String val = el.attrValue("flag");
+        if (val.matches("^yes$|^true$"))
+          info.dynamic = true;
+        else if (val.matches("^no$|^false$"))
+          info.dynamic = false;
+        else
+          throw new DynaXMLException(
+            "Expected 'true', 'false', " +
+            "'yes', or 'no' for flag attribute of " + tagName +
+            " tag specified by docReqParser, but found '" + val + "'");
+      }
       else if (tagName.equalsIgnoreCase("removeDoctypeDecl")) {
         String val = el.attrValue("flag");
         if (val.matches("^yes$|^true$"))
@@ -458,7 +521,8 @@ public class DynaXML extends TextServlet
     Templates pss = stylesheetCache.find(docReq.style);
 
     // Figure out the output mime type
-    res.setContentType(calcMimeType(pss));
+    String mimeType = calcMimeType(pss);
+    res.setContentType(mimeType);
 
     // Make a transformer and stuff it full of parameters. But if it's the
     // same stylesheet as we used last time in this thread, we can re-use
@@ -474,14 +538,72 @@ public class DynaXML extends TextServlet
     //
     readBranding(docReq.brand, req, transformer);
 
+    // If the client already has the current version of the page, there's
+    // no need to load the document or run the stylesheet. Documents from
+    // other servers could change at any time, so they don't qualify.
+    //
+    String raw = req.getParameter("raw");
+    boolean isRaw = "yes".equals(raw) || "true".equals(raw) || "1".equals(raw);
+    boolean isLocal = !docReq.source.startsWith("http:") &&
+                      !docReq.source.startsWith("https:");
+    File lazyFile = null;
+    if (isLocal && docReq.indexConfig != null) {
+      lazyFile = IndexUtil.calcLazyPath(new File(getRealPath("")),
+                                        new File(docReq.indexConfig),
+                                        docReq.indexName,
+                                        new File(docReq.source),
+                                        false);
+    }
+    ETagCache.Tracker etag = null;
+    if (!isRaw && isLocal) 
+    {
+      long srcModified = new File(docReq.source).lastModified();
+      long lazyModified = (lazyFile == null) ? 0 : lazyFile.lastModified();
+      String input = docReq.source + ":" + srcModified + "|" + 
+                     lazyModified + "|" + docReq.preFilter + "|" + 
+                     docReq.fragmentURI + "|" + docReq.fragmentName + "|" + 
+                     docReq.fragmentIndex + "|" + docReq.removeDoctypeDecl + 
+                     "|" + req.getQueryString();
+      long lastModified = Math.max(Math.max(srcModified, lazyModified),
+                                   stylesheetCache.lastModified(docReq.style));
+      etag = checkETag(docReq.style, pss, transformer, input, lastModified,
+                       false, req, res);
+      if (etag != null && etag.notModified)
+        return;
+    }
+
+    // If the page has been rendered before, send the stored copy. If not,
+    // record it as it's rendered. It depends on the document (and its
+    // lazy file, if any), as well as the stylesheet.
+    //
+    // The ETag isn't recorded when a stored copy is sent: no transform
+    // ran, so the documents the stylesheet loads wouldn't be known, and
+    // recording it would drop them from the tag's dependencies.
+    //
+    OutputCache cache = getOutputCache(docReq, isRaw || !isLocal);
+    OutputCache.Recorder output = null;
+    if (cache != null) 
+    {
+      String key = cache.makeKey(docReq.style, pss, transformer,
+                                 docReq.describe());
+      OutputCache.Page page = cache.find(key);
+      if (page != null &&
+          cache.send(page, req, res, config.compressOutput,
+                     (etag == null) ? null : etag.etag))
+        return;
+
+      output = cache.record(key, docReq.style, transformer, mimeType, res);
+      output.addDependency(new FileDependency(docReq.source));
+      res = output.getResponse();
+    }
+
     // Get the source document.
     Source sourceDoc = getSourceDoc(docReq, transformer);
 
     // If we are in raw mode, use a null transform instead of the
     // stylesheet.
     //
-    String raw = req.getParameter("raw");
-    if ("yes".equals(raw) || "true".equals(raw) || "1".equals(raw)) 
+    if (isRaw) 
     {
       res.setContentType("text/xml");
 
@@ -508,11 +630,32 @@ public class DynaXML extends TextServlet
     // Now do the bulk of the work
     try 
     {
-      transformer.transform(sourceDoc,
+      // If only a fragment of the document was requested, pick out that
+      // element and transform it alone, rather than the whole document.
+      //
+      Source transformSrc = sourceDoc;
+      if (docReq.fragmentName != null)
+        transformSrc = getFragment(docReq, sourceDoc, res);
+
+      transformer.transform(transformSrc,
                             createFilteredReceiver(transformer, req, res));
+      if (output != null) 
+      {
+        // The lazy file and pre-filter may only have been loaded just now.
+        if (lazyFile != null && lazyFile.canRead())
+          output.addDependency(new FileDependency(lazyFile));
+        if (docReq.preFilter != null)
+          output.addDependency(cache.dependOn(docReq.preFilter));
+        output.commit();
+      }
+      finishETag(etag);
     }
     finally 
     {
+      // A page that didn't complete mustn't be stored.
+      if (output != null)
+        output.discard();
+
       // Clean up.
       if (config.stylesheetProfiling) {
         Trace.info("Profile for request: " + getRequestURL(req));
@@ -538,6 +681,103 @@ public class DynaXML extends TextServlet
         ((PersistentTree)sourceDoc).close();
     }
   } // apply()
+
+  /**
+   * Gets the output cache, if it is enabled and the page for a request may
+   * be served from it. Pages restricted to certain users, pages marked as
+   * dynamic by the docReqParser, and search results must be rendered
+   * every time. So must pages containing session IDs (which are added
+   * to URLs when sessionEncodeURLPattern is configured.)
+   *
+   * @param docReq        The document request
+   * @param mustRender    true if the caller knows the page can't be cached
+   * @return              The cache, or null if it shouldn't be used.
+   */
+  private OutputCache getOutputCache(DocRequest docReq, boolean mustRender)
+    throws IOException 
+  {
+    if (config.outputCacheSize <= 0 || config.stylesheetProfiling ||
+        mustRender || docReq.dynamic ||
+        (docReq.query != null && docReq.query.query != null) ||
+        !authenticator.isUnrestricted(docReq.authSpecs) ||
+        (config.trackSessions && config.sessionEncodeURLPattern != null))
+      return null;
+
+    // Make a new cache if the servlet has been re-initialized.
+    synchronized (this) 
+    {
+      if (outputCache == null || !outputCache.isFor(stylesheetCache)) 
+      {
+        if (outputCache != null)
+          outputCache.close();
+        outputCache = new OutputCache(stylesheetCache,
+                                      config.outputCacheSize,
+                                      config.outputCacheExpire,
+                                      config.outputCacheMaxMegs * 1024L * 1024L,
+                                      (config.outputCacheDir == null) ? null
+                                      : new File(config.outputCacheDir));
+      }
+      return outputCache;
+    }
+  } // getOutputCache()
+
+  /**
+   * Called by the servlet container when the servlet is taken out of
+   * service. Gets rid of the cached pages.
+   */
+  @Override
+  public void destroy() 
+  {
+    synchronized (this) {
+      if (outputCache != null)
+        outputCache.close();
+      outputCache = null;
+    }
+    super.destroy();
+  } // destroy()
+
+  /**
+   * Locates the element requested by a &lt;fragment&gt; tag from the
+   * docReqParser. The element is found using the lazy tree's element
+   * index, so only the nodes within the fragment ever get loaded from
+   * disk. Also shrinks the response buffer so that output starts reaching
+   * the client while the fragment is still being transformed.
+   *
+   * @param docReq      Document request that specifies the fragment
+   * @param sourceDoc   The loaded source document
+   * @param res         Response the fragment will be written to
+   * @return            The fragment element, suitable as a transform source
+   */
+  private Source getFragment(DocRequest docReq, Source sourceDoc,
+                             HttpServletResponse res)
+    throws DynaXMLException 
+  {
+    // Only a lazy tree can be navigated to the fragment without parsing
+    // the entire document.
+    //
+    if (!(sourceDoc instanceof LazyDocument))
+      throw new DynaXMLException(
+        "Fragment display requires a lazy tree for the document");
+
+    NodeInfo fragment = ((LazyDocument)sourceDoc).getElementByName(
+      docReq.fragmentURI,
+      docReq.fragmentName,
+      docReq.fragmentIndex);
+    if (fragment == null)
+      throw new InvalidDocumentException();
+
+    // Flush output in small chunks so the client sees the start of the
+    // fragment as soon as it's produced.
+    //
+    try {
+      res.setBufferSize(FRAGMENT_BUFFER_SIZE);
+    }
+    catch (IllegalStateException e) {
+      // Output has already started; keep the existing buffer.
+    }
+
+    return fragment;
+  } // getFragment()
   
   /**
    * Does the work of locating and loading the source document. Handles
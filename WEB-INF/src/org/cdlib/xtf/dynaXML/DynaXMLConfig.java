@@ -71,6 +71,30 @@ class DynaXMLConfig extends TextConfig
   /** Max amount of time (seconds) before IP list is automatically reloaded */
   public int ipListCacheExpire = 15 * 60; // 15 minutes
 
+  /** Max # of client IP list decisions to cache */
+  public int ipDecisionCacheSize = 1000;
+
+  /** Max amount of time (seconds) to trust an IP list decision */
+  public int ipDecisionCacheExpire = 60; // 1 minute
+
+  /**
+   * Max # of rendered pages to cache. Default: 0, meaning pages are
+   * rendered for every request.
+   */
+  public int outputCacheSize = 0;
+
+  /** Max amount of time (seconds) to cache a rendered page */
+  public int outputCacheExpire = 0;
+
+  /** Max total size (in megabytes) of the cached pages (compressed) */
+  public int outputCacheMaxMegs = 100;
+
+  /**
+   * Directory in which to store cached pages, or null for the system's
+   * temporary directory.
+   */
+  public String outputCacheDir;
+
   /** Whether to use lazy files */
   public boolean useLazyFiles = true;
   
@@ -129,6 +153,14 @@ class DynaXMLConfig extends TextConfig
       ipListCacheExpire = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("ipDecisionCache.size")) {
+      ipDecisionCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("ipDecisionCache.expire")) {
+      ipDecisionCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
     else if (tagAttr.equalsIgnoreCase("authCache.size")) {
       authCacheSize = parseInt(tagAttr, strVal);
       return true;
@@ -145,6 +177,22 @@ class DynaXMLConfig extends TextConfig
       loginCacheExpire = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("outputCache.size")) {
+      outputCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("outputCache.expire")) {
+      outputCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("outputCache.maxMegs")) {
+      outputCacheMaxMegs = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("outputCache.dir")) {
+      outputCacheDir = servlet.getRealPath(strVal);
+      return true;
+    }
     else if (tagAttr.equalsIgnoreCase("lazyTrees.use")) {
       useLazyFiles = parseBoolean(tagAttr, strVal);
       return true;
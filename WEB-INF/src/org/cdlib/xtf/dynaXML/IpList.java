@@ -34,185 +34,61 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.Reader;
+import java.math.BigInteger;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 /**
  * Loads and provides quick access to a map of IP addresses. Reads a file
  * containing IP addresses and ranges, as well as excluded addresses, and
- * provides a way to check if a given IP address matches.
+ * provides a way to check if a given IP address matches.<br><br>
+ *
+ * Entries may be IPv4 addresses (with '*' standing for any value of a
+ * component), IPv6 addresses, ranges of either ("a - b"), or prefixes in
+ * CIDR notation ("a/n"). Entries can overlap, so when the list is loaded
+ * they are boiled down to a sorted array of separate ranges of addresses
+ * that are included by some entry and not excluded by any. Checking an
+ * address is then just a binary search; for IPv4 addresses it doesn't
+ * even allocate any memory.
  */
 class IpList 
 {
   /**
-   * Data class to keep track of the four numeric components of an IP
-   * address.
+   * A range of addresses given by an entry in the file, and whether they
+   * are "positive" or "negative".
    */
-  private class IpAddr 
-  {
-    public int[] components = new int[4];
-
-    /** Constructs a blank IP address structure */
-    IpAddr() {
-    }
-
-    /** Constructs an IP address from the four numeric components */
-    IpAddr(int c0, int c1, int c2, int c3) {
-      components[0] = c0;
-      components[1] = c1;
-      components[2] = c2;
-      components[3] = c3;
-    } // IpAddr()
-
-    /**
-     * Checks if the first 'nComps' components of this IP address are
-     * equal to the specified one.
-     *
-     * @param other     The IP address to compare to
-     * @param nComps    How many components to compare (1-4)
-     */
-    boolean componentsEqual(IpAddr other, int nComps) 
-    {
-      for (int i = 0; i < nComps; i++) {
-        if (components[i] != other.components[i])
-          return false;
-      }
-      return true;
-    } // componentsEqual()
-
-    /**
-     * Parses a string of the form "aaa.bbb.ccc.ddd", replacing the
-     * contents of this IP address structure with the results. The
-     * components don't need all three digits to be valid.
-     *
-     * @param str   String to parse
-     *
-     * @return      The remainder that wasn't part of the IP address,
-     *              or null if no IP address could be parsed.
-     */
-    String parse(String str) 
-    {
-      // Parse each component.
-      int pos = 0;
-      for (int compNum = 0; compNum < 4; compNum++) 
-      {
-        // Get the next character. If none, that's an error.
-        if (pos >= str.length())
-          return null;
-        char c = str.charAt(pos++);
-
-        // If it's a '*', that means 'any' to us.
-        if (c == '*')
-          components[compNum] = 999;
-
-        // If it's a digit, process the number.
-        else if (Character.isDigit(c)) 
-        {
-          // Form the whole number.
-          StringBuffer numStr = new StringBuffer();
-          numStr.append(c);
-          while (pos < str.length()) {
-            c = str.charAt(pos);
-            if (!Character.isDigit(c))
-              break;
-            numStr.append(c);
-            pos++;
-          }
-
-          // Make sure it's 0-255.
-          int num = Integer.parseInt(numStr.toString());
-          if (num > 255)
-            return null;
-
-          // Record it.
-          components[compNum] = num;
-        } // else if
-
-        // Any other character is an error.
-        else
-          return null;
-
-        // If this isn't the last component, we expect a '.'
-        // separator next.
-        //
-        if (compNum < 3) {
-          if (pos >= str.length())
-            return null;
-          c = str.charAt(pos++);
-          if (c != '.')
-            return null;
-        }
-      } // for compNum
-
-      // Return the unparsed remainder of the string.
-      return str.substring(pos);
-    } // parse()
-  } // class IpAddr
-
-  /**
-   * Data structure to keep track of a range of IP addresses and whether
-   * they are "positive" or "negative". Provides a way to check if an IP
-   * address falls within the range.
-   */
-  private class IpRange 
+  private static class IpRange 
   {
     /** Start of the range */
-    public IpAddr startAddr;
+    BigInteger start;
 
-    /** End of the range (can be equal to startAddr) */
-    public IpAddr endAddr;
+    /** End of the range (can be equal to start) */
+    BigInteger end;
 
     /**
-     * true if the range is specified IP address to include, false if
-     * it specifies addresses to exclude.
+     * true if the range specifies addresses to include, false if it
+     * specifies addresses to exclude.
      */
-    public boolean isPositive;
+    boolean isPositive;
 
-    /**
-     * Construct an IP range.
-     *
-     * @param _start     Starting address
-     * @param _end       Ending address (can equal _start)
-     * @param _isPos     true if range specified IPs to include, false to
-     *                   specify IPs to exclude.
-     */
-    IpRange(IpAddr _start, IpAddr _end, boolean _isPos) {
-      startAddr = _start;
-      endAddr = _end;
-      isPositive = _isPos;
+    IpRange(BigInteger start, BigInteger end, boolean isPositive) {
+      this.start = start;
+      this.end = end;
+      this.isPositive = isPositive;
     }
+  } // class IpRange
 
-    /** Checks if a specified IP address falls within the range. */
-    boolean matches(IpAddr addr) 
+  /** Orders ranges by their starting address */
+  private static final Comparator<IpRange> startOrder = 
+    new Comparator<IpRange>() 
     {
-      // First, make sure the addr is >= the range start.
-      for (int i = 0; i < 4; i++) {
-        int ic = addr.components[i];
-        int sc = startAddr.components[i];
-        if (sc == 999) // handle wildcard
-          sc = 0;
-        if (ic < sc)
-          return false;
-        if (ic > sc)
-          break;
+      public int compare(IpRange r1, IpRange r2) {
+        return r1.start.compareTo(r2.start);
       }
-      
-      // Then make sure the addr is <= the range end
-      for (int i = 0; i < 4; i++) {
-        int ic = addr.components[i];
-        int ec = endAddr.components[i];
-        if (ec == 999) // handle wildcard
-          ec = 255;
-        if (ic > ec)
-          return false;
-        if (ic < ec)
-          break;
-      }
-      
-      return true;
-    } // matches()
-  } // class IpRange
+    };
 
   /**
    * Constructs and loads an IP map from the specified file.
@@ -224,8 +100,28 @@ class IpList
   public IpList(String path)
     throws IOException 
   {
-    ranges = new ArrayList<IpRange>();
-    readRanges(path);
+    ArrayList<IpRange> v4Ranges = new ArrayList<IpRange>();
+    ArrayList<IpRange> v6Ranges = new ArrayList<IpRange>();
+    readRanges(path, v4Ranges, v6Ranges);
+
+    // Make the lookup tables.
+    ArrayList<IpRange> approved = approvedRanges(v4Ranges);
+    v4Starts = new long[approved.size()];
+    v4Ends = new long[approved.size()];
+    for (int i = 0; i < approved.size(); i++) {
+      v4Starts[i] = approved.get(i).start.longValue();
+      v4Ends[i] = approved.get(i).end.longValue();
+    }
+
+    approved = approvedRanges(v6Ranges);
+    v6Starts = new long[approved.size() * 2];
+    v6Ends = new long[approved.size() * 2];
+    for (int i = 0; i < approved.size(); i++) {
+      v6Starts[i * 2] = approved.get(i).start.shiftRight(64).longValue();
+      v6Starts[i * 2 + 1] = approved.get(i).start.longValue();
+      v6Ends[i * 2] = approved.get(i).end.shiftRight(64).longValue();
+      v6Ends[i * 2 + 1] = approved.get(i).end.longValue();
+    }
   } // IpList()
 
   /**
@@ -234,63 +130,300 @@ class IpList
    * excluded ranges.
    *
    * @param ipAddrStr     A string of the form "a.b.c.d" where each component
-   *                      is a decimal number from 0-255.
+   *                      is a decimal number from 0-255, or an IPv6 address.
+   *                      Anything following the address is ignored.
    *
    * @return              true if and only if the address matches.
    */
   public boolean isApproved(String ipAddrStr) 
   {
-    // First, parse the address we got. If we can't, it's definitely not
+    // IPv4 is the usual case.
+    long parsed = parseV4(ipAddrStr, 0);
+    if (parsed >= 0)
+      return findV4(parsed & 0xffffffffL);
+
+    // Otherwise, try IPv6. If we can't parse it, it's definitely not
     // approved.
     //
-    IpAddr parsedAddr = new IpAddr();
-    if (parsedAddr.parse(ipAddrStr) == null)
+    long[] addr = new long[2];
+    if (!parseV6(ipAddrStr, addr))
       return false;
 
-    // Scan each entry. We used to try to be clever and use a sorted map to
-    // limit the number we had to scan, but this has been shown to fail in
-    // the case of overlapping entries. Consider for instance if the first
-    // entry in the map is "0.0.0.0 - 255.255.255.255". No sorting algorithm
-    // is going to help you -- that entry *always* has to be checked. By
-    // induction, *every* entry *always* has to be checked.
+    // IPv4 addresses mapped into IPv6 (::ffff:a.b.c.d) are checked against
+    // the IPv4 ranges.
     //
-    boolean positive = false;
-    boolean negative = false;
-    for (IpRange range : ranges) 
+    if (addr[0] == 0 && (addr[1] >>> 32) == 0xffffL)
+      return findV4(addr[1] & 0xffffffffL);
+
+    return findV6(addr[0], addr[1]);
+  } // isApproved()
+
+  /** Checks whether an IPv4 address (as a number) is in an approved range */
+  private boolean findV4(long addr) 
+  {
+    // Find the last range starting at or before the address.
+    int lo = 0;
+    int hi = v4Starts.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (v4Starts[mid] <= addr)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return hi >= 0 && addr <= v4Ends[hi];
+  } // findV4()
+
+  /** Checks whether an IPv6 address is in an approved range */
+  private boolean findV6(long addrHi, long addrLo) 
+  {
+    // Find the last range starting at or before the address.
+    int lo = 0;
+    int hi = v6Starts.length / 2 - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compare(v6Starts[mid * 2], v6Starts[mid * 2 + 1], addrHi, addrLo) <= 0)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return hi >= 0 &&
+           compare(addrHi, addrLo, v6Ends[hi * 2], v6Ends[hi * 2 + 1]) <= 0;
+  } // findV6()
+
+  /** Compares two 128-bit unsigned numbers, each given as two halves */
+  private static int compare(long aHi, long aLo, long bHi, long bLo) 
+  {
+    if (aHi != bHi)
+      return ((aHi ^ Long.MIN_VALUE) < (bHi ^ Long.MIN_VALUE)) ? -1 : 1;
+    if (aLo != bLo)
+      return ((aLo ^ Long.MIN_VALUE) < (bLo ^ Long.MIN_VALUE)) ? -1 : 1;
+    return 0;
+  } // compare()
+
+  /**
+   * Works out which addresses are approved: those in a positive range, but
+   * not in any negative range.
+   *
+   * @param ranges    The ranges to consider
+   * @return          Separate (non-overlapping, non-adjacent) positive
+   *                  ranges, sorted by address.
+   */
+  private static ArrayList<IpRange> approvedRanges(ArrayList<IpRange> ranges) 
+  {
+    ArrayList<IpRange> pos = new ArrayList<IpRange>();
+    ArrayList<IpRange> neg = new ArrayList<IpRange>();
+    for (IpRange r : ranges)
+      (r.isPositive ? pos : neg).add(r);
+    pos = mergeRanges(pos);
+    neg = mergeRanges(neg);
+
+    // Cut the negative ranges out of the positive ones. Both are sorted,
+    // so we can sweep through them together.
+    //
+    ArrayList<IpRange> out = new ArrayList<IpRange>();
+    int j = 0;
+    for (IpRange p : pos) 
     {
-      // See if the parsed address matches the one in the map. If not,
-      // skip it.
-      //
-      if (!range.matches(parsedAddr))
+      while (j < neg.size() && neg.get(j).end.compareTo(p.start) < 0)
+        j++;
+      BigInteger start = p.start;
+      for (int k = j; start.compareTo(p.end) <= 0; k++) 
+      {
+        IpRange n = (k < neg.size()) ? neg.get(k) : null;
+        if (n == null || n.start.compareTo(p.end) > 0) {
+          out.add(new IpRange(start, p.end, true));
+          break;
+        }
+        if (n.start.compareTo(start) > 0)
+          out.add(new IpRange(start, n.start.subtract(BigInteger.ONE), true));
+        start = n.end.add(BigInteger.ONE);
+      }
+    }
+    return out;
+  } // approvedRanges()
+
+  /**
+   * Sorts a list of ranges, and combines those that overlap or touch.
+   *
+   * @param ranges    Ranges to merge (all of the same sign)
+   * @return          Sorted list of separate ranges
+   */
+  private static ArrayList<IpRange> mergeRanges(ArrayList<IpRange> ranges) 
+  {
+    Collections.sort(ranges, startOrder);
+    ArrayList<IpRange> out = new ArrayList<IpRange>();
+    IpRange cur = null;
+    for (IpRange r : ranges) 
+    {
+      if (cur != null && 
+          r.start.compareTo(cur.end.add(BigInteger.ONE)) <= 0) 
+      {
+        if (r.end.compareTo(cur.end) > 0)
+          cur.end = r.end;
         continue;
+      }
+      cur = new IpRange(r.start, r.end, r.isPositive);
+      out.add(cur);
+    }
+    return out;
+  } // mergeRanges()
+
+  /**
+   * Parses an IPv4 address of the form "aaa.bbb.ccc.ddd". The components
+   * don't need all three digits to be valid.
+   *
+   * @param str   String to parse
+   * @param pos   Where in the string to start
+   *
+   * @return      -1 if no address could be parsed. Otherwise, the address
+   *              in the low 32 bits, and the position just past it in the
+   *              upper bits.
+   */
+  private static long parseV4(String str, int pos) 
+  {
+    long addr = 0;
+    for (int compNum = 0; compNum < 4; compNum++) 
+    {
+      // If this isn't the first component, we expect a '.' separator.
+      if (compNum > 0) {
+        if (pos >= str.length() || str.charAt(pos) != '.')
+          return -1;
+        pos++;
+      }
 
-      // Found a matching entry. Set the appropriate flag.
-      if (range.isPositive)
-        positive = true;
+      // Form the number, and make sure it's 0-255. Leading zeros are
+      // fine, however many there are.
+      //
+      int num = 0;
+      int start = pos;
+      while (pos < str.length() && Character.isDigit(str.charAt(pos))) {
+        num = num * 10 + Character.digit(str.charAt(pos++), 10);
+        if (num > 255)
+          return -1;
+      }
+      if (pos == start)
+        return -1;
+
+      addr = (addr << 8) | num;
+    } // for compNum
+
+    return ((long)pos << 32) | addr;
+  } // parseV4()
+
+  /**
+   * Parses an IPv6 address, such as "2001:db8::1" or "::ffff:1.2.3.4".
+   * Anything following the address is ignored.
+   *
+   * @param str   String to parse
+   * @param out   Receives the upper and lower 64 bits of the address
+   *
+   * @return      true if an address was parsed, false if not.
+   */
+  private static boolean parseV6(String str, long[] out) 
+  {
+    // The groups before a "::" are the head, and those after it the tail.
+    long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+    int nHead = 0, nTail = 0;
+    boolean inTail = false;
+    int pos = 0;
+    int len = str.length();
+    if (str.startsWith("::")) {
+      inTail = true;
+      pos = 2;
+    }
+
+    while (pos < len) 
+    {
+      // Parse a group of up to four hex digits.
+      int start = pos;
+      int group = 0;
+      while (pos < len && pos - start <= 4) {
+        int digit = Character.digit(str.charAt(pos), 16);
+        if (digit < 0)
+          break;
+        group = (group << 4) | digit;
+        pos++;
+      }
+
+      // Nothing more after a "::" just means that's the end.
+      if (pos == start) {
+        if (inTail && nTail == 0)
+          break;
+        return false;
+      }
+
+      // The last 32 bits can be given as an IPv4 address.
+      int nGroups = 1;
+      if (pos < len && str.charAt(pos) == '.') {
+        long parsed = parseV4(str, start);
+        if (parsed < 0)
+          return false;
+        pos = (int)(parsed >>> 32);
+        group = (int)parsed;
+        nGroups = 2;
+      }
+      else if (pos - start > 4)
+        return false;
+
+      // Add the group(s) to the head or the tail.
+      if (inTail) {
+        tailHi = (tailHi << (16 * nGroups)) | (tailLo >>> (64 - 16 * nGroups));
+        tailLo = (tailLo << (16 * nGroups)) | (group & 0xffffffffL);
+        nTail += nGroups;
+      }
+      else {
+        headHi = (headHi << (16 * nGroups)) | (headLo >>> (64 - 16 * nGroups));
+        headLo = (headLo << (16 * nGroups)) | (group & 0xffffffffL);
+        nHead += nGroups;
+      }
+      if (nHead + nTail > 8)
+        return false;
+      if (nGroups == 2)
+        break;
+
+      // Look for a separator, and another group after it.
+      if (pos + 1 < len && str.charAt(pos) == ':' && 
+          str.charAt(pos + 1) == ':') 
+      {
+        if (inTail)
+          return false;
+        inTail = true;
+        pos += 2;
+      }
+      else if (pos < len && str.charAt(pos) == ':')
+        pos++;
       else
-        negative = true;
+        break;
     } // while
 
-    // If any matching negative entry was found, that takes precedence.
-    if (negative)
+    // A "::" stands for at least one group of zeros; otherwise there must
+    // be eight groups in all.
+    //
+    if (inTail ? (nHead + nTail > 7) : (nHead != 8))
       return false;
 
-    // If a positive entry was found, the address is approved.
-    if (positive)
-      return true;
-
-    // If there was no match, the address is not approved.
-    return false;
-  } // isApproved()
+    // Move the head into place, and put the tail after it.
+    for (int i = nHead; i < 8; i++) {
+      headHi = (headHi << 16) | (headLo >>> 48);
+      headLo <<= 16;
+    }
+    out[0] = headHi | tailHi;
+    out[1] = headLo | tailLo;
+    return true;
+  } // parseV6()
 
   /**
-   * Reads the contents the given file into the IP map.
+   * Reads the contents the given file into lists of ranges.
    *
    * @param       path            Path to the file to load
+   * @param       v4Ranges        List to receive IPv4 ranges
+   * @param       v6Ranges        List to receive IPv6 ranges
    *
    * @exception   IOException     If the file couldn't be read from.
    */
-  private void readRanges(String path)
+  private void readRanges(String path, ArrayList<IpRange> v4Ranges,
+                          ArrayList<IpRange> v6Ranges)
     throws IOException 
   {
     Reader rawReader;
@@ -323,62 +456,179 @@ class IpList
       if (line.equals(""))
         continue;
 
-      // Lines beginning with numbers specify positive IP addresses
-      if (Character.isDigit(line.charAt(0)) || (line.charAt(0) == '*')) {
-        processEntry(line, true);
-      }
-
       // Lines beginning with "exclude" specify negative IP addresses
-      else if (line.startsWith("exclude")) {
+      if (line.startsWith("exclude")) {
         line = line.substring(7).trim();
-        processEntry(line, false);
+        processEntry(line, false, v4Ranges, v6Ranges);
+      }
+
+      // Lines beginning with numbers (or an IPv6 address) specify positive
+      // IP addresses.
+      //
+      else if (Character.isDigit(line.charAt(0)) || (line.charAt(0) == '*') ||
+               firstToken(line).indexOf(':') >= 0) 
+      {
+        processEntry(line, true, v4Ranges, v6Ranges);
       }
 
       // Ignore other kinds of lines.
       else
         continue;
     }
-  } // readMap()
+    reader.close();
+  } // readRanges()
+
+  /** Gets the part of a string before the first space or '-' */
+  private static String firstToken(String str) 
+  {
+    int i = 0;
+    while (i < str.length() && !Character.isWhitespace(str.charAt(i)) &&
+           str.charAt(i) != '-')
+      i++;
+    return str.substring(0, i);
+  } // firstToken()
 
   /**
-   * Used by readMap to parse a single entry in the IP map file.
+   * Used by readRanges to parse a single entry in the IP map file.
    *
    * @param line          The line of text to parse
-   * @param isPositive    true if this is an "exclude" line
+   * @param isPositive    false if this is an "exclude" line
+   * @param v4Ranges      List to receive an IPv4 range
+   * @param v6Ranges      List to receive an IPv6 range
    */
-  private void processEntry(String line, boolean isPositive) 
+  private void processEntry(String line, boolean isPositive,
+                            ArrayList<IpRange> v4Ranges,
+                            ArrayList<IpRange> v6Ranges) 
   {
-    IpAddr startIp = new IpAddr();
-    IpAddr endIp = new IpAddr();
-
-    // Parse the first IP address. If invalid, skip this line.
-    String str = line;
-    str = startIp.parse(str);
-    if (str == null)
+    // Parse the first address. If invalid, skip this line.
+    String first = firstToken(line);
+    IpRange range = parseEntryAddr(first);
+    if (range == null)
       return;
 
-    // If the next char is a "-", then it's a range.
-    str = str.trim();
+    // If the next char is a "-", then it's a range, and it ends with the
+    // last address matched by the second one. Both must be the same kind
+    // (IPv4 or IPv6.)
+    //
+    String str = line.substring(first.length()).trim();
     if (str.startsWith("-")) 
     {
-      // Strip the "-" and any spaces after it.
-      str = str.substring(1).trim();
-
-      // Now try to parse the end IP addr. If invalid, skip the line.
-      str = endIp.parse(str);
-      if (str == null)
+      IpRange end = parseEntryAddr(firstToken(str.substring(1).trim()));
+      if (end == null || end.isPositive != range.isPositive)
         return;
+      range.end = end.end;
     }
 
-    // Otherwise, it's a single address.
-    else
-      endIp = startIp;
+    // Skip backward ranges; they match nothing.
+    if (range.start.compareTo(range.end) > 0)
+      return;
 
-    // Add the new entry
-    IpRange range = new IpRange(startIp, endIp, isPositive);
-    ranges.add(range);
+    // Add the new entry (we used isPositive to mean IPv6 along the way.)
+    boolean isV6 = range.isPositive;
+    range.isPositive = isPositive;
+    (isV6 ? v6Ranges : v4Ranges).add(range);
+  } // processEntry()
+
+  /**
+   * Parses a single address from an entry, with an optional CIDR prefix
+   * length. IPv4 components may be '*', meaning any value.
+   *
+   * @param token   The text of the address
+   * @return        The range of addresses it matches, with isPositive set
+   *                if it's IPv6; or null if it can't be parsed.
+   */
+  private static IpRange parseEntryAddr(String token) 
+  {
+    // Split off the prefix length, if any.
+    int prefixLen = -1;
+    int slash = token.indexOf('/');
+    if (slash >= 0) 
+    {
+      try {
+        prefixLen = Integer.parseInt(token.substring(slash + 1));
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+      token = token.substring(0, slash);
+    }
+
+    BigInteger start;
+    BigInteger end;
+    int nBits;
+    if (token.indexOf(':') >= 0) 
+    {
+      long[] addr = new long[2];
+      if (!parseV6(token, addr) || !firstToken(token).equals(token))
+        return null;
+      start = end = toBigInteger(addr[0]).shiftLeft(64).or(
+        toBigInteger(addr[1]));
+      nBits = 128;
+    }
+    else 
+    {
+      // Wildcards mean the range runs from 0 to 255 in that component.
+      String[] comps = token.split("\\.", -1);
+      if (comps.length != 4)
+        return null;
+      long lo = 0;
+      long hi = 0;
+      for (String comp : comps) 
+      {
+        int num;
+        if (comp.equals("*"))
+          num = -1;
+        else 
+        {
+          try {
+            num = Integer.parseInt(comp);
+          }
+          catch (NumberFormatException e) {
+            return null;
+          }
+          if (num < 0 || num > 255)
+            return null;
+        }
+        lo = (lo << 8) | ((num < 0) ? 0 : num);
+        hi = (hi << 8) | ((num < 0) ? 255 : num);
+      }
+      start = BigInteger.valueOf(lo);
+      end = BigInteger.valueOf(hi);
+      nBits = 32;
+    }
+
+    // A prefix length covers every address that starts with those bits.
+    if (prefixLen >= 0) 
+    {
+      if (prefixLen > nBits)
+        return null;
+      BigInteger hostMask = BigInteger.ONE.shiftLeft(nBits - prefixLen).
+                            subtract(BigInteger.ONE);
+      start = start.andNot(hostMask);
+      end = start.or(hostMask);
+    }
+
+    return new IpRange(start, end, nBits == 128);
+  } // parseEntryAddr()
+
+  /** Converts 64 bits to a non-negative number */
+  private static BigInteger toBigInteger(long bits) {
+    BigInteger big = BigInteger.valueOf(bits & Long.MAX_VALUE);
+    return (bits < 0) ? big.setBit(63) : big;
   }
 
-  /** List of IpRanges. */
-  private ArrayList<IpRange> ranges;
+  /** Starting address of each approved IPv4 range, in order */
+  private long[] v4Starts;
+
+  /** Ending address of each approved IPv4 range */
+  private long[] v4Ends;
+
+  /**
+   * Starting address of each approved IPv6 range, in order, as two
+   * entries each: the upper and lower 64 bits.
+   */
+  private long[] v6Starts;
+
+  /** Ending address of each approved IPv6 range, as two entries each */
+  private long[] v6Ends;
 } // class IpList
@@ -21,6 +21,10 @@ final class AncestorEnumeration extends TreeEnumeration
     next = (NodeImpl)next.getParent();
   }
 
+  protected int stepNum(int num) {
+    return scanDoc.getParentNum(num);
+  }
+
   /**
   * Get another enumeration of the same nodes
   */
@@ -8,6 +8,10 @@ final class ChildEnumeration extends TreeEnumeration
     public ChildEnumeration(NodeImpl node, NodeTest nodeTest) 
     {
         super(node, nodeTest);
+        if (scanDoc != null) {
+            next = scanFrom(scanDoc.getChildNum(node.nodeNum));
+            return;
+        }
         next = (NodeImpl)node.getFirstChild();
         while (!conforms(next)) {
             step();
@@ -18,6 +22,10 @@ final class ChildEnumeration extends TreeEnumeration
         next = (NodeImpl)next.getNextSibling();
     }
 
+    protected int stepNum(int num) {
+        return scanDoc.getNextSibNum(num);
+    }
+
     /**
     * Get another enumeration of the same nodes
     */
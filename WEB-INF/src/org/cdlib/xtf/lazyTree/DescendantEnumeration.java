@@ -7,6 +7,7 @@ final class DescendantEnumeration extends TreeEnumeration
 {
   private NodeImpl root;
   private boolean includeSelf;
+  private int endNum;
 
   public DescendantEnumeration(NodeImpl node, NodeTest nodeTest,
                                boolean includeSelf) 
@@ -14,6 +15,8 @@ final class DescendantEnumeration extends TreeEnumeration
     super(node, nodeTest);
     root = node;
     this.includeSelf = includeSelf;
+    if (scanDoc != null)
+      endNum = scanDoc.getSubtreeEnd(node.nodeNum);
     if (!includeSelf || !conforms(node)) {
       advance();
     }
@@ -23,6 +26,11 @@ final class DescendantEnumeration extends TreeEnumeration
     next = next.getNextInDocument(root);
   }
 
+  /** Descendants are numbered consecutively, up to the end of the subtree */
+  protected int stepNum(int num) {
+    return (++num < endNum) ? num : -1;
+  }
+
   /**
   * Get another enumeration of the same nodes
   */
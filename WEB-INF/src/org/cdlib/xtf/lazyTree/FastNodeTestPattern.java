@@ -40,8 +40,10 @@ import net.sf.saxon.type.Type;
 
 /**
  * Optimizes Saxon's NodeTestPattern adding the ability to directly use a
- * NodeTest when selecting elements, rather than selecting all elements
- * and then applying the test to them (the latter is slow on lazy trees).
+ * NodeTest when selecting elements or text nodes, rather than selecting all
+ * nodes and then applying the test to them (the latter is slow on lazy
+ * trees, whereas the descendant axis can check the test against the node
+ * records without loading each node).
  * 
  * @author Martin Haye
  */
@@ -54,7 +56,8 @@ class FastNodeTestPattern extends NodeTestPattern
   public SequenceIterator selectNodes(DocumentInfo doc, final XPathContext context) 
     throws XPathException 
   {
-    if (getNodeKind() == Type.ELEMENT)
+    int kind = getNodeKind();
+    if (kind == Type.ELEMENT || kind == Type.TEXT)
       return doc.iterateAxis(Axis.DESCENDANT, getNodeTest());
     return super.selectNodes(doc, context);
   }
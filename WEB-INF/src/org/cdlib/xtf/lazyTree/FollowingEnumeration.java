@@ -13,6 +13,15 @@ final class FollowingEnumeration extends TreeEnumeration
     super(node, nodeTest);
     root = (LazyDocument)node.getDocumentRoot();
 
+    // When scanning, the following nodes are simply all those numbered
+    // after the end of this node's subtree.
+    //
+    if (scanDoc != null) {
+      int first = scanDoc.getSubtreeEnd(node.nodeNum);
+      next = scanFrom((first < scanDoc.getNodeLimit()) ? first : -1);
+      return;
+    }
+
     // skip the descendant nodes if any
     int type = node.getNodeKind();
     if (type == Type.ATTRIBUTE || type == Type.NAMESPACE) 
@@ -35,6 +44,10 @@ final class FollowingEnumeration extends TreeEnumeration
     next = next.getNextInDocument(root);
   }
 
+  protected int stepNum(int num) {
+    return (++num < scanDoc.getNodeLimit()) ? num : -1;
+  }
+
   /**
   * Get another enumeration of the same nodes
   */
@@ -14,6 +14,10 @@ final class FollowingSiblingEnumeration extends TreeEnumeration
         next = (NodeImpl)next.getNextSibling();
     }
 
+    protected int stepNum(int num) {
+        return scanDoc.getNextSibNum(num);
+    }
+
     /**
     * Get another enumeration of the same nodes
     */
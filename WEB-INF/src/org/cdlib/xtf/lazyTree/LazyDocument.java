@@ -18,11 +18,14 @@ import net.sf.saxon.om.Item;
 import net.sf.saxon.om.NamePool;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.NodeListIterator;
+import net.sf.saxon.om.StandardNames;
 import net.sf.saxon.om.StrippedNode;
+import net.sf.saxon.pattern.NodeTest;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.SystemIdMap;
 import net.sf.saxon.type.Type;
 
+import org.cdlib.xtf.util.CompressedStoreReader;
 import org.cdlib.xtf.util.DiskHashReader;
 import org.cdlib.xtf.util.DiskHashWriter;
 import org.cdlib.xtf.util.PackedByteBuf;
@@ -90,15 +93,31 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
   /** Size of the header on the node file */
   protected static final int NODE_FILE_HEADER_SIZE = 12;
 
-  /** The size of the largest node entry on disk */
+  /** Size of the header on a node file stored in column blocks */
+  protected static final int COLUMN_FILE_HEADER_SIZE = 12 +
+                                                       (NodeBlock.N_COLUMNS * 4);
+
+  /** True if the node file is stored in column blocks (version 3.0+) */
+  protected boolean columnar;
+
+  /** Width in bytes of each column, if stored in column blocks */
+  protected int[] columnWidths;
+
+  /** The size of the largest node entry on disk (version 2.0 only) */
   protected int maxNodeSize;
 
-  /** Byte buffer for reading nodes */
+  /** Number of node entries actually present in the node file */
+  protected int numberOfRecords;
+
+  /** Byte buffer for reading a block of nodes */
   protected byte[] nodeBytes;
 
-  /** Buffer for unpacking nodes */
+  /** Buffer for unpacking nodes (version 2.0 only) */
   protected PackedByteBuf nodeBuf;
 
+  /** Soft references to node blocks that have been read in */
+  private SoftReference[] blockCache;
+
   /** Contains all the attributes */
   protected SubStoreReader attrFile;
 
@@ -179,20 +198,45 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     {
       readNames(store.openSubStore("names"));
 
+      // Version 3.0 and later files store nodes in column blocks, and
+      // compress the text and attributes.
+      //
+      columnar = store.getUserVersion().compareTo(
+        LazyTreeBuilder.COLUMNAR_VERSION) >= 0;
+
       // Now open the other files and read their headers.
       nodeFile = store.openSubStore("nodes");
       rootNodeNum = nodeFile.readInt();
       numberOfNodes = nodeFile.readInt();
-      maxNodeSize = nodeFile.readInt();
+      if (columnar) 
+      {
+        if (nodeFile.readInt() != NodeBlock.SIZE)
+          throw new IOException("Unsupported node block size in lazy tree");
+        columnWidths = new int[NodeBlock.N_COLUMNS];
+        for (int c = 0; c < NodeBlock.N_COLUMNS; c++)
+          columnWidths[c] = nodeFile.readInt();
+        nodeBytes = new byte[NodeBlock.diskSize(columnWidths)];
+        numberOfRecords = (int)((nodeFile.length() - COLUMN_FILE_HEADER_SIZE) /
+                                nodeBytes.length) << NodeBlock.SHIFT;
+      }
+      else 
+      {
+        maxNodeSize = nodeFile.readInt();
+        nodeBytes = new byte[maxNodeSize * NodeBlock.SIZE];
+        nodeBuf = new PackedByteBuf(0);
+        numberOfRecords = (int)((nodeFile.length() - NODE_FILE_HEADER_SIZE) /
+                                maxNodeSize);
+      }
+      blockCache = new SoftReference[
+        (numberOfRecords + NodeBlock.SIZE - 1) >> NodeBlock.SHIFT];
 
       attrFile = store.openSubStore("attributes");
-      maxAttrSize = attrFile.readInt();
-
       textFile = store.openSubStore("text");
-
-      // Allocate the buffer for reading nodes.
-      nodeBytes = new byte[maxNodeSize];
-      nodeBuf = new PackedByteBuf(0);
+      if (columnar) {
+        attrFile = new CompressedStoreReader(attrFile);
+        textFile = new CompressedStoreReader(textFile);
+      }
+      maxAttrSize = attrFile.readInt();
 
       // Likewise for reading attributes.
       attrBytes = new byte[maxAttrSize];
@@ -444,19 +488,12 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       if (profileListener != null)
         profileListener.bumpCount(num);
 
-      // Read the most data it could be.
-      synchronized (mainStore) {
-        nodeFile.seek(NODE_FILE_HEADER_SIZE + (num * maxNodeSize));
-        nodeFile.read(nodeBytes);
-      }
-
-      // Get the type and the flags.
-      nodeBuf.setBytes(nodeBytes);
-      short kind = nodeBuf.readByte();
-      int flags = nodeBuf.readInt();
+      // Find the block containing the node.
+      NodeBlock block = getBlock(num);
+      int idx = num & NodeBlock.MASK;
 
       // Construct the node based on the kind.
-      switch (kind) {
+      switch (block.kind[idx]) {
         case Type.DOCUMENT:
           node = this;
           break;
@@ -472,6 +509,8 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
         case Type.PROCESSING_INSTRUCTION:
           assert false : "processing instructions not yet supported";
           break;
+        case 0:
+          return null; // padding at the end of the node file
         default:
           assert false : "Invalid node kind";
           return null;
@@ -481,50 +520,22 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       node.nodeNum = num;
       node.document = this;
 
-      // Read other stuff according to the flags.
-      if ((flags & Flag.HAS_NAMECODE) != 0) {
-        int nameIdx = nodeBuf.readInt();
-        node.nameCode = nameNumToCode[nameIdx];
-      }
-      else
-        node.nameCode = -1;
-
-      if ((flags & Flag.HAS_PARENT) != 0)
-        node.parentNum = nodeBuf.readInt();
-      else
-        node.parentNum = -1;
-
-      if ((flags & Flag.HAS_PREV_SIBLING) != 0)
-        node.prevSibNum = nodeBuf.readInt();
-      else
-        node.prevSibNum = -1;
-
-      if ((flags & Flag.HAS_NEXT_SIBLING) != 0)
-        node.nextSibNum = nodeBuf.readInt();
-      else
-        node.nextSibNum = -1;
+      // Copy the rest of the node's info from the block.
+      node.nameCode = block.nameCode[idx];
+      node.parentNum = block.parent[idx];
+      node.prevSibNum = block.prevSib[idx];
+      node.nextSibNum = block.nextSib[idx];
       
       assert node.prevSibNum != node.nextSibNum || node.prevSibNum < 0;
       assert node.prevSibNum < node.nodeNum;
       assert node.nextSibNum > node.nodeNum || node.nextSibNum < 0;
 
-      if ((flags & Flag.HAS_CHILD) != 0) {
-        assert node instanceof ParentNodeImpl;
-        ((ParentNodeImpl)node).childNum = nodeBuf.readInt();
-        assert ((ParentNodeImpl)node).childNum > 0;
-      }
-      else if (node instanceof ParentNodeImpl)
-        ((ParentNodeImpl)node).childNum = -1;
-
-      int alpha = -1;
-      if ((flags & Flag.HAS_ALPHA) != 0)
-        alpha = nodeBuf.readInt();
-
-      int beta = -1;
-      if ((flags & Flag.HAS_BETA) != 0)
-        beta = nodeBuf.readInt();
+      if (node instanceof ParentNodeImpl)
+        ((ParentNodeImpl)node).childNum = block.child[idx];
+      else
+        assert block.child[idx] < 0;
 
-      node.init(alpha, beta);
+      node.init(block.alpha[idx], block.beta[idx]);
 
       // All done!
       nodeCache.put(Integer.valueOf(num), new SoftReference(node));
@@ -535,6 +546,222 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
     }
   } // getNode()
 
+  /**
+   * Get the block of nodes containing the given node number, reading and
+   * decoding it from disk if it isn't already in memory. Blocks are held by
+   * soft references, so they can be thrown away if memory runs low.
+   *
+   * @param num   A node number (must be valid)
+   * @return      The block containing that node
+   */
+  protected NodeBlock getBlock(int num)
+    throws IOException 
+  {
+    int blockNum = num >> NodeBlock.SHIFT;
+    if (blockNum >= blockCache.length)
+      throw new IOException("Node number out of range");
+    synchronized (mainStore) 
+    {
+      SoftReference ref = blockCache[blockNum];
+      NodeBlock block = (ref != null) ? (NodeBlock)ref.get() : null;
+      if (block == null) {
+        block = columnar ? readColumnBlock(blockNum) : readPackedBlock(blockNum);
+        blockCache[blockNum] = new SoftReference(block);
+      }
+      return block;
+    }
+  } // getBlock()
+
+  /**
+   * Tells whether enumerations may navigate this document's node records
+   * directly (see {@link #nodeMatches(int, NodeTest)}) rather than by
+   * creating nodes. Subclasses that alter the tree as nodes are loaded
+   * should return false.
+   */
+  protected boolean canScanNodes() {
+    return true;
+  }
+
+  /**
+   * Checks whether a node matches a test, using only its node record. This
+   * avoids creating nodes that will just be thrown away.
+   *
+   * @param num   Number of the node to check
+   * @param test  The test to apply
+   * @return      true if the node matches
+   */
+  boolean nodeMatches(int num, NodeTest test) 
+  {
+    try 
+    {
+      NodeBlock block = getBlock(num);
+      int idx = num & NodeBlock.MASK;
+      int kind = block.kind[idx];
+      if (kind == 0)
+        return false; // padding at the end of the node file
+      int nameCode = block.nameCode[idx];
+      int fingerprint = (nameCode < 0) ? -1 : (nameCode & NamePool.FP_MASK);
+      int annotation = (kind == Type.ELEMENT) ? getTypeAnnotation(num)
+                       : StandardNames.XS_UNTYPED;
+      return test.matches(kind, fingerprint, annotation);
+    }
+    catch (IOException e) {
+      return false;
+    }
+  } // nodeMatches()
+
+  /** Get the number of a node's parent from its record, or -1 if none. */
+  int getParentNum(int num) 
+  {
+    try {
+      return getBlock(num).parent[num & NodeBlock.MASK];
+    }
+    catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /** Get the number of a node's first child from its record, or -1 if none. */
+  int getChildNum(int num) 
+  {
+    try {
+      return getBlock(num).child[num & NodeBlock.MASK];
+    }
+    catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /** Get the number of a node's next sibling from its record, or -1 if none. */
+  int getNextSibNum(int num) 
+  {
+    try {
+      return getBlock(num).nextSib[num & NodeBlock.MASK];
+    }
+    catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /** Get the number of a node's previous sibling from its record, or -1 if none. */
+  int getPrevSibNum(int num) 
+  {
+    try {
+      return getBlock(num).prevSib[num & NodeBlock.MASK];
+    }
+    catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /** Get the number one past the last node stored in the file. */
+  int getNodeLimit() {
+    return Math.min(numberOfNodes, numberOfRecords);
+  }
+
+  /**
+   * Find the first node after the given node's subtree, i.e. the next
+   * sibling of the node or of its nearest ancestor that has one. Since
+   * nodes are numbered in document order, the node's descendants are
+   * exactly the numbers between it and the result.
+   *
+   * @param num   The node whose subtree to skip
+   * @return      Number of the first following node, or 
+   *              {@link #getNodeLimit()} if there is none.
+   */
+  int getSubtreeEnd(int num) 
+  {
+    while (num >= 0) {
+      int sib = getNextSibNum(num);
+      if (sib >= 0)
+        return sib;
+      num = getParentNum(num);
+    }
+    return getNodeLimit();
+  } // getSubtreeEnd()
+
+  /**
+   * Read a block from a (version 3.0) node file that's stored in column
+   * blocks. Must be called while synchronized on the main store.
+   */
+  private NodeBlock readColumnBlock(int blockNum)
+    throws IOException 
+  {
+    nodeFile.seek(COLUMN_FILE_HEADER_SIZE + ((long)blockNum * nodeBytes.length));
+    nodeFile.read(nodeBytes);
+
+    NodeBlock block = new NodeBlock();
+    int pos = 0;
+    for (int i = 0; i < NodeBlock.SIZE; i++) 
+    {
+      int kind = nodeBytes[pos++];
+      block.kind[i] = (byte)(kind & ~NodeBlock.HAS_CHILD);
+      block.child[i] = ((kind & NodeBlock.HAS_CHILD) != 0) 
+                       ? ((blockNum << NodeBlock.SHIFT) + i + 1) : -1;
+    }
+
+    int[][] columns = { block.nameCode, block.parent, block.prevSib,
+                        block.nextSib, block.alpha, block.beta };
+    for (int c = 0; c < NodeBlock.N_COLUMNS; c++) 
+    {
+      int width = columnWidths[c];
+      int[] column = columns[c];
+      for (int i = 0; i < NodeBlock.SIZE; i++, pos += width)
+        column[i] = NodeBlock.getValue(nodeBytes, pos, width);
+    }
+
+    // Map name numbers to codes in our name pool.
+    for (int i = 0; i < NodeBlock.SIZE; i++) {
+      if (block.nameCode[i] >= 0)
+        block.nameCode[i] = nameNumToCode[block.nameCode[i]];
+    }
+
+    return block;
+  } // readColumnBlock()
+
+  /**
+   * Read a block of nodes from an older (version 2.0) node file, where each
+   * node is a fixed-size packed entry. Must be called while synchronized on
+   * the main store.
+   */
+  private NodeBlock readPackedBlock(int blockNum)
+    throws IOException 
+  {
+    int first = blockNum << NodeBlock.SHIFT;
+    int nRead = Math.min(NodeBlock.SIZE, numberOfRecords - first);
+    nodeFile.seek(NODE_FILE_HEADER_SIZE + ((long)first * maxNodeSize));
+    nodeFile.read(nodeBytes, 0, nRead * maxNodeSize);
+
+    NodeBlock block = new NodeBlock();
+    byte[] entryBytes = new byte[maxNodeSize];
+    for (int i = 0; i < nRead; i++) 
+    {
+      // Get the type and the flags.
+      System.arraycopy(nodeBytes, i * maxNodeSize, entryBytes, 0, maxNodeSize);
+      nodeBuf.setBytes(entryBytes);
+      block.kind[i] = nodeBuf.readByte();
+      int flags = nodeBuf.readInt();
+
+      // Read other stuff according to the flags.
+      block.nameCode[i] = ((flags & Flag.HAS_NAMECODE) != 0) 
+                          ? nameNumToCode[nodeBuf.readInt()] : -1;
+      block.parent[i] = ((flags & Flag.HAS_PARENT) != 0) 
+                        ? nodeBuf.readInt() : -1;
+      block.prevSib[i] = ((flags & Flag.HAS_PREV_SIBLING) != 0) 
+                         ? nodeBuf.readInt() : -1;
+      block.nextSib[i] = ((flags & Flag.HAS_NEXT_SIBLING) != 0) 
+                         ? nodeBuf.readInt() : -1;
+      block.child[i] = ((flags & Flag.HAS_CHILD) != 0) 
+                       ? nodeBuf.readInt() : -1;
+      block.alpha[i] = ((flags & Flag.HAS_ALPHA) != 0) 
+                       ? nodeBuf.readInt() : -1;
+      block.beta[i] = ((flags & Flag.HAS_BETA) != 0) 
+                      ? nodeBuf.readInt() : -1;
+    } // for i
+
+    return block;
+  } // readPackedBlock()
+
   /**
    * Checks to see if we've already loaded the node corresponding with the
    * given number. If so, return it, else null.
@@ -749,6 +976,42 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
    * element type, it remembers the result for next time.
    */
   protected AxisIterator getAllElements(int fingerprint) 
+  {
+    int[] nodeNums = getAllElementNums(fingerprint);
+    ArrayList nodes = new ArrayList(nodeNums.length);
+    for (int i = 0; i < nodeNums.length; i++)
+      nodes.add(getNode(nodeNums[i]));
+    return new NodeListIterator(nodes);
+  } // getAllElements()
+
+  /**
+   * Locates a single element by name and position, without loading any of
+   * the other elements that share the name. Useful for picking out one
+   * section of a large document (e.g. the third &lt;c01&gt;) to process on
+   * its own.
+   *
+   * @param uri         Namespace URI of the element ("" for none)
+   * @param localName   Local name of the element
+   * @param index       1-based position of the element in document order
+   * @return            The element, or null if there aren't that many.
+   */
+  public NodeInfo getElementByName(String uri, String localName, int index) 
+  {
+    int fingerprint = namePool.getFingerprint(uri, localName);
+    if (fingerprint < 0 || index < 1)
+      return null;
+    int[] nodeNums = getAllElementNums(fingerprint);
+    if (index > nodeNums.length)
+      return null;
+    return getNode(nodeNums[index - 1]);
+  } // getElementByName()
+
+  /**
+   * Get the node numbers of all elements with a given name, in document
+   * order. The first time it is called for a particular element type, the
+   * list is stored in a sub-file so it needn't be rebuilt next time.
+   */
+  protected int[] getAllElementNums(int fingerprint) 
   {
     synchronized(mainStore)
     {
@@ -759,14 +1022,14 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
         SubStoreReader indexFile = mainStore.openSubStore(subName);
         PackedByteBuf buf = new PackedByteBuf(indexFile, (int)indexFile.length());
         int nNodes = buf.readInt();
-        ArrayList nodes = new ArrayList(nNodes);
+        int[] nodeNums = new int[nNodes];
         int curNodeNum = 0;
         for (int i = 0; i < nNodes; i++) {
           curNodeNum += buf.readInt();
-          nodes.add(getNode(curNodeNum));
+          nodeNums[i] = curNodeNum;
         }
         indexFile.close();
-        return new NodeListIterator(nodes);
+        return nodeNums;
       }
       catch (IOException e) {
       }
@@ -777,24 +1040,36 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
           namePool.getDisplayName(fingerprint) + "'.");
       }
   
-      // Okay, we need to build a list.
-      ArrayList nodes = new ArrayList(numberOfNodes / 8);
+      // Okay, we need to build a list. Check the node records directly,
+      // rather than loading every node in the document.
+      //
       Vector nodeNums = new Vector(numberOfNodes / 8);
   
-      for (int i = 0; i < numberOfNodes; i++) {
-        NodeImpl node = getNode(i);
-        if (node == null || (node.getNameCode() & 0xfffff) != fingerprint)
-          continue;
-        nodes.add(node);
-        nodeNums.add(Integer.valueOf(node.nodeNum));
+      int limit = getNodeLimit();
+      try 
+      {
+        for (int first = 0; first < limit; first += NodeBlock.SIZE) 
+        {
+          NodeBlock block = getBlock(first);
+          for (int i = 0; i < NodeBlock.SIZE && first + i < limit; i++) {
+            int nameCode = block.nameCode[i];
+            if (nameCode < 0 || (nameCode & 0xfffff) != fingerprint)
+              continue;
+            nodeNums.add(Integer.valueOf(first + i));
+          }
+        }
+      }
+      catch (IOException e) {
       }
   
       // Pack up the results.
+      int[] result = new int[nodeNums.size()];
       PackedByteBuf buf = new PackedByteBuf(nodeNums.size() * 3);
       buf.writeInt(nodeNums.size());
       int curNum = 0;
       for (int i = 0; i < nodeNums.size(); i++) {
         int num = ((Integer)nodeNums.get(i)).intValue();
+        result[i] = num;
         buf.writeInt(num - curNum);
         curNum = num;
       }
@@ -810,9 +1085,9 @@ public class LazyDocument extends ParentNodeImpl implements DocumentInfo,
       }
   
       // Return the list we made (no need to re-read it).
-      return new NodeListIterator(nodes);
+      return result;
     }
-  } // getAllElements()
+  } // getAllElementNums()
 
   /**
    * Get the element with a given ID.
@@ -42,6 +42,7 @@ import net.sf.saxon.tinytree.HackedTinyBuilder;
 import net.sf.saxon.tinytree.TinyNodeImpl;
 import net.sf.saxon.tinytree.TinyTree;
 import net.sf.saxon.type.Type;
+import org.cdlib.xtf.util.CompressedStoreWriter;
 import org.cdlib.xtf.util.ConsecutiveMap;
 import org.cdlib.xtf.util.PackedByteBuf;
 import org.cdlib.xtf.util.StructuredStore;
@@ -80,8 +81,12 @@ public class LazyTreeBuilder
   /** Pipeline configuration */
   private PipelineConfiguration pipe;
 
-  /** File version stored in the persistent file. */
-  public static final String CURRENT_VERSION = "2.0";
+  /** File version stored in the persistent file. Version 3.0 stores nodes
+   *  in column blocks, and compresses the text and attributes. */
+  public static final String CURRENT_VERSION = "3.0";
+
+  /** First version that uses column blocks and compression. */
+  static final String COLUMNAR_VERSION = "3.0";
 
   /** Minimum version we can read. */
   public static final String REQUIRED_VERSION = "2.0";
@@ -165,7 +170,8 @@ public class LazyTreeBuilder
 
     treeStore.setUserVersion(CURRENT_VERSION);
 
-    SubStoreWriter textFile = treeStore.createSubStore("text");
+    SubStoreWriter textFile = new CompressedStoreWriter(
+      treeStore.createSubStore("text"));
     builder.setTextStore(textFile);
 
     // Done for now.
@@ -218,7 +224,8 @@ public class LazyTreeBuilder
 
     // Now make a structured file containing the entire tree's contents.
     writeNames(treeStore.createSubStore("names"));
-    writeAttrs(treeStore.createSubStore("attributes")); // must be before nodes
+    writeAttrs(new CompressedStoreWriter(
+      treeStore.createSubStore("attributes"))); // must be before nodes
     writeNodes(treeStore.createSubStore("nodes"));
 
     // Close the store if requested.
@@ -303,17 +310,17 @@ public class LazyTreeBuilder
   } // writeNames()
 
   /**
-   * Build and write out all the nodes in the tree. The resulting table has
-   * fixed-sized entries, sized to fit the largest node.
+   * Build and write out all the nodes in the tree. The nodes are grouped
+   * into fixed-size blocks, each stored column by column with the minimum
+   * width needed for each column; see {@link NodeBlock} for the layout.
+   * Since every block is the same size, a node can be found by dividing
+   * its number by the block size.
    *
    * @param out   SubStore to write to.
    */
   private void writeNodes(SubStoreWriter out)
     throws IOException 
   {
-    // Write the root node's number
-    out.writeInt(0);
-    
     // Figure out how many nodes there are, excluding the stopper at the end
     // of the tree.
     //
@@ -339,16 +346,18 @@ public class LazyTreeBuilder
       }
     }
 
-    // Pack up each node. That way we can calculate the maximum size of
-    // any particular one, and they can be randomly accessed by multiplying
-    // the node number by that size.
+    // Gather the columns for every node, padding out to a whole number of
+    // blocks. Padding nodes have kind zero.
     //
-    PackedByteBuf[] nodeBufs = new PackedByteBuf[nNodes];
-    int maxSize = 0;
+    int nBlocks = (nNodes + NodeBlock.SIZE - 1) >> NodeBlock.SHIFT;
+    int nSlots = nBlocks << NodeBlock.SHIFT;
+    byte[] kinds = new byte[nSlots];
+    int[][] columns = new int[NodeBlock.N_COLUMNS][nSlots];
+    for (int c = 0; c < NodeBlock.N_COLUMNS; c++)
+      Arrays.fill(columns[c], -1);
+
     for (int i = 0; i < nNodes; i++) 
     {
-      PackedByteBuf buf = nodeBufs[i] = new PackedByteBuf(20);
-      
       // Check for un-handled node types.
       byte kind = tree.nodeKind[i];
       if (kind == Type.COMMENT || kind == Type.PROCESSING_INSTRUCTION) 
@@ -359,75 +368,68 @@ public class LazyTreeBuilder
             "should have been filtered out");
       }
 
-      // Kind
-      buf.writeByte(tree.nodeKind[i]);
-
-      // Flag
       NodeInfo node = tree.getNode(i);
       int nameCode = nameCodes[i];
       int parent = (node.getParent() != null)
                    ? (((TinyNodeImpl)node.getParent()).getNodeNumber()) : -1;
       int prevSib = prior[i];
       int nextSib = (nexts[i] > i) ? nexts[i] : -1;
-      int child = node.hasChildNodes() ? (i + 1) : -1;
-      int alpha = alphas[i];
-      int beta = betas[i];
-
-      int flags = ((nameCode != -1) ? Flag.HAS_NAMECODE : 0) |
-                  ((parent != -1) ? Flag.HAS_PARENT : 0) |
-                  ((prevSib != -1) ? Flag.HAS_PREV_SIBLING : 0) |
-                  ((nextSib != -1) ? Flag.HAS_NEXT_SIBLING : 0) |
-                  ((child != -1) ? Flag.HAS_CHILD : 0) |
-                  ((alpha != -1) ? Flag.HAS_ALPHA : 0) |
-                  ((beta != -1) ? Flag.HAS_BETA : 0);
-      buf.writeInt(flags);
       
       assert prevSib != nextSib || prevSib < 0;
+      assert alphas[i] >= -1 && betas[i] >= -1;
+
+      // Kind, plus a flag for the first child (which is always the next
+      // node).
+      //
+      kinds[i] = (byte)(kind | (node.hasChildNodes() ? NodeBlock.HAS_CHILD : 0));
 
-      // Name code
+      // Name code, mapped to our internal name number.
       if (nameCode >= 0) {
         int nameIdx = names.get(Integer.valueOf(nameCode));
         assert nameIdx >= 0 : "A name was missed when writing name codes";
-        buf.writeInt(nameIdx);
-      }
-
-      // Parent
-      if (parent >= 0)
-        buf.writeInt(parent);
-
-      // Prev sibling
-      if (prevSib >= 0)
-        buf.writeInt(prevSib);
-
-      // Next sibling.
-      if (nextSib >= 0)
-        buf.writeInt(nextSib);
-
-      // First child (if any).
-      if (child >= 0) {
-        assert child != 0;
-        buf.writeInt(child);
+        columns[0][i] = nameIdx;
       }
 
-      // Alpha and beta
-      if (alpha != -1)
-        buf.writeInt(alpha);
-      if (beta != -1)
-        buf.writeInt(beta);
-
-      // Now calculate the size of the buffer, and bump the max if needed
-      buf.compact();
-      maxSize = Math.max(maxSize, buf.length());
+      columns[1][i] = parent;
+      columns[2][i] = prevSib;
+      columns[3][i] = nextSib;
+      columns[4][i] = alphas[i];
+      columns[5][i] = betas[i];
     } // for i
 
-    // Okay, we're ready to write out the node table now. First comes the
-    // number of nodes, followed by the size in bytes of each one.
+    // Figure out the narrowest width that will hold each column.
+    int[] widths = new int[NodeBlock.N_COLUMNS];
+    for (int c = 0; c < NodeBlock.N_COLUMNS; c++) {
+      int max = -1;
+      for (int i = 0; i < nNodes; i++)
+        max = Math.max(max, columns[c][i]);
+      widths[c] = NodeBlock.widthFor(max);
+    }
+
+    // Write the header: the root node's number, the number of nodes, the
+    // block size, and the column widths.
     //
+    out.writeInt(0);
     out.writeInt(tree.getNumberOfNodes());
-    out.writeInt(maxSize);
+    out.writeInt(NodeBlock.SIZE);
+    for (int c = 0; c < NodeBlock.N_COLUMNS; c++)
+      out.writeInt(widths[c]);
 
-    for (int i = 0; i < nNodes; i++)
-      nodeBufs[i].output(out, maxSize);
+    // Now write each block.
+    byte[] blockBytes = new byte[NodeBlock.diskSize(widths)];
+    for (int b = 0; b < nBlocks; b++) 
+    {
+      int first = b << NodeBlock.SHIFT;
+      System.arraycopy(kinds, first, blockBytes, 0, NodeBlock.SIZE);
+      int pos = NodeBlock.SIZE;
+      for (int c = 0; c < NodeBlock.N_COLUMNS; c++) {
+        for (int i = 0; i < NodeBlock.SIZE; i++) {
+          NodeBlock.putValue(blockBytes, pos, widths[c], columns[c][first + i]);
+          pos += widths[c];
+        }
+      }
+      out.write(blockBytes);
+    } // for b
 
     // All done.
     out.close();
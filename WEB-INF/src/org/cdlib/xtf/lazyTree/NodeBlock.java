@@ -0,0 +1,137 @@
+package org.cdlib.xtf.lazyTree;
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * A run of consecutive nodes from a lazy tree, decoded into parallel arrays
+ * (one per node property) so that the tree can be navigated without
+ * creating a {@link NodeImpl} for every node visited.
+ *
+ * In format 3.0 lazy files the "nodes" sub-store is made of these blocks
+ * directly: each block holds {@link #SIZE} nodes, stored column by column.
+ * First comes a kind byte for every node (with {@link #HAS_CHILD} or'd in
+ * if the node has children, which are always the next node), followed by
+ * one fixed-width column each for name number, parent, previous sibling,
+ * next sibling, alpha, and beta. Each column's width (1 to 4 bytes) is
+ * given in the file header, and values are stored plus one so that -1
+ * becomes zero.
+ */
+final class NodeBlock 
+{
+  /** Log2 of the number of nodes per block */
+  static final int SHIFT = 7;
+
+  /** Number of nodes per block */
+  static final int SIZE = 1 << SHIFT;
+
+  /** Mask to get a node's index within its block */
+  static final int MASK = SIZE - 1;
+
+  /** Bit in the stored kind byte that marks a node with children */
+  static final int HAS_CHILD = 0x40;
+
+  /** Number of fixed-width columns (everything but kind) */
+  static final int N_COLUMNS = 6;
+
+  /** Node kind of each node, or zero for none */
+  final byte[] kind = new byte[SIZE];
+
+  /** Name code (in the document's name pool) of each node, or -1 */
+  final int[] nameCode = new int[SIZE];
+
+  /** Node number of each node's parent, or -1 */
+  final int[] parent = new int[SIZE];
+
+  /** Node number of each node's previous sibling, or -1 */
+  final int[] prevSib = new int[SIZE];
+
+  /** Node number of each node's next sibling, or -1 */
+  final int[] nextSib = new int[SIZE];
+
+  /** Node number of each node's first child, or -1 */
+  final int[] child = new int[SIZE];
+
+  /** Alpha value of each node (attribute or text offset), or -1 */
+  final int[] alpha = new int[SIZE];
+
+  /** Beta value of each node (namespace or text length), or -1 */
+  final int[] beta = new int[SIZE];
+
+  /**
+   * Calculate how many bytes are needed to store the values of a column.
+   *
+   * @param maxValue  Largest value in the column
+   * @return          Width in bytes (1 to 4)
+   */
+  static int widthFor(int maxValue) 
+  {
+    long stored = (long)maxValue + 1;
+    if (stored < 0x100L)
+      return 1;
+    if (stored < 0x10000L)
+      return 2;
+    if (stored < 0x1000000L)
+      return 3;
+    return 4;
+  } // widthFor()
+
+  /** Number of bytes taken up on disk by a block with the given widths */
+  static int diskSize(int[] widths) 
+  {
+    int size = SIZE;
+    for (int i = 0; i < widths.length; i++)
+      size += SIZE * widths[i];
+    return size;
+  } // diskSize()
+
+  /**
+   * Write one column value (plus one, so -1 is stored as zero) in the
+   * given number of bytes.
+   */
+  static void putValue(byte[] bytes, int pos, int width, int value) 
+  {
+    int stored = value + 1;
+    for (int i = width - 1; i >= 0; i--) {
+      bytes[pos + i] = (byte)stored;
+      stored >>>= 8;
+    }
+  } // putValue()
+
+  /** Read a column value written by {@link #putValue}. */
+  static int getValue(byte[] bytes, int pos, int width) 
+  {
+    int stored = 0;
+    for (int i = 0; i < width; i++)
+      stored = (stored << 8) | (bytes[pos + i] & 0xff);
+    return stored - 1;
+  } // getValue()
+} // class NodeBlock
@@ -6,13 +6,17 @@ import net.sf.saxon.pattern.NodeTest;
 final class PrecedingEnumeration extends TreeEnumeration 
 {
   NodeImpl nextAncestor;
+  int nextAncestorNum;
 
   public PrecedingEnumeration(NodeImpl node, NodeTest nodeTest) 
   {
     super(node, nodeTest);
 
     // we need to avoid returning ancestors of the starting node
-    nextAncestor = (NodeImpl)node.getParent();
+    if (scanDoc != null)
+      nextAncestorNum = scanDoc.getParentNum(node.nodeNum);
+    else
+      nextAncestor = (NodeImpl)node.getParent();
     advance();
   }
 
@@ -36,6 +40,14 @@ final class PrecedingEnumeration extends TreeEnumeration
   protected void step() {
     next = next.getPreviousInDocument();
   }
+
+  /** Count backward in document order, skipping ancestors of the start */
+  protected int stepNum(int num) 
+  {
+    for (num--; num >= 0 && num == nextAncestorNum; num--)
+      nextAncestorNum = scanDoc.getParentNum(num);
+    return num;
+  }
   
   /**
   * Get another enumeration of the same nodes
@@ -21,6 +21,11 @@ final class PrecedingOrAncestorEnumeration extends TreeEnumeration
         next = next.getPreviousInDocument();
     }
 
+    /** Nodes are numbered in document order, so just count backward */
+    protected int stepNum(int num) {
+        return num - 1;
+    }
+
     /**
     * Get another enumeration of the same nodes
     */
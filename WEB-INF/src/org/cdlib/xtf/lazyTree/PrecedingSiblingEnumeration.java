@@ -14,6 +14,10 @@ final class PrecedingSiblingEnumeration extends TreeEnumeration
     next = (NodeImpl)next.getPreviousSibling();
   }
 
+  protected int stepNum(int num) {
+    return scanDoc.getPrevSibNum(num);
+  }
+
   /**
   * Get another enumeration of the same nodes
   */
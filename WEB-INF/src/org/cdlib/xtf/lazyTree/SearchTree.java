@@ -50,11 +50,7 @@ import org.apache.lucene.analysis.Token;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardFilter;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.mark.ContextMarker;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.cdlib.xtf.textEngine.DocHit;
 import org.cdlib.xtf.textEngine.QueryProcessor;
@@ -357,18 +353,10 @@ public class SearchTree extends LazyDocument
     termMode = req.termMode;
     req.termMode = Math.min(req.termMode, ContextMarker.MARK_CONTEXT_TERMS);
 
-    // Add a meta-query that restricts to this document alone. Besides
-    // giving us only the hits we want, this also makes the query faster.
+    // Run the query against this document alone. The processor looks up
+    // the document's chunks directly rather than searching the whole index.
     //
-    BooleanQuery bq = new BooleanQuery();
-    bq.add(new TermQuery(new Term("docInfo", "1")), BooleanClause.Occur.MUST);
-    Term t = new Term("key", sourceKey);
-    bq.add(new TermQuery(t), BooleanClause.Occur.MUST);
-    bq.add(req.query, BooleanClause.Occur.MUST);
-    req.query = bq;
-
-    // Run the query and get the results.
-    QueryResult result = processor.processRequest(req);
+    QueryResult result = processor.processDocRequest(req, sourceKey);
     
     nHits = 0;
     totalHits = 0;
@@ -609,6 +597,14 @@ public class SearchTree extends LazyDocument
     return el;
   } // getHitElement
 
+  /**
+   * The node records on disk don't include our synthetic hit and snippet
+   * nodes, so enumerations must navigate by creating nodes.
+   */
+  protected @Override boolean canScanNodes() {
+    return false;
+  }
+
   /**
    * Create an element node. Derived classes can override this to provide
    * their own element implementation.
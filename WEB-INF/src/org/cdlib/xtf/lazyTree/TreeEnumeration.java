@@ -4,6 +4,7 @@ import net.sf.saxon.om.AxisIterator;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.LookaheadIterator;
 import net.sf.saxon.pattern.NodeTest;
+import net.sf.saxon.type.Type;
 import net.sf.saxon.value.Value;
 import net.sf.saxon.trans.XPathException;
 
@@ -15,6 +16,10 @@ abstract class TreeEnumeration implements AxisIterator, LookaheadIterator
   protected NodeImpl current = null;
   protected int position = 0;
 
+  /** If non-null, the document whose node records can be scanned directly,
+   *  so that nodes need only be created once they're known to match. */
+  protected LazyDocument scanDoc;
+
   //protected int last = -1;
 
   /**
@@ -28,6 +33,19 @@ abstract class TreeEnumeration implements AxisIterator, LookaheadIterator
     next = origin;
     start = origin;
     this.nodeTest = nodeTest;
+
+    // If there's a test to apply, and the document allows it, we can check
+    // the test against the node records and skip creating nodes that don't
+    // match. Attribute and namespace origins aren't in the node records,
+    // so they always take the slow path.
+    //
+    int kind = origin.getNodeKind();
+    if (nodeTest != null &&
+        (kind == Type.ELEMENT || kind == Type.TEXT || kind == Type.DOCUMENT) &&
+        origin.document.canScanNodes())
+    {
+      scanDoc = origin.document;
+    }
   }
 
   /**
@@ -48,17 +66,45 @@ abstract class TreeEnumeration implements AxisIterator, LookaheadIterator
   */
   protected final void advance() 
   {
+    if (scanDoc != null) {
+      next = scanFrom(stepNum(next.nodeNum));
+      return;
+    }
     do {
       step();
     } while (!conforms(next));
   }
 
+  /**
+  * When scanning, find the first node that matches the test, starting with
+  * the given candidate and moving along the axis with {@link #stepNum(int)}.
+  * Only the matching node is actually created.
+  *
+  * @param num  Node number of the first candidate, or -1 for none
+  * @return     The first matching node, or null if there isn't one
+  */
+  protected final NodeImpl scanFrom(int num) 
+  {
+    while (num >= 0 && !scanDoc.nodeMatches(num, nodeTest))
+      num = stepNum(num);
+    return (num < 0) ? null : scanDoc.getNode(num);
+  }
+
   /**
   * Advance one step along the axis: the resulting node might not meet the required
   * criteria for inclusion
   */
   protected abstract void step();
 
+  /**
+  * Like {@link #step()}, but works on node numbers rather than nodes. Only
+  * called when scanning.
+  *
+  * @param num  Node number of the current candidate
+  * @return     Node number of the next candidate, or -1 at the end of the axis
+  */
+  protected abstract int stepNum(int num);
+
   /**
    * Determine whether there are more items to come. Note that this operation
    * is stateless and it is not necessary (or usual) to call it before calling
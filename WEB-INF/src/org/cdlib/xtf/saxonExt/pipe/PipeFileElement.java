@@ -81,6 +81,9 @@ public class PipeFileElement extends ElementWithContent
     public TailCall processLeavingTail(XPathContext context) 
       throws XPathException 
     {
+      // The output comes from outside the stylesheet, so it can't be cached.
+      TextServlet.markUncacheable();
+      
       // Build the full path.
       String path = attribs.get("path").evaluateAsString(context);
       File file = FileUtils.resolveFile(context, path);
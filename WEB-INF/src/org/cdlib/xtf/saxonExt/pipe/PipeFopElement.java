@@ -144,6 +144,9 @@ public class PipeFopElement extends ElementWithContent
     public TailCall processLeavingTail(XPathContext context) 
       throws XPathException 
     {
+      // The output comes from outside the stylesheet, so it can't be cached.
+      TextServlet.markUncacheable();
+      
       // Set the content type
       HttpServletResponse servletResponse = TextServlet.getCurResponse();
       servletResponse.setHeader("Content-type", "application/pdf");
@@ -84,6 +84,9 @@ public class PipeRequestElement extends ElementWithContent
     public TailCall processLeavingTail(XPathContext context) 
       throws XPathException 
     {
+      // The output comes from outside the stylesheet, so it can't be cached.
+      TextServlet.markUncacheable();
+
       byte[] buf = null;
       OutputStream postOut = null;
       InputStream reqIn = null;
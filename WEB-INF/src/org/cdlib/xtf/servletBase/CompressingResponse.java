@@ -0,0 +1,455 @@
+package org.cdlib.xtf.servletBase;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Wraps a servlet response, compressing its output with gzip or deflate
+ * encoding.<br><br>
+ *
+ * The decision is made when the first byte is written: output is only
+ * compressed if its content type is textual, and the servlet (or a
+ * stylesheet extension) hasn't set an explicit length or encoding. Binary
+ * files piped out with a length, for instance, pass through untouched.
+ * <br><br>
+ *
+ * Compressed output is pushed to the client whenever a flush is requested,
+ * and also after every <code>flushSize</code> bytes of uncompressed output,
+ * so that the browser can start rendering before the page is complete.
+ * An ETag on compressed output gets the encoding added to it, since the
+ * bytes sent differ from the uncompressed ones.
+ */
+@SuppressWarnings("deprecation")
+class CompressingResponse extends HttpServletResponseWrapper 
+{
+  /**
+   * Constructor.
+   *
+   * @param toWrap      The response to compress
+   * @param encoding    "gzip" or "deflate"
+   * @param level       Compression level, 1 (fastest) to 9 (smallest)
+   * @param flushSize   Number of uncompressed bytes after which to push
+   *                    compressed output to the client. Zero means only
+   *                    when a flush is requested.
+   */
+  public CompressingResponse(HttpServletResponse toWrap, String encoding,
+                             int level, int flushSize) 
+  {
+    super(toWrap);
+    this.encoding = encoding;
+    this.level = level;
+    this.flushSize = flushSize;
+  }
+
+  /**
+   * Figures out which compression, if any, the client will accept.
+   *
+   * @param req   The request being served
+   * @return      "gzip", "deflate", or null if neither is acceptable.
+   */
+  public static String chooseEncoding(HttpServletRequest req) 
+  {
+    String header = req.getHeader("Accept-Encoding");
+    if (header == null)
+      return null;
+
+    boolean gzip = false;
+    boolean deflate = false;
+    StringTokenizer st = new StringTokenizer(header, ",");
+    while (st.hasMoreTokens()) 
+    {
+      String tok = st.nextToken().trim().toLowerCase();
+      String name = tok;
+      int semi = tok.indexOf(';');
+      if (semi >= 0) 
+      {
+        // A quality of zero means "not acceptable".
+        name = tok.substring(0, semi).trim();
+        if (tok.substring(semi + 1).replaceAll("\\s", "").matches("q=0(\\.0*)?"))
+          continue;
+      }
+      if (name.equals("gzip") || name.equals("x-gzip"))
+        gzip = true;
+      else if (name.equals("deflate"))
+        deflate = true;
+    }
+
+    return gzip ? "gzip" : deflate ? "deflate" : null;
+  } // chooseEncoding()
+
+  /**
+   * Makes the tag for a compressed version of a page, by adding the
+   * encoding to the page's tag.
+   *
+   * @param etag      Tag of the uncompressed page
+   * @param encoding  "gzip" or "deflate"
+   */
+  static String encodedETag(String etag, String encoding) 
+  {
+    if (!etag.endsWith("\""))
+      return etag;
+    return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+  }
+
+  /** Records the content type, so we can tell if it's worth compressing */
+  public void setContentType(String type) {
+    contentType = type;
+    super.setContentType(type);
+  }
+
+  /** An explicit length means we can't change the output */
+  public void setContentLength(int len) {
+    noCompress = true;
+    super.setContentLength(len);
+  }
+
+  /** Watch for headers that affect compression */
+  public void setHeader(String name, String value) {
+    checkHeader(name, value);
+    if (notModified && name.equalsIgnoreCase("ETag"))
+      value = fullETag(value);
+    super.setHeader(name, value);
+  }
+
+  /**
+   * A "304 Not Modified" response has no body to compress, but its tag
+   * must still match the one the client got with the full page. So note
+   * the status, and tag it as the full response would have been.
+   */
+  public void setStatus(int sc) {
+    notModified = (sc == SC_NOT_MODIFIED);
+    super.setStatus(sc);
+  }
+
+  /** Gets the tag the full page would be sent with, compressed or not */
+  private String fullETag(String tag) {
+    if (noCompress || !isCompressible(contentType))
+      return tag;
+    return encodedETag(tag, encoding);
+  }
+
+  /** Watch for headers that affect compression */
+  public void addHeader(String name, String value) {
+    checkHeader(name, value);
+    super.addHeader(name, value);
+  }
+
+  /** Watch for headers that affect compression */
+  public void setIntHeader(String name, int value) {
+    checkHeader(name, Integer.toString(value));
+    super.setIntHeader(name, value);
+  }
+
+  /** Checks whether a header precludes compressing the output */
+  private void checkHeader(String name, String value) 
+  {
+    if (name.equalsIgnoreCase("Content-Type"))
+      contentType = value;
+    else if (name.equalsIgnoreCase("ETag"))
+      etag = value;
+    else if (name.equalsIgnoreCase("Content-Length") ||
+             name.equalsIgnoreCase("Content-Encoding"))
+      noCompress = true;
+  }
+
+  /** Gets the compressing output stream */
+  public ServletOutputStream getOutputStream()
+    throws IOException 
+  {
+    if (stream == null)
+      stream = new CompressingStream(super.getOutputStream());
+    return stream;
+  }
+
+  /**
+   * Completes the compressed output. Must be called after all the output
+   * has been written.
+   */
+  public void finish()
+    throws IOException 
+  {
+    if (stream != null)
+      stream.finish();
+  }
+
+  /**
+   * Frees the compressor's native memory. Safe to call more than once, and
+   * should be called even if the output couldn't be completed.
+   */
+  public void release() {
+    if (stream != null && stream.deflater != null)
+      stream.deflater.end();
+  }
+
+  /** Tells whether the output was compressed */
+  public boolean isCompressed() {
+    return stream != null && stream.deflater != null;
+  }
+
+  /** Tells how many (compressed) bytes were sent to the client */
+  public long getCompressedBytes() {
+    return (stream == null) ? 0 : stream.outBytes;
+  }
+
+  /** Checks whether a content type is worth compressing */
+  private static boolean isCompressible(String type) 
+  {
+    if (type == null)
+      return false;
+    type = type.toLowerCase();
+    return type.startsWith("text/") || type.indexOf("xml") >= 0 ||
+           type.indexOf("json") >= 0 || type.indexOf("javascript") >= 0;
+  }
+
+  /** "gzip" or "deflate" */
+  private String encoding;
+
+  /** Compression level */
+  private int level;
+
+  /** Uncompressed bytes after which to push output to the client */
+  private int flushSize;
+
+  /** Content type of the output, if known */
+  private String contentType;
+
+  /** ETag of the output, if any */
+  private String etag;
+
+  /** Set if something about the response precludes compression */
+  private boolean noCompress = false;
+
+  /** Set if the response is "304 Not Modified" */
+  private boolean notModified = false;
+
+  /** The output stream, once it's been requested */
+  private CompressingStream stream;
+
+  /** GZIP header: magic, deflate method, no flags/time, unknown OS */
+  private static final byte[] gzipHeader = {
+    (byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff
+  };
+
+  /** Used to feed an empty input to the deflater */
+  private static final byte[] emptyBuf = new byte[0];
+
+  /**
+   * Decides whether to compress at the first write, then compresses
+   * (or passes along) all the output.
+   */
+  private class CompressingStream extends ServletOutputStream 
+  {
+    /** The stream to receive compressed output */
+    private OutputStream realOut;
+
+    /** Whether we've decided to compress or not */
+    private boolean decided = false;
+
+    /** Deflater to compress with, or null if passing through */
+    Deflater deflater;
+
+    /** Checksum of the uncompressed output (for gzip only) */
+    private CRC32 crc;
+
+    /** Buffer to receive compressed output from the deflater */
+    private byte[] buf = new byte[8192];
+
+    /** Uncompressed bytes written since the last push to the client */
+    private int sinceFlush = 0;
+
+    /** Total bytes sent to the client */
+    long outBytes = 0;
+
+    /** Whether all the output has been completed */
+    private boolean finished = false;
+
+    CompressingStream(OutputStream realOut) {
+      this.realOut = realOut;
+    }
+
+    /** Decide whether to compress, and if so get ready */
+    private void decide()
+      throws IOException 
+    {
+      decided = true;
+      if (noCompress || !isCompressible(contentType))
+        return;
+
+      CompressingResponse.super.setHeader("Content-Encoding", encoding);
+
+      // The compressed bytes differ from the plain ones, so they need a
+      // different tag.
+      //
+      if (etag != null)
+        CompressingResponse.super.setHeader("ETag", fullETag(etag));
+      boolean gzip = encoding.equals("gzip");
+      deflater = new Deflater(level, gzip);
+      if (gzip) {
+        crc = new CRC32();
+        writeOut(gzipHeader, 0, gzipHeader.length);
+      }
+    } // decide()
+
+    /** Write an array of bytes to the output stream */
+    public void write(byte[] b)
+      throws IOException 
+    {
+      write(b, 0, b.length);
+    }
+
+    /** Write a subset of bytes to the stream */
+    public void write(byte[] b, int off, int len)
+      throws IOException 
+    {
+      if (len == 0)
+        return;
+      if (!decided)
+        decide();
+      if (deflater == null) {
+        writeOut(b, off, len);
+        return;
+      }
+
+      if (crc != null)
+        crc.update(b, off, len);
+      deflater.setInput(b, off, len);
+      while (!deflater.needsInput())
+        deflate();
+
+      sinceFlush += len;
+      if (flushSize > 0 && sinceFlush >= flushSize)
+        push();
+    } // write()
+
+    /** Write a single byte to the stream */
+    public void write(int b)
+      throws IOException 
+    {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    /** Flush any pending data to the client */
+    public void flush()
+      throws IOException 
+    {
+      if (deflater != null && !finished && sinceFlush > 0)
+        push();
+      else
+        realOut.flush();
+    }
+
+    /** Complete the output, and close the underlying stream */
+    public void close()
+      throws IOException 
+    {
+      finish();
+      realOut.close();
+    }
+
+    /** Compress whatever the deflater has ready */
+    private void deflate()
+      throws IOException 
+    {
+      int len = deflater.deflate(buf, 0, buf.length);
+      if (len > 0)
+        writeOut(buf, 0, len);
+    }
+
+    /**
+     * Push all the output so far to the client. The deflater has no direct
+     * way to do this before Java 7, but changing the compression level
+     * makes it complete the current block, and that does the trick.
+     */
+    private void push()
+      throws IOException 
+    {
+      deflater.setInput(emptyBuf, 0, 0);
+      deflater.setLevel(Deflater.NO_COMPRESSION);
+      deflateAll();
+      deflater.setLevel(level);
+      deflateAll();
+      sinceFlush = 0;
+      realOut.flush();
+    } // push()
+
+    /** Keep deflating until no more output is produced */
+    private void deflateAll()
+      throws IOException 
+    {
+      int len;
+      while ((len = deflater.deflate(buf, 0, buf.length)) > 0)
+        writeOut(buf, 0, len);
+    }
+
+    /** Write the end of the compressed data */
+    void finish()
+      throws IOException 
+    {
+      if (deflater == null || finished)
+        return;
+      finished = true;
+
+      deflater.finish();
+      while (!deflater.finished())
+        deflate();
+
+      if (crc != null) 
+      {
+        byte[] trailer = new byte[8];
+        putInt(trailer, 0, (int)crc.getValue());
+        putInt(trailer, 4, deflater.getTotalIn());
+        writeOut(trailer, 0, trailer.length);
+      }
+    } // finish()
+
+    /** Store an int in little-endian order, as gzip requires */
+    private void putInt(byte[] b, int off, int val) {
+      for (int i = 0; i < 4; i++)
+        b[off + i] = (byte)(val >>> (i * 8));
+    }
+
+    /** Send bytes to the client, and count them */
+    private void writeOut(byte[] b, int off, int len)
+      throws IOException 
+    {
+      realOut.write(b, off, len);
+      outBytes += len;
+    }
+  } // class CompressingStream
+} // class CompressingResponse
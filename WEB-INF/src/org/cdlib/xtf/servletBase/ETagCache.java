@@ -0,0 +1,215 @@
+package org.cdlib.xtf.servletBase;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+
+import org.cdlib.xtf.cache.CacheDependency;
+import org.cdlib.xtf.cache.Dependency;
+
+/**
+ * Calculates entity tags (ETags) for pages, and remembers which ones may be
+ * used to answer a conditional request with "304 Not Modified".<br><br>
+ *
+ * A tag is calculated from the display stylesheet (including the
+ * versions of everything it includes), the values of the parameters it
+ * declares, and a description of the input supplied by the servlet.
+ * That's only enough if the page doesn't depend on anything else, such as
+ * session data or an external document. So a tag is only recorded here
+ * after a page has been produced without using any of those (see
+ * {@link TextServlet#markUncacheable()}). Local files loaded by the
+ * stylesheet become dependencies of the entry, so changing one of them
+ * makes clients fetch the page again.
+ */
+public class ETagCache extends StylesheetResultCache 
+{
+  /**
+   * Constructor - sets up the parameters of the cache.
+   *
+   * @param stylesheetCache  Cache holding the display stylesheets
+   * @param maxEntries       Maximum # of entries. Zero means no limit.
+   * @param maxTime          Time (in seconds) an entry can stay in the
+   *                         cache without being used. Zero means no limit.
+   */
+  public ETagCache(StylesheetCache stylesheetCache, int maxEntries,
+                   int maxTime) 
+  {
+    super("ETagCache", stylesheetCache, maxEntries, maxTime);
+    this.stylesheetCache = stylesheetCache;
+  }
+
+  /**
+   * Calculates the ETag for a page.
+   *
+   * @param sheetPath   Path of the display stylesheet
+   * @param sheet       The compiled stylesheet
+   * @param trans       Transformer for it, with all the parameters set
+   * @param input       Describes everything else the page depends on
+   * @param weak        true to make a weak tag, for pages that can differ
+   *                    in unimportant ways (e.g. the time taken.)
+   * @return            The tag, including quotes.
+   */
+  public String calcETag(String sheetPath, Templates sheet, Transformer trans,
+                         String input, boolean weak) 
+  {
+    String key = makeKey(sheetPath, sheet, trans,
+                         stylesheetCache.getVersion(sheetPath) + "|" + input);
+    try 
+    {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+      StringBuffer buf = new StringBuffer(weak ? "W/\"" : "\"");
+      for (int i = 0; i < bytes.length; i++) {
+        int n = bytes[i] & 0xff;
+        if (n < 16)
+          buf.append('0');
+        buf.append(Integer.toHexString(n));
+      }
+      buf.append('"');
+      return buf.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  } // calcETag()
+
+  /**
+   * Checks whether the tags in an If-None-Match header include the given
+   * one. Uses weak comparison (as HTTP requires for GET), and ignores the
+   * suffix added to tags of compressed output.
+   *
+   * @param header  Value of the If-None-Match header (may be null)
+   * @param etag    The tag to look for
+   */
+  public static boolean matches(String header, String etag) 
+  {
+    if (header == null)
+      return false;
+    if (header.trim().equals("*"))
+      return true;
+
+    String target = opaquePart(etag);
+    StringTokenizer st = new StringTokenizer(header, ",");
+    while (st.hasMoreTokens()) {
+      if (opaquePart(st.nextToken()).equals(target))
+        return true;
+    }
+    return false;
+  } // matches()
+
+  /** Strips the weak marker, quotes, and compression suffix from a tag */
+  private static String opaquePart(String tag) 
+  {
+    tag = tag.trim();
+    if (tag.startsWith("W/"))
+      tag = tag.substring(2);
+    if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\""))
+      tag = tag.substring(1, tag.length() - 1);
+    return tag.replaceFirst("-(gzip|deflate)$", "");
+  }
+
+  /**
+   * Begins tracking a page that is about to be produced, so that its tag
+   * can be recorded afterward if it turns out to be reusable.
+   *
+   * @param etag        The page's tag
+   * @param sheetPath   Path of the display stylesheet
+   * @param trans       The transformer that will produce the page
+   * @return            A tracker to pass to {@link #record(Tracker)}
+   */
+  public Tracker track(String etag, String sheetPath, Transformer trans) 
+  {
+    Tracker tracker = new Tracker(etag, dependOn(sheetPath));
+
+    // Clear out anything left from earlier steps of the request, and watch
+    // for documents the stylesheet loads.
+    //
+    TextServlet.checkUncacheable();
+    watchDocuments(trans, tracker.docDeps);
+
+    return tracker;
+  } // track()
+
+  /**
+   * Records a page's tag after it has been produced, unless the page
+   * depended on something that would make the tag unreliable.
+   *
+   * @param tracker   The tracker returned by {@link #track}
+   */
+  public void record(Tracker tracker) 
+  {
+    if (TextServlet.isUncacheable())
+      return;
+    set(tracker.etag, Boolean.TRUE, tracker.sheetDep);
+    for (Dependency d : tracker.docDeps)
+      addDependency(tracker.etag, d);
+  } // record()
+
+  /**
+   * Tells whether a client holding a page with the given tag may be told
+   * that it's still current.
+   */
+  public boolean isCurrent(String etag) {
+    return get(etag) != null;
+  }
+
+  /** The stylesheet cache, used to find stylesheet versions */
+  private StylesheetCache stylesheetCache;
+
+  /** Keeps track of what a page depends on while it is produced */
+  public static class Tracker 
+  {
+    /** The page's tag */
+    public final String etag;
+
+    /** True if the client's copy was current, and 304 was sent */
+    public boolean notModified = false;
+
+    /** Dependency on the display stylesheet */
+    CacheDependency sheetDep;
+
+    /** Local files loaded while producing the page */
+    ArrayList<Dependency> docDeps = new ArrayList<Dependency>();
+
+    Tracker(String etag, CacheDependency sheetDep) {
+      this.etag = etag;
+      this.sheetDep = sheetDep;
+    }
+  } // class Tracker
+} // class ETagCache
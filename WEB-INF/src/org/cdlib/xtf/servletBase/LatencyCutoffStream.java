@@ -36,7 +36,8 @@ import org.cdlib.xtf.util.Trace;
 
 /**
  * This class prints out latency information after a given number of bytes
- * have been output.
+ * have been output. It also keeps track of the total bytes output and when
+ * the first byte went out, for the final latency report.
  */
 class LatencyCutoffStream extends ServletOutputStream 
 {
@@ -44,14 +45,15 @@ class LatencyCutoffStream extends ServletOutputStream
    * Constructor.
    *
    * @param realOut       The output stream to receive the limited output
-   * @param limit         How many characters to output the message after
+   * @param limit         How many characters to output the message after,
+   *                      or zero for no message.
    * @param url           The URL of the request being served
    */
   public LatencyCutoffStream(OutputStream realOut, int limit,
                              long reqStartTime, String url) 
   {
     this.realOut = realOut;
-    this.limit = limit;
+    this.limit = (limit > 0) ? limit : Long.MAX_VALUE;
     this.url = url;
     this.reqStartTime = reqStartTime;
   }
@@ -81,6 +83,8 @@ class LatencyCutoffStream extends ServletOutputStream
   public void write(byte[] b, int off, int len)
     throws IOException 
   {
+    if (firstByteTime == 0 && len > 0)
+      firstByteTime = System.currentTimeMillis();
     if (!isReported) 
     {
       if (total > limit)
@@ -93,7 +97,7 @@ class LatencyCutoffStream extends ServletOutputStream
       else if (total+len > limit)
       {
       	assert len > 0;
-        int beforeLen = limit - total;
+        int beforeLen = (int)(limit - total);
         assert beforeLen > 0 && beforeLen < len;
         realOut.write(b, off, beforeLen);
         total += beforeLen;
@@ -110,6 +114,8 @@ class LatencyCutoffStream extends ServletOutputStream
   public void write(int b)
     throws IOException 
   {
+    if (firstByteTime == 0)
+      firstByteTime = System.currentTimeMillis();
     if (!isReported && total > limit)
       reportLatency();
     realOut.write(b);
@@ -121,6 +127,19 @@ class LatencyCutoffStream extends ServletOutputStream
     return isReported;
   }
 
+  /** Tells how many bytes have been output so far */
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Tells how long after the start of the request the first byte was
+   * output, or -1 if nothing has been output.
+   */
+  public long getFirstByteLatency() {
+    return (firstByteTime == 0) ? -1 : (firstByteTime - reqStartTime);
+  }
+
   /** Report the latency and set the flag saying it has been done. */
   private void reportLatency() {
     isReported = true;
@@ -132,10 +151,13 @@ class LatencyCutoffStream extends ServletOutputStream
   private OutputStream realOut;
 
   /** How many bytes have been output so far */
-  private int total = 0;
+  private long total = 0;
 
   /** The limit on the number of bytes after which the message is printed */
-  private int limit;
+  private long limit;
+
+  /** When the first byte was output, or zero if none yet */
+  private long firstByteTime = 0;
 
   /** The URL of the request being served */
   private String url;
@@ -0,0 +1,511 @@
+package org.cdlib.xtf.servletBase;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.xml.transform.Transformer;
+
+import org.cdlib.xtf.cache.CacheDependency;
+import org.cdlib.xtf.cache.Dependency;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Keeps rendered pages on disk, so that a repeated request can be answered
+ * without loading the document or running the display stylesheet.<br><br>
+ *
+ * Pages are stored gzip-compressed, each in a file of its own within a
+ * directory belonging to this cache. Besides the usual limits on the number
+ * and age of entries, the total size of the files is bounded, and the
+ * least recently used pages are thrown out to stay within it.<br><br>
+ *
+ * As with {@link ETagCache}, a page is only kept if it was produced without
+ * using anything that could change behind our back, and local files loaded
+ * by the stylesheet become dependencies of the entry. The servlet adds
+ * dependencies on whatever else the page was made from (the source
+ * document, say.)
+ */
+public class OutputCache extends StylesheetResultCache 
+{
+  /**
+   * Constructor - sets up the parameters of the cache, and makes a new
+   * directory for the pages.
+   *
+   * @param stylesheetCache  Cache holding the display stylesheets
+   * @param maxEntries       Maximum # of entries. Zero means no limit.
+   * @param maxTime          Time (in seconds) an entry can stay in the
+   *                         cache without being used. Zero means no limit.
+   * @param maxBytes         Maximum total size of the (compressed) pages.
+   *                         Zero means no limit.
+   * @param parentDir        Directory in which to make ours, or null for
+   *                         the system's temporary directory.
+   * @throws IOException     If the directory can't be created.
+   */
+  public OutputCache(StylesheetCache stylesheetCache, int maxEntries,
+                     int maxTime, long maxBytes, File parentDir)
+    throws IOException 
+  {
+    super("OutputCache", stylesheetCache, maxEntries, maxTime);
+    this.maxBytes = maxBytes;
+
+    // Use a fresh directory, so that pages left by an earlier run (or by
+    // another servlet) can't get mixed up with ours.
+    //
+    dir = File.createTempFile("xtfOutput", "", parentDir);
+    if (!dir.delete() || !dir.mkdir())
+      throw new IOException("Unable to create output cache directory \"" +
+                            dir + "\"");
+  }
+
+  /**
+   * Looks up a page.
+   *
+   * @param key   Key made by {@link #makeKey}
+   * @return      The page, or null if not cached (or no longer valid.)
+   */
+  public Page find(String key) {
+    return (Page)get(key);
+  }
+
+  /**
+   * Sends a cached page to the client. If the client accepts gzip, and
+   * compressed output is allowed, the stored bytes are sent as they are;
+   * otherwise they're decompressed on the way out.
+   *
+   * @param page          The page to send
+   * @param req           The request being served
+   * @param res           The response to send the page to
+   * @param mayCompress   true if compressed output is allowed
+   * @param etag          The page's ETag, or null if none
+   * @return              true if sent, false if the page has just been
+   *                      thrown out of the cache (and must be produced
+   *                      again.)
+   */
+  public boolean send(Page page, HttpServletRequest req,
+                      HttpServletResponse res, boolean mayCompress,
+                      String etag)
+    throws IOException 
+  {
+    InputStream in;
+    try {
+      in = new FileInputStream(page.file);
+    }
+    catch (FileNotFoundException e) {
+      return false;
+    }
+
+    try 
+    {
+      res.setContentType(page.contentType);
+      if (mayCompress && "gzip".equals(CompressingResponse.chooseEncoding(req))) 
+      {
+        res.setHeader("Content-Encoding", "gzip");
+        if (etag != null)
+          res.setHeader("ETag", CompressingResponse.encodedETag(etag, "gzip"));
+        res.setContentLength((int)page.size);
+      }
+      else
+        in = new GZIPInputStream(in);
+
+      OutputStream out = res.getOutputStream();
+      byte[] buf = new byte[8192];
+      int got;
+      while ((got = in.read(buf)) >= 0)
+        out.write(buf, 0, got);
+    }
+    finally {
+      in.close();
+    }
+    return true;
+  } // send()
+
+  /**
+   * Begins recording a page that is about to be produced. The output
+   * should be written to the recorder's response (see
+   * {@link Recorder#getResponse()}), and afterward the page is added to
+   * the cache by {@link Recorder#commit()}.
+   *
+   * @param key           Key made by {@link #makeKey}
+   * @param sheetPath     Path of the display stylesheet
+   * @param trans         The transformer that will produce the page
+   * @param contentType   Content type of the page
+   * @param res           The response the page will be sent to
+   * @return              A recorder for the page
+   * @throws IOException  If the file to hold the page can't be created.
+   */
+  public Recorder record(String key, String sheetPath, Transformer trans,
+                         String contentType, HttpServletResponse res)
+    throws IOException 
+  {
+    Recorder rec = new Recorder(key, dependOn(sheetPath), contentType, res);
+
+    // Clear out anything left from earlier steps of the request, and watch
+    // for documents the stylesheet loads.
+    //
+    TextServlet.checkUncacheable();
+    watchDocuments(trans, rec.deps);
+
+    // Extension elements find the response through the servlet, so make
+    // sure they get ours.
+    //
+    TextServlet.setCurResponse(rec.response);
+    return rec;
+  } // record()
+
+  /** Gets rid of all the pages, and the directory that held them. */
+  public void close() 
+  {
+    closed = true;
+    clear();
+    dir.delete();
+  } // close()
+
+  /** Deletes the file holding a page when it leaves the cache */
+  protected void entryRemoved(String key, Object value) 
+  {
+    Page page = (Page)value;
+    totalBytes -= page.size;
+    page.file.delete();
+  }
+
+  /** Checks the limit on the total size of the pages */
+  protected boolean overLimit() {
+    return maxBytes > 0 && totalBytes > maxBytes;
+  }
+
+  /** Directory holding the page files */
+  private File dir;
+
+  /** Maximum total size of the page files, or zero for no limit */
+  private long maxBytes;
+
+  /** Current total size of the page files */
+  private long totalBytes = 0;
+
+  /** Set once the cache has been closed */
+  private volatile boolean closed = false;
+
+  /** A page stored in the cache */
+  public static class Page 
+  {
+    /** File holding the compressed page */
+    final File file;
+
+    /** Content type of the page */
+    final String contentType;
+
+    /** Size of the file, in bytes */
+    final long size;
+
+    Page(File file, String contentType, long size) {
+      this.file = file;
+      this.contentType = contentType;
+      this.size = size;
+    }
+  } // class Page
+
+  /**
+   * Copies a page to disk while it's being sent, and adds it to the cache
+   * afterward unless it turned out not to be reusable.
+   */
+  public class Recorder 
+  {
+    /** Key the page will be stored under */
+    private String key;
+
+    /** Dependency on the display stylesheet */
+    private CacheDependency sheetDep;
+
+    /** Other things the page depends on */
+    ArrayList<Dependency> deps = new ArrayList<Dependency>();
+
+    /** Content type of the page */
+    private String contentType;
+
+    /** File receiving the compressed page */
+    private File file;
+
+    /** Stream compressing the page to the file, or null when closed */
+    private OutputStream fileOut;
+
+    /** Set if the page can't be reused (e.g. headers were set) */
+    private boolean spoiled = false;
+
+    /** Set once the page has been committed or discarded */
+    private boolean done = false;
+
+    /** Response that copies the output to the file */
+    RecordingResponse response;
+
+    Recorder(String key, CacheDependency sheetDep, String contentType,
+             HttpServletResponse res)
+      throws IOException 
+    {
+      this.key = key;
+      this.sheetDep = sheetDep;
+      this.contentType = contentType;
+      file = File.createTempFile("page", ".gz", dir);
+      fileOut = new GZIPOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)));
+      response = new RecordingResponse(res);
+    }
+
+    /** Gets the response the page should be written to */
+    public HttpServletResponse getResponse() {
+      return response;
+    }
+
+    /**
+     * Makes the page depend on something else (the source document, for
+     * instance.)
+     */
+    public void addDependency(Dependency d) {
+      deps.add(d);
+    }
+
+    /**
+     * Adds the page to the cache, unless it depended on something that
+     * could change behind our back, or it doesn't fit.
+     */
+    public void commit() 
+    {
+      if (done)
+        return;
+      closeFile();
+      long size = file.length();
+      if (spoiled || closed || TextServlet.isUncacheable() ||
+          (maxBytes > 0 && size > maxBytes)) 
+      {
+        discard();
+        return;
+      }
+      done = true;
+
+      synchronized (OutputCache.this) 
+      {
+        totalBytes += size;
+        set(key, new Page(file, contentType, size), sheetDep);
+        for (Dependency d : deps)
+          OutputCache.this.addDependency(key, d);
+      }
+    } // commit()
+
+    /** Throws away the page, if it hasn't been committed. */
+    public void discard() 
+    {
+      if (done)
+        return;
+      done = true;
+      closeFile();
+      file.delete();
+    } // discard()
+
+    /** Finishes writing the file, if it isn't already closed. */
+    private void closeFile() 
+    {
+      if (fileOut == null)
+        return;
+      try {
+        fileOut.close();
+      }
+      catch (IOException e) {
+        Trace.warning("Unable to write output cache file \"" + file +
+                      "\": " + e);
+        spoiled = true;
+      }
+      fileOut = null;
+    } // closeFile()
+
+    /** Copies bytes to the file, giving up on the page if that fails. */
+    void copy(byte[] b, int off, int len) 
+    {
+      if (fileOut == null || spoiled)
+        return;
+      try {
+        fileOut.write(b, off, len);
+      }
+      catch (IOException e) {
+        Trace.warning("Unable to write output cache file \"" + file +
+                      "\": " + e);
+        spoiled = true;
+      }
+    } // copy()
+
+    /**
+     * Passes everything along to the real response, copying the output.
+     * Anything that changes the status or headers would be lost when the
+     * page is re-used, so that spoils the page.
+     */
+    class RecordingResponse extends HttpServletResponseWrapper 
+    {
+      private ServletOutputStream stream;
+
+      RecordingResponse(HttpServletResponse toWrap) {
+        super(toWrap);
+      }
+
+      public ServletOutputStream getOutputStream()
+        throws IOException 
+      {
+        if (stream == null)
+          stream = new RecordingStream(super.getOutputStream());
+        return stream;
+      }
+
+      public void setContentType(String type) {
+        contentType = type;
+        super.setContentType(type);
+      }
+
+      public void addCookie(Cookie cookie) {
+        spoiled = true;
+        super.addCookie(cookie);
+      }
+
+      public void setHeader(String name, String value) {
+        spoiled = true;
+        super.setHeader(name, value);
+      }
+
+      public void addHeader(String name, String value) {
+        spoiled = true;
+        super.addHeader(name, value);
+      }
+
+      public void setDateHeader(String name, long date) {
+        spoiled = true;
+        super.setDateHeader(name, date);
+      }
+
+      public void addDateHeader(String name, long date) {
+        spoiled = true;
+        super.addDateHeader(name, date);
+      }
+
+      public void setIntHeader(String name, int value) {
+        spoiled = true;
+        super.setIntHeader(name, value);
+      }
+
+      public void addIntHeader(String name, int value) {
+        spoiled = true;
+        super.addIntHeader(name, value);
+      }
+
+      public void setContentLength(int len) {
+        spoiled = true;
+        super.setContentLength(len);
+      }
+
+      public void setStatus(int sc) {
+        spoiled = true;
+        super.setStatus(sc);
+      }
+
+      public void sendError(int sc, String msg)
+        throws IOException 
+      {
+        spoiled = true;
+        super.sendError(sc, msg);
+      }
+
+      public void sendError(int sc)
+        throws IOException 
+      {
+        spoiled = true;
+        super.sendError(sc);
+      }
+
+      public void sendRedirect(String location)
+        throws IOException 
+      {
+        spoiled = true;
+        super.sendRedirect(location);
+      }
+    } // class RecordingResponse
+
+    /** Sends output to the real stream and copies it to the file */
+    class RecordingStream extends ServletOutputStream 
+    {
+      private OutputStream realOut;
+      private byte[] one = new byte[1];
+
+      RecordingStream(OutputStream realOut) {
+        this.realOut = realOut;
+      }
+
+      public void write(int b)
+        throws IOException 
+      {
+        one[0] = (byte)b;
+        write(one, 0, 1);
+      }
+
+      public void write(byte[] b)
+        throws IOException 
+      {
+        write(b, 0, b.length);
+      }
+
+      public void write(byte[] b, int off, int len)
+        throws IOException 
+      {
+        realOut.write(b, off, len);
+        copy(b, off, len);
+      }
+
+      public void flush()
+        throws IOException 
+      {
+        realOut.flush();
+      }
+
+      public void close()
+        throws IOException 
+      {
+        realOut.close();
+      }
+    } // class RecordingStream
+  } // class Recorder
+} // class OutputCache
@@ -30,6 +30,12 @@ package org.cdlib.xtf.servletBase;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerException;
@@ -54,9 +60,9 @@ import org.cdlib.xtf.util.*;
 public class StylesheetCache extends GeneratingCache 
 {
   private boolean dependencyChecking = false;
-  private GeneratingCache dependencyReceiver = null;
-  private TraceListenerFactory traceListenerFactory = null;
+  private volatile TraceListenerFactory traceListenerFactory = null;
   private TransformerFactory factory;
+  private volatile boolean warm = true;
   
   public interface TraceListenerFactory {
     TraceListener createListener();
@@ -116,6 +122,121 @@ public class StylesheetCache extends GeneratingCache
     return (Templates)super.find(path);
   }
 
+  /**
+   * Compiles the given stylesheets on a pool of background threads, so that
+   * the first requests to use them don't have to wait. Until all of them
+   * are done, {@link #isWarm()} returns false. Stylesheets that fail to
+   * compile are logged and skipped; requests that use them will report the
+   * error.
+   *
+   * @param paths     Filesystem paths of the stylesheets to compile
+   * @param nThreads  Number of threads to compile them with
+   */
+  public void warmUp(Collection<String> paths, int nThreads) 
+  {
+    if (paths.isEmpty())
+      return;
+
+    warm = false;
+    final long startTime = System.currentTimeMillis();
+    final AtomicInteger nLeft = new AtomicInteger(paths.size());
+    final ExecutorService pool = Executors.newFixedThreadPool(
+      Math.max(1, Math.min(nThreads, paths.size())),
+      new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "StylesheetWarmUp");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+    for (final String path : paths) 
+    {
+      pool.execute(new Runnable() 
+      {
+        public void run() 
+        {
+          try {
+            find(path);
+            Trace.debug("Warmed up stylesheet " + path);
+          }
+          catch (Throwable t) {
+            Trace.warning("Unable to warm up stylesheet \"" + path + "\": " +
+                          t);
+          }
+          finally {
+            XTFSaxonErrorListener.clearThreadErrors();
+            if (nLeft.decrementAndGet() == 0) {
+              warm = true;
+              pool.shutdown();
+              Trace.info("Stylesheet warm-up done (" + 
+                         (System.currentTimeMillis() - startTime) + " msec)");
+            }
+          }
+        }
+      });
+    }
+  } // warmUp()
+
+  /**
+   * Tells whether the stylesheets requested by {@link #warmUp} have all
+   * been compiled (true if no warm-up was requested.)
+   */
+  public boolean isWarm() {
+    return warm;
+  }
+
+  /**
+   * Describes the version of a cached stylesheet: the modification time of
+   * the stylesheet and of each file it includes. The description changes
+   * whenever any of them changes. If dependency checking is disabled, the
+   * files aren't tracked, so the time the stylesheet was loaded is used
+   * instead.
+   *
+   * @param path  Filesystem path of the stylesheet (which should already
+   *              have been loaded with {@link #find(String)})
+   * @return      A string describing the version.
+   */
+  public String getVersion(String path) 
+  {
+    if (!dependencyChecking)
+      return Long.toString(lastSet(path));
+
+    StringBuffer buf = new StringBuffer();
+    for (Iterator i = getDependencies(path); i.hasNext();) 
+    {
+      Object dep = i.next();
+      if (dep instanceof FileDependency) {
+        FileDependency fd = (FileDependency)dep;
+        buf.append(fd.getFile().getPath());
+        buf.append(':');
+        buf.append(fd.getLastModified());
+        buf.append(';');
+      }
+    }
+    return buf.toString();
+  } // getVersion()
+
+  /**
+   * Finds the most recent modification time of a stylesheet and of the
+   * files it includes.
+   *
+   * @param path  Filesystem path of the stylesheet (which should already
+   *              have been loaded with {@link #find(String)})
+   * @return      The modification time, or zero if unknown.
+   */
+  public long lastModified(String path) 
+  {
+    long latest = 0;
+    for (Iterator i = getDependencies(path); i.hasNext();) 
+    {
+      Object dep = i.next();
+      if (dep instanceof FileDependency)
+        latest = Math.max(latest, ((FileDependency)dep).getLastModified());
+    }
+    return latest;
+  } // lastModified()
+
   /**
    * Enable or disable profiling (only affects stylesheets that are
    * not already cached). If the factory is null, profiling is
@@ -126,51 +247,51 @@ public class StylesheetCache extends GeneratingCache
   }
 
   /**
-   * Load and parse a stylesheet from the filesystem.
+   * Load and parse a stylesheet from the filesystem. Different stylesheets
+   * may be loaded by several threads at once.
    *
    * @param  key          (String)Filesystem path of the stylesheet to load
    * @return              The parsed stylesheet
    * @throws Exception    If the stylesheet could not be loaded.
    */
-  protected synchronized Object generate(Object key)
+  protected Object generate(Object key)
     throws Exception 
   {
-    assert dependencyReceiver == null : "stylesheet cache should only have dependencyReceiver " +
-      "during external calls, not during find().";
+    String path = (String)key;
+    File file = new File(path);
     if (dependencyChecking)
-      dependencyReceiver = this;
+      addDependency(new FileDependency(file));
+    if (!path.startsWith("http:") && !file.canRead())
+      throw new GeneralException("Cannot read stylesheet: " + path);
+
+    // Load that stylesheet!
+    String url;
+    if (path.startsWith("http:"))
+      url = path;
+    else
+      url = file.toURL().toString();
+    Source src = new SAXSource(new InputSource(url));
+    Templates x;
 
-    try 
+    // If profiling is enabled, set up the listener. Since it's a factory
+    // setting, only one such stylesheet can be loaded at a time.
+    //
+    TraceListenerFactory tlf = traceListenerFactory;
+    if (tlf != null) 
     {
-      String path = (String)key;
-      File file = new File(path);
-      if (dependencyChecking)
-        addDependency(new FileDependency(file));
-      if (!path.startsWith("http:") && !file.canRead())
-        throw new GeneralException("Cannot read stylesheet: " + path);
-
-      // Set up the profiling listener, if profiling is enabled
-      if (traceListenerFactory != null) {
-        TraceListener listener = traceListenerFactory.createListener();
-        factory.setAttribute(FeatureKeys.TRACE_LISTENER, listener);
+      synchronized (factory) {
+        factory.setAttribute(FeatureKeys.TRACE_LISTENER, tlf.createListener());
         factory.setAttribute(FeatureKeys.LINE_NUMBERING, Boolean.TRUE);
+        x = factory.newTemplates(src);
       }
-  
-      // Load that stylesheet!
-      String url;
-      if (path.startsWith("http:"))
-        url = path;
-      else
-        url = file.toURL().toString();
-      Templates x = factory.newTemplates(new SAXSource(new InputSource(url)));
-      if (x == null)
-        throw new TransformerException("Cannot read stylesheet: " + path);
-
-      return x;
-    }
-    finally {
-      dependencyReceiver = null;
     }
+    else
+      x = factory.newTemplates(src);
+
+    if (x == null)
+      throw new TransformerException("Cannot read stylesheet: " + path);
+
+    return x;
   } // generate()
 
   /** Prints out useful debugging info */
@@ -225,17 +346,14 @@ public class StylesheetCache extends GeneratingCache
         String sysId = src.getSystemId();
         if (sysId != null && sysId.startsWith("file:")) 
         {
-          // Be careful to pay attention if the cache is locked, so as to 
-          // avoid leaking dependencies between threads.
+          // Only pay attention if this thread is loading a stylesheet, so
+          // as to avoid leaking dependencies between threads.
           //
-          synchronized (cache)
-          {
-            if (cache.dependencyReceiver != null) {
-              String path = sysId.substring("file:".length());
-              while (path.startsWith("//"))
-                path = path.substring(1);
-              cache.dependencyReceiver.addDependency(new FileDependency(path));
-            }
+          if (cache.isGenerating()) {
+            String path = sysId.substring("file:".length());
+            while (path.startsWith("//"))
+              path = path.substring(1);
+            cache.addDependency(new FileDependency(path));
           }
         }
       }
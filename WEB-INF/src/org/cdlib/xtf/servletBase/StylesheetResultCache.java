@@ -0,0 +1,223 @@
+package org.cdlib.xtf.servletBase;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.Iterator;
+import java.util.List;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import net.sf.saxon.PreparedStylesheet;
+import net.sf.saxon.instruct.GlobalParam;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.sort.IntHashMap;
+
+import org.cdlib.xtf.cache.CacheDependency;
+import org.cdlib.xtf.cache.Dependency;
+import org.cdlib.xtf.cache.FileDependency;
+import org.cdlib.xtf.cache.SimpleCache;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Caches things computed from the output of stylesheets, so that a repeated
+ * transformation can be skipped.<br><br>
+ *
+ * An entry is keyed by the stylesheet, its input, and the values of the
+ * global parameters the stylesheet actually declares; parameters it doesn't
+ * declare (most of the HTTP headers, for instance) can't affect its output.
+ * Each entry should depend on the stylesheet's entry in the
+ * {@link StylesheetCache} (see {@link #dependOn(String)}), so that when the
+ * stylesheet (or anything it includes) changes, the entry is thrown out.
+ * <br><br>
+ *
+ * Output that relied on anything else must not be added. To find out, call
+ * {@link #watchForUncacheable(Transformer)} before the transformation and
+ * {@link TextServlet#checkUncacheable()} after it.
+ */
+public class StylesheetResultCache extends SimpleCache<String, Object> 
+{
+  /** Name to print out in logAction() */
+  private String cacheName;
+
+  /** The stylesheet cache our entries depend on */
+  private StylesheetCache stylesheetCache;
+
+  /**
+   * Constructor - sets up the parameters of the cache.
+   *
+   * @param cacheName        Name to print in debugging messages
+   * @param stylesheetCache  Cache holding the stylesheets whose output we
+   *                         will store.
+   * @param maxEntries       Maximum # of entries. Zero means no limit.
+   * @param maxTime          Time (in seconds) an entry can stay in the
+   *                         cache without being used. Zero means no limit.
+   */
+  public StylesheetResultCache(String cacheName,
+                               StylesheetCache stylesheetCache,
+                               int maxEntries, int maxTime) 
+  {
+    super(maxEntries, maxTime);
+    this.cacheName = cacheName;
+    this.stylesheetCache = stylesheetCache;
+  }
+
+  /** Checks whether this cache belongs to the given stylesheet cache. */
+  public boolean isFor(StylesheetCache cache) {
+    return cache == stylesheetCache;
+  }
+
+  /**
+   * Forms the key for a transformation.
+   *
+   * @param sheetPath   Path of the stylesheet (as known to the stylesheet
+   *                    cache)
+   * @param sheet       The compiled stylesheet
+   * @param trans       Transformer for it, with all the parameters set
+   * @param input       The input document, as text
+   * @return            A key covering everything the output depends on.
+   */
+  public String makeKey(String sheetPath, Templates sheet, Transformer trans,
+                        String input) 
+  {
+    StringBuffer buf = new StringBuffer(input.length() + 200);
+    addPart(buf, sheetPath);
+    addPart(buf, input);
+
+    // Only parameters the stylesheet declares can affect its output.
+    PreparedStylesheet pss = (PreparedStylesheet)sheet;
+    NamePool pool = pss.getTargetNamePool();
+    IntHashMap globals = pss.getExecutable().getCompiledGlobalVariables();
+    Iterator iter = (globals == null) ? null : globals.valueIterator();
+    while (iter != null && iter.hasNext()) 
+    {
+      Object var = iter.next();
+      if (!(var instanceof GlobalParam))
+        continue;
+      String name = pool.getClarkName(((GlobalParam)var).getNameCode());
+      Object value = trans.getParameter(name);
+      addPart(buf, name);
+      if (value == null)
+        buf.append('-');
+      else
+        addPart(buf,
+                (value instanceof Item) ? ((Item)value).getStringValue()
+                : value.toString());
+    }
+
+    return buf.toString();
+  } // makeKey()
+
+  /** Adds a length-prefixed part to a key, so parts can't run together */
+  private static void addPart(StringBuffer buf, String part) {
+    buf.append(part.length());
+    buf.append(':');
+    buf.append(part);
+  }
+
+  /**
+   * Makes a dependency on the current version of a stylesheet. This should
+   * be done before running the stylesheet, so that a value is never
+   * recorded against a newer version than the one that produced it.
+   *
+   * @param sheetPath   Path of the stylesheet (as known to the stylesheet
+   *                    cache)
+   */
+  public CacheDependency dependOn(String sheetPath) {
+    return new CacheDependency(stylesheetCache, sheetPath);
+  }
+
+  /**
+   * Prepares to check, after a transformation, whether its output may be
+   * cached. Documents the stylesheet loads could change at any time, so
+   * loading one makes the output uncacheable, as do certain extension
+   * functions (see {@link TextServlet#markUncacheable()}).
+   *
+   * @param trans   The transformer about to be run
+   */
+  public static void watchForUncacheable(Transformer trans) 
+  {
+    TextServlet.checkUncacheable();
+    final URIResolver realResolver = trans.getURIResolver();
+    trans.setURIResolver(new URIResolver() 
+      {
+        public Source resolve(String href, String base)
+          throws TransformerException 
+        {
+          TextServlet.markUncacheable();
+          return (realResolver == null) ? null
+                 : realResolver.resolve(href, base);
+        }
+      });
+  } // watchForUncacheable()
+
+  /**
+   * Watches for documents loaded by a transformation. Local files are fine,
+   * since a cached result can depend on them, so they're added to the given
+   * list; but anything else could change at any time, so loading it makes
+   * the output uncacheable.
+   *
+   * @param trans   The transformer about to be run
+   * @param deps    List to receive dependencies on the files loaded
+   */
+  protected static void watchDocuments(Transformer trans,
+                                       final List<Dependency> deps) 
+  {
+    final URIResolver realResolver = trans.getURIResolver();
+    trans.setURIResolver(new URIResolver() 
+      {
+        public Source resolve(String href, String base)
+          throws TransformerException 
+        {
+          Source src = (realResolver == null) ? null
+                       : realResolver.resolve(href, base);
+          String sysId = (src == null) ? null : src.getSystemId();
+          if (sysId != null && sysId.startsWith("file:")) {
+            String path = sysId.substring("file:".length());
+            while (path.startsWith("//"))
+              path = path.substring(1);
+            deps.add(new FileDependency(path));
+          }
+          else
+            TextServlet.markUncacheable();
+          return src;
+        }
+      });
+  } // watchDocuments()
+
+  /** Prints out useful debugging info */
+  protected void logAction(String action, String key, Object value) {
+    if (Trace.getOutputLevel() >= Trace.debug)
+      Trace.debug(cacheName + ": " + action + " " +
+                  value.getClass().getSimpleName());
+  }
+} // class StylesheetResultCache
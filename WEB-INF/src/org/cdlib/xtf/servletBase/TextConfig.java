@@ -29,6 +29,7 @@ package org.cdlib.xtf.servletBase;
  * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
  * POSSIBILITY OF SUCH DAMAGE.
  */
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -50,6 +51,25 @@ public abstract class TextConfig
   /** Max length of time (in seconds) to cache a stylesheet. */
   public int stylesheetCacheExpire = 0;
 
+  /** 
+   * Max # of brand profile results to cache. Default: 0, meaning brand
+   * profiles are run for every request.
+   */
+  public int brandCacheSize = 0;
+
+  /** Max length of time (in seconds) to cache a brand profile result. */
+  public int brandCacheExpire = 0;
+
+  /** 
+   * Max # of page ETags to remember. Default: 0, meaning no ETags are
+   * sent, and conditional requests are never answered with "304 Not
+   * Modified".
+   */
+  public int etagCacheSize = 0;
+
+  /** Max length of time (in seconds) to remember an ETag. */
+  public int etagCacheExpire = 0;
+
   /**
    * Filesystem path to a stylesheet used to generate error pages
    * (no permission, invalid document, general exceptions, etc.)
@@ -74,6 +94,22 @@ public abstract class TextConfig
    */
   public int latencyCutoffSize = 0;
 
+  /**
+   * Whether to compress output (with gzip or deflate) for clients that
+   * accept it. Default: false
+   */
+  public boolean compressOutput = false;
+
+  /** Compression level, from 1 (fastest) to 9 (smallest). Default: 6 */
+  public int compressLevel = 6;
+
+  /**
+   * Number of bytes of (uncompressed) output after which compressed output
+   * is pushed to the client, so that it can start rendering the page early.
+   * Zero means only push at the end. Default: 8192
+   */
+  public int compressFlushSize = 8192;
+
   /**
    * Amount of time (in seconds) that a request is allowed to run
    * before we consider it a possible "runaway" and start logging warning
@@ -115,6 +151,21 @@ public abstract class TextConfig
   
   /** Interval for index warming. Default: 60 (seconds) */
   public int indexWarmingUpdateInterval = 60;
+
+  /** 
+   * Whether to compile the stylesheets in the background when the servlet
+   * starts, rather than on first use. Default: false
+   */
+  public boolean stylesheetWarmUp = false;
+
+  /** Number of threads to compile stylesheets with. Default: 2 */
+  public int stylesheetWarmUpThreads = 2;
+
+  /** 
+   * Stylesheets to compile at startup, beyond those named elsewhere in the
+   * configuration (result formatters, for instance.)
+   */
+  public ArrayList<String> warmUpSheets = new ArrayList<String>();
   
   /** All the configuration attributes in the form of name/value pairs */
   public AttribList attribs = new AttribList();
@@ -225,6 +276,22 @@ public abstract class TextConfig
       stylesheetCacheExpire = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("brandCache.size")) {
+      brandCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("brandCache.expire")) {
+      brandCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("etagCache.size")) {
+      etagCacheSize = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("etagCache.expire")) {
+      etagCacheExpire = parseInt(tagAttr, strVal);
+      return true;
+    }
     else if (tagAttr.equalsIgnoreCase("errorGen.path")) {
       errorGenSheet = servlet.getRealPath(strVal);
       return true;
@@ -243,6 +310,21 @@ public abstract class TextConfig
       latencyCutoffSize = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("outputCompression.enable")) {
+      compressOutput = parseBoolean(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("outputCompression.level")) {
+      compressLevel = parseInt(tagAttr, strVal);
+      if (compressLevel < 1 || compressLevel > 9)
+        throw new GeneralException(
+          "Config file property " + tagAttr + " must be between 1 and 9");
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("outputCompression.flushSize")) {
+      compressFlushSize = parseInt(tagAttr, strVal);
+      return true;
+    }
     else if (tagAttr.equalsIgnoreCase("runawayTimer.normalTime")) {
       runawayNormalTime = parseInt(tagAttr, strVal);
       return true;
@@ -294,6 +376,18 @@ public abstract class TextConfig
       indexWarmingUpdateInterval = parseInt(tagAttr, strVal);
       return true;
     }
+    else if (tagAttr.equalsIgnoreCase("stylesheetWarmUp.enable")) {
+      stylesheetWarmUp = parseBoolean(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("stylesheetWarmUp.threads")) {
+      stylesheetWarmUpThreads = parseInt(tagAttr, strVal);
+      return true;
+    }
+    else if (tagAttr.equalsIgnoreCase("stylesheetWarmUp.path")) {
+      warmUpSheets.add(servlet.getRealPath(strVal));
+      return true;
+    }
 
     // Not recognized.
     return false;
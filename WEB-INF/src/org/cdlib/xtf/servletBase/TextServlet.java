@@ -49,8 +49,10 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 import javax.servlet.ServletContext;
@@ -77,6 +79,7 @@ import net.sf.saxon.value.StringValue;
 import org.apache.lucene.analysis.Token;
 import org.apache.lucene.limit.ExcessiveWorkException;
 import org.apache.lucene.limit.TermLimitException;
+import org.cdlib.xtf.cache.CacheDependency;
 import org.cdlib.xtf.saxonExt.sql.SQLConnect;
 import org.cdlib.xtf.textEngine.DefaultQueryProcessor;
 import org.cdlib.xtf.textEngine.IndexUtil;
@@ -108,6 +111,12 @@ public abstract class TextServlet extends HttpServlet
   /** Caches stylesheets (based on their URL) */
   public StylesheetCache stylesheetCache;
 
+  /** Caches the parameters produced by brand profiles (null if disabled) */
+  private StylesheetResultCache brandCache;
+
+  /** Remembers the ETags of pages sent (null if disabled) */
+  private ETagCache etagCache;
+
   /** Context useful for mapping partial paths to full paths */
   private ServletContext staticContext;
 
@@ -115,7 +124,7 @@ public abstract class TextServlet extends HttpServlet
   private String baseDir;
 
   /** Flag to discern whether class has been initialized yet */
-  private boolean isInitted = false;
+  private volatile boolean isInitted = false;
 
   /** The error generator stylesheet to use */
   private ThreadLocal<String> errorGenSheet = new ThreadLocal<String>();
@@ -135,6 +144,12 @@ public abstract class TextServlet extends HttpServlet
   /** Keeps track, per thread, of the HTTP servlet response */
   private static ThreadLocal curResponse = new ThreadLocal();
 
+  /**
+   * Set, per thread, when a stylesheet calls an extension function whose
+   * result depends on more than its arguments.
+   */
+  private static ThreadLocal<Boolean> uncacheable = new ThreadLocal<Boolean>();
+
   /** Used for warming up indexes in the background */
   private static HashMap<String,IndexWarmer> indexWarmers = new HashMap();
 
@@ -238,7 +253,64 @@ public abstract class TextServlet extends HttpServlet
   public static HttpServletResponse getCurResponse() {
     return (HttpServletResponse)curResponse.get();
   }
+
+  /**
+   * Substitutes a different response (typically one wrapping the current
+   * one) for extension functions to use for the rest of the request.
+   */
+  static void setCurResponse(HttpServletResponse res) {
+    curResponse.set(res);
+  }
+
+  /**
+   * Called by extension functions whose results depend on something other
+   * than their arguments (session data, the file system, the clock, etc.)
+   * This tells the servlet that the output of the transformation in
+   * progress shouldn't be cached.
+   */
+  public static void markUncacheable() {
+    uncacheable.set(Boolean.TRUE);
+  }
+
+  /**
+   * Checks whether {@link #markUncacheable()} has been called by this thread
+   * since the last check, and resets the flag.
+   */
+  public static boolean checkUncacheable() 
+  {
+    if (uncacheable.get() == null)
+      return false;
+    uncacheable.set(null);
+    return true;
+  } // checkUncacheable()
+
+  /**
+   * Checks whether {@link #markUncacheable()} has been called by this thread
+   * since the last check, without resetting the flag. Useful when more than
+   * one cache is interested in the same transformation.
+   */
+  public static boolean isUncacheable() {
+    return uncacheable.get() != null;
+  }
   
+  /**
+   * Called by the servlet container when it loads the servlet. We read the
+   * configuration right away, rather than waiting for the first request, so
+   * that stylesheet warm-up (if enabled) can get started.
+   */
+  @Override
+  public void init()
+    throws ServletException 
+  {
+    try {
+      firstTimeInit(false);
+    }
+    catch (Exception e) {
+      // Leave it to the first request to report the problem properly.
+      Trace.error("Error initializing " + getServletInfo() + ": " + e);
+    }
+  } // init()
+
   /** 
    * Called by the servlet container to indicate this servlet is being taken
    * out of service. We clean up all resources we can.
@@ -307,12 +379,78 @@ public abstract class TextServlet extends HttpServlet
       stylesheetCache = new StylesheetCache(config.stylesheetCacheSize,
                                             config.stylesheetCacheExpire,
                                             config.dependencyCheckingEnabled);
+      brandCache = (config.brandCacheSize <= 0) ? null
+                   : new StylesheetResultCache("BrandCache", stylesheetCache,
+                                               config.brandCacheSize,
+                                               config.brandCacheExpire);
+      etagCache = (config.etagCacheSize <= 0) ? null
+                  : new ETagCache(stylesheetCache, config.etagCacheSize,
+                                  config.etagCacheExpire);
+
+      // If requested, start compiling stylesheets in the background.
+      if (config.stylesheetWarmUp) 
+      {
+        Set<String> sheets = getWarmUpSheets();
+        if (config.stylesheetCacheSize > 0 &&
+            sheets.size() > config.stylesheetCacheSize) 
+        {
+          Trace.warning("Warning: " + sheets.size() + " stylesheets to " +
+                        "warm up, but the stylesheet cache only holds " +
+                        config.stylesheetCacheSize);
+        }
+        stylesheetCache.warmUp(sheets, config.stylesheetWarmUpThreads);
+      }
 
       // Mark the flag so we won't init again.
       isInitted = true;
     }
   } // firstTimeInit()
 
+  /**
+   * Gets the stylesheets to compile when the servlet starts, if warm-up is
+   * enabled. Derived classes should add the stylesheets named in their own
+   * configuration.
+   *
+   * @return    Filesystem paths of the stylesheets
+   */
+  protected Set<String> getWarmUpSheets() 
+  {
+    Set<String> sheets = new LinkedHashSet<String>();
+    TextConfig config = getConfig();
+    if (config.errorGenSheet != null)
+      sheets.add(config.errorGenSheet);
+    sheets.addAll(config.warmUpSheets);
+    return sheets;
+  } // getWarmUpSheets()
+
+  /**
+   * Tells whether the servlet is ready to serve requests promptly; that is,
+   * whether it has been initialized and has finished warming up its
+   * stylesheets.
+   */
+  public boolean isReady() {
+    return isInitted && stylesheetCache.isWarm();
+  }
+
+  /**
+   * Responds to a health check (from a load balancer, say): status 200
+   * if the servlet {@link #isReady()}, otherwise 503 (Service Unavailable.)
+   *
+   * @param res   Where to send the response
+   */
+  protected void reportHealth(HttpServletResponse res)
+    throws IOException 
+  {
+    boolean ready = isReady();
+    res.setContentType("text/plain");
+    res.setHeader("Cache-Control", "no-cache");
+    if (!ready) {
+      res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      res.setHeader("Retry-After", "5");
+    }
+    res.getOutputStream().println(ready ? "ready" : "warming up");
+  } // reportHealth()
+
   /**
    * Sets up the trace facility for serlvet operation:
    *   1. Print timestamps with each line
@@ -360,6 +498,14 @@ public abstract class TextServlet extends HttpServlet
     String clearCaches = req.getParameter("clear-caches");
     firstTimeInit("yes".equals(clearCaches));
 
+    // Load balancers can poll with "health-check=yes" to find out when we're
+    // ready for traffic.
+    //
+    if ("yes".equals(req.getParameter("health-check"))) {
+      reportHealth(res);
+      return;
+    }
+
     // If reporting latency, record the start time.
     TextConfig config = getConfig();
     long reqStartTime = 0;
@@ -371,17 +517,33 @@ public abstract class TextServlet extends HttpServlet
     //
     req = new RequestWrapper(req);
     
-    // If a latency cut-off is specified, substitute a counting output 
-    // stream.
+    // If enabled, compress the output for clients that accept it. Since
+    // the output depends on the request header, tell proxies so.
+    //
+    CompressingResponse compressRes = null;
+    if (config.compressOutput) 
+    {
+      res.setHeader("Vary", "Accept-Encoding");
+      String encoding = CompressingResponse.chooseEncoding(req);
+      if (encoding != null) {
+        compressRes = new CompressingResponse(res, encoding,
+                                              config.compressLevel,
+                                              config.compressFlushSize);
+        res = compressRes;
+      }
+    }
+
+    // If reporting latency, substitute a counting output stream (which
+    // also prints a message at the cut-off size, if one is specified.)
+    // It's only made if the output stream is asked for, so that code
+    // using the response's writer instead still can.
     //
     String requestUrl = getRequestURL(req);
-    LatencyCutoffStream cutoffStream = null;
-    if (config.reportLatency && config.latencyCutoffSize > 0) {
-      cutoffStream = new LatencyCutoffStream(res.getOutputStream(),
-                                             config.latencyCutoffSize,
-                                             reqStartTime,
-                                             requestUrl);
-      res = new ResponseWrapper(res, cutoffStream);
+    ResponseWrapper latencyRes = null;
+    if (config.reportLatency) {
+      latencyRes = new ResponseWrapper(res, config.latencyCutoffSize,
+                                       reqStartTime, requestUrl);
+      res = latencyRes;
     }
 
     // Record the stuff going on in this thread at the moment, so that
@@ -443,25 +605,42 @@ public abstract class TextServlet extends HttpServlet
 
       // And make sure all output gets to the client.
       res.getOutputStream().flush();
+      if (compressRes != null)
+        compressRes.finish();
     }
     finally {
       if (trackRunaway)
         ThreadWatcher.endWatch();
 
+      // Free the compressor, even if the output didn't complete.
+      if (compressRes != null)
+        compressRes.release();
+
       // If any SQL connections were made while processing this 
       // request, close them now.
       //
       SQLConnect.closeThreadConnections();
 
       // Report latency if requested
-      if (config.reportLatency) {
+      if (latencyRes != null) {
         long latency = System.currentTimeMillis() - reqStartTime;
-        boolean alreadyPrinted = (cutoffStream != null &&
-                                 cutoffStream.isReported());
+        LatencyCutoffStream cutoffStream = latencyRes.cutoffStream;
+        boolean alreadyPrinted = cutoffStream != null && 
+                                 cutoffStream.isReported();
         String extraText = alreadyPrinted ? " (final)" : "";
+        StringBuffer metrics = new StringBuffer();
+        if (cutoffStream != null) {
+          if (cutoffStream.getFirstByteLatency() >= 0) {
+            metrics.append(", first byte " + 
+                           cutoffStream.getFirstByteLatency() + " msec");
+          }
+          metrics.append(", " + cutoffStream.getTotal() + " bytes");
+        }
+        if (compressRes != null && compressRes.isCompressed())
+          metrics.append(" (" + compressRes.getCompressedBytes() + " sent)");
         Trace.info(
-          "Latency" + extraText + ": " + latency + " msec for request: " +
-          requestUrl);
+          "Latency" + extraText + ": " + latency + " msec" + metrics + 
+          " for request: " + requestUrl);
       } // if
       
       // If any temporary files were created while processing this request,
@@ -473,6 +652,7 @@ public abstract class TextServlet extends HttpServlet
       curServlet.set(null);
       curRequest.set(null);
       curResponse.set(null);
+      uncacheable.set(null);
       XTFSaxonErrorListener.clearThreadErrors();
     } // finally
   } // service()
@@ -729,6 +909,25 @@ public abstract class TextServlet extends HttpServlet
     String doc = "<dummy>dummy</dummy>\n";
     StreamSource src = new StreamSource(new StringReader(doc));
 
+    // If we've already run the profile with the same parameters, re-use
+    // the results. Don't cache while profiling, so each run gets counted.
+    //
+    StylesheetResultCache cache = getConfig().stylesheetProfiling ? null
+                                  : brandCache;
+    String key = null;
+    CacheDependency cacheDep = null;
+    if (cache != null) 
+    {
+      key = cache.makeKey(path, pss, trans, doc);
+      String[] pairs = (String[])cache.get(key);
+      if (pairs != null) {
+        applyBranding(pairs, targetTrans);
+        return;
+      }
+      cacheDep = cache.dependOn(path);
+      StylesheetResultCache.watchForUncacheable(trans);
+    }
+
     // Make sure errors get directed to the right place.
     if (!(trans.getErrorListener() instanceof XTFSaxonErrorListener))
       trans.setErrorListener(new XTFSaxonErrorListener());
@@ -737,21 +936,107 @@ public abstract class TextServlet extends HttpServlet
     TreeBuilder result = new TreeBuilder();
     trans.transform(src, result);
 
-    // Process all the tags.
+    // Gather all the tags as name/value pairs.
     EasyNode root = new EasyNode(result.getCurrentRoot());
+    ArrayList<String> pairs = new ArrayList<String>();
     for (int i = 0; i < root.nChildren(); i++) 
     {
       EasyNode el = root.child(i);
       if (!el.isElement())
         continue;
 
-      String tagName = el.name();
-      String strVal = getText(el);
-
-      targetTrans.setParameter(tagName, new StringValue(strVal));
+      pairs.add(el.name());
+      pairs.add(getText(el));
     } // for node
+
+    String[] pairArray = pairs.toArray(new String[pairs.size()]);
+    if (cache != null && !checkUncacheable())
+      cache.set(key, pairArray, cacheDep);
+    applyBranding(pairArray, targetTrans);
   } // readBranding()
 
+  /**
+   * Calculates the ETag for a page that is about to be produced, and checks
+   * whether the client already has the current version of it. If so,
+   * responds with "304 Not Modified". If not, adds the ETag (and
+   * modification time, if known) to the response, and begins tracking
+   * whether the tag can be used for future conditional requests.
+   *
+   * @param sheetPath     Path of the display stylesheet
+   * @param sheet         The compiled display stylesheet
+   * @param trans         Transformer for it, with all parameters set
+   * @param input         Describes everything else the page depends on
+   * @param lastModified  Modification time of the page, or zero if unknown
+   * @param weak          true if the page may differ in unimportant ways
+   *                      from one request to the next
+   * @param req           The request being served
+   * @param res           The response to add headers to
+   * @return              A tracker to pass to {@link #finishETag}, whose
+   *                      <code>notModified</code> flag is set if a 304 was
+   *                      sent; or null if ETags are disabled.
+   */
+  protected ETagCache.Tracker checkETag(String sheetPath, Templates sheet,
+                                        Transformer trans, String input,
+                                        long lastModified, boolean weak,
+                                        HttpServletRequest req,
+                                        HttpServletResponse res) 
+  {
+    // Profiling needs every request to be run.
+    ETagCache cache = getConfig().stylesheetProfiling ? null : etagCache;
+    if (cache == null)
+      return null;
+
+    String etag = cache.calcETag(sheetPath, sheet, trans, input, weak);
+
+    // If the client has the current version, tell it so. If-None-Match
+    // takes precedence over If-Modified-Since, which has only one-second
+    // resolution.
+    //
+    if (cache.isCurrent(etag)) 
+    {
+      String ifNoneMatch = req.getHeader("If-None-Match");
+      boolean current = (ifNoneMatch != null) 
+                        ? ETagCache.matches(ifNoneMatch, etag)
+                        : (lastModified > 0 && 
+                           req.getDateHeader("If-Modified-Since") >= 
+                           lastModified / 1000 * 1000);
+      if (current) {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        res.setHeader("ETag", etag);
+        ETagCache.Tracker tracker = new ETagCache.Tracker(etag, null);
+        tracker.notModified = true;
+        return tracker;
+      }
+    }
+
+    // Send the tag, and make caches check back before re-using the page.
+    res.setHeader("ETag", etag);
+    if (lastModified > 0)
+      res.setDateHeader("Last-Modified", lastModified);
+    res.setHeader("Cache-Control", "no-cache");
+    return cache.track(etag, sheetPath, trans);
+  } // checkETag()
+
+  /**
+   * Called after a page has been produced, to record its ETag (if it is
+   * reliable) for future conditional requests.
+   *
+   * @param tracker   Tracker returned by {@link #checkETag} (may be null)
+   */
+  protected void finishETag(ETagCache.Tracker tracker) {
+    if (tracker != null && !tracker.notModified && etagCache != null)
+      etagCache.record(tracker);
+  }
+
+  /**
+   * Stuffs the name/value pairs produced by a brand profile into a
+   * transformer as parameters.
+   */
+  private static void applyBranding(String[] pairs, Transformer targetTrans) {
+    for (int i = 0; i < pairs.length; i += 2)
+      targetTrans.setParameter(pairs[i], new StringValue(pairs[i + 1]));
+  }
+
   /**
    * Makes a Saxon Receiver that will transparently add a session IDs
    * to URLs if they match the servlet URL, or other patterns configured
@@ -872,48 +1157,9 @@ public abstract class TextServlet extends HttpServlet
         case '\"': buf.append("&quot;");  break;
         case '\n': buf.append("<br/>\n"); break;
         
-        // Characters 128-159 are not legal in HTML (nor generally in Unicode).
-        // We have no way of knowing where they came from, so we make a 
-        // reasonable guess and treat them as ANSI. The equivalency below comes
-        // from http://www.alanwood.net/demos/ansi.html, accessed on 
-        // 30-Oct-2007.
-        //
-        case 128:  buf.append("\u20ac");  break;
-        case 129:  buf.append("\u0081");  break;
-        case 130:  buf.append("\u201A");  break;
-        case 131:  buf.append("\u0192");  break;
-        case 132:  buf.append("\u201E");  break;
-        case 133:  buf.append("\u2026");  break;
-        case 134:  buf.append("\u2020");  break;
-        case 135:  buf.append("\u2021");  break;
-        case 136:  buf.append("\u02C6");  break;
-        case 137:  buf.append("\u2030");  break;
-        case 138:  buf.append("\u0160");  break;
-        case 139:  buf.append("\u2039");  break;
-        case 140:  buf.append("\u0152");  break;
-        case 141:  buf.append("\u008D");  break;
-        case 142:  buf.append("\u017D");  break;
-        case 143:  buf.append("\u008F");  break;
-        case 144:  buf.append("\u0090");  break;
-        case 145:  buf.append("\u2018");  break;
-        case 146:  buf.append("\u2019");  break;
-        case 147:  buf.append("\u201C");  break;
-        case 148:  buf.append("\u201D");  break;
-        case 149:  buf.append("\u2022");  break;
-        case 150:  buf.append("\u2013");  break;
-        case 151:  buf.append("\u2014");  break;
-        case 152:  buf.append("\u02DC");  break;
-        case 153:  buf.append("\u2122");  break;
-        case 154:  buf.append("\u0161");  break;
-        case 155:  buf.append("\u203A");  break;
-        case 156:  buf.append("\u0153");  break;
-        case 157:  buf.append("\u009D");  break;
-        case 158:  buf.append("\u017E");  break;
-        case 159:  buf.append("\u0178");  break;
-        
-        // All other characters need no translation.
+        // Characters 128-159 get mapped; all others need no translation.
         default:
-          buf.append(c);
+          buf.append(mapAnsiChar(c));
           break;
       }
     }
@@ -921,6 +1167,56 @@ public abstract class TextServlet extends HttpServlet
     return buf.toString();
   } // makeHtmlString()
 
+  /**
+   * Characters 128-159 are not legal in HTML (nor generally in Unicode).
+   * We have no way of knowing where they came from, so we make a
+   * reasonable guess and treat them as ANSI. The equivalency below comes
+   * from http://www.alanwood.net/demos/ansi.html, accessed on
+   * 30-Oct-2007.
+   *
+   * @param c The character to map
+   * @return  The ANSI equivalent, or <code>c</code> if not in that range.
+   */
+  public static char mapAnsiChar(char c) 
+  {
+    switch (c) 
+    {
+      case 128:  return '\u20ac';
+      case 129:  return '\u0081';
+      case 130:  return '\u201A';
+      case 131:  return '\u0192';
+      case 132:  return '\u201E';
+      case 133:  return '\u2026';
+      case 134:  return '\u2020';
+      case 135:  return '\u2021';
+      case 136:  return '\u02C6';
+      case 137:  return '\u2030';
+      case 138:  return '\u0160';
+      case 139:  return '\u2039';
+      case 140:  return '\u0152';
+      case 141:  return '\u008D';
+      case 142:  return '\u017D';
+      case 143:  return '\u008F';
+      case 144:  return '\u0090';
+      case 145:  return '\u2018';
+      case 146:  return '\u2019';
+      case 147:  return '\u201C';
+      case 148:  return '\u201D';
+      case 149:  return '\u2022';
+      case 150:  return '\u2013';
+      case 151:  return '\u2014';
+      case 152:  return '\u02DC';
+      case 153:  return '\u2122';
+      case 154:  return '\u0161';
+      case 155:  return '\u203A';
+      case 156:  return '\u0153';
+      case 157:  return '\u009D';
+      case 158:  return '\u017E';
+      case 159:  return '\u0178';
+      default:   return c;
+    }
+  } // mapAnsiChar()
+
   /**
    * Create a QueryProcessor. Checks the system property
    * "org.cdlib.xtf.QueryProcessorClass" to see if there is a user-
@@ -941,16 +1237,7 @@ public abstract class TextServlet extends HttpServlet
       QueryProcessor processor = (QueryProcessor)theClass.newInstance();
       
       // Enable background index warming
-      IndexWarmer warmer = null;
-      synchronized (indexWarmers) {
-        String xtfHome = Path.normalizePath(TextServlet.getCurServlet().getRealPath(""));
-        warmer = indexWarmers.get(xtfHome);
-        if (warmer == null) {
-          warmer = new IndexWarmer(xtfHome, getConfig().indexWarmingUpdateInterval);
-          indexWarmers.put(xtfHome, warmer);
-        }
-      }
-      processor.setIndexWarmer(warmer);
+      processor.setIndexWarmer(getIndexWarmer());
       
       // And we're done.
       return processor;
@@ -969,6 +1256,23 @@ public abstract class TextServlet extends HttpServlet
     }
   } // createQueryProcessor()
 
+  /**
+   * Gets the index warmer that supplies searchers for this servlet's
+   * queries, creating it if necessary.
+   */
+  public IndexWarmer getIndexWarmer() 
+  {
+    synchronized (indexWarmers) {
+      String xtfHome = Path.normalizePath(TextServlet.getCurServlet().getRealPath(""));
+      IndexWarmer warmer = indexWarmers.get(xtfHome);
+      if (warmer == null) {
+        warmer = new IndexWarmer(xtfHome, getConfig().indexWarmingUpdateInterval);
+        indexWarmers.put(xtfHome, warmer);
+      }
+      return warmer;
+    }
+  } // getIndexWarmer()
+
   /**
    * Certain methods of HttpServletRequest do not decode escaped
    * characters in the URL. This method decodes them, and also
@@ -1870,7 +2174,9 @@ public abstract class TextServlet extends HttpServlet
   } // class RequestWrapepr
 
   /**
-   * Wraps a servlet response, substituting a different output stream
+   * Wraps a servlet response, substituting a {@link LatencyCutoffStream}
+   * for the output stream. The stream is made the first time it's asked
+   * for, so the wrapped response's writer can still be used instead.
    * 
    * Note: Some deprecated methods are included in HttpServletResponseWrapper.
    * Since there's nothing we can do about that, we simply suppress warnings
@@ -1879,19 +2185,32 @@ public abstract class TextServlet extends HttpServlet
   @SuppressWarnings("deprecation")
   private class ResponseWrapper extends HttpServletResponseWrapper 
   {
-    private ServletOutputStream substOutStream;
+    private int latencyCutoffSize;
+    private long reqStartTime;
+    private String requestUrl;
+
+    /** The counting stream, or null if output stream hasn't been used */
+    LatencyCutoffStream cutoffStream;
 
-    ResponseWrapper(HttpServletResponse toWrap,
-                    ServletOutputStream substOutStream) 
+    ResponseWrapper(HttpServletResponse toWrap, int latencyCutoffSize,
+                    long reqStartTime, String requestUrl) 
     {
       super(toWrap);
-      this.substOutStream = substOutStream;
+      this.latencyCutoffSize = latencyCutoffSize;
+      this.reqStartTime = reqStartTime;
+      this.requestUrl = requestUrl;
     }
 
     public ServletOutputStream getOutputStream()
       throws IOException 
     {
-      return substOutStream;
+      if (cutoffStream == null) {
+        cutoffStream = new LatencyCutoffStream(super.getOutputStream(),
+                                               latencyCutoffSize,
+                                               reqStartTime,
+                                               requestUrl);
+      }
+      return cutoffStream;
     }
   } // class ResponseWrapper
 } // class TextServlet
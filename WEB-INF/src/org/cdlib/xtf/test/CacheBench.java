@@ -0,0 +1,204 @@
+package org.cdlib.xtf.test;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cdlib.xtf.cache.GeneratingCache;
+import org.cdlib.xtf.cache.StringCache;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Measures how well the caches hold up when many threads use them at once,
+ * as they do in a busy servlet container. Threads look up random keys in a
+ * {@link StringCache} (with an occasional set) and a {@link GeneratingCache},
+ * and the total rate of operations is reported for increasing numbers of
+ * threads. For comparison, each run is repeated with every operation made
+ * under a single lock, as the caches used to do. Usage:<br><br>
+ *
+ * <code>CacheBench [-threads n] [-keys n] [-entries n] [-seconds n]</code>
+ */
+public class CacheBench 
+{
+  /** Maximum number of threads to run */
+  int maxThreads = 200;
+
+  /** Number of distinct keys looked up */
+  int nKeys = 200;
+
+  /** Maximum number of entries in each cache */
+  int maxEntries = 150;
+
+  /** How long to run each test, in seconds */
+  int seconds = 2;
+
+  /** Key strings, made ahead of time */
+  String[] keys;
+
+  public static void main(String[] args) 
+  {
+    CacheBench bench = new CacheBench();
+    bench.run(args);
+
+    // All done.
+    System.exit(0);
+  } // main()
+
+  public void run(String[] args) 
+  {
+    // Parse the command line.
+    for (int i = 0; i < args.length; i++) 
+    {
+      if (args[i].equals("-threads") && i + 1 < args.length)
+        maxThreads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-keys") && i + 1 < args.length)
+        nKeys = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-entries") && i + 1 < args.length)
+        maxEntries = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-seconds") && i + 1 < args.length)
+        seconds = Integer.parseInt(args[++i]);
+      else {
+        Trace.error(
+          "Usage: CacheBench [-threads n] [-keys n] [-entries n] [-seconds n]");
+        return;
+      }
+    }
+
+    keys = new String[nKeys];
+    for (int i = 0; i < nKeys; i++)
+      keys[i] = "key" + i;
+
+    try 
+    {
+      // Warm up, then run the timed tests.
+      Trace.info("Warm-up...");
+      runTest(4, false);
+      runTest(4, true);
+
+      for (int nThreads = 1; ; nThreads = Math.min(nThreads * 2, maxThreads)) 
+      {
+        long rate = runTest(nThreads, false);
+        long lockedRate = runTest(nThreads, true);
+        Trace.info(nThreads + " threads: " + rate + " ops/sec (" + 
+                   lockedRate + " ops/sec with a global lock)");
+        if (nThreads >= maxThreads)
+          break;
+      }
+    }
+    catch (InterruptedException e) {
+      Trace.error("Benchmark interrupted");
+    }
+  } // run()
+
+  /**
+   * Run a number of threads against fresh caches for the set time.
+   *
+   * @param nThreads  How many threads to run
+   * @param locked    true to make every operation under one lock
+   * @return          Total operations per second
+   */
+  private long runTest(int nThreads, final boolean locked)
+    throws InterruptedException 
+  {
+    final StringCache stringCache = new StringCache("bench", maxEntries, 0);
+    final GeneratingCache<String, String> genCache = 
+      new GeneratingCache<String, String>(maxEntries, 0) {
+        protected String generate(String key) {
+          return key.toUpperCase();
+        }
+      };
+    final Object lock = new Object();
+
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    final AtomicLong totalOps = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(nThreads);
+    for (int t = 0; t < nThreads; t++) 
+    {
+      final Random rand = new Random(t);
+      Thread thread = new Thread() {
+        public void run() 
+        {
+          long ops = 0;
+          try {
+            while (!stop.get()) {
+              if (locked) {
+                synchronized (lock) {
+                  doOp(rand, stringCache, genCache);
+                }
+              }
+              else
+                doOp(rand, stringCache, genCache);
+              ++ops;
+            }
+          }
+          catch (Exception e) {
+            Trace.error("Unexpected error: " + e);
+          }
+          finally {
+            totalOps.addAndGet(ops);
+            done.countDown();
+          }
+        }
+      };
+      thread.start();
+    }
+
+    long startTime = System.nanoTime();
+    Thread.sleep(seconds * 1000L);
+    stop.set(true);
+    done.await();
+    long nanos = System.nanoTime() - startTime;
+    return totalOps.get() * 1000000000L / nanos;
+  } // runTest()
+
+  /**
+   * Perform one random operation. Keys are skewed so that some are much
+   * more popular than others, as stylesheet paths are.
+   */
+  private void doOp(Random rand, StringCache stringCache,
+                    GeneratingCache<String, String> genCache)
+    throws Exception 
+  {
+    int r = rand.nextInt(nKeys);
+    String key = keys[(r * r) / nKeys];
+    int op = rand.nextInt(100);
+    if (op < 45) {
+      if (stringCache.get(key) == null)
+        stringCache.set(key, key);
+    }
+    else if (op < 50)
+      stringCache.set(key, key);
+    else
+      genCache.find(key);
+  } // doOp()
+} // class CacheBench
@@ -0,0 +1,173 @@
+package org.cdlib.xtf.test;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cdlib.xtf.textIndexer.TextIndexer;
+import org.cdlib.xtf.textIndexer.XMLTextProcessor;
+import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
+
+/**
+ * Measures how long the text indexer spends forming text into chunks, by
+ * repeatedly indexing the regression corpus. Like {@link RegressTest}, it
+ * scans subdirectories of the directory it's started in for IndexConfig.xml
+ * files, and builds a clean index for each one. <br><br>
+ *
+ * The first round warms up the JVM and isn't counted. For each later round,
+ * the time spent forming chunks is reported along with the total indexing
+ * time. Usage:<br><br>
+ *
+ * <code>ChunkBench [-rounds n] [dir]</code>
+ */
+public class ChunkBench 
+{
+  /** Number of timed rounds to run */
+  int nRounds = 5;
+
+  /** Index configurations found */
+  ArrayList<File> configFiles = new ArrayList<File>();
+
+  public static void main(String[] args) 
+  {
+    ChunkBench bench = new ChunkBench();
+    bench.run(args);
+
+    // All done.
+    System.exit(0);
+  } // main()
+
+  public void run(String[] args) 
+  {
+    // Parse the command line.
+    File baseDir = new File(System.getProperty("user.dir"));
+    for (int i = 0; i < args.length; i++) 
+    {
+      if (args[i].equals("-rounds") && i + 1 < args.length)
+        nRounds = Integer.parseInt(args[++i]);
+      else
+        baseDir = new File(args[i]).getAbsoluteFile();
+    }
+
+    // Find all the index configurations.
+    findConfigs(baseDir);
+    if (configFiles.isEmpty()) {
+      Trace.error("No IndexConfig.xml files found under " + baseDir);
+      return;
+    }
+    Trace.info("Found " + configFiles.size() + " index configurations.");
+
+    AtomicLong chunkTimer = new AtomicLong();
+    XMLTextProcessor.setChunkTimer(chunkTimer);
+    try 
+    {
+      // Warm up, then run the timed rounds.
+      Trace.info("Warm-up round...");
+      runRound();
+
+      long totalChunkNanos = 0;
+      long totalNanos = 0;
+      for (int round = 1; round <= nRounds; round++) 
+      {
+        chunkTimer.set(0);
+        long startTime = System.nanoTime();
+        runRound();
+        long roundNanos = System.nanoTime() - startTime;
+        long chunkNanos = chunkTimer.get();
+
+        Trace.info("Round " + round + ": " + report(chunkNanos, roundNanos));
+        totalChunkNanos += chunkNanos;
+        totalNanos += roundNanos;
+      }
+
+      if (nRounds > 0) {
+        Trace.info("Average: " + 
+                   report(totalChunkNanos / nRounds, totalNanos / nRounds));
+      }
+    }
+    catch (Exception e) {
+      Trace.error("Unexpected benchmark error: " + e);
+    }
+    finally {
+      XMLTextProcessor.setChunkTimer(null);
+    }
+  } // run()
+
+  /** Recursively find the index configuration files, in sorted order. */
+  private void findConfigs(File dir) 
+  {
+    String[] files = dir.list();
+    if (files == null)
+      return;
+    Arrays.sort(files);
+    for (int i = 0; i < files.length; i++) 
+    {
+      File file = new File(dir, files[i]);
+      if (file.isDirectory())
+        findConfigs(file);
+      else if (files[i].equals("IndexConfig.xml"))
+        configFiles.add(file);
+    }
+  } // findConfigs()
+
+  /** Build a clean index for every configuration. */
+  private void runRound()
+    throws IOException 
+  {
+    for (File configFile : configFiles) 
+    {
+      String dir = configFile.getParentFile().getAbsolutePath();
+      System.setProperty("user.dir", dir);
+      System.setProperty("xtf.home", dir);
+      Path.deleteDir(new File(dir, "IndexDB"));
+
+      String[] args = new String[] {
+                        "-trace", "errors", "-config", configFile.toString(),
+                        "-clean", "-index", "all"
+                      };
+      TextIndexer.main(args);
+    }
+
+    // The indexer sets its own trace level; put ours back.
+    Trace.setOutputLevel(Trace.info);
+  } // runRound()
+
+  /** Format the chunking and total times for a round. */
+  private static String report(long chunkNanos, long totalNanos) {
+    return "chunking " + (chunkNanos / 1000000) + " ms of " + 
+           (totalNanos / 1000000) + " ms total (" + 
+           (chunkNanos * 100 / Math.max(totalNanos, 1)) + "%)";
+  }
+} // class ChunkBench
@@ -44,6 +44,7 @@ import javax.servlet.http.HttpServletResponse;
 public class FakeServletResponse implements HttpServletResponse 
 {
   ServletOutputStream out;
+  int status = SC_OK;
 
   public FakeServletResponse(ServletOutputStream out) {
     this.out = out;
@@ -130,7 +131,12 @@ public class FakeServletResponse implements HttpServletResponse
   }
 
   public void setStatus(int sc) {
-    assert false;
+    status = sc;
+  }
+
+  /** Get the status code set by the servlet (default 200) */
+  public int getStatus() {
+    return status;
   }
 
   public void flushBuffer()
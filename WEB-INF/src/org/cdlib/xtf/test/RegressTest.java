@@ -71,6 +71,7 @@ import org.cdlib.xtf.textEngine.XtfBigramQueryRewriter;
 import org.cdlib.xtf.textIndexer.TagFilter;
 import org.cdlib.xtf.textIndexer.TextIndexer;
 import org.cdlib.xtf.util.CircularQueue;
+import org.cdlib.xtf.util.CompressedStoreReader;
 import org.cdlib.xtf.util.DiskHashWriter;
 import org.cdlib.xtf.util.FastIntCache;
 import org.cdlib.xtf.util.FastCache;
@@ -130,6 +131,7 @@ public class RegressTest
     StructuredFile.tester.test();
     IntHash.tester.test();
     DiskHashWriter.tester.test();
+    CompressedStoreReader.tester.test();
     CircularQueue.tester.test();
     XtfBigramQueryRewriter.tester.test();
     TagFilter.tester.test();
@@ -493,8 +495,7 @@ public class RegressTest
     // an attribute documenting how long the query took, including
     // formatting the hits.
     //
-    String hitsString = result.hitsToString("crossQueryResult", null);
-    Source sourceDoc = new StreamSource(new StringReader(hitsString));
+    Source sourceDoc = result.hitsToSource("crossQueryResult", null);
 
     // Make sure errors get directed to the right place.
     if (!(trans.getErrorListener() instanceof XTFSaxonErrorListener))
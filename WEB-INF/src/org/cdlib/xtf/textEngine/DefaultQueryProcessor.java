@@ -51,6 +51,7 @@ import org.apache.lucene.chunk.SpanChunkedNotQuery;
 import org.apache.lucene.chunk.SparseStringComparator;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.FieldSortedHitQueue;
@@ -170,26 +171,10 @@ public class DefaultQueryProcessor extends QueryProcessor
     //
     Vector hitVec = new Vector(10);
 
-    if (indexWarmer == null)
-      throw new IOException("Fatal: must call setIndexWarmer() before DefaultQueryProcessor.processRequest()");
-
     // Get a reader, searcher, and document number map that will all be
     // consistent with each other and up-to-date.
     //
-    XtfSearcher xtfSearcher = indexWarmer.getSearcher(req.indexPath);
-    synchronized (xtfSearcher) {
-      xtfSearcher.update();
-      indexReader = xtfSearcher.indexReader();
-      docNumMap = xtfSearcher.docNumMap();
-      chunkSize = xtfSearcher.chunkSize();
-      chunkOverlap = xtfSearcher.chunkOverlap();
-      stopSet = xtfSearcher.stopSet();
-      pluralMap = xtfSearcher.pluralMap();
-      accentMap = xtfSearcher.accentMap();
-      spellReader = xtfSearcher.spellReader();
-      isSparse = xtfSearcher.isSparse();
-      tokFields = xtfSearcher.tokenizedFields();
-    }
+    openIndex(req.indexPath);
 
     // Apply a work limit to the query if we were requested to. If no
     // specific limit was set, use a limiter with an infinite limit 
@@ -231,48 +216,16 @@ public class DefaultQueryProcessor extends QueryProcessor
       return result;
     }
 
-    // Perform standard tokenization tasks: change words to lowercase,
-    // remove apostrophes, etc.
-    //
-    query = new StdTermRewriter(tokFields).rewriteQuery(query);
-
-    // If an accent map is present, remove diacritics.
-    if (accentMap != null)
-      query = new AccentFoldingRewriter(accentMap, tokFields).rewriteQuery(query);
-
-    // If a plural map is present, change plural words to non-plural.
-    if (pluralMap != null)
-      query = new PluralFoldingRewriter(pluralMap, tokFields).rewriteQuery(query);
-
-    // Rewrite the query for bigrams (if we have stop-words to deal with.)
-    if (stopSet != null)
-      query = new XtfBigramQueryRewriter(stopSet, chunkOverlap, tokFields).rewriteQuery(
-        query);
-
-    // If there's nothing left (for instance if the query was all stop-words)
+    // Rewrite the query for the index (stop-words, plurals, etc.) If 
+    // there's nothing left (for instance if the query was all stop-words)
     // then there will be no results.
     //
-    if (query == null) {
+    final Query finalQuery = rewriteQuery(query);
+    if (finalQuery == null) {
       result.docHits = new DocHit[0];
       return result;
     }
 
-    // Fix up all the "infinite" slop entries to be actually limited to
-    // the chunk overlap size. That way, we'll get consistent results and
-    // the user won't be able to tell where the chunk boundaries are. 
-    // Also, attach the docNumMap to every SpanDechunkingQuery.
-    //
-    final Query finalQuery = new SlopFixupRewriter(docNumMap,
-                                                   stopSet,
-                                                   pluralMap,
-                                                   accentMap).rewriteQuery(query);
-
-    // If debugging is enabled, print out the final rewritten and fixed
-    // up query.
-    //
-    if (finalQuery != req.query)
-      Trace.debug("Rewritten query: " + finalQuery.toString());
-
     // While processing the query, we want to lazily generate DocHits,
     // and only generate a DocHit once even if it's added to multiple
     // groups.
@@ -415,6 +368,222 @@ public class DefaultQueryProcessor extends QueryProcessor
     return result;
   } // processReq()
 
+  /**
+   * Searches a single document, identified by its key, and forms the
+   * results. Rather than adding the key as a clause of the query and
+   * running the full search machinery, this looks up the document's
+   * docInfo chunk directly and scores only that document, so that span
+   * queries only visit the document's own chunks. Sorting, faceting,
+   * boost sets and spelling suggestions don't apply to a single document
+   * and are ignored.
+   *
+   * @param req      The pre-parsed request to process
+   * @param docKey   Index key of the document to search
+   * @return         Zero or one document hits
+   */
+  public synchronized QueryResult processDocRequest(final QueryRequest req,
+                                                    String docKey)
+    throws IOException 
+  {
+    // Clear out our counters.
+    nDocsHit = 0;
+    maxDocScore = 0;
+
+    // Get a consistent and up-to-date view of the index.
+    openIndex(req.indexPath);
+
+    // Start making the result by filling in its context.
+    QueryResult result = new QueryResult();
+    result.context = new QueryContext();
+    result.context.accentMap = accentMap;
+    result.context.pluralMap = pluralMap;
+    result.context.stopSet = stopSet;
+    result.scoresNormalized = req.normalizeScores;
+    result.docHits = new DocHit[0];
+
+    // If there's no query, or nothing is left after rewriting it, or the 
+    // document isn't in the index, then there will be no results.
+    //
+    if (req.query == null)
+      return result;
+    Query finalQuery = rewriteQuery(req.query);
+    if (finalQuery == null)
+      return result;
+    int docNum = findDocInfo(docKey);
+    if (docNum < 0)
+      return result;
+
+    // Apply a work limit to the query if we were requested to.
+    IndexReader limReader = new XtfLimIndexReader(indexReader,
+                                                  (req.workLimit > 0)
+                                                  ? req.workLimit
+                                                  : Integer.MAX_VALUE);
+
+    // Score the one document, grabbing its spans if it matched.
+    final DocHitImpl[] hit = new DocHitImpl[1];
+    RecordingSearcher searcher = new RecordingSearcher(limReader);
+    searcher.searchDoc(finalQuery, docNum,
+      new SpanHitCollector() 
+      {
+        public void collect(int doc, float score, FieldSpanSource spanSource) 
+        {
+          if (score <= 0.0f)
+            return;
+          nDocsHit++;
+          maxDocScore = score;
+
+          hit[0] = new DocHitImpl(doc, score);
+          hit[0].setSpanSource(spanSource);
+          hit[0].totalSnippets(); // grab the spans while they're valid
+          hit[0].setSpanSource(null);
+        } // collect()
+      });
+
+    if (hit[0] == null) {
+      searcher.close();
+      return result;
+    }
+
+    // Finish off the hit (normalize, and make snippets).
+    docScoreNorm = 1.0f;
+    if (req.normalizeScores && maxDocScore > 0.0f)
+      docScoreNorm = 1.0f / maxDocScore;
+
+    SnippetMaker snippetMaker = new SnippetMaker(limReader,
+                                                 docNumMap,
+                                                 stopSet,
+                                                 pluralMap,
+                                                 accentMap,
+                                                 tokFields,
+                                                 req.maxContext,
+                                                 req.termMode,
+                                                 req.returnMetaFields);
+    if (req.explainScores)
+      hit[0].finishWithExplain(snippetMaker, docScoreNorm,
+                               finalQuery.weight(searcher), null, null);
+    else
+      hit[0].finish(snippetMaker, docScoreNorm);
+    searcher.close();
+
+    // Pack up the results.
+    result.textTerms = hit[0].textTerms();
+    result.totalDocs = 1;
+    result.startDoc = 0;
+    result.endDoc = 1;
+    result.docHits = new DocHit[] { hit[0] };
+    return result;
+  } // processDocRequest()
+
+  /**
+   * Get a reader, searcher, and document number map for the given index,
+   * all consistent with each other and up-to-date, and record them (and
+   * the index parameters) in our member variables.
+   *
+   * @param indexPath   Path of the index to open
+   */
+  private void openIndex(String indexPath)
+    throws IOException 
+  {
+    if (indexWarmer == null)
+      throw new IOException("Fatal: must call setIndexWarmer() before DefaultQueryProcessor.processRequest()");
+
+    XtfSearcher xtfSearcher = indexWarmer.getSearcher(indexPath);
+    synchronized (xtfSearcher) {
+      xtfSearcher.update();
+      indexReader = xtfSearcher.indexReader();
+      docNumMap = xtfSearcher.docNumMap();
+      chunkSize = xtfSearcher.chunkSize();
+      chunkOverlap = xtfSearcher.chunkOverlap();
+      stopSet = xtfSearcher.stopSet();
+      pluralMap = xtfSearcher.pluralMap();
+      accentMap = xtfSearcher.accentMap();
+      spellReader = xtfSearcher.spellReader();
+      isSparse = xtfSearcher.isSparse();
+      tokFields = xtfSearcher.tokenizedFields();
+    }
+  } // openIndex()
+
+  /**
+   * Rewrite a query to match the way the index was built: lowercasing,
+   * diacritic and plural folding, bi-grams for stop-words, and limited
+   * slop. Must be called after {@link #openIndex(String)}.
+   *
+   * @param query   The query to rewrite
+   * @return        The rewritten query, or null if nothing is left of it
+   *                (for instance if the query was all stop-words.)
+   */
+  private Query rewriteQuery(Query query) 
+  {
+    Query origQuery = query;
+
+    // Perform standard tokenization tasks: change words to lowercase,
+    // remove apostrophes, etc.
+    //
+    query = new StdTermRewriter(tokFields).rewriteQuery(query);
+
+    // If an accent map is present, remove diacritics.
+    if (accentMap != null)
+      query = new AccentFoldingRewriter(accentMap, tokFields).rewriteQuery(query);
+
+    // If a plural map is present, change plural words to non-plural.
+    if (pluralMap != null)
+      query = new PluralFoldingRewriter(pluralMap, tokFields).rewriteQuery(query);
+
+    // Rewrite the query for bigrams (if we have stop-words to deal with.)
+    if (stopSet != null)
+      query = new XtfBigramQueryRewriter(stopSet, chunkOverlap, tokFields).rewriteQuery(
+        query);
+
+    // If there's nothing left, there will be no results.
+    if (query == null)
+      return null;
+
+    // Fix up all the "infinite" slop entries to be actually limited to
+    // the chunk overlap size. That way, we'll get consistent results and
+    // the user won't be able to tell where the chunk boundaries are. 
+    // Also, attach the docNumMap to every SpanDechunkingQuery.
+    //
+    Query finalQuery = new SlopFixupRewriter(docNumMap,
+                                             stopSet,
+                                             pluralMap,
+                                             accentMap).rewriteQuery(query);
+
+    // If debugging is enabled, print out the final rewritten and fixed
+    // up query.
+    //
+    if (finalQuery != origQuery)
+      Trace.debug("Rewritten query: " + finalQuery.toString());
+    return finalQuery;
+  } // rewriteQuery()
+
+  /**
+   * Locate the docInfo chunk for a document. Since the docInfo chunk is 
+   * always written after all the text chunks, it's the last non-deleted 
+   * chunk carrying the document's key that the document number map
+   * recognizes as a document.
+   *
+   * @param docKey  Index key of the document
+   * @return        Lucene document number of the docInfo chunk, or -1 if
+   *                the document isn't in the index.
+   */
+  private int findDocInfo(String docKey)
+    throws IOException 
+  {
+    int found = -1;
+    TermDocs termDocs = indexReader.termDocs(new Term("key", docKey));
+    try {
+      while (termDocs.next()) {
+        int doc = termDocs.doc();
+        if (docNumMap.getFirstChunk(doc) >= 0)
+          found = doc;
+      }
+    }
+    finally {
+      termDocs.close();
+    }
+    return found;
+  } // findDocInfo()
+
   /**
    * Checks spelling of query terms, if spelling suggestion is enabled and
    * the result falls below the cutoff threshholds.
@@ -38,14 +38,15 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Result;
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.sax.SAXTransformerFactory;
-import net.sf.saxon.Filter;
+import net.sf.saxon.Controller;
+import net.sf.saxon.event.Builder;
 import net.sf.saxon.value.StringValue;
 
 import org.cdlib.xtf.saxonExt.sql.SQLConnect;
@@ -271,6 +272,48 @@ public class IndexUtil
    * parser, and if that's not found, we try the default.
    */
   public static SAXParser createSAXParser() 
+  {
+    // Use the parser factory to make a new parser.
+    SAXParserFactory factory = getSAXParserFactory();
+    synchronized (factory) 
+    {
+      try {
+        // Patch from Steve Majewski to enable XInclude processing
+        factory.setXIncludeAware(true);
+        SAXParser xmlParser = factory.newSAXParser();
+        XMLReader xmlReader = xmlParser.getXMLReader();
+        xmlReader.setFeature("http://xml.org/sax/features/namespaces", true);
+        xmlReader.setFeature("http://xml.org/sax/features/namespace-prefixes",
+                             false);
+        
+        // For speed, and to make indexing utterly reliable, don't load external
+        // DTDs. If this fails, we ignore it (at least we tried.)
+        //
+        try {
+          xmlReader.setFeature(
+              "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+              false);
+        }
+        catch (SAXException err) {
+        }
+        
+        // All done
+        return xmlParser;
+      }
+      catch (SAXException e) {
+        throw new RuntimeException(e);
+      }
+      catch (ParserConfigurationException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  } // createSaxParser() 
+
+  /**
+   * Get the SAX parser factory, making it the first time it's needed.
+   * Synchronized since indexing may parse on several threads at once.
+   */
+  private static synchronized SAXParserFactory getSAXParserFactory() 
   {
     // If we don't have a factory yet, make one...
     if (saxParserFactory == null) 
@@ -310,40 +353,8 @@ public class IndexUtil
       }
     }
 
-    // Use the parser factory to make a new parser.
-    synchronized (saxParserFactory) 
-    {
-      try {
-        // Patch from Steve Majewski to enable XInclude processing
-        saxParserFactory.setXIncludeAware(true);
-        SAXParser xmlParser = saxParserFactory.newSAXParser();
-        XMLReader xmlReader = xmlParser.getXMLReader();
-        xmlReader.setFeature("http://xml.org/sax/features/namespaces", true);
-        xmlReader.setFeature("http://xml.org/sax/features/namespace-prefixes",
-                             false);
-        
-        // For speed, and to make indexing utterly reliable, don't load external
-        // DTDs. If this fails, we ignore it (at least we tried.)
-        //
-        try {
-          xmlReader.setFeature(
-              "http://apache.org/xml/features/nonvalidating/load-external-dtd",
-              false);
-        }
-        catch (SAXException err) {
-        }
-        
-        // All done
-        return xmlParser;
-      }
-      catch (SAXException e) {
-        throw new RuntimeException(e);
-      }
-      catch (ParserConfigurationException e) {
-        throw new RuntimeException(e);
-      }
-    }
-  } // createSaxParser() 
+    return saxParserFactory;
+  } // getSAXParserFactory()
 
   /**
    * Create an XML reader using the best implementation we can find. We prefer
@@ -364,7 +375,7 @@ public class IndexUtil
   /**
    * Get a TransformerFactory.
    */
-  private static TransformerFactory getTransformerFactory() 
+  private static synchronized TransformerFactory getTransformerFactory() 
   {
     // If we don't have a factory yet, make one.
     if (transformerFactory == null)
@@ -449,6 +460,14 @@ public class IndexUtil
    * Apply one or more prefilter stylesheets to an XML input source. Pass the
    * filtered data to to the specified Result.
    *
+   * The stylesheets are run one after another rather than as a chain of
+   * live XMLFilters: each stage builds its output straight into a tree that
+   * becomes the next stage's input, and the last stage sends its events
+   * directly to the ultimate result. Each stage's transformer (and with it
+   * the tree it read) is released as soon as the stage is done, so at most
+   * two intermediate trees are ever alive, instead of one per stylesheet for
+   * the length of the whole record.
+   *
    * @param prefilterStylesheets    Stylesheets to process
    * @param reader                  Reader to use for parsing the input XML
    * @param xmlSource               Source of XML data
@@ -462,48 +481,59 @@ public class IndexUtil
   {
     assert prefilterStylesheets.length > 0 : "applyPrefilters must have at least one stylesheet";
 
-    XMLReader lastInChain = reader;
-    SAXTransformerFactory stf = (SAXTransformerFactory)getTransformerFactory();
+    // The first stage parses the input document itself.
+    Source source = new SAXSource(reader, xmlSource);
 
-    // Process each prefilter.
-    for (int i = 0; i < prefilterStylesheets.length; i++) 
+    try 
     {
-      // Create an XMLFilter from the stylesheet
-      Filter filter = (Filter)stf.newXMLFilter(prefilterStylesheets[i]);
-      Transformer trans = filter.getTransformer();
-      
-      // Give it the pass-through attributes.
-      if (passThroughAttribs != null)
+      // Process each prefilter.
+      for (int i = 0; i < prefilterStylesheets.length; i++) 
       {
-        for (Iterator iter = passThroughAttribs.iterator(); iter.hasNext();) {
-          Attrib a = (Attrib)iter.next();
-          if (a.value == null || a.value.length() == 0)
-            continue;
-          trans.setParameter(a.key, new StringValue(a.value));
-        }
-      }
-
-      // Make sure errors get directed to the right place.
-      if (!(trans.getErrorListener() instanceof XTFSaxonErrorListener))
-        trans.setErrorListener(new XTFSaxonErrorListener());
+        Controller trans = (Controller)prefilterStylesheets[i].newTransformer();
 
-      // Hook up its input.
-      filter.setParent(lastInChain);
+        // Give it the pass-through attributes.
+        if (passThroughAttribs != null)
+        {
+          for (Iterator iter = passThroughAttribs.iterator(); iter.hasNext();) {
+            Attrib a = (Attrib)iter.next();
+            if (a.value == null || a.value.length() == 0)
+              continue;
+            trans.setParameter(a.key, new StringValue(a.value));
+          }
+        }
 
-      // Onward.
-      lastInChain = filter;
-    } // for i
+        // Make sure errors get directed to the right place.
+        if (!(trans.getErrorListener() instanceof XTFSaxonErrorListener))
+          trans.setErrorListener(new XTFSaxonErrorListener());
 
-    // Set up the transformer to process the SAX events generated
-    // by the last filter in the chain.
-    //
-    Transformer transformer = stf.newTransformer();
-    SAXSource transformSource = new SAXSource(lastInChain, xmlSource);
-    transformer.transform(transformSource, ultimateResult);
+        // The last stage feeds the ultimate result directly. Earlier ones
+        // build a tree for the next stage to read.
+        //
+        if (i == prefilterStylesheets.length - 1)
+          trans.transform(source, ultimateResult);
+        else {
+          // Give the tree the document's URI, so later stages can resolve
+          // relative document() calls and see the right base-uri(). Open
+          // it ourselves: the transformer won't, and a stage that copies
+          // the document node would otherwise find no tree to build.
+          //
+          Builder builder = trans.makeBuilder();
+          builder.setSystemId(xmlSource.getSystemId());
+          builder.open();
+          trans.transform(source, builder);
+          source = builder.getCurrentRoot();
+        }
 
-    // If any SQL connections were opened during the transformation, close
-    // them now.
-    //
-    SQLConnect.closeThreadConnections();
+        // Let go of any documents this stage loaded with document().
+        trans.clearDocumentPool();
+      } // for i
+    }
+    finally 
+    {
+      // If any SQL connections were opened during the transformation, close
+      // them now.
+      //
+      SQLConnect.closeThreadConnections();
+    }
   } // applyPreFilter()
 } // class FileCalc
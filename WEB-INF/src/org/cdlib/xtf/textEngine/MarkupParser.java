@@ -0,0 +1,591 @@
+package org.cdlib.xtf.textEngine;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import org.cdlib.xtf.servletBase.TextServlet;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Sends the SAX events for a small piece of XML markup (such as a stored
+ * meta-data field, or the text of a snippet) to a content handler, without
+ * firing up an XML parser for it. Only the plain elements, attributes and
+ * entity references that XTF itself produces are handled directly; anything
+ * fancier (namespaces, comments, CDATA, and so on), or anything malformed,
+ * is handed over to a real parser instead, so the events are always the
+ * same as parsing the markup in place would have produced.
+ */
+class MarkupParser 
+{
+  /** Where to send the events */
+  private ContentHandler handler;
+
+  /** Whether events are being sent, or the markup merely checked */
+  private boolean emit;
+
+  /** Names of the elements currently open */
+  private ArrayList<String> openElements = new ArrayList<String>();
+
+  /** Attributes of the element being parsed */
+  private AttributesImpl atts = new AttributesImpl();
+
+  /** Text accumulated since the last tag */
+  private char[] text = new char[256];
+  private int textLen;
+
+  /** End of the last entity reference decoded */
+  private int refEnd;
+
+  /** Name of the element that wraps markup given to the real parser */
+  private static final String WRAPPER = "xtfMarkup";
+
+  /** Construct a parser that will send events to the given handler. */
+  public MarkupParser(ContentHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Send the events for a piece of XML markup. The markup needn't have a
+   * single root element, but must be well-formed otherwise.
+   *
+   * @param markup        The markup to send
+   * @throws SAXException If the markup is malformed, or the handler fails.
+   */
+  public void parseMarkup(String markup)
+    throws SAXException 
+  {
+    if (markup == null)
+      return;
+    if (run(markup, false, false))
+      run(markup, false, true);
+    else
+      parseWithParser(markup);
+  } // parseMarkup()
+
+  /**
+   * Send the events for the text of a snippet, which may contain tags
+   * (such as &lt;hit> and &lt;term>) but is otherwise raw text. The events
+   * are those of parsing the result of
+   * {@link TextServlet#makeHtmlString(String, boolean)}, as the snippet
+   * used to be formatted.
+   *
+   * @param snippetText   The snippet text to send
+   * @throws SAXException If the tags are malformed, or the handler fails.
+   */
+  public void parseSnippet(String snippetText)
+    throws SAXException 
+  {
+    if (snippetText == null)
+      return;
+    if (run(snippetText, true, false))
+      run(snippetText, true, true);
+    else
+      parseWithParser(TextServlet.makeHtmlString(snippetText, true));
+  } // parseSnippet()
+
+  /**
+   * Figure out the attribute value that a parser would get from the result
+   * of {@link TextServlet#makeHtmlString(String)}. That is, control
+   * characters are dropped (tabs and returns become spaces), ANSI characters
+   * are mapped, and existing predefined entities are decoded.
+   *
+   * @param s   Raw value
+   * @return    The value the attribute will have.
+   */
+  public static String htmlAttribValue(String s) 
+  {
+    if (s == null)
+      return "";
+
+    // Most values need no work at all.
+    int i;
+    for (i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '&' || c < 32 || (c >= 128 && c <= 159))
+        break;
+    }
+    if (i == s.length())
+      return s;
+
+    StringBuffer buf = new StringBuffer(s.length());
+    buf.append(s, 0, i);
+    for (; i < s.length(); i++) 
+    {
+      char c = s.charAt(i);
+      if (c == '&') 
+      {
+        int j;
+        for (j = i + 1; j < s.length(); j++) {
+          if (!Character.isLetterOrDigit(s.charAt(j)))
+            break;
+        }
+        if (j < s.length() && s.charAt(j) == ';') {
+          int ch = predefinedEntity(s, i + 1, j);
+          if (ch >= 0) {
+            buf.append((char)ch);
+            i = j;
+            continue;
+          }
+        }
+        buf.append(c);
+      }
+      else if (c == 9 || c == 13)
+        buf.append(' ');
+      else if (c >= 32)
+        buf.append(TextServlet.mapAnsiChar(c));
+    }
+    return buf.toString();
+  } // htmlAttribValue()
+
+  /**
+   * Check, or send the events for, a piece of markup.
+   *
+   * @param s         The markup to process
+   * @param snippet   true to treat the text like
+   *                  {@link TextServlet#makeHtmlString(String, boolean)}
+   *                  does, false to treat it as XML.
+   * @param doEmit    true to send events, false to just check the markup.
+   * @return          true if the markup could be handled, false if it
+   *                  needs a real parser.
+   */
+  private boolean run(String s, boolean snippet, boolean doEmit)
+    throws SAXException 
+  {
+    emit = doEmit;
+    openElements.clear();
+    textLen = 0;
+
+    int n = s.length();
+    int i = 0;
+    while (i < n) 
+    {
+      char c = s.charAt(i);
+
+      // Tags. In a snippet, the tag extends to the first '>' regardless.
+      if (c == '<') 
+      {
+        flushText();
+        int limit = n;
+        if (snippet) {
+          int gt = s.indexOf('>', i);
+          if (gt >= 0)
+            limit = gt + 1;
+        }
+        i = parseTag(s, i, limit);
+        if (i < 0)
+          return false;
+        continue;
+      }
+
+      // Entity references. Snippets leave existing entities alone and
+      // escape other ampersands.
+      //
+      if (c == '&') 
+      {
+        if (snippet) 
+        {
+          int j;
+          for (j = i + 1; j < n; j++) {
+            if (!Character.isLetterOrDigit(s.charAt(j)))
+              break;
+          }
+          if (j < n && s.charAt(j) == ';') {
+            int ch = predefinedEntity(s, i + 1, j);
+            if (ch < 0)
+              return false;
+            addText(ch);
+            i = j + 1;
+            continue;
+          }
+          addText(c);
+          i++;
+          continue;
+        }
+
+        int ch = decodeRef(s, i, n);
+        if (ch < 0)
+          return false;
+        addText(ch);
+        i = refEnd;
+        continue;
+      }
+
+      // Plain characters.
+      if (snippet) 
+      {
+        if (c < 32 && c != 9 && c != 11 && c != 13) {
+          i++;
+          continue;
+        }
+        if (c == 11)
+          return false;
+        if (c == 13)
+          c = '\n';
+        else
+          c = TextServlet.mapAnsiChar(c);
+      }
+      else 
+      {
+        if (c == '\r') {
+          if (i + 1 < n && s.charAt(i + 1) == '\n')
+            i++;
+          c = '\n';
+        }
+        else if (c < 32 && c != '\t' && c != '\n')
+          return false;
+        else if (c == '>' && i >= 2 && s.startsWith("]]", i - 2))
+          return false;
+      }
+      if (c == 0xFFFE || c == 0xFFFF)
+        return false;
+      addText(c);
+      i++;
+    } // while
+
+    flushText();
+    return openElements.isEmpty();
+  } // run()
+
+  /**
+   * Check, or send the events for, a start or end tag.
+   *
+   * @param s       The markup
+   * @param start   Position of the '&lt;' beginning the tag
+   * @param limit   The tag must end at or before this position
+   * @return        Position just after the tag, or -1 if it can't be
+   *                handled.
+   */
+  private int parseTag(String s, int start, int limit)
+    throws SAXException 
+  {
+    int p = start + 1;
+    boolean isEnd = p < limit && s.charAt(p) == '/';
+    if (isEnd)
+      p++;
+
+    int nameEnd = scanName(s, p, limit);
+    if (nameEnd == p)
+      return -1;
+    String name = s.substring(p, nameEnd);
+    p = nameEnd;
+
+    // End tags must match the open element.
+    if (isEnd) 
+    {
+      p = skipSpace(s, p, limit);
+      if (p >= limit || s.charAt(p) != '>')
+        return -1;
+      int last = openElements.size() - 1;
+      if (last < 0 || !openElements.get(last).equals(name))
+        return -1;
+      openElements.remove(last);
+      if (emit)
+        handler.endElement("", name, name);
+      return p + 1;
+    }
+
+    // Start tags may have attributes, and may be empty.
+    atts.clear();
+    while (true) 
+    {
+      int q = skipSpace(s, p, limit);
+      if (q >= limit)
+        return -1;
+      char c = s.charAt(q);
+      if (c == '>' || (c == '/' && q + 1 < limit && s.charAt(q + 1) == '>')) 
+      {
+        if (emit)
+          handler.startElement("", name, name, atts);
+        if (c == '>') {
+          openElements.add(name);
+          return q + 1;
+        }
+        if (emit)
+          handler.endElement("", name, name);
+        return q + 2;
+      }
+
+      // Attributes must be separated by space, and mustn't be namespace
+      // declarations.
+      //
+      if (q == p)
+        return -1;
+      int attEnd = scanName(s, q, limit);
+      if (attEnd == q)
+        return -1;
+      String attName = s.substring(q, attEnd);
+      if (attName.startsWith("xmlns") || atts.getIndex(attName) >= 0)
+        return -1;
+
+      p = skipSpace(s, attEnd, limit);
+      if (p >= limit || s.charAt(p) != '=')
+        return -1;
+      p = skipSpace(s, p + 1, limit);
+      if (p >= limit)
+        return -1;
+      char quote = s.charAt(p);
+      if (quote != '"' && quote != '\'')
+        return -1;
+      int close = s.indexOf(quote, p + 1);
+      if (close < 0 || close >= limit)
+        return -1;
+      String value = attribValue(s, p + 1, close);
+      if (value == null)
+        return -1;
+      atts.addAttribute("", attName, attName, "CDATA", value);
+      p = close + 1;
+    } // while
+  } // parseTag()
+
+  /**
+   * Decode an attribute value: references are resolved, and whitespace
+   * characters become spaces.
+   *
+   * @return  The value, or null if it can't be handled.
+   */
+  private String attribValue(String s, int start, int end) 
+  {
+    // Most values need no work at all.
+    int i;
+    for (i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c == '&' || c == '<' || c < 32 || c == 0xFFFE || c == 0xFFFF)
+        break;
+    }
+    if (i == end)
+      return s.substring(start, end);
+
+    StringBuffer buf = new StringBuffer(end - start);
+    buf.append(s, start, i);
+    while (i < end) 
+    {
+      char c = s.charAt(i);
+      if (c == '&') {
+        int ch = decodeRef(s, i, end);
+        if (ch < 0)
+          return null;
+        buf.appendCodePoint(ch);
+        i = refEnd;
+        continue;
+      }
+      if (c == '<' || c == 0xFFFE || c == 0xFFFF)
+        return null;
+      if (c == '\r' && i + 1 < end && s.charAt(i + 1) == '\n')
+        i++;
+      if (c == '\r' || c == '\n' || c == '\t')
+        c = ' ';
+      else if (c < 32)
+        return null;
+      buf.append(c);
+      i++;
+    }
+    return buf.toString();
+  } // attribValue()
+
+  /**
+   * Decode an entity or character reference.
+   *
+   * @param s       The markup
+   * @param start   Position of the '&amp;'
+   * @param limit   The reference must end before this position
+   * @return        The character, or -1 if it can't be handled. The
+   *                position after the reference is put in {@link #refEnd}.
+   */
+  private int decodeRef(String s, int start, int limit) 
+  {
+    int semi = s.indexOf(';', start);
+    if (semi < 0 || semi >= limit)
+      return -1;
+    refEnd = semi + 1;
+
+    if (start + 1 < semi && s.charAt(start + 1) == '#') 
+    {
+      int radix = 10;
+      int p = start + 2;
+      if (p < semi && s.charAt(p) == 'x') {
+        radix = 16;
+        p++;
+      }
+      if (p == semi || semi - p > 8)
+        return -1;
+      int ch = 0;
+      for (; p < semi; p++) {
+        int digit = Character.digit(s.charAt(p), radix);
+        if (digit < 0)
+          return -1;
+        ch = ch * radix + digit;
+      }
+      boolean legal = ch == 0x9 || ch == 0xA || ch == 0xD ||
+                      (ch >= 0x20 && ch <= 0xD7FF) ||
+                      (ch >= 0xE000 && ch <= 0xFFFD) ||
+                      (ch >= 0x10000 && ch <= 0x10FFFF);
+      return legal ? ch : -1;
+    }
+
+    return predefinedEntity(s, start + 1, semi);
+  } // decodeRef()
+
+  /** Get the character for one of the predefined entities, or -1. */
+  private static int predefinedEntity(String s, int start, int end) 
+  {
+    int len = end - start;
+    if (len == 2 && s.regionMatches(start, "lt", 0, 2))
+      return '<';
+    if (len == 2 && s.regionMatches(start, "gt", 0, 2))
+      return '>';
+    if (len == 3 && s.regionMatches(start, "amp", 0, 3))
+      return '&';
+    if (len == 4 && s.regionMatches(start, "quot", 0, 4))
+      return '"';
+    if (len == 4 && s.regionMatches(start, "apos", 0, 4))
+      return '\'';
+    return -1;
+  } // predefinedEntity()
+
+  /**
+   * Find the end of an element or attribute name. Prefixed names aren't
+   * handled, so a colon ends the name.
+   *
+   * @return  Position after the name, or <code>start</code> if there's
+   *          no name there.
+   */
+  private static int scanName(String s, int start, int limit) 
+  {
+    if (start >= limit)
+      return start;
+    char c = s.charAt(start);
+    if (!Character.isLetter(c) && c != '_')
+      return start;
+    int p;
+    for (p = start + 1; p < limit; p++) {
+      c = s.charAt(p);
+      if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.')
+        break;
+    }
+    return p;
+  } // scanName()
+
+  /** Skip over any whitespace. */
+  private static int skipSpace(String s, int p, int limit) 
+  {
+    while (p < limit) {
+      char c = s.charAt(p);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+        break;
+      p++;
+    }
+    return p;
+  } // skipSpace()
+
+  /** Add a character (possibly supplementary) to the pending text. */
+  private void addText(int ch) 
+  {
+    if (textLen + 2 > text.length) {
+      char[] newText = new char[text.length * 2];
+      System.arraycopy(text, 0, newText, 0, textLen);
+      text = newText;
+    }
+    textLen += Character.toChars(ch, text, textLen);
+  } // addText()
+
+  /** Send any pending text to the handler. */
+  private void flushText()
+    throws SAXException 
+  {
+    if (textLen > 0 && emit)
+      handler.characters(text, 0, textLen);
+    textLen = 0;
+  } // flushText()
+
+  /**
+   * Send markup through a real XML parser. The markup is wrapped in an
+   * element to make it a document, and the wrapper's events are dropped.
+   */
+  private void parseWithParser(String markup)
+    throws SAXException 
+  {
+    XMLReader reader = IndexUtil.createXMLReader();
+    reader.setContentHandler(new UnwrappingFilter(handler));
+    String doc = "<" + WRAPPER + ">" + markup + "</" + WRAPPER + ">";
+    try {
+      reader.parse(new InputSource(new StringReader(doc)));
+    }
+    catch (IOException e) {
+      throw new SAXException(e);
+    }
+  } // parseWithParser()
+
+  /**
+   * Passes on the events of a wrapped piece of markup, leaving out the
+   * document and wrapper element events.
+   */
+  private static class UnwrappingFilter extends XMLFilterImpl 
+  {
+    private int depth = 0;
+
+    public UnwrappingFilter(ContentHandler handler) {
+      setContentHandler(handler);
+    }
+
+    public void setDocumentLocator(Locator locator) {
+    }
+
+    public void startDocument() {
+    }
+
+    public void endDocument() {
+    }
+
+    public void startElement(String uri, String localName, String qName,
+                             Attributes atts)
+      throws SAXException 
+    {
+      if (depth++ > 0)
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    public void endElement(String uri, String localName, String qName)
+      throws SAXException 
+    {
+      if (--depth > 0)
+        super.endElement(uri, localName, qName);
+    }
+  } // class UnwrappingFilter
+} // class MarkupParser
@@ -1,6 +1,10 @@
 package org.cdlib.xtf.textEngine;
 
 import java.io.IOException;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
 
 /*
  * Copyright (c) 2004, Regents of the University of California
@@ -54,6 +58,29 @@ public abstract class QueryProcessor
   public abstract QueryResult processRequest(QueryRequest req)
     throws IOException;
 
+  /**
+   * Searches a single document and forms the results. The default
+   * implementation simply restricts the query to the given document and
+   * calls {@link #processRequest(QueryRequest)}; subclasses may provide a
+   * faster direct path.
+   *
+   * @param req     The request to process (not modified)
+   * @param docKey  Index key of the document to search
+   * @return        Zero or one document hits
+   */
+  public QueryResult processDocRequest(QueryRequest req, String docKey)
+    throws IOException 
+  {
+    BooleanQuery bq = new BooleanQuery();
+    bq.add(new TermQuery(new Term("docInfo", "1")), BooleanClause.Occur.MUST);
+    bq.add(new TermQuery(new Term("key", docKey)), BooleanClause.Occur.MUST);
+    bq.add(req.query, BooleanClause.Occur.MUST);
+
+    QueryRequest docReq = (QueryRequest)req.clone();
+    docReq.query = bq;
+    return processRequest(docReq);
+  }
+
   /**
    * Optional method: hint to the query processor to clear any cached
    * index data, so that recently indexed documents will appear in
@@ -1,16 +1,19 @@
 package org.cdlib.xtf.textEngine;
 
-import java.io.StringReader;
 import java.text.DecimalFormat;
 import java.util.Iterator;
 import java.util.Set;
 import javax.xml.transform.Source;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.transform.sax.SAXSource;
 import org.apache.lucene.search.Explanation;
 import org.cdlib.xtf.servletBase.TextServlet;
 import org.cdlib.xtf.textEngine.facet.ResultFacet;
 import org.cdlib.xtf.textEngine.facet.ResultGroup;
 import org.cdlib.xtf.util.Attrib;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Copyright (c) 2004, Regents of the University of California
@@ -96,7 +99,8 @@ public class QueryResult
 
   /**
    * Makes an XML document out of the list of document hits, and returns a
-   * Source object that represents it.
+   * Source object that represents it. The document isn't built as text;
+   * instead, its events are sent straight to whatever reads the Source.
    *
    * @param mainTagName Name of the top-level tag to generate (e.g.
    *                    "crossQueryResult", etc.)
@@ -106,8 +110,29 @@ public class QueryResult
    * @return            XML Source containing all the hits and snippets.
    */
   public Source hitsToSource(String mainTagName, String extraStuff) {
-    String str = hitsToString(mainTagName, extraStuff);
-    return new StreamSource(new StringReader(str));
+    return hitsToSource(mainTagName, extraStuff, null);
+  }
+
+  /**
+   * Makes an XML document out of the list of document hits, and returns a
+   * Source object that represents it. The document isn't built as text;
+   * instead, its events are sent straight to whatever reads the Source.
+   *
+   * @param mainTagName Name of the top-level tag to generate (e.g.
+   *                    "crossQueryResult", etc.)
+   * @param extraStuff  Additional XML to insert into the query
+   *                    result document. Typically includes &lt;parameters>
+   *                    block and &lt;query> block.
+   * @param queryTime   Value for a "queryTime" attribute on the top-level
+   *                    tag, or null for none.
+   * @return            XML Source containing all the hits and snippets.
+   */
+  public Source hitsToSource(String mainTagName, String extraStuff,
+                             String queryTime) 
+  {
+    return new SAXSource(
+      new QueryResultReader(this, mainTagName, extraStuff, queryTime),
+      new InputSource());
   } // hitsToSource()
 
   /**
@@ -317,5 +342,243 @@ public class QueryResult
 
     buf.append("</spelling>\n");
   } // structureSuggestions()
+
+  /**
+   * Sends the SAX events for an XML document made out of the list of
+   * document hits. The document is the same one that
+   * {@link #hitsToString(String, String)} produces, but no text is formed
+   * along the way (other than for small pieces of stored markup, such as
+   * meta-data fields.)
+   *
+   * @param mainTagName Name of the top-level tag to generate (e.g.
+   *                    "crossQueryResult", etc.)
+   * @param extraStuff  Additional XML to insert into the query
+   *                    result document, or null for none.
+   * @param queryTime   Value for a "queryTime" attribute on the top-level
+   *                    tag, or null for none.
+   * @param handler     Where to send the events.
+   */
+  public void hitsToEvents(String mainTagName, String extraStuff,
+                           String queryTime, ContentHandler handler)
+    throws SAXException 
+  {
+    MarkupParser markup = new MarkupParser(handler);
+    AttributesImpl atts = new AttributesImpl();
+
+    handler.startDocument();
+
+    if (queryTime != null)
+      addAttrib(atts, "queryTime", queryTime);
+    addAttrib(atts, "totalDocs", Integer.toString(totalDocs));
+    addAttrib(atts, "startDoc", Integer.toString(Math.min(startDoc + 1, endDoc)));
+    addAttrib(atts, "endDoc", Integer.toString(endDoc));
+    handler.startElement("", mainTagName, mainTagName, atts);
+
+    // If extra XML was specified, dump it in here.
+    markup.parseMarkup(extraStuff);
+
+    // If spelling suggestions were made, put them in.
+    if (suggestions != null)
+      sendSuggestions(handler, atts);
+
+    // Add the top-level doc hits.
+    sendDocHits(docHits, startDoc, handler, markup, atts);
+
+    // If faceting was specified, add that info too.
+    if (facets != null) 
+    {
+      for (int i = 0; i < facets.length; i++) 
+      {
+        ResultFacet facet = facets[i];
+        atts.clear();
+        addAttrib(atts, "field", facet.field);
+        addAttrib(atts, "totalGroups",
+                  Integer.toString(facet.rootGroup.totalSubGroups));
+        addAttrib(atts, "totalDocs",
+                  Integer.toString(facet.rootGroup.totalDocs));
+        handler.startElement("", "facet", "facet", atts);
+
+        // Recursively process all the groups.
+        if (facet.rootGroup.subGroups != null) {
+          for (int j = 0; j < facet.rootGroup.subGroups.length; j++)
+            sendGroup(facet.rootGroup.subGroups[j], handler, markup, atts);
+        }
+        handler.endElement("", "facet", "facet");
+      } // for i
+    } // if
+
+    handler.endElement("", mainTagName, mainTagName);
+    handler.endDocument();
+  } // hitsToEvents()
+
+  /** Sends the events for a faceted group, and all its sub-groups. */
+  private void sendGroup(ResultGroup group, ContentHandler handler,
+                         MarkupParser markup, AttributesImpl atts)
+    throws SAXException 
+  {
+    // Translate the "<empty>" marker to ""
+    String groupValue = group.value;
+    if (groupValue.equals("<empty>"))
+      groupValue = "";
+
+    atts.clear();
+    addAttrib(atts, "value", MarkupParser.htmlAttribValue(groupValue));
+    addAttrib(atts, "rank", Integer.toString(group.rank + 1));
+    addAttrib(atts, "totalSubGroups", Integer.toString(group.totalSubGroups));
+    addAttrib(atts, "totalDocs", Integer.toString(group.totalDocs));
+    addAttrib(atts, "startDoc",
+              Integer.toString(group.endDoc > 0 ? group.startDoc + 1 : 0));
+    addAttrib(atts, "endDoc", Integer.toString(group.endDoc));
+    handler.startElement("", "group", "group", atts);
+
+    if (group.docHits != null)
+      sendDocHits(group.docHits, group.startDoc, handler, markup, atts);
+
+    if (group.subGroups != null) {
+      for (int i = 0; i < group.subGroups.length; i++)
+        sendGroup(group.subGroups[i], handler, markup, atts);
+    }
+
+    handler.endElement("", "group", "group");
+  } // sendGroup()
+
+  /** Sends the events for a list of DocHits. */
+  private void sendDocHits(DocHit[] docHits, int startDoc,
+                           ContentHandler handler, MarkupParser markup,
+                           AttributesImpl atts)
+    throws SAXException 
+  {
+    if (docHits == null)
+      return;
+
+    for (int i = 0; i < docHits.length; i++) 
+    {
+      DocHit docHit = docHits[i];
+
+      String scoreStr;
+      if (scoresNormalized)
+        scoreStr = Integer.toString(Math.round(docHit.score * 100));
+      else {
+        if (decFormat == null)
+          decFormat = (DecimalFormat)DecimalFormat.getInstance();
+        scoreStr = decFormat.format(docHit.score);
+      }
+
+      atts.clear();
+      addAttrib(atts, "rank", Integer.toString(i + startDoc + 1));
+      addAttrib(atts, "path", MarkupParser.htmlAttribValue(docHit.filePath()));
+      addAttrib(atts, "score", scoreStr);
+      addAttrib(atts, "totalHits", Integer.toString(docHit.totalSnippets()));
+      if (docHit.recordNum() > 0)
+        addAttrib(atts, "recordNum", Integer.toString(docHit.recordNum()));
+      if (docHit.subDocument() != null) {
+        addAttrib(atts, "subDocument",
+                  MarkupParser.htmlAttribValue(docHit.subDocument()));
+      }
+      handler.startElement("", "docHit", "docHit", atts);
+      sendText(handler, "\n");
+
+      Explanation explanation = docHit.explanation();
+      if (explanation != null)
+        sendExplanation(explanation, handler, atts);
+
+      // Meta-data fields are stored as markup.
+      if (!docHit.metaData().isEmpty()) 
+      {
+        atts.clear();
+        handler.startElement("", "meta", "meta", atts);
+        sendText(handler, "\n");
+        for (Iterator atIter = docHit.metaData().iterator(); atIter.hasNext();) {
+          Attrib attrib = (Attrib)atIter.next();
+          markup.parseMarkup(attrib.value);
+        } // for atIter
+        handler.endElement("", "meta", "meta");
+        sendText(handler, "\n");
+      }
+
+      for (int j = 0; j < docHit.nSnippets(); j++) 
+      {
+        Snippet snippet = docHit.snippet(j, true);
+        atts.clear();
+        addAttrib(atts, "rank", Integer.toString(j + 1));
+        addAttrib(atts, "score", Integer.toString(Math.round(snippet.score * 100)));
+        if (snippet.sectionType != null)
+          addAttrib(atts, "sectionType", snippet.sectionType);
+        handler.startElement("", "snippet", "snippet", atts);
+        markup.parseSnippet(snippet.text);
+        handler.endElement("", "snippet", "snippet");
+        sendText(handler, "\n");
+      } // for j
+
+      handler.endElement("", "docHit", "docHit");
+      sendText(handler, "\n");
+    } // for i
+  } // sendDocHits()
+
+  /** Sends the events for a score explanation. */
+  private void sendExplanation(Explanation exp, ContentHandler handler,
+                               AttributesImpl atts)
+    throws SAXException 
+  {
+    atts.clear();
+    addAttrib(atts, "value", String.valueOf(exp.getValue()));
+    addAttrib(atts, "description", exp.getDescription());
+    handler.startElement("", "explanation", "explanation", atts);
+    sendText(handler, "\n");
+
+    Explanation[] subs = exp.getDetails();
+    if (subs != null) {
+      for (int i = 0; i < subs.length; i++)
+        sendExplanation(subs[i], handler, atts);
+    }
+
+    handler.endElement("", "explanation", "explanation");
+    sendText(handler, "\n");
+  } // sendExplanation()
+
+  /** Sends the events for the spelling suggestions. */
+  private void sendSuggestions(ContentHandler handler, AttributesImpl atts)
+    throws SAXException 
+  {
+    atts.clear();
+    handler.startElement("", "spelling", "spelling", atts);
+    sendText(handler, "\n");
+
+    for (int i = 0; i < suggestions.length; i++) 
+    {
+      SpellingSuggestion sugg = suggestions[i];
+      StringBuffer fieldsBuf = new StringBuffer();
+      for (int j = 0; j < sugg.fields.length; j++) {
+        if (fieldsBuf.length() > 0)
+          fieldsBuf.append(",");
+        fieldsBuf.append(sugg.fields[j]);
+      }
+
+      atts.clear();
+      addAttrib(atts, "originalTerm", MarkupParser.htmlAttribValue(sugg.origTerm));
+      addAttrib(atts, "fields", fieldsBuf.toString());
+      addAttrib(atts, "suggestedTerm",
+                MarkupParser.htmlAttribValue(sugg.suggestedTerm));
+      sendText(handler, "  ");
+      handler.startElement("", "suggestion", "suggestion", atts);
+      handler.endElement("", "suggestion", "suggestion");
+      sendText(handler, "\n");
+    }
+
+    handler.endElement("", "spelling", "spelling");
+    sendText(handler, "\n");
+  } // sendSuggestions()
+
+  /** Adds an unqualified attribute to a list. */
+  private static void addAttrib(AttributesImpl atts, String name, String value) {
+    atts.addAttribute("", name, name, "CDATA", value);
+  }
+
+  /** Sends a string of character data. */
+  private static void sendText(ContentHandler handler, String text)
+    throws SAXException 
+  {
+    handler.characters(text.toCharArray(), 0, text.length());
+  }
 } // class QueryResult
  
\ No newline at end of file
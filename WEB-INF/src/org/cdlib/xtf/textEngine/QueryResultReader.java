@@ -0,0 +1,69 @@
+package org.cdlib.xtf.textEngine;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import org.cdlib.xtf.util.EventXMLReader;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * An XMLReader that doesn't parse anything; instead, it sends the events
+ * for a {@link QueryResult} document to its content handler. Wrapped in a
+ * SAXSource, this lets a transformation read the hits directly, rather than
+ * parsing them back from a string.
+ */
+class QueryResultReader extends EventXMLReader 
+{
+  private QueryResult result;
+  private String mainTagName;
+  private String extraStuff;
+  private String queryTime;
+
+  /** 
+   * Construct a reader for the given results. See 
+   * {@link QueryResult#hitsToEvents(String, String, String, ContentHandler)}
+   * for the meaning of the parameters.
+   */
+  public QueryResultReader(QueryResult result, String mainTagName,
+                           String extraStuff, String queryTime) 
+  {
+    this.result = result;
+    this.mainTagName = mainTagName;
+    this.extraStuff = extraStuff;
+    this.queryTime = queryTime;
+  }
+
+  /** Send the result events. */
+  protected void sendEvents(ContentHandler handler)
+    throws SAXException 
+  {
+    result.hitsToEvents(mainTagName, extraStuff, queryTime, handler);
+  }
+} // class QueryResultReader
@@ -155,6 +155,14 @@ public class XtfSearcher
     return (newVersion == curVersion);
   }
 
+  /**
+   * Gets the version of the index this searcher has open. The version
+   * changes every time the index is updated.
+   */
+  public long version() {
+    return curVersion;
+  }
+
   /**
    * Ensures that this searcher is up-to-date with regards to the index on
    * disk.
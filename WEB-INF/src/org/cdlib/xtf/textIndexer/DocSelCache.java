@@ -36,6 +36,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.DeflaterOutputStream;
@@ -50,6 +51,8 @@ import org.cdlib.xtf.util.Trace;
  * This class represents the contents of the Document Selector Cache maintained
  * by the indexer. It provides for loading, saving, and searching the cache.
  * The cache is underlain by a HashMap mapping String keys to Entry values.
+ * Access to it is synchronized, since directories may be scanned by several
+ * threads at once.
  */
 public class DocSelCache extends HashMap
 {
@@ -62,7 +65,7 @@ public class DocSelCache extends HashMap
    * @param  file        The file to load from.
    * @throws IOException If something goes wrong reading the file.
    */
-  public void load(File file) throws IOException
+  public synchronized void load(File file) throws IOException
   {
     clear();
     
@@ -109,7 +112,7 @@ public class DocSelCache extends HashMap
   /** Save the docSelector cache.
    * @throws IOException 
    */
-  public void save(File file) throws IOException 
+  public synchronized void save(File file) throws IOException 
   {
     // Skip if not modified.
     if (!modified)
@@ -163,46 +166,52 @@ public class DocSelCache extends HashMap
   ////////////////////////////////////////////////////////////////////////////
 
   /** Delegated to underlying map. */
-  public void clear() {
+  public synchronized void clear() {
     modified = true;
     map.clear();
   }
 
   /** Delegated to underlying map. */
-  public boolean containsKey(String key) {
+  public synchronized boolean containsKey(String key) {
     return map.containsKey(key);
   }
 
   /** Delegated to underlying map. */
-  public Entry get(String key) {
+  public synchronized Entry get(String key) {
     return map.get(key);
   }
 
-  /** Delegated to underlying map. */
-  public Set<String> keySet() {
-    return map.keySet();
+  /**
+   * Delegated to underlying map. Returns a copy, so that it can be iterated
+   * safely while other threads change the cache.
+   */
+  public synchronized Set<String> keySet() {
+    return new HashSet<String>(map.keySet());
   }
 
   /** Delegated to underlying map. */
-  public Entry put(String key, Entry value) {
+  public synchronized Entry put(String key, Entry value) {
     modified = true;
     return map.put(key, value);
   }
 
   /** Delegated to underlying map. */
-  public Entry remove(Object key) {
+  public synchronized Entry remove(Object key) {
     modified = true;
     return map.remove(key);
   }
 
   /** Delegated to underlying map. */
-  public int size() {
+  public synchronized int size() {
     return map.size();
   }
 
-  /** Delegated to underlying map. */
-  public Set<Map.Entry<String, DocSelCache.Entry>> entrySet() {
-    return map.entrySet();
+  /**
+   * Delegated to underlying map. Returns a copy, so that it can be iterated
+   * safely while other threads change the cache.
+   */
+  public synchronized Set<Map.Entry<String, DocSelCache.Entry>> entrySet() {
+    return new HashSet<Map.Entry<String, DocSelCache.Entry>>(map.entrySet());
   }
   
   ////////////////////////////////////////////////////////////////////////////
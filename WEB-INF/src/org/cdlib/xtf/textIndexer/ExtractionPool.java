@@ -0,0 +1,631 @@
+package org.cdlib.xtf.textIndexer;
+
+
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.cdlib.xtf.util.Path;
+import org.cdlib.xtf.util.Trace;
+
+////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Converts binary documents (such as PDF and Word files) to XML in the
+ * background, so that conversion can run ahead of indexing, and so that one
+ * bad file can't hold up the indexer indefinitely.
+ * <br><br>
+ * 
+ * The converters run in separate worker processes (see 
+ * {@link ExtractionWorker}), each a JVM with its own limited heap. A worker
+ * that takes too long on a file is killed, as is one that runs out of 
+ * memory; the file is skipped, and a fresh worker takes on the next one.
+ * Files that are too big to convert safely are skipped without trying.
+ * <br><br>
+ * 
+ * Results are kept in an on-disk cache keyed by the content hash of the
+ * source file, so a file that hasn't changed is never converted twice, even
+ * across clean builds.
+ */
+public class ExtractionPool 
+{
+  /** 
+   * Something that can convert a file to an XML string. Since conversion
+   * happens in a worker process, implementations must be classes that can
+   * be created by name, with a no-argument constructor.
+   */
+  public interface Converter 
+  {
+    /** Short name, used to tell apart the cached output of converters */
+    String name();
+
+    /** Convert the file to an XML string */
+    String convert(File file) throws IOException;
+  }
+
+  private ExecutorService pool;
+  private Timer timer;
+  private int timeout;
+  private long maxSize;
+  private int maxMemory;
+  private File cacheDir;
+  private HashManifest manifest;
+
+  /** Worker processes waiting for a file to convert */
+  private LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+
+  /** All the worker processes, busy or not */
+  private Set<Worker> allWorkers = new HashSet<Worker>();
+
+  /** Set once the pool has been shut down */
+  private boolean isShutdown = false;
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Start up a pool of converters.
+   * 
+   * @param nWorkers  How many files to convert at once.
+   * @param timeout   Seconds to allow for converting each file (0 for no 
+   *                  limit).
+   * @param maxSize   Largest file, in bytes, to convert (0 for no limit).
+   * @param maxMemory Heap size limit, in megabytes, for each worker process
+   *                  (0 for the JVM's default).
+   * @param cacheDir  Directory to cache converted files in (null for no
+   *                  cache).
+   * @param manifest  Content hashes of the source files, used to find their
+   *                  cached conversions. If null, files are hashed here.
+   */
+  public ExtractionPool(int nWorkers, int timeout, long maxSize, 
+                        int maxMemory, File cacheDir, HashManifest manifest)
+  {
+    this.timeout = timeout;
+    this.maxSize = maxSize;
+    this.maxMemory = maxMemory;
+    this.cacheDir = cacheDir;
+    this.manifest = manifest;
+
+    // Each thread feeds files to one worker process at a time. Use daemon
+    // threads, so they can't keep the indexer from exiting.
+    //
+    pool = Executors.newFixedThreadPool(Math.max(1, nWorkers), 
+      new ThreadFactory() 
+      {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ExtractionPool");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    if (timeout > 0)
+      timer = new Timer(true);
+  } // constructor
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Queue a file to be converted.
+   * 
+   * @param key       Index key of the file, used to look up its hash
+   * @param file      The file to convert
+   * @param converter What to convert it with
+   * @return  A future for the result, which should be passed to 
+   *          {@link #await(Future, File)}.
+   */
+  public Future<String> submit(String key, File file, Converter converter)
+  {
+    Job job = new Job(key, file, converter);
+    pool.execute(job.task);
+    return job.task;
+  } // submit()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Wait for a file to be converted.
+   * 
+   * @param result  The future from {@link #submit(String, File, Converter)}
+   * @param file    The file being converted (used in error messages)
+   * @return        The converted XML text
+   * @throws IOException  If conversion failed, ran out of time or memory, 
+   *                      or the file was too large.
+   */
+  public String await(Future<String> result, File file)
+    throws IOException 
+  {
+    try {
+      return result.get();
+    }
+    catch (CancellationException e) {
+      throw new IOException("Conversion of " + file + " was cancelled");
+    }
+    catch (InterruptedException e) {
+      result.cancel(true);
+      throw new IOException("Interrupted converting " + file);
+    }
+    catch (ExecutionException e) 
+    {
+      Throwable t = e.getCause();
+      if (t instanceof IOException)
+        throw (IOException)t;
+      if (t instanceof RuntimeException)
+        throw (RuntimeException)t;
+      if (t instanceof Error)
+        throw (Error)t;
+      throw new RuntimeException(t);
+    }
+  } // await()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Abandon any conversions still queued or in progress, and stop the 
+   * threads and worker processes.
+   */
+  public void shutdown() 
+  {
+    pool.shutdownNow();
+    if (timer != null)
+      timer.cancel();
+
+    ArrayList<Worker> toKill;
+    synchronized (this) {
+      isShutdown = true;
+      toKill = new ArrayList<Worker>(allWorkers);
+    }
+    for (Worker worker : toKill)
+      worker.kill();
+  } // shutdown()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Remove cached conversions of files that are no longer in the index, 
+   * i.e. whose content hash isn't in the given manifest.
+   */
+  public void prune(HashManifest manifest) 
+  {
+    if (cacheDir == null || !cacheDir.isDirectory())
+      return;
+
+    Set<String> liveHashes = new HashSet<String>();
+    for (long hash : manifest.contentHashes())
+      liveHashes.add(Long.toHexString(hash));
+
+    String[] names = cacheDir.list();
+    for (int i = 0; names != null && i < names.length; i++) 
+    {
+      String name = names[i];
+      int dash = name.indexOf('-');
+      int dot = name.indexOf('.', dash + 1);
+      if (dash < 0 || dot < 0 || !liveHashes.contains(name.substring(dash + 1, dot)))
+        new File(cacheDir, name).delete();
+    }
+  } // prune()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Convert a file, using the cached result if there is one. */
+  private String convert(String key, File file, Converter converter)
+    throws IOException 
+  {
+    long size = file.length();
+    if (maxSize > 0 && size > maxSize) {
+      throw new IOException("File too large to convert (" + 
+                            (size / (1024 * 1024)) + " MB): " + file);
+    }
+
+    // Look for a cached copy. Normally the indexer has already hashed the
+    // file (or is busy doing so), so use that rather than reading it again.
+    //
+    File cacheFile = null;
+    if (cacheDir != null) 
+    {
+      long hash = (manifest != null) ? manifest.find(key, file).hash
+                                     : HashManifest.Entry.calculate(file).hash;
+      cacheFile = new File(cacheDir, 
+                           converter.name() + "-" + Long.toHexString(hash) + 
+                           ".xml.gz");
+      if (cacheFile.canRead()) 
+      {
+        try {
+          return readCache(cacheFile);
+        }
+        catch (IOException e) {
+          Trace.warning("Warning: Error reading conversion cache \"" + 
+                        cacheFile + "\": " + e);
+        }
+      }
+    }
+
+    // Not cached, so do it the hard way.
+    String text = convertInWorker(file, converter);
+
+    // Cache the result, unless there was nothing to cache.
+    if (cacheFile != null && text.length() > 0) 
+    {
+      try {
+        writeCache(cacheFile, text);
+      }
+      catch (IOException e) {
+        Trace.warning("Warning: Error writing conversion cache \"" + 
+                      cacheFile + "\": " + e);
+      }
+    }
+
+    return text;
+  } // convert()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Have a worker process convert a file, killing it if it runs out of 
+   * time. 
+   */
+  private String convertInWorker(File file, Converter converter)
+    throws IOException 
+  {
+    // Get a worker, starting a new one if they're all busy (or died.)
+    Worker worker;
+    synchronized (this) 
+    {
+      if (isShutdown)
+        throw new IOException("Conversion of " + file + " was cancelled");
+      worker = idleWorkers.isEmpty() ? null : idleWorkers.removeFirst();
+      if (worker == null) {
+        worker = new Worker();
+        allWorkers.add(worker);
+      }
+    }
+
+    // Time starts once the conversion does, not when it was queued. Since
+    // a worker that runs out of time is killed, a file can wait in the
+    // queue at most for the files ahead of it to time out.
+    //
+    // The alarm only kills the worker if it's still armed for this
+    // conversion; cancel() alone can't stop one that's already firing.
+    //
+    TimerTask alarm = null;
+    if (timer != null) 
+    {
+      final Worker toKill = worker;
+      alarm = new TimerTask() {
+        public void run() {
+          synchronized (toKill) {
+            if (toKill.alarm != this)
+              return;
+            toKill.timedOut = true;
+            toKill.kill();
+          }
+        }
+      };
+      synchronized (worker) {
+        worker.alarm = alarm;
+      }
+      timer.schedule(alarm, timeout * 1000L);
+    }
+
+    try {
+      return worker.convert(file, converter);
+    }
+    catch (IOException e) 
+    {
+      if (worker.timedOut) {
+        throw new IOException("Gave up converting " + file + " after " + 
+                              timeout + " seconds");
+      }
+      throw e;
+    }
+    finally 
+    {
+      // Disarm the alarm before the worker can go to anyone else.
+      if (alarm != null) {
+        synchronized (worker) {
+          worker.alarm = null;
+        }
+        alarm.cancel();
+      }
+
+      // Keep the worker for the next file, unless it was killed.
+      synchronized (this) 
+      {
+        if (worker.isDead || isShutdown) {
+          allWorkers.remove(worker);
+          worker.kill();
+          worker.close();
+        }
+        else
+          idleWorkers.addLast(worker);
+      }
+    }
+  } // convertInWorker()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Read converted text from the cache. */
+  private static String readCache(File cacheFile)
+    throws IOException 
+  {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+      new GZIPInputStream(new FileInputStream(cacheFile)), "UTF-8"));
+    try 
+    {
+      StringBuilder buf = new StringBuilder();
+      char[] chars = new char[16384];
+      int got;
+      while ((got = reader.read(chars)) >= 0)
+        buf.append(chars, 0, got);
+      return buf.toString();
+    }
+    finally {
+      reader.close();
+    }
+  } // readCache()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Write converted text to the cache. It goes to a temporary file first, 
+   * so that nobody reads a partial copy.
+   */
+  private void writeCache(File cacheFile, String text)
+    throws IOException 
+  {
+    Path.createPath(cacheDir.toString());
+    File tmpFile = File.createTempFile("convert", ".tmp", cacheDir);
+    Writer writer = null;
+    try 
+    {
+      writer = new OutputStreamWriter(
+        new GZIPOutputStream(new FileOutputStream(tmpFile)), "UTF-8");
+      writer.write(text);
+      writer.close();
+      writer = null;
+      cacheFile.delete();
+      if (!tmpFile.renameTo(cacheFile))
+        throw new IOException("Cannot rename " + tmpFile + " to " + cacheFile);
+    }
+    finally 
+    {
+      if (writer != null)
+        try { writer.close(); } catch (IOException e) { /*ignore*/ }
+      tmpFile.delete();
+    }
+  } // writeCache()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A single file to convert. */
+  private class Job implements Callable<String> 
+  {
+    String key;
+    File file;
+    Converter converter;
+    FutureTask<String> task = new FutureTask<String>(this);
+
+    Job(String key, File file, Converter converter) {
+      this.key = key;
+      this.file = file;
+      this.converter = converter;
+    }
+
+    public String call() throws IOException {
+      return convert(key, file, converter);
+    }
+  } // class Job
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** A worker process, and the pipes to talk to it. */
+  private class Worker 
+  {
+    private Process process;
+    private DataOutputStream toWorker;
+    private DataInputStream fromWorker;
+
+    /** Set once the process has been killed, or stopped responding */
+    volatile boolean isDead = false;
+
+    /** Set if the process was killed for taking too long */
+    volatile boolean timedOut = false;
+
+    /** Alarm for the conversion in progress, if any. Guarded by the
+     *  worker's lock. */
+    TimerTask alarm;
+
+    /** Start up a worker process */
+    Worker()
+      throws IOException 
+    {
+      ArrayList<String> args = new ArrayList<String>();
+      args.add(new File(new File(System.getProperty("java.home"), "bin"), 
+                        "java").getPath());
+      
+      // Pass along our own JVM options (such as system properties), except
+      // for the heap size and debugging.
+      //
+      for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) 
+      {
+        if (maxMemory > 0 && arg.startsWith("-Xmx"))
+          continue;
+        if (arg.startsWith("-agentlib:jdwp") || arg.startsWith("-Xrunjdwp") ||
+            arg.equals("-Xdebug"))
+          continue;
+        args.add(arg);
+      }
+      if (maxMemory > 0)
+        args.add("-Xmx" + maxMemory + "m");
+      args.add("-Djava.awt.headless=true");
+      args.add("-cp");
+      args.add(System.getProperty("java.class.path"));
+      args.add(ExtractionWorker.class.getName());
+      args.add(Integer.toString(Trace.getOutputLevel()));
+      String[] argArray = args.toArray(new String[args.size()]);
+
+      if (Trace.getOutputLevel() >= Trace.debug)
+      {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Running command: ");
+        for (String arg : argArray)
+          buf.append(arg + " ");
+        Trace.debug(buf.toString());
+      }
+
+      process = Runtime.getRuntime().exec(argArray);
+      toWorker = new DataOutputStream(
+        new BufferedOutputStream(process.getOutputStream()));
+      fromWorker = new DataInputStream(
+        new BufferedInputStream(process.getInputStream()));
+      new MessageRelay(process.getErrorStream()).start();
+    } // constructor
+
+    /** Have the worker convert a file, and wait for the result */
+    String convert(File file, Converter converter)
+      throws IOException 
+    {
+      int status;
+      String message = null;
+      try 
+      {
+        toWorker.writeUTF(converter.getClass().getName());
+        toWorker.writeUTF(file.getAbsolutePath());
+        toWorker.flush();
+
+        status = fromWorker.readUnsignedByte();
+        if (status == ExtractionWorker.OK) {
+          byte[] bytes = new byte[fromWorker.readInt()];
+          fromWorker.readFully(bytes);
+          return new String(bytes, "UTF-8");
+        }
+        if (status == ExtractionWorker.FAILED)
+          message = fromWorker.readUTF();
+      }
+      catch (IOException e) {
+        kill();
+        throw new IOException("Conversion process stopped while converting " + 
+                              file);
+      }
+
+      if (status == ExtractionWorker.FAILED)
+        throw new IOException(message);
+
+      // The worker exits after running out of memory.
+      kill();
+      if (status == ExtractionWorker.OUT_OF_MEMORY)
+        throw new IOException("Out of memory converting " + file);
+      throw new IOException("Unexpected status " + status + 
+                            " from conversion process");
+    } // convert()
+
+    /** Stop the process, if it's still running */
+    void kill() {
+      isDead = true;
+      process.destroy();
+    }
+
+    /** Release the pipes to a process that has been killed */
+    void close() 
+    {
+      try { toWorker.close();   } catch (IOException e) { /*ignore*/ }
+      try { fromWorker.close(); } catch (IOException e) { /*ignore*/ }
+    }
+  } // class Worker
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Passes along anything a worker prints (such as warnings from the
+   * converters.) The worker has already filtered its messages by the trace
+   * level, so they're all printed.
+   */
+  private static class MessageRelay extends Thread 
+  {
+    private InputStream inStream;
+
+    MessageRelay(InputStream inStream) {
+      super("ExtractionPool messages");
+      setDaemon(true);
+      this.inStream = inStream;
+    }
+
+    public void run() 
+    {
+      try 
+      {
+        BufferedReader reader = new BufferedReader(
+          new InputStreamReader(inStream));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.trim().length() > 0)
+            Trace.error(line);
+        }
+      }
+      catch (IOException e) {
+        // The process went away; nothing more to pass along.
+      }
+      finally {
+        try { inStream.close(); } catch (IOException e) { /*ignore*/ }
+      }
+    } // run()
+  } // class MessageRelay
+
+} // class ExtractionPool
@@ -0,0 +1,137 @@
+package org.cdlib.xtf.textIndexer;
+
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.cdlib.xtf.util.Trace;
+
+////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * The main program of a child process that converts files for an
+ * {@link ExtractionPool}. Running the converters in a separate JVM gives
+ * them their own heap, and lets the pool kill one that is stuck.
+ * <br><br>
+ * 
+ * Requests arrive on stdin, one at a time: the class name of the 
+ * {@link ExtractionPool.Converter} to use, then the path of the file. For
+ * each, a status byte is written to stdout, followed by the converted text
+ * (as a length and UTF-8 bytes) or an error message. Anything the
+ * converters print goes to stderr instead, so it can't get mixed up with
+ * the results.
+ */
+public class ExtractionWorker 
+{
+  /** Status: the file was converted */
+  static final int OK = 0;
+
+  /** Status: the conversion failed; an error message follows */
+  static final int FAILED = 1;
+
+  /** Status: ran out of memory; the worker exits after sending this */
+  static final int OUT_OF_MEMORY = 2;
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Process conversion requests until stdin is closed.
+   * 
+   * @param args  The trace level to use, as a number.
+   */
+  public static void main(String[] args)
+    throws IOException 
+  {
+    // Keep stdout for the results, and send everything else to stderr.
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(FileDescriptor.out)));
+    System.setOut(System.err);
+    Trace.setPrintStream(System.err);
+    if (args.length > 0)
+      Trace.setOutputLevel(Integer.parseInt(args[0]));
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    HashMap<String, ExtractionPool.Converter> converters = 
+      new HashMap<String, ExtractionPool.Converter>();
+    while (true) 
+    {
+      String converterClass;
+      try {
+        converterClass = in.readUTF();
+      }
+      catch (EOFException e) {
+        break;
+      }
+      File file = new File(in.readUTF());
+
+      try 
+      {
+        ExtractionPool.Converter converter = converters.get(converterClass);
+        if (converter == null) {
+          converter = (ExtractionPool.Converter)
+            Class.forName(converterClass).newInstance();
+          converters.put(converterClass, converter);
+        }
+
+        byte[] bytes = converter.convert(file).getBytes("UTF-8");
+        out.writeByte(OK);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      catch (OutOfMemoryError e) 
+      {
+        // The heap may be in poor shape, so let the pool start a new worker.
+        out.writeByte(OUT_OF_MEMORY);
+        out.flush();
+        System.exit(1);
+      }
+      catch (Throwable t) {
+        String message = t.toString();
+        if (message.length() > 1000)
+          message = message.substring(0, 1000);
+        out.writeByte(FAILED);
+        out.writeUTF(message);
+      }
+      out.flush();
+    } // while
+  } // main()
+} // class ExtractionWorker
@@ -0,0 +1,367 @@
+package org.cdlib.xtf.textIndexer;
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.lucene.util.Hash64;
+import org.cdlib.xtf.util.Trace;
+
+////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Records the size, modification time, and a content hash of each source 
+ * file as it was last indexed. This lets the indexer tell a file that has
+ * really changed from one that has merely been touched (for instance, by
+ * copying or restoring the source tree), and skip re-indexing the latter.
+ * <br><br>
+ * 
+ * Hashes are calculated on a pool of background threads, so that reading
+ * the files overlaps with scanning the source tree.
+ */
+public class HashManifest 
+{
+  private HashMap<String, Entry> map = new HashMap<String, Entry>();
+  private boolean modified = true;
+  private ExecutorService hashPool;
+
+  /** Hashes being calculated in the background, by key */
+  private HashMap<String, Future<Entry>> pending = 
+    new HashMap<String, Future<Entry>>();
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Load a previously saved manifest.
+   *
+   * @param  file        The file to load from.
+   * @throws IOException If something goes wrong reading the file.
+   */
+  public synchronized void load(File file) throws IOException
+  {
+    clear();
+    
+    // Open the file and read it.
+    ObjectInputStream ois = null;
+    try 
+    {
+      ois = new ObjectInputStream(
+        new InflaterInputStream(new FileInputStream(file)));
+
+      String fileVersion = ois.readUTF();
+      if (!fileVersion.equals("hashManifest v1.0")) {
+        Trace.warning("Unrecognized hash manifest \"" + file + "\"");
+        return;
+      }
+
+      // Load the map, and remember that it's not modified yet.
+      map = (HashMap)ois.readObject();
+      modified = false;
+    } 
+    catch (ClassNotFoundException e) {
+      throw new IOException(e.getMessage());
+    }
+    finally {
+      if (ois != null)
+        try { ois.close(); } catch(Exception e) { /*ignore*/ }
+    }
+  } // load()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Save the manifest, if it has been modified.
+   * 
+   * @param  file        The file to write to.
+   * @throws IOException If something goes wrong writing the file.
+   */
+  public synchronized void save(File file) throws IOException 
+  {
+    // Skip if not modified.
+    if (!modified)
+      return;
+    
+    // Let's keep the old file intact until the new one is ready.
+    File newFile = new File(file.toString() + ".new");
+    ObjectOutputStream oos = null;
+    try 
+    {
+      oos = new ObjectOutputStream(
+        new DeflaterOutputStream(new FileOutputStream(newFile)));
+      oos.writeUTF("hashManifest v1.0");
+      oos.writeObject(map);
+      oos.close();
+      oos = null;
+
+      // Get rid of the old file, and rename the new one.
+      file.delete();
+      newFile.renameTo(file);
+      modified = false;
+    }
+    catch (IOException e) {
+      newFile.delete();
+      throw e;
+    }
+    finally {
+      if (oos != null)
+        try { oos.close(); } catch (Exception e2) { /*ignore*/ }
+    }
+  } // save()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Remove all entries. */
+  public synchronized void clear() {
+    modified = true;
+    map.clear();
+  }
+
+  /** Get the entry for a key (or null if none), and mark it as seen. */
+  public synchronized Entry get(String key) 
+  {
+    Entry ent = map.get(key);
+    if (ent != null)
+      ent.seen = true;
+    return ent;
+  }
+
+  /** Record an entry for a key. */
+  public synchronized void put(String key, Entry ent) {
+    modified = true;
+    ent.seen = true;
+    map.put(key, ent);
+  }
+
+  /** Get the number of entries. */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /** Get the set of content hashes of all the entries. */
+  public synchronized Set<Long> contentHashes() 
+  {
+    Set<Long> hashes = new HashSet<Long>();
+    for (Entry ent : map.values())
+      hashes.add(ent.hash);
+    return hashes;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Drop entries for documents that are no longer in the index: that is,
+   * entries that weren't seen during this run, and whose keys weren't in
+   * the index when it started.
+   */
+  public synchronized void prune(IndexKeySnapshot keySnapshot) 
+  {
+    for (Iterator<String> iter = map.keySet().iterator(); iter.hasNext();) 
+    {
+      String key = iter.next();
+      if (!map.get(key).seen && !keySnapshot.contains(key)) {
+        iter.remove();
+        modified = true;
+      }
+    }
+  } // prune()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Start up the threads that calculate hashes. */
+  public synchronized void startHashing(int nThreads) {
+    hashPool = Executors.newFixedThreadPool(nThreads);
+  }
+
+  /** Wait for all outstanding hashes to finish, and shut down the threads. */
+  public void finishHashing()
+    throws InterruptedException 
+  {
+    ExecutorService pool;
+    synchronized (this) {
+      pool = hashPool;
+      hashPool = null;
+    }
+    if (pool == null)
+      return;
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  } // finishHashing()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** 
+   * Calculate a new entry for a file on a background thread, and record it
+   * under the given key.
+   * 
+   * @return  A future that supplies the new entry.
+   */
+  public Future<Entry> update(final String key, final File file) 
+  {
+    Callable<Entry> task = new Callable<Entry>() 
+    {
+      public Entry call() throws IOException 
+      {
+        try {
+          Entry ent = Entry.calculate(file);
+          put(key, ent);
+          return ent;
+        }
+        finally {
+          synchronized (HashManifest.this) {
+            pending.remove(key);
+          }
+        }
+      }
+    };
+
+    synchronized (this) {
+      if (hashPool == null)
+        startHashing(1);
+      Future<Entry> result = hashPool.submit(task);
+      pending.put(key, result);
+      return result;
+    }
+  } // update()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Get the entry for a file, reading the file only if we must. If the
+   * recorded entry still matches the file, it is used; if the hash is
+   * being calculated in the background, we wait for it. Otherwise the 
+   * file is hashed now (but the result isn't recorded.)
+   *
+   * @param key   Key the file's entry is recorded under
+   * @param file  The file itself
+   */
+  public Entry find(String key, File file)
+    throws IOException 
+  {
+    Future<Entry> inProgress;
+    synchronized (this) 
+    {
+      Entry ent = map.get(key);
+      if (ent != null && ent.matches(file))
+        return ent;
+      inProgress = pending.get(key);
+    }
+
+    if (inProgress != null) 
+    {
+      try {
+        Entry ent = inProgress.get();
+        if (ent.matches(file))
+          return ent;
+      }
+      catch (InterruptedException e) {
+        throw new IOException("Interrupted hashing " + file);
+      }
+      catch (ExecutionException e) {
+        // Fall through and try it ourselves.
+      }
+    }
+
+    return Entry.calculate(file);
+  } // find()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Information recorded about a single source file. */
+  public static class Entry implements Serializable
+  {
+    /**
+     * Fixed so that saved manifests stay readable. Matches the value
+     * computed for the original version of the class.
+     */
+    private static final long serialVersionUID = 3692118149418264955L;
+
+    public long size;
+    public long modTime;
+    public long hash;
+
+    /** True if the entry has been looked up or updated during this run */
+    transient boolean seen;
+
+    public Entry(long size, long modTime, long hash) {
+      this.size = size;
+      this.modTime = modTime;
+      this.hash = hash;
+    }
+
+    /** Read a file and calculate its entry. */
+    public static Entry calculate(File file)
+      throws IOException 
+    {
+      // Get the size and time first, so that if the file changes while
+      // we're reading it, we'll hash it again next time.
+      //
+      long size = file.length();
+      long modTime = file.lastModified();
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        return new Entry(size, modTime, Hash64.hash(in));
+      }
+      finally {
+        in.close();
+      }
+    } // calculate()
+
+    /** Check if the file's size and time still match this entry. */
+    public boolean matches(File file) {
+      return file.lastModified() == modTime && file.length() == size;
+    }
+
+    /** Check if another entry has the same content as this one. */
+    public boolean sameContent(Entry other) {
+      return other.size == size && other.hash == hash;
+    }
+  } // class Entry
+
+} // class HashManifest
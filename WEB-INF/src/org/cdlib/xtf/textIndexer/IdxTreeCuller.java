@@ -61,7 +61,7 @@ import java.io.IOException;
  * for that document are removed from the index. <br><br>
  *
  * To use this class, simply instantiate a copy, and call the
- * {@link #cullIndex(File,IndexInfo,File,SubDirFilter) cullIndex()}
+ * {@link #cullIndex(File,IndexInfo,File,SubDirFilter,IndexKeySnapshot) cullIndex()}
  * method on a directory containing an index. Note that the directory passed
  * may also be a root directory with many index sub-directories if desired.
  */
@@ -87,6 +87,11 @@ public class IdxTreeCuller
    * @param subDirFilter    Sub-directory limitation, or null for all.
    *                        <br><br>
    *
+   * @param keySnapshot     Keys found in the index when indexing started,
+   *                        marked with those whose source was seen during
+   *                        the scan; or null to scan all the index keys.
+   *                        <br><br>
+   *
    * @throws Exception      Passes back any exceptions generated by Lucene
    *                        during the opening of, reading of, or writing to
    *                        the specified index.
@@ -94,7 +99,8 @@ public class IdxTreeCuller
    *
    */
   public void cullIndex(File xtfHome, IndexInfo idxInfo, 
-                        File srcRootFile, SubDirFilter subDirFilter)
+                        File srcRootFile, SubDirFilter subDirFilter,
+                        IndexKeySnapshot keySnapshot)
     throws Exception 
   {
     // Start with no Path fields encountered, and no documents culled.
@@ -110,18 +116,35 @@ public class IdxTreeCuller
       //
       String idxPath = Path.resolveRelOrAbs(xtfHome, idxInfo.indexPath);
       indexReader = IndexReader.open(NativeFSDirectory.getDirectory(idxPath));
-      termEnum = indexReader.terms(new Term("key", ""));
-
-      do 
+      // If we have a snapshot of the keys, there's no need to scan the
+      // index terms; we only need to look at keys never seen in the scan.
+      // 
+      int snapshotPos = 0;
+      if (keySnapshot == null)
+        termEnum = indexReader.terms(new Term("key", ""));
+
+      while (true) 
       {
-        Term term = termEnum.term();
-        if (term == null || !term.field().equals("key"))
-          break;
-
         // Get the key, which contains the index name and the path from its
         // source directory.
         //
-        String key = term.text();
+        String key;
+        boolean seen = false;
+        if (keySnapshot != null) 
+        {
+          if (snapshotPos == keySnapshot.size())
+            break;
+          seen = keySnapshot.isSeen(snapshotPos);
+          key = keySnapshot.getKey(snapshotPos++);
+        }
+        else 
+        {
+          Term term = termEnum.term();
+          if (term == null || !term.field().equals("key"))
+            break;
+          key = term.text();
+          termEnum.next();
+        }
         assert key.indexOf(':') >= 0 : "Invalid index key - missing ':'";
         String indexName = key.substring(0, key.indexOf(':'));
         String relPath = key.substring(key.indexOf(':') + 1);
@@ -140,13 +163,17 @@ public class IdxTreeCuller
         // Track how many documents there are.
         docCount++;
 
+        // If the file was seen during the scan, it certainly exists.
+        if (seen)
+          continue;
+
         // If the source XML document doesn't exist...
         if (!currFile.exists()) 
         {
           // In a non-optimized index, the document may still be in the term list
           // but actually have been deleted.
           //
-          TermDocs docs = indexReader.termDocs(term);
+          TermDocs docs = indexReader.termDocs(new Term("key", key));
           if (docs == null || !docs.next()) {
             docCount--;
             continue;
@@ -200,8 +227,7 @@ public class IdxTreeCuller
           Trace.more(Trace.info, "Missing: Removed from Index.");
           Trace.untab();
         } // if( !currFile.exists() )
-      }
-      while (termEnum.next());
+      } // while
 
       // Now if the number of documents encounted equals the number
       // of documents deleted, there's a good chance the index is 
@@ -226,7 +252,8 @@ public class IdxTreeCuller
       } // if( docCount == cullCount )
 
       // Close the term enumeration and reader.
-      termEnum.close();
+      if (termEnum != null)
+        termEnum.close();
       termEnum = null;
       indexReader.close();
       indexReader = null;
@@ -52,7 +52,7 @@ import org.cdlib.xtf.util.AttribList;
  * - Specifications for stop word removal. <br><br>
  *
  */
-public class IndexInfo 
+public class IndexInfo implements Cloneable
 {
   /** Name of the current index being processed (as specified in the index
    *  configuration file.)
@@ -428,4 +428,22 @@ public class IndexInfo
     // And return the (possibly coerced) result to the caller.
     return chunkAtt[chunkOvlp];
   } // public setChunkOverlap()    
+
+  ////////////////////////////////////////////////////////////////////////////    
+
+  /** Make a copy of this index info, for instance to point the copy at a
+   *  different index path. The chunk attributes are copied; other fields
+   *  are shared with the original.
+   */
+  public IndexInfo clone() 
+  {
+    try {
+      IndexInfo copy = (IndexInfo)super.clone();
+      copy.chunkAtt = chunkAtt.clone();
+      return copy;
+    }
+    catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
+  } // clone()
 } // class IndexInfo
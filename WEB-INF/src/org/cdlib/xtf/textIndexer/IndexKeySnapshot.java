@@ -0,0 +1,265 @@
+package org.cdlib.xtf.textIndexer;
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+
+////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * Holds the key and file date of every document in an index, read in a single
+ * pass over the docInfo chunks. This lets the indexer decide whether a source
+ * file is new, changed, or up to date with an in-memory lookup instead of a
+ * Lucene search per file. <br><br>
+ *
+ * As files are checked they are marked as seen, so that after the source
+ * directories have been scanned, the keys never seen are exactly the
+ * documents that may have been removed from the source tree.
+ */
+public class IndexKeySnapshot 
+{
+  /** Sorted keys of all the documents in the index */
+  private String[] keys;
+
+  /** File date (in milliseconds) of each key, or {@link #NO_DATE} */
+  private long[] dates;
+
+  /** Which keys have been checked so far */
+  private BitSet seen;
+
+  /** Marks a date that could not be parsed; never matches a real file */
+  private static final long NO_DATE = Long.MIN_VALUE;
+
+  /** Returned by {@link #checkKey(String)} when the key isn't present */
+  public static final long NOT_FOUND = Long.MIN_VALUE + 1;
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Read the key and file date of every document belonging to the given
+   * index.
+   *
+   * @param reader      Reader to scan
+   * @param indexName   Only keys of the form "indexName:..." are kept
+   */
+  public IndexKeySnapshot(IndexReader reader, String indexName)
+    throws IOException 
+  {
+    String prefix = indexName + ":";
+    FieldSelector selector = new MapFieldSelector(
+      new String[] { "key", "fileDate" });
+
+    ArrayList<String> keyList = new ArrayList<String>();
+    long[] dateList = new long[1000];
+
+    // Scan the docInfo chunks in document order. Sub-documents of a single
+    // source file share its key and are always adjacent, so we need only
+    // compare against the previous key to keep the first of them (which
+    // is the one a search would have found.)
+    //
+    TermDocs docs = reader.termDocs(new Term("docInfo", "1"));
+    try 
+    {
+      String prevKey = null;
+      while (docs.next()) 
+      {
+        Document doc = reader.document(docs.doc(), selector);
+        String key = doc.get("key");
+        if (key == null || !key.startsWith(prefix) || key.equals(prevKey))
+          continue;
+        prevKey = key;
+
+        if (keyList.size() == dateList.length) {
+          long[] newList = new long[dateList.length * 2];
+          System.arraycopy(dateList, 0, newList, 0, dateList.length);
+          dateList = newList;
+        }
+        dateList[keyList.size()] = parseDate(doc.get("fileDate"));
+        keyList.add(key);
+      }
+    }
+    finally {
+      docs.close();
+    }
+
+    // Sort the keys (and their dates along with them) for quick lookup.
+    keys = keyList.toArray(new String[keyList.size()]);
+    dates = dateList;
+    sort(0, keys.length - 1);
+    seen = new BitSet(keys.length);
+  } // constructor
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Convert a stored fileDate field to milliseconds */
+  private static long parseDate(String dateStr) 
+  {
+    if (dateStr == null)
+      return NO_DATE;
+    try {
+      return DateTools.stringToTime(dateStr);
+    }
+    catch (ParseException e) {
+      return NO_DATE;
+    }
+  } // parseDate()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Quicksort the parallel key and date arrays by key */
+  private void sort(int lo, int hi) 
+  {
+    while (lo < hi) 
+    {
+      String pivot = keys[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) 
+      {
+        while (keys[i].compareTo(pivot) < 0)
+          i++;
+        while (keys[j].compareTo(pivot) > 0)
+          j--;
+        if (i <= j) {
+          String tmpKey = keys[i];
+          keys[i] = keys[j];
+          keys[j] = tmpKey;
+          long tmpDate = dates[i];
+          dates[i] = dates[j];
+          dates[j] = tmpDate;
+          i++;
+          j--;
+        }
+      }
+
+      // Recurse on the smaller half and loop on the larger, to keep the
+      // stack shallow.
+      //
+      if (j - lo < hi - i) {
+        sort(lo, j);
+        lo = i;
+      }
+      else {
+        sort(i, hi);
+        hi = j;
+      }
+    }
+  } // sort()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Find the position of a key, or -1 if it isn't in the snapshot */
+  private int find(String key) 
+  {
+    int lo = 0;
+    int hi = keys.length - 1;
+    while (lo <= hi) 
+    {
+      int mid = (lo + hi) >>> 1;
+      int cmp = keys[mid].compareTo(key);
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  } // find()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Get the number of documents in the snapshot */
+  public int size() {
+    return keys.length;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Tell whether the given key was in the index. */
+  public boolean contains(String key) {
+    return find(key) >= 0;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Tell whether the given key has already been checked with
+   * {@link #checkKey(String)}.
+   */
+  public synchronized boolean wasSeen(String key) {
+    int pos = find(key);
+    return pos >= 0 && seen.get(pos);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Look up a key and mark it as seen.
+   *
+   * @return  The file date (in milliseconds) recorded in the index for
+   *          the key, or {@link #NOT_FOUND} if the key isn't in the index.
+   *          Unparseable dates are returned as a value that will never
+   *          match a real file's date.
+   */
+  public synchronized long checkKey(String key) 
+  {
+    int pos = find(key);
+    if (pos < 0)
+      return NOT_FOUND;
+    seen.set(pos);
+    return dates[pos];
+  } // checkKey()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Tell whether the key at the given position has been checked. */
+  public synchronized boolean isSeen(int pos) {
+    return seen.get(pos);
+  }
+
+  /** Get the key at the given position (keys are in sorted order) */
+  public String getKey(int pos) {
+    return keys[pos];
+  }
+} // class IndexKeySnapshot
@@ -228,23 +228,8 @@ public class IndexMerge
         dirInfos[i] = readInfo(idxPath, srcDir);
 
         // Check for parameter compatibility
-        if ((i == 1 && !createTarget) || (i > 1)) {
-          if (dirInfos[i].chunkOverlap != dirInfos[i - 1].chunkOverlap)
-            throw new RuntimeException(
-              "Error: index parameters must match exactly (chunkOverlap mismatch detected)");
-          if (dirInfos[i].chunkSize != dirInfos[i - 1].chunkSize)
-            throw new RuntimeException(
-              "Error: index parameters must match exactly (chunkSize mismatch detected)");
-          if (!dirInfos[i].stopWords.equals(dirInfos[i - 1].stopWords))
-            throw new RuntimeException(
-              "Error: index parameters must match exactly (stopWords mismatch detected)");
-          if (!dirInfos[i].accentMapName.equals(dirInfos[i - 1].accentMapName))
-            throw new RuntimeException(
-              "Error: index parameters must match exactly (accentMapName mismatch detected)");
-          if (!dirInfos[i].pluralMapName.equals(dirInfos[i - 1].pluralMapName))
-            throw new RuntimeException(
-              "Error: index parameters must match exactly (pluralMapName mismatch detected)");
-        }
+        if ((i == 1 && !createTarget) || (i > 1))
+          checkCompatible(dirInfos[i - 1], dirInfos[i]);
       } // for
 
       // Well, enough preparing. Let's do the job we were sent to do.
@@ -271,6 +256,74 @@ public class IndexMerge
     System.exit(0);
   } // main()
 
+  //////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Merge one or more indexes into an existing target index, without
+   * prompting. The text indexer uses this to combine the shards of a
+   * parallel build (see {@link IndexerConfig#shards}). Each source index's
+   * indexInfo chunk is deleted first, since the target already has one;
+   * the source directories are otherwise left for the caller to remove.
+   *
+   * @param targetPath    Directory of the index to merge into
+   * @param sourcePaths   Directories of the indexes to merge from
+   * @param optimize      true to optimize the merged index, false to just
+   *                      add the sources' segments to it
+   */
+  public static void mergeInto(String targetPath, String[] sourcePaths,
+                               boolean optimize)
+    throws IOException 
+  {
+    DirInfo[] dirInfos = new DirInfo[sourcePaths.length + 1];
+    for (int i = 0; i < dirInfos.length; i++) 
+    {
+      String path = Path.normalizePath((i == 0) ? targetPath : sourcePaths[i - 1]);
+      dirInfos[i] = readInfo(path, NativeFSDirectory.getDirectory(path));
+      if (i > 0)
+        checkCompatible(dirInfos[i - 1], dirInfos[i]);
+    }
+
+    // Drop the extra indexInfo chunks.
+    for (int i = 1; i < dirInfos.length; i++) 
+    {
+      IndexReader reader = IndexReader.open(dirInfos[i].dir);
+      try {
+        reader.deleteDocuments(new Term("indexInfo", "1"));
+      }
+      finally {
+        reader.close();
+      }
+    }
+
+    IndexWriter writer = new IndexWriter(dirInfos[0].dir,
+                                         new StandardAnalyzer(),
+                                         false);
+    mergeSpelling(dirInfos);
+    mergeLazy(dirInfos);
+    mergeAux(dirInfos);
+    mergeLucene(writer, dirInfos, optimize);
+  } // mergeInto()
+
+  //////////////////////////////////////////////////////////////////////////////
+  private static void checkCompatible(DirInfo prev, DirInfo cur)
+  {
+    if (cur.chunkOverlap != prev.chunkOverlap)
+      throw new RuntimeException(
+        "Error: index parameters must match exactly (chunkOverlap mismatch detected)");
+    if (cur.chunkSize != prev.chunkSize)
+      throw new RuntimeException(
+        "Error: index parameters must match exactly (chunkSize mismatch detected)");
+    if (!cur.stopWords.equals(prev.stopWords))
+      throw new RuntimeException(
+        "Error: index parameters must match exactly (stopWords mismatch detected)");
+    if (!cur.accentMapName.equals(prev.accentMapName))
+      throw new RuntimeException(
+        "Error: index parameters must match exactly (accentMapName mismatch detected)");
+    if (!cur.pluralMapName.equals(prev.pluralMapName))
+      throw new RuntimeException(
+        "Error: index parameters must match exactly (pluralMapName mismatch detected)");
+  } // checkCompatible()
+
   //////////////////////////////////////////////////////////////////////////////
   private static DirInfo readInfo(String path, Directory dir)
     throws IOException 
@@ -295,6 +348,12 @@ public class IndexMerge
       ret.pluralMapName = doc.get("pluralMap");
       ret.accentMapName = doc.get("accentMap");
 
+      // Indexes without a plural or accent map simply lack the field.
+      if (ret.pluralMapName == null)
+        ret.pluralMapName = "";
+      if (ret.accentMapName == null)
+        ret.accentMapName = "";
+
       return ret;
     }
     finally {
@@ -341,7 +400,7 @@ public class IndexMerge
     mergeSpelling(dirInfos);
     mergeLazy(dirInfos);
     mergeAux(dirInfos);
-    mergeLucene(writer, dirInfos);
+    mergeLucene(writer, dirInfos, true);
 
     // All done. Report how long we spent.
     Trace.untab();
@@ -373,10 +432,9 @@ public class IndexMerge
     boolean anyToDo = false;
     for (int i = 1; i < dirInfos.length; i++) {
       String sourceDir = dirInfos[i].path;
-      File sourceFile = new File(sourceDir + "spellDict/newWords.txt");
-      if (!sourceFile.isFile() && sourceFile.canRead())
-        continue;
-      anyToDo = true;
+      if (new File(sourceDir + "spellDict/newWords.txt").canRead() ||
+          new File(sourceDir + "spellDict/newPairs.txt").canRead())
+        anyToDo = true;
     }
 
     if (!anyToDo)
@@ -385,54 +443,60 @@ public class IndexMerge
     Trace.info("Processing spellcheck word lists ... ");
 
     // Append each input file.
-    for (int i = 1; i < dirInfos.length; i++) 
-    {
-      String sourceDir = dirInfos[i].path;
-      File sourceFile = new File(sourceDir + "spellDict/newWords.txt");
-      if (!sourceFile.isFile() && sourceFile.canRead())
-        continue;
-
-      // Open the target file.
-      String targetDir = dirInfos[0].path;
-      Path.createPath(targetDir + "spellDict");
-      File targetFile = new File(targetDir + "spellDict/newWords.txt");
-      PrintWriter targetWriter = new PrintWriter(
-        new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
-                                                                       targetFile,
-                                                                       targetFile.isFile()),
-                                                  "UTF-8")));
-
-      BufferedReader sourceReader = new BufferedReader(
-        new InputStreamReader(new FileInputStream(sourceFile), "UTF-8"));
-
-      boolean eof = false;
-      while (!eof) 
-      {
-        try {
-          String word = sourceReader.readLine();
-          if (word == null)
-            eof = true;
-          else
-            targetWriter.println(word);
-        }
-        catch (EOFException e) {
-          eof = true;
-        }
-        catch (IOException e) {
-          Trace.warning(
-            "Warning: Exception encountered (may be due to unfinished index): " +
-            e);
-          eof = true;
-        }
-      }
-
-      sourceReader.close();
-      targetWriter.close();
+    for (int i = 1; i < dirInfos.length; i++) {
+      appendSpellQueue(dirInfos[i].path, dirInfos[0].path, "newWords.txt");
+      appendSpellQueue(dirInfos[i].path, dirInfos[0].path, "newPairs.txt");
     } // for
 
     Trace.more("Done.");
   } // mergeSpelling()
 
+  //////////////////////////////////////////////////////////////////////////////
+  private static void appendSpellQueue(String sourceDir, String targetDir,
+                                       String fileName)
+    throws IOException 
+  {
+    File sourceFile = new File(sourceDir + "spellDict/" + fileName);
+    if (!sourceFile.isFile() || !sourceFile.canRead())
+      return;
+
+    // Open the target file.
+    Path.createPath(targetDir + "spellDict");
+    File targetFile = new File(targetDir + "spellDict/" + fileName);
+    PrintWriter targetWriter = new PrintWriter(
+      new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                                                                     targetFile,
+                                                                     targetFile.isFile()),
+                                                "UTF-8")));
+
+    BufferedReader sourceReader = new BufferedReader(
+      new InputStreamReader(new FileInputStream(sourceFile), "UTF-8"));
+
+    boolean eof = false;
+    while (!eof) 
+    {
+      try {
+        String word = sourceReader.readLine();
+        if (word == null)
+          eof = true;
+        else
+          targetWriter.println(word);
+      }
+      catch (EOFException e) {
+        eof = true;
+      }
+      catch (IOException e) {
+        Trace.warning(
+          "Warning: Exception encountered (may be due to unfinished index): " +
+          e);
+        eof = true;
+      }
+    }
+
+    sourceReader.close();
+    targetWriter.close();
+  } // appendSpellQueue()
+
   //////////////////////////////////////////////////////////////////////////////
   private static void mergeAux(DirInfo[] dirInfos)
     throws IOException 
@@ -443,11 +507,11 @@ public class IndexMerge
     {
       String sourceDir = dirInfos[i].path;
 
-      File accentFile = new File(sourceDir + dirInfos[i].accentMapName);
-      File pluralFile = new File(sourceDir + dirInfos[i].pluralMapName);
+      File accentFile = new File(sourceDir, dirInfos[i].accentMapName);
+      File pluralFile = new File(sourceDir, dirInfos[i].pluralMapName);
       File tokFldFile = new File(sourceDir + "tokenizedFields.txt");
 
-      if (accentFile.canRead() || pluralFile.canRead() || tokFldFile.canRead())
+      if (accentFile.isFile() || pluralFile.isFile() || tokFldFile.canRead())
         anyToDo = true;
     }
 
@@ -461,19 +525,17 @@ public class IndexMerge
     {
       File accentSrc = new File(dirInfos[i].path, dirInfos[i].accentMapName);
       File accentDst = new File(dirInfos[0].path, dirInfos[i].accentMapName);
-      if (accentSrc.canRead() && !accentDst.canRead())
+      if (accentSrc.isFile() && !accentDst.canRead())
         Path.copyFile(accentSrc, accentDst);
 
       File pluralSrc = new File(dirInfos[i].path, dirInfos[i].pluralMapName);
       File pluralDst = new File(dirInfos[0].path, dirInfos[i].pluralMapName);
-      if (pluralSrc.canRead() && !pluralDst.canRead())
+      if (pluralSrc.isFile() && !pluralDst.canRead())
         Path.copyFile(pluralSrc, pluralDst);
       
       File tokFldSrc = new File(dirInfos[i].path, "tokenizedFields.txt");
       File tokFldDst = new File(dirInfos[0].path, "tokenizedFields.txt");
-      if (tokFldSrc.canRead() && !tokFldDst.canRead())
-        mergeTokFldFiles(tokFldSrc, tokFldDst);
-      else if (tokFldSrc.canRead() && tokFldDst.canRead())
+      if (tokFldSrc.canRead())
         mergeTokFldFiles(tokFldSrc, tokFldDst);
     } // for
 
@@ -481,24 +543,28 @@ public class IndexMerge
   } // mergeAux()
   
   //////////////////////////////////////////////////////////////////////////////
-  private static void mergeTokFldFiles(File file1, File file2) throws IOException
+  private static void mergeTokFldFiles(File srcFile, File dstFile) throws IOException
   {
     LinkedHashSet set = new LinkedHashSet();
     
-    // Read in the first file
-    BufferedReader reader = new BufferedReader(new FileReader(file1));
+    // Read in the existing target file, if any
+    BufferedReader reader;
     String line;
-    while ((line = reader.readLine()) != null)
-      set.add(line);
-    reader.close();
+    if (dstFile.canRead()) {
+      reader = new BufferedReader(new FileReader(dstFile));
+      while ((line = reader.readLine()) != null)
+        set.add(line);
+      reader.close();
+    }
     
-    // Add entries from the second file
-    FileWriter writer = new FileWriter(file1, true /*append*/);
-    reader = new BufferedReader(new FileReader(file2));
+    // Add new entries from the source file
+    FileWriter writer = new FileWriter(dstFile, true /*append*/);
+    reader = new BufferedReader(new FileReader(srcFile));
     while ((line = reader.readLine()) != null) {
-      if (!set.contains(line))
+      if (set.add(line))
         writer.append(line + "\n");
     }
+    reader.close();
     writer.close();
   }
 
@@ -568,15 +634,24 @@ public class IndexMerge
   } // mergeLazy()
 
   //////////////////////////////////////////////////////////////////////////////
-  private static void mergeLucene(IndexWriter writer, DirInfo[] dirInfos)
+  private static void mergeLucene(IndexWriter writer, DirInfo[] dirInfos,
+                                  boolean optimize)
     throws IOException 
   {
     Trace.info("Processing Lucene indexes (can be very time-consuming) ... ");
     Directory[] dirs = new Directory[dirInfos.length - 1];
     for (int i = 1; i < dirInfos.length; i++)
       dirs[i - 1] = dirInfos[i].dir;
-    writer.addIndexes(dirs);
-    writer.optimize();
+
+    // Note that addIndexes() optimizes the index on its own, so we have to
+    // use a different method if optimization isn't wanted.
+    //
+    if (optimize) {
+      writer.addIndexes(dirs);
+      writer.optimize();
+    }
+    else
+      writer.addIndexesNoOptimize(dirs);
     writer.close();
     Trace.more("Done.");
   } // mergeLucene()
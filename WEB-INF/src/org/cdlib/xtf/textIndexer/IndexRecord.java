@@ -37,6 +37,7 @@ package org.cdlib.xtf.textIndexer;
  */
 import java.io.IOException;
 import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 import org.cdlib.xtf.util.StructuredStore;
 
 /**
@@ -51,6 +52,15 @@ public abstract class IndexRecord
   public abstract InputSource xmlSource()
     throws IOException;
 
+  /**
+   * Reader that supplies the record's SAX events directly, in place of
+   * parsing {@link #xmlSource()}; by default null, meaning the source
+   * should be parsed.
+   */
+  public XMLReader xmlReader() {
+    return null;
+  }
+
   /** Numeric index of this record (zero if this is the only record */
   public abstract int recordNum();
 
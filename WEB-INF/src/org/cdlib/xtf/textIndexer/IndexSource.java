@@ -83,4 +83,12 @@ public abstract class IndexSource
   /** Obtain the next record from the file, or null if no more. */
   public abstract IndexRecord nextRecord()
     throws SAXException, IOException;
+
+  /**
+   * Called when this source will soon be indexed, so that sources which
+   * take a long time to prepare (such as PDF files that must be converted)
+   * can get started in the background. By default, does nothing.
+   */
+  public void prefetch() {
+  }
 } // class IndexSource
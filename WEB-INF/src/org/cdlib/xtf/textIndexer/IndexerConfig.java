@@ -105,6 +105,60 @@ public class IndexerConfig
    */
   public boolean buildLazyFiles;
 
+  /** Number of background threads to use for writing lazy files. Zero
+   *  means lazy files are written by the main indexing thread as each
+   *  document is parsed.
+   *  <br><br>
+   */
+  public int lazyThreads;
+
+  /** Number of threads to use for parsing and prefiltering documents.
+   *  Lucene documents are still added to the index one at a time, in
+   *  order.
+   *  <br><br>
+   */
+  public int threads;
+
+  /** Number of separate sub-indexes to build in parallel during a clean
+   *  build. Documents are assigned to a shard by a hash of their key, and
+   *  the shards are merged into the target index at the end of the run.
+   *  One means no sharding.
+   *  <br><br>
+   */
+  public int shards;
+
+  /** Number of threads to use for listing source directories and running
+   *  the docSelector on them. Files are still queued in the same order as
+   *  a single-threaded scan.
+   *  <br><br>
+   */
+  public int scanThreads;
+
+  /** Number of threads to use for converting PDF and Word files to XML.
+   *  <br><br>
+   */
+  public int extractThreads;
+
+  /** Maximum number of seconds to spend converting a PDF or Word file to
+   *  XML before giving up on it and skipping the file. Zero means no limit.
+   *  <br><br>
+   */
+  public int extractTimeout;
+
+  /** PDF or Word files larger than this many megabytes are skipped rather
+   *  than converted, to save the time of trying them.
+   *  Zero means no limit.
+   *  <br><br>
+   */
+  public int extractMaxSize;
+
+  /** Heap size limit, in megabytes, of each process converting PDF and
+   *  Word files. A process that runs out is replaced, and the file skipped.
+   *  Zero means the JVM's default.
+   *  <br><br>
+   */
+  public int extractMemory;
+
   /** Flag indicating whether or not to optimize the index after building it.
    *  <br><br>
    *
@@ -179,6 +233,26 @@ public class IndexerConfig
     // Default to building lazy files during the run.
     buildLazyFiles = true;
 
+    // Default to writing lazy files on the main indexing thread.
+    lazyThreads = 0;
+
+    // Default to parsing documents on the main indexing thread.
+    threads = 1;
+
+    // Default to building the index directly, without shards.
+    shards = 1;
+
+    // Default to scanning directories on the main indexing thread.
+    scanThreads = 1;
+
+    // Default to one conversion thread, which gives up on a file after
+    // ten minutes but doesn't limit file size.
+    //
+    extractThreads = 1;
+    extractTimeout = 600;
+    extractMaxSize = 0;
+    extractMemory = 512;
+
     // Default to always optimizing the index.
     optimize = true;
 
@@ -403,6 +477,126 @@ public class IndexerConfig
       else if (args[i].equalsIgnoreCase("-nobuildlazy"))
         buildLazyFiles = false;
 
+      // If the user wants lazy files written in the background, record
+      // how many threads to use.
+      //
+      else if (args[i].equalsIgnoreCase("-lazythreads")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          lazyThreads = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
+      // If the user wants documents parsed in parallel, record how many
+      // threads to use.
+      //
+      else if (args[i].equalsIgnoreCase("-threads")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          threads = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
+      // If the user wants a clean build split into shards, record how
+      // many.
+      //
+      else if (args[i].equalsIgnoreCase("-shards")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          shards = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
+      // If the user wants directories scanned in parallel, record how many
+      // threads to use.
+      //
+      else if (args[i].equalsIgnoreCase("-scanthreads")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          scanThreads = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
+      // If the user wants more threads converting PDF and Word files, record
+      // how many.
+      //
+      else if (args[i].equalsIgnoreCase("-extractthreads")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          extractThreads = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
+      // If the user wants a different time limit for converting PDF and Word
+      // files, record it.
+      //
+      else if (args[i].equalsIgnoreCase("-extracttimeout")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          extractTimeout = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
+      // If the user wants to skip PDF and Word files over a certain size,
+      // record it.
+      //
+      else if (args[i].equalsIgnoreCase("-extractmaxsize")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          extractMaxSize = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
+      // If the user wants a different heap size for the processes that
+      // convert PDF and Word files, record it.
+      //
+      else if (args[i].equalsIgnoreCase("-extractmemory")) 
+      {
+        if (++i >= args.length)
+          return -1;
+        try {
+          extractMemory = Integer.parseInt(args[i]);
+        }
+        catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+
       // If the user asked for us to skip the main indexing pass, flag it.
       else if (args[i].equalsIgnoreCase("-skipindexing"))
         skipIndexing = true;
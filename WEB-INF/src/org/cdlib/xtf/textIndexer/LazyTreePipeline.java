@@ -0,0 +1,363 @@
+package org.cdlib.xtf.textIndexer;
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Templates;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.event.ReceivingContentHandler;
+import net.sf.saxon.om.NamePool;
+
+import org.apache.lucene.util.IntList;
+import org.cdlib.xtf.lazyTree.LazyTreeBuilder;
+import org.cdlib.xtf.util.StructuredStore;
+import org.cdlib.xtf.util.Trace;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Writes lazy trees on a set of background threads, so that lazy file
+ * generation overlaps with tokenizing and Lucene indexing. The indexer
+ * records the SAX events for each document into an {@link EventBuffer}
+ * as it parses, then hands the buffer to {@link #submit}; a worker thread
+ * later replays the events into a {@link LazyTreeBuilder}, builds any
+ * stored xsl:keys, and closes the lazy store.
+ *
+ * The number of buffers waiting for a worker is bounded. When the queue
+ * fills, the indexing thread writes the tree itself, which keeps memory
+ * use in check if lazy writing can't keep up.
+ */
+class LazyTreePipeline 
+{
+  /** Worker pool that writes the trees */
+  private ThreadPoolExecutor executor;
+
+  /** First error encountered by a worker, reported by {@link #flush()} */
+  private Throwable firstError;
+
+  /** Number of trees submitted but not yet finished */
+  private int nPending = 0;
+
+  /**
+   * Construct a pipeline with the given number of worker threads.
+   *
+   * @param nThreads    How many trees to write at once
+   */
+  public LazyTreePipeline(int nThreads) 
+  {
+    executor = new ThreadPoolExecutor(nThreads, nThreads, 
+                                      60, TimeUnit.SECONDS,
+                                      new ArrayBlockingQueue<Runnable>(nThreads * 2),
+                                      new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /** Make a new buffer to record the SAX events of one document. */
+  public EventBuffer newBuffer() {
+    return new EventBuffer();
+  }
+
+  /**
+   * Queue a recorded document to be written to its lazy store.
+   *
+   * @param events        Recorded SAX events for the document
+   * @param lazyStore     Where to write the tree. Closed when done.
+   * @param displayStyle  Stylesheet whose xsl:keys should be pre-built,
+   *                      or null for none.
+   * @param prettyKey     Name of the document, for error messages
+   */
+  public void submit(final EventBuffer events, 
+                     final StructuredStore lazyStore,
+                     final Templates displayStyle,
+                     final String prettyKey) 
+  {
+    synchronized (this) {
+      ++nPending;
+    }
+
+    executor.execute(new Runnable() 
+    {
+      public void run() 
+      {
+        try {
+          writeTree(events, lazyStore, displayStyle);
+        }
+        catch (Throwable t) {
+          Trace.error("Error writing lazy tree for [" + prettyKey + "]: " + t);
+          try {
+            lazyStore.delete();
+          }
+          catch (IOException e) {
+            // Already reporting a more important error, so ignore this one.
+          }
+          synchronized (LazyTreePipeline.this) {
+            if (firstError == null)
+              firstError = t;
+          }
+        }
+        finally {
+          synchronized (LazyTreePipeline.this) {
+            --nPending;
+            LazyTreePipeline.this.notifyAll();
+          }
+        }
+      }
+    });
+  } // submit()
+
+  /**
+   * Wait for all submitted trees to be written.
+   *
+   * @throws IOException  If any of the trees couldn't be written.
+   */
+  public void flush()
+    throws IOException 
+  {
+    synchronized (this) 
+    {
+      while (nPending > 0) {
+        try {
+          wait();
+        }
+        catch (InterruptedException e) {
+          throw new IOException("Interrupted waiting for lazy trees");
+        }
+      }
+
+      if (firstError != null) {
+        Throwable t = firstError;
+        firstError = null;
+        if (t instanceof IOException)
+          throw (IOException)t;
+        throw new IOException("Error writing lazy tree: " + t);
+      }
+    }
+  } // flush()
+
+  /** Wait for outstanding trees, then shut down the worker threads. */
+  public void close()
+    throws IOException 
+  {
+    try {
+      flush();
+    }
+    finally {
+      executor.shutdown();
+    }
+  } // close()
+
+  /**
+   * Does the work of replaying the events for one document into a lazy
+   * tree builder, pre-caching keys, and closing the store.
+   */
+  private void writeTree(EventBuffer events, StructuredStore lazyStore,
+                         Templates displayStyle)
+    throws Exception 
+  {
+    Configuration config = new Configuration();
+    config.setNamePool(NamePool.getDefaultNamePool());
+    LazyTreeBuilder lazyBuilder = new LazyTreeBuilder(config);
+    Receiver lazyReceiver = lazyBuilder.begin(lazyStore);
+    lazyBuilder.setNamePool(config.getNamePool());
+
+    ReceivingContentHandler lazyHandler = new ReceivingContentHandler();
+    lazyHandler.setReceiver(lazyReceiver);
+    lazyHandler.setPipelineConfiguration(lazyReceiver.getPipelineConfiguration());
+
+    try {
+      events.replay(lazyHandler);
+    }
+    catch (SAXException e) {
+      lazyBuilder.abort(lazyReceiver);
+      throw e;
+    }
+
+    lazyBuilder.finish(lazyReceiver, false); // don't close Store yet
+
+    // Build stored keys (if any) before closing the store.
+    if (displayStyle != null)
+      XMLTextProcessor.precacheXSLKeys(displayStyle, lazyBuilder, lazyStore);
+
+    lazyStore.close();
+  } // writeTree()
+
+  /**
+   * Records the SAX events that make up a lazy tree, in a compact form
+   * suitable for replaying later on another thread. Only the events the
+   * lazy tree builder cares about are kept.
+   */
+  static class EventBuffer extends DefaultHandler 
+  {
+    private static final byte START_DOCUMENT = 0;
+    private static final byte END_DOCUMENT = 1;
+    private static final byte START_ELEMENT = 2;
+    private static final byte END_ELEMENT = 3;
+    private static final byte CHARACTERS = 4;
+    private static final byte START_PREFIX = 5;
+    private static final byte END_PREFIX = 6;
+
+    /** Event codes, in order */
+    private byte[] ops = new byte[256];
+
+    /** Number of events recorded */
+    private int nOps = 0;
+
+    /** Names and attributes referenced by the events, in order */
+    private ArrayList<Object> objs = new ArrayList<Object>();
+
+    /** All character data, concatenated */
+    private char[] text = new char[4096];
+
+    /** Amount of character data */
+    private int textLength = 0;
+
+    /** Start and length of each character event in {@link #text} */
+    private IntList textSpans = new IntList();
+
+    private void addOp(byte op) 
+    {
+      if (nOps == ops.length) {
+        byte[] old = ops;
+        ops = new byte[old.length * 2];
+        System.arraycopy(old, 0, ops, 0, nOps);
+      }
+      ops[nOps++] = op;
+    }
+
+    public void startDocument() {
+      addOp(START_DOCUMENT);
+    }
+
+    public void endDocument() {
+      addOp(END_DOCUMENT);
+    }
+
+    public void startElement(String uri, String localName, String qName,
+                             Attributes atts) 
+    {
+      addOp(START_ELEMENT);
+      objs.add(uri);
+      objs.add(localName);
+      objs.add(qName);
+      objs.add(new AttributesImpl(atts));
+    }
+
+    public void endElement(String uri, String localName, String qName) {
+      addOp(END_ELEMENT);
+      objs.add(uri);
+      objs.add(localName);
+      objs.add(qName);
+    }
+
+    public void characters(char[] ch, int start, int length) 
+    {
+      addOp(CHARACTERS);
+      if (textLength + length > text.length) {
+        char[] old = text;
+        text = new char[Math.max(old.length * 2, textLength + length)];
+        System.arraycopy(old, 0, text, 0, textLength);
+      }
+      System.arraycopy(ch, start, text, textLength, length);
+      textSpans.add(textLength);
+      textSpans.add(length);
+      textLength += length;
+    }
+
+    public void startPrefixMapping(String prefix, String uri) {
+      addOp(START_PREFIX);
+      objs.add(prefix);
+      objs.add(uri);
+    }
+
+    public void endPrefixMapping(String prefix) {
+      addOp(END_PREFIX);
+      objs.add(prefix);
+    }
+
+    /** Send all the recorded events, in order, to the given handler. */
+    public void replay(ContentHandler handler)
+      throws SAXException 
+    {
+      int objPos = 0;
+      int spanPos = 0;
+      for (int i = 0; i < nOps; i++) 
+      {
+        switch (ops[i]) 
+        {
+          case START_DOCUMENT:
+            handler.startDocument();
+            break;
+          case END_DOCUMENT:
+            handler.endDocument();
+            break;
+          case START_ELEMENT:
+            handler.startElement((String)objs.get(objPos),
+                                 (String)objs.get(objPos + 1),
+                                 (String)objs.get(objPos + 2),
+                                 (Attributes)objs.get(objPos + 3));
+            objPos += 4;
+            break;
+          case END_ELEMENT:
+            handler.endElement((String)objs.get(objPos),
+                               (String)objs.get(objPos + 1),
+                               (String)objs.get(objPos + 2));
+            objPos += 3;
+            break;
+          case CHARACTERS:
+            handler.characters(text, textSpans.get(spanPos), 
+                               textSpans.get(spanPos + 1));
+            spanPos += 2;
+            break;
+          case START_PREFIX:
+            handler.startPrefixMapping((String)objs.get(objPos),
+                                       (String)objs.get(objPos + 1));
+            objPos += 2;
+            break;
+          case END_PREFIX:
+            handler.endPrefixMapping((String)objs.get(objPos));
+            objPos += 1;
+            break;
+          default:
+            assert false : "Unknown event code";
+        }
+      }
+    } // replay()
+  } // class EventBuffer
+} // class LazyTreePipeline
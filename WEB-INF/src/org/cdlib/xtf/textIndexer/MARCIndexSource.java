@@ -41,10 +41,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
@@ -54,6 +55,7 @@ import javax.xml.transform.sax.SAXSource;
 import org.apache.lucene.util.CountedInputStream;
 import org.cdlib.xtf.util.Normalizer;
 import org.cdlib.xtf.util.StructuredStore;
+import org.cdlib.xtf.util.Trace;
 import org.marc4j.marc.MarcConstants;
 import org.marc4j.marcxml.Converter;
 import org.marc4j.marcxml.DoctypeDecl;
@@ -63,10 +65,14 @@ import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * Supplies MARC data to an XTF index, breaking it up into individual MARCXML
- * records.
+ * records. A background thread converts the MARC data, recording the SAX
+ * events of each record (rather than writing it out as XML text), and hands
+ * the records over in batches.
  *
  * @author Martin Haye
  */
@@ -116,6 +122,19 @@ public class MARCIndexSource extends IndexSource
   /** Record handling thread */
   private RecordHandler recordHandler;
 
+  /** Number of records the handler thread passes over at a time */
+  private static final int BATCH_SIZE = 100;
+
+  /** Max # of batches the handler thread may get ahead of us */
+  private static final int MAX_BATCHES_AHEAD = 4;
+
+  /** The batch of records we're working through, and where we are in it */
+  private ArrayList<ParsedRecord> curBatch;
+  private int batchPos;
+
+  /** When we started on the file, for reporting throughput */
+  private long startTime;
+
   /** Are we there yet? */
   private boolean isDone = false;
   private int recordNum = 0;
@@ -156,54 +175,50 @@ public class MARCIndexSource extends IndexSource
     // Open the MARC file if we haven't already.
     openFile();
 
-    // Get the next record from the handler thread.
-    String parsedMarcXML = null;
-    synchronized (recordHandler) 
+    // Get the next batch of records from the handler thread if necessary.
+    // An empty batch means it has finished.
+    //
+    if (curBatch == null || batchPos == curBatch.size()) 
     {
-      while (true) 
-      {
-        if (recordHandler.isDone) {
-          isDone = true;
-          break;
-        }
-        if (recordHandler.parsedMarcXML != null) {
-          parsedMarcXML = recordHandler.parsedMarcXML;
-          ++recordNum;
-          recordHandler.parsedMarcXML = null;
-          recordHandler.notifyAll();
-          break;
-        }
-        try {
-          recordHandler.wait();
-        }
-        catch (InterruptedException e) {
-          assert false : "how could this thread be interrupted??";
-          isDone = true;
-          break;
-        }
+      try {
+        curBatch = recordHandler.batches.take();
+      }
+      catch (InterruptedException e) {
+        throw new IOException("Interrupted waiting for MARC records");
       }
-    } // sync
+      batchPos = 0;
 
-    // If we ran out of records, say so.
-    if (isDone)
-      return null;
+      if (curBatch.isEmpty()) {
+        isDone = true;
+        finishFile();
+        return null;
+      }
+    }
+
+    // Take the next record (letting go of it in the batch, to save memory.)
+    final ParsedRecord parsed = curBatch.get(batchPos);
+    curBatch.set(batchPos++, null);
+    final int num = ++recordNum;
 
     // Okay, make a record out of it.
-    final Reader reader = new StringReader(parsedMarcXML);
     return new IndexRecord() 
     {
       public InputSource xmlSource()
         throws IOException 
       {
-        return new InputSource(reader);
+        return new InputSource();
+      }
+
+      public XMLReader xmlReader() {
+        return new EventReader(parsed.events);
       }
 
       public int recordNum() {
-        return recordNum;
+        return num;
       }
 
       public int percentDone() {
-        return (int)((rawStream.nRead() + 1) * 100 / fileSize);
+        return (int)((parsed.endPos + 1) * 100 / fileSize);
       }
 
       public StructuredStore lazyStore() {
@@ -228,20 +243,47 @@ public class MARCIndexSource extends IndexSource
     //
     recordHandler = new RecordHandler();
 
-    // Fire up the thread that will do the conversion.
+    // Fire up the thread that will do the conversion. Make it a daemon, so
+    // that it can't hold up the indexer if we stop partway through.
+    //
+    startTime = System.currentTimeMillis();
+    recordHandler.setDaemon(true);
     recordHandler.start();
   } // openFile()
 
+  /** Report any error from the handler thread, and how fast we went. */
+  private void finishFile() 
+  {
+    if (recordHandler.error != null) {
+      Trace.error("*** Error reading MARC data after record " + recordNum + 
+                  ": " + recordHandler.error);
+    }
+
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+    Trace.more(Trace.info, "(" + recordNum + " records, " + 
+               (recordNum * 1000L / elapsed) + " records/sec) ... ");
+  } // finishFile()
+
+  /** The recorded SAX events of one record, and where it ended in the file */
+  private static class ParsedRecord 
+  {
+    LazyTreePipeline.EventBuffer events;
+    long endPos;
+
+    ParsedRecord(LazyTreePipeline.EventBuffer events, long endPos) {
+      this.events = events;
+      this.endPos = endPos;
+    }
+  } // class ParsedRecord
+
   /**
    * Handles running blocks of records through the stylesheet
    */
   private class RecordHandler extends Thread implements ContentHandler 
   {
-    /** A single parsed MARCXML record */
-    public String parsedMarcXML = null;
-
-    /** Set to true when this thread has finished its business. */
-    public boolean isDone = false;
+    /** Batches of recorded records, ready for the main thread */
+    public ArrayBlockingQueue<ArrayList<ParsedRecord>> batches = 
+      new ArrayBlockingQueue<ArrayList<ParsedRecord>>(MAX_BATCHES_AHEAD);
 
     /** If an exception occured, it is recorded here */
     public Throwable error = null;
@@ -255,8 +297,21 @@ public class MARCIndexSource extends IndexSource
     /** Mapping from URI to name */
     private HashMap prefixUriToName = new HashMap();
 
-    /** Accumulates the current MARCXML record */
-    private StringBuffer buffer = new StringBuffer();
+    /** Namespace of the record element */
+    private String recordUri;
+
+    /** Number of prefixes declared on the record element */
+    private int nRecordPrefixes;
+
+    /** Records the events of the current MARCXML record (null if between
+     *  records) */
+    private LazyTreePipeline.EventBuffer events;
+
+    /** Text of the newline after the record's start tag */
+    private final char[] NEWLINE = { '\n' };
+
+    /** Records converted but not yet passed on */
+    private ArrayList<ParsedRecord> batch = new ArrayList<ParsedRecord>();
     private int recordNum = 0;
 
     public void run() 
@@ -290,10 +345,16 @@ public class MARCIndexSource extends IndexSource
       catch (Throwable t) {
         error = t;
       }
-      finally {
-        isDone = true;
-        synchronized (this) {
-          notifyAll();
+      finally 
+      {
+        // Pass on the last records, then an empty batch to mark the end.
+        try {
+          if (!batch.isEmpty())
+            batches.put(batch);
+          batches.put(new ArrayList<ParsedRecord>());
+        }
+        catch (InterruptedException e) {
+          // Nobody is waiting for us any more.
         }
       }
     }
@@ -351,55 +412,53 @@ public class MARCIndexSource extends IndexSource
     private void beginChunk()
       throws SAXException 
     {
-      buffer.setLength(0);
-      buffer.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+      events = new LazyTreePipeline.EventBuffer();
+      events.startDocument();
 
       // Output the record wrapper, with any namespace prefix declarations.
-      buffer.append("<record");
-      for (int i = 0; i < prefixNames.size(); i++) 
+      // It goes in the default namespace, if one has been declared.
+      //
+      recordUri = "";
+      nRecordPrefixes = prefixNames.size();
+      for (int i = 0; i < nRecordPrefixes; i++) 
       {
         String prefixName = (String)prefixNames.get(i);
         String prefixUri = (String)prefixUris.get(i);
-        buffer.append(" xmlns");
-        if (prefixName != null && prefixName.length() > 0) {
-          buffer.append(':');
-          buffer.append(prefixName);
-        }
-        buffer.append("=\"");
-        buffer.append(prefixUri);
-        buffer.append('\"');
+        if (prefixName == null)
+          prefixName = "";
+        if (prefixName.length() == 0)
+          recordUri = prefixUri;
+        events.startPrefixMapping(prefixName, prefixUri);
       }
-      buffer.append(">\n");
+      events.startElement(recordUri, "record", "record", new AttributesImpl());
+      events.characters(NEWLINE, 0, 1);
     }
 
     private void endChunk()
       throws SAXException 
     {
-      buffer.append("</record>\n");
+      events.endElement(recordUri, "record", "record");
+      for (int i = nRecordPrefixes - 1; i >= 0; i--) {
+        String prefixName = (String)prefixNames.get(i);
+        events.endPrefixMapping(prefixName == null ? "" : prefixName);
+      }
+      events.endDocument();
 
-      // Pass the newly parsed record to the main thread.
-      synchronized (this) 
+      // Add the new record to the batch, and pass the batch to the main
+      // thread if it's full (waiting if it's too far behind.)
+      //
+      batch.add(new ParsedRecord(events, rawStream.nRead()));
+      events = null;
+      ++recordNum;
+      if (batch.size() >= BATCH_SIZE) 
       {
-        // Put up the new record, and notify the main thread.
-        assert parsedMarcXML == null; // invalid state?
-        parsedMarcXML = buffer.toString();
-        ++recordNum;
-        notifyAll();
-
-        // Now wait for it to be consumed. Previously this wait was before
-        // putting up the new record, and that caused the last record of
-        // the file to be missed because by the time the main thread got
-        // around to looking, our isDone flag would already be set.
-        //
-        while (parsedMarcXML != null) 
-        {
-          try {
-            wait();
-          }
-          catch (InterruptedException e) {
-            throw new RuntimeException(e);
-          }
+        try {
+          batches.put(batch);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
         }
+        batch = new ArrayList<ParsedRecord>();
       }
     } // endChunk()
 
@@ -425,46 +484,12 @@ public class MARCIndexSource extends IndexSource
         return;
       }
 
-      // First, the "<"
-      buffer.append("<");
-
-      // Then the element name.
-      if (qName != null)
-        buffer.append(qName);
-      else if (uri != null) {
-        String prefix = (String)prefixUriToName.get(uri);
-        assert prefix != null : "invalid URI??";
-        buffer.append(prefix);
-        buffer.append(':');
-        buffer.append(localName);
-      }
-      else
-        buffer.append(localName);
-
-      // Then each attribute.
-      for (int i = 0; i < atts.getLength(); i++) 
-      {
-        buffer.append(' ');
-
-        if (atts.getQName(i) != null)
-          buffer.append(atts.getQName(i));
-        else if (atts.getURI(i) != null) {
-          String prefix = (String)prefixUriToName.get(atts.getURI(i));
-          assert prefix != null : "invalid URI??";
-          buffer.append(prefix);
-          buffer.append(':');
-          buffer.append(atts.getLocalName(i));
-        }
-        else
-          buffer.append(atts.getLocalName(i));
-
-        buffer.append("=\"");
-        buffer.append(atts.getValue(i));
-        buffer.append("\"");
-      }
+      // Skip anything outside a record.
+      if (events == null)
+        return;
 
-      // Close the declaration.
-      buffer.append(">");
+      events.startElement(uri == null ? "" : uri, localName, 
+                          fullName(uri, localName, qName), atts);
     }
 
     public void endElement(String uri, String localName, String qName)
@@ -475,29 +500,35 @@ public class MARCIndexSource extends IndexSource
         return;
       }
 
-      // First, the "</"
-      buffer.append("</");
+      // Skip anything outside a record.
+      if (events == null)
+        return;
+
+      events.endElement(uri == null ? "" : uri, localName, 
+                        fullName(uri, localName, qName));
+    }
 
-      // Then the element name.
-      if (qName != null)
-        buffer.append(qName);
-      else if (uri != null) {
+    /** Figure out the prefixed name of an element, if we weren't told. */
+    private String fullName(String uri, String localName, String qName)
+    {
+      if (qName != null && qName.length() > 0)
+        return qName;
+      if (uri != null && uri.length() > 0) {
         String prefix = (String)prefixUriToName.get(uri);
         assert prefix != null : "invalid URI??";
-        buffer.append(prefix);
-        buffer.append(':');
-        buffer.append(localName);
+        if (prefix.length() > 0)
+          return prefix + ":" + localName;
       }
-      else
-        buffer.append(localName);
-
-      // Then the end.
-      buffer.append(">");
+      return localName;
     }
 
     public void characters(char[] ch, int start, int length)
       throws SAXException 
     {
+      // Skip anything outside a record.
+      if (events == null)
+        return;
+
       String s = convertFromUTF8(ch, start, length);
       if (s != null) {
         ch = s.toCharArray();
@@ -506,26 +537,21 @@ public class MARCIndexSource extends IndexSource
       }
 
       // Scan for suspicious characters that might need Unicode 
-      // normalization.
+      // normalization, or aren't allowed in XML at all.
       //
       boolean needNormalize = false;
-      int needEscape = 0;
+      int needFix = 0;
       for (int i = start; i < start + length; i++) 
       {
         if ((ch[i] & ~0x7f) != 0)
           needNormalize = true;
 
-        if (ch[i] == '&' || ch[i] == '<')
-          ++needEscape;
-        else if (ch[i] < '\u0020' &&
-                 (ch[i] != '\t' && ch[i] != '\n' && ch[i] != '\r')) 
-        {
-          ++needEscape;
-        }
+        if (ch[i] < '\u0020' && (ch[i] != '\t' && ch[i] != '\n'))
+          ++needFix;
         else if (ch[i] >= '\uD800' && ch[i] <= '\uDFFF')
-          ++needEscape;
+          ++needFix;
         else if (ch[i] >= '\uFFFE' && ch[i] <= '\uFFFF')
-          ++needEscape;
+          ++needFix;
       }
 
       if (needNormalize) 
@@ -542,31 +568,21 @@ public class MARCIndexSource extends IndexSource
         }
       }
 
-      if (needEscape > 0) 
+      // Remove invalid characters, and turn carriage returns into newlines
+      // the way an XML parser would.
+      //
+      if (needFix > 0) 
       {
-        int maxSpace = length + (needEscape * 5);
-        char[] newCh = new char[maxSpace];
+        char[] newCh = new char[length];
         int dp = 0;
         for (int sp = start; sp < (start + length); sp++) 
         {
-          if (ch[sp] == '&') {
-            newCh[dp++] = '&';
-            newCh[dp++] = 'a';
-            newCh[dp++] = 'm';
-            newCh[dp++] = 'p';
-            newCh[dp++] = ';';
+          if (ch[sp] == '\r') {
+            if (sp + 1 == start + length || ch[sp + 1] != '\n')
+              newCh[dp++] = '\n';
           }
-          else if (ch[sp] == '<') {
-            newCh[dp++] = '&';
-            newCh[dp++] = 'l';
-            newCh[dp++] = 't';
-            newCh[dp++] = ';';
-          }
-          else if (ch[sp] < '\u0020' &&
-                   (ch[sp] != '\t' && ch[sp] != '\n' && ch[sp] != '\r')) 
-          {
+          else if (ch[sp] < '\u0020' && (ch[sp] != '\t' && ch[sp] != '\n'))
             ; // delete invalid character
-          }
           else if (ch[sp] >= '\uD800' && ch[sp] <= '\uDFFF')
             ; // delete invalid character
           else if (ch[sp] >= '\uFFFE' && ch[sp] <= '\uFFFF')
@@ -579,7 +595,7 @@ public class MARCIndexSource extends IndexSource
         length = dp;
       }
 
-      buffer.append(ch, start, length);
+      events.characters(ch, start, length);
     }
 
     public void startPrefixMapping(String prefix, String uri)
@@ -588,11 +604,15 @@ public class MARCIndexSource extends IndexSource
       prefixNames.add(prefix);
       prefixUris.add(uri);
       prefixUriToName.put(uri, prefix);
+      if (events != null)
+        events.startPrefixMapping(prefix, uri);
     }
 
     public void endPrefixMapping(String prefix)
       throws SAXException 
     {
+      if (events != null)
+        events.endPrefixMapping(prefix);
     }
 
     public void ignorableWhitespace(char[] ch, int start, int length)
@@ -40,6 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.util.StringTokenizer;
+import java.util.concurrent.Future;
 
 import javax.xml.transform.Templates;
 
@@ -58,54 +59,102 @@ public class MSWordIndexSource extends XMLIndexSource
   /** Constructor -- initializes all the fields */
   public MSWordIndexSource(File msWordFile, String key, Templates[] preFilters,
                            Templates displayStyle, StructuredStore lazyStore) 
+  {
+    this(msWordFile, key, preFilters, displayStyle, lazyStore, null);
+  }
+
+  /** Constructor that converts the Word file using a pool of workers */
+  public MSWordIndexSource(File msWordFile, String key, Templates[] preFilters,
+                           Templates displayStyle, StructuredStore lazyStore,
+                           ExtractionPool extractor) 
   {
     super(null, msWordFile, key, preFilters, displayStyle, lazyStore);
     this.msWordFile = msWordFile;
+    this.extractor = extractor;
   }
 
   /** Source of MS Word document data */
   private File msWordFile;
 
-  /** Transform the MS Word file to XML data */
-  protected InputSource filterInput()
-    throws IOException 
+  /** Pool to convert the Word file on, or null to convert it directly */
+  private ExtractionPool extractor;
+
+  /** Conversion in progress on the pool, if any */
+  private Future<String> pending;
+
+  /** Converts MS Word files to XML strings */
+  static final ExtractionPool.Converter converter = new MSWordConverter();
+
+  /** The conversion, in a class the worker processes can create */
+  static class MSWordConverter implements ExtractionPool.Converter 
   {
-    // Open the Word file and see if we can understand it.
-    InputStream inStream = new FileInputStream(msWordFile);
-    try 
+    public String name() {
+      return "msword";
+    }
+
+    public String convert(File msWordFile) throws IOException 
     {
-      // Try to extract the text.
-      TextExtractor extractor = new WordTextExtractorFactory().textExtractor(inStream);
-      String str = extractor.getText();
+      // Open the Word file and see if we can understand it.
+      InputStream inStream = new FileInputStream(msWordFile);
+      try 
+      {
+        // Try to extract the text.
+        TextExtractor extractor = new WordTextExtractorFactory().textExtractor(inStream);
+        String str = extractor.getText();
 
-      // Break it up into paragraphs.
-      StringBuffer outBuf = new StringBuffer((int) msWordFile.length());
-      outBuf.append("<rippedMSWordText>\n");
-      StringTokenizer st = new StringTokenizer(str, "\r\t", false);
-      while (st.hasMoreTokens()) {
-        String para = st.nextToken().trim();
-        // Remove invalid Unicode chars, escape ampersands & stuff.
-        para = normalize(para);
-        if (para.length() > 0) {
-          outBuf.append("  <p>" + para + "</p>\n");
+        // Break it up into paragraphs.
+        StringBuffer outBuf = new StringBuffer((int) msWordFile.length());
+        outBuf.append("<rippedMSWordText>\n");
+        StringTokenizer st = new StringTokenizer(str, "\r\t", false);
+        while (st.hasMoreTokens()) {
+          String para = st.nextToken().trim();
+          // Remove invalid Unicode chars, escape ampersands & stuff.
+          para = normalize(para);
+          if (para.length() > 0) {
+            outBuf.append("  <p>" + para + "</p>\n");
+          }
         }
+        outBuf.append("</rippedMSWordText>\n");
+        return outBuf.toString();
+      }
+      catch (IOException e) {
+        throw e;
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      finally {
+        inStream.close();
       }
-      outBuf.append("</rippedMSWordText>\n");
-
-      // And make an InputSource with a proper system ID
-      InputSource finalSrc = new InputSource(new StringReader(outBuf.toString()));
-      finalSrc.setSystemId(msWordFile.toURL().toString());
-      return finalSrc;
-    }
-    catch (IOException e) {
-      throw e;
-    }
-    catch (Exception e) {
-      throw new RuntimeException(e);
     }
-    finally {
-      inStream.close();
+  } // class MSWordConverter
+
+  // inherit JavaDoc
+  public void prefetch() {
+    if (extractor != null && pending == null)
+      pending = extractor.submit(key(), msWordFile, converter);
+  }
+
+  /** Transform the MS Word file to XML data */
+  protected InputSource filterInput()
+    throws IOException 
+  {
+    String xmlStr;
+    if (extractor == null)
+      xmlStr = converter.convert(msWordFile);
+    else {
+      prefetch();
+      try {
+        xmlStr = extractor.await(pending, msWordFile);
+      }
+      finally {
+        pending = null;
+      }
     }
 
+    // And make an InputSource with a proper system ID
+    InputSource finalSrc = new InputSource(new StringReader(xmlStr));
+    finalSrc.setSystemId(msWordFile.toURL().toString());
+    return finalSrc;
   } // filterInput()
 } // class MSWordIndexSource
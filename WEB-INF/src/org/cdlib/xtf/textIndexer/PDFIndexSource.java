@@ -40,6 +40,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.util.concurrent.Future;
 import javax.xml.transform.Templates;
 import org.cdlib.xtf.util.StructuredStore;
 import org.xml.sax.InputSource;
@@ -54,21 +55,74 @@ public class PDFIndexSource extends XMLIndexSource
   /** Constructor -- initializes all the fields */
   public PDFIndexSource(File pdfFile, String key, Templates[] preFilters,
                         Templates displayStyle, StructuredStore lazyStore) 
+  {
+    this(pdfFile, key, preFilters, displayStyle, lazyStore, null);
+  }
+
+  /** Constructor that converts the PDF file using a pool of workers */
+  public PDFIndexSource(File pdfFile, String key, Templates[] preFilters,
+                        Templates displayStyle, StructuredStore lazyStore,
+                        ExtractionPool extractor) 
   {
     super(null, pdfFile, key, preFilters, displayStyle, lazyStore);
     this.pdfFile = pdfFile;
+    this.extractor = extractor;
   }
 
   /** Source of PDF data */
   private File pdfFile;
 
+  /** Pool to convert the PDF file on, or null to convert it directly */
+  private ExtractionPool extractor;
+
+  /** Conversion in progress on the pool, if any */
+  private Future<String> pending;
+
+  /** Converts PDF files to XML strings */
+  static final ExtractionPool.Converter converter = new PDFConverter();
+
+  /** The conversion, in a class the worker processes can create */
+  static class PDFConverter implements ExtractionPool.Converter 
+  {
+    public String name() {
+      return "pdf";
+    }
+
+    public String convert(File file) throws IOException 
+    {
+      InputStream inStream = new FileInputStream(file);
+      try {
+        return PDFToString.convert(inStream);
+      }
+      finally {
+        inStream.close();
+      }
+    }
+  } // class PDFConverter
+
+  // inherit JavaDoc
+  public void prefetch() {
+    if (extractor != null && pending == null)
+      pending = extractor.submit(key(), pdfFile, converter);
+  }
+
   /** Transform the PDF file to XML data */
   protected InputSource filterInput()
     throws IOException 
   {
     // Convert the PDF file into an XML string that we can index.
-    InputStream inStream = new FileInputStream(pdfFile);
-    String pdfXMLStr = PDFToString.convert(inStream);
+    String pdfXMLStr;
+    if (extractor == null)
+      pdfXMLStr = converter.convert(pdfFile);
+    else {
+      prefetch();
+      try {
+        pdfXMLStr = extractor.await(pending, pdfFile);
+      }
+      finally {
+        pending = null;
+      }
+    }
 
     // And make an InputSource with a proper system ID
     InputSource finalSrc = new InputSource(new StringReader(pdfXMLStr));
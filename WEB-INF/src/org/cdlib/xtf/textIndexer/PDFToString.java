@@ -49,9 +49,6 @@ public class PDFToString
 {
   static boolean mustConfigureLogger = true;
 
-  /** PDFBox text stripper. Created once to save time. */
-  static PDFTextStripper stripper;
-
   //////////////////////////////////////////////////////////////////////////////
 
   /** Convert a PDF file into an XML string.
@@ -67,9 +64,10 @@ public class PDFToString
   static String convert(InputStream PDFInputStream)
     throws IOException 
   {
-    // Make a stripper if we haven't already.
-    if (stripper == null)
-      stripper = new PDFTextStripper();
+    // Make a stripper. Each conversion gets its own, since they may run
+    // on several threads at once.
+    //
+    PDFTextStripper stripper = new PDFTextStripper();
 
     // Workaround: using PDFTextStripper normally results in a Window
     // being created. However, since we're running in a servlet container, this
@@ -145,7 +143,12 @@ public class PDFToString
         formatter.endAllTags();
       } // try
 
-      // If anything went wrong, say what it was.    
+      // Running out of memory isn't worth going on with. Otherwise, if
+      // anything went wrong, say what it was.
+      //
+      catch (OutOfMemoryError e) {
+        throw e;
+      }
       catch (Throwable t) {
         Trace.error("*** PDFToXML.convert() Exception: " + t.getClass());
         Trace.error("                    With message: " + t.getMessage());
@@ -159,6 +162,9 @@ public class PDFToString
     } // try
 
     // Shunt out any other exceptions.
+    catch (OutOfMemoryError e) {
+      throw e;
+    }
     catch (Throwable t) {
       Trace.error("*** PDFToXML.convert() Exception: " + t.getClass());
       Trace.error("                    With message: " + t.getMessage());
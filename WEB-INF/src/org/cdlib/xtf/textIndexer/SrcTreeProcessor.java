@@ -37,6 +37,14 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.sax.SAXSource;
@@ -77,14 +85,21 @@ public class SrcTreeProcessor
 {
   private IndexerConfig cfgInfo;
   private XMLTextProcessor textProcessor;
+  private XMLTextProcessor[] shardProcessors;
   private StylesheetCache stylesheetCache = new StylesheetCache(100, 0, true);
   private Templates docSelector;
   private int nScanned = 0;
-  private StringBuffer docBuf = new StringBuffer(1024);
-  private StringBuffer dirBuf = new StringBuffer(1024);
+  private ExecutorService scanPool;
+  private AtomicInteger scansAhead = new AtomicInteger();
   private String docSelPath;
   private File docSelCacheFile;
   private DocSelCache docSelCache = new DocSelCache();
+  private File hashManifestFile;
+  private HashManifest hashManifest = new HashManifest();
+  private ExtractionPool extractionPool;
+
+  /** Max # of directories the scan threads may list ahead of the main one */
+  private static final int MAX_SCANS_AHEAD = 1000;
 
   ////////////////////////////////////////////////////////////////////////////
 
@@ -137,17 +152,134 @@ public class SrcTreeProcessor
                                       cfgInfo.indexInfo.docSelectorPath);
     docSelector = stylesheetCache.find(docSelPath);
 
-    // Load the previous docSelector cache (if any)
+    // Load the previous docSelector cache and hash manifest (if any)
     loadCache(cfgInfo);
+    loadManifest(cfgInfo);
+
+    // Hashing is mostly waiting on the disk, so use at least a couple of
+    // threads for it even if parsing is single-threaded.
+    //
+    hashManifest.startHashing(Math.max(2, cfgInfo.threads));
+
+    // PDF and Word files are converted in separate processes, a little 
+    // ahead of indexing. The converted text is cached next to the index
+    // (so it survives clean builds).
+    //
+    extractionPool = new ExtractionPool(cfgInfo.extractThreads, 
+                                        cfgInfo.extractTimeout,
+                                        cfgInfo.extractMaxSize * 1024L * 1024L,
+                                        cfgInfo.extractMemory,
+                                        new File(calcExtractCachePath()),
+                                        hashManifest);
 
     // Open the Lucene index specified by the config info.
     textProcessor.open(cfgInfo.xtfHomePath, cfgInfo.indexInfo, cfgInfo.clean,
         cfgInfo.force);
+    textProcessor.setLazyThreads(cfgInfo.lazyThreads);
+    textProcessor.setThreads(cfgInfo.threads);
+    textProcessor.setHashManifest(hashManifest);
+    textProcessor.setPrefetch(cfgInfo.extractThreads * 2);
+
+    // For a clean build, documents can be split among several shards that
+    // are indexed in parallel, then merged into the main index at the end.
+    //
+    if (cfgInfo.shards > 1) {
+      if (cfgInfo.clean)
+        openShards();
+      else
+        Trace.info("Note: -shards only applies to clean builds; ignoring.");
+    }
     cfgInfo.clean = false;
   } // open()
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Create a clean sub-index for each shard, next to the main index. Each
+   *  gets its own {@link XMLTextProcessor}; lazy files still go to the
+   *  main index, since their paths are calculated from its config.
+   */
+  private void openShards()
+    throws IOException 
+  {
+    shardProcessors = new XMLTextProcessor[cfgInfo.shards];
+    for (int i = 0; i < shardProcessors.length; i++) 
+    {
+      IndexInfo shardInfo = cfgInfo.indexInfo.clone();
+      shardInfo.indexPath = calcShardPath(i);
+
+      shardProcessors[i] = new XMLTextProcessor();
+      shardProcessors[i].open(cfgInfo.xtfHomePath, shardInfo, true, 
+                              cfgInfo.force);
+      shardProcessors[i].setLazyThreads(cfgInfo.lazyThreads);
+      shardProcessors[i].setThreads(cfgInfo.threads);
+      shardProcessors[i].setHashManifest(hashManifest);
+      shardProcessors[i].setPrefetch(cfgInfo.extractThreads * 2);
+    }
+  } // openShards()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Index the documents queued in each shard, each on its own thread, then
+   *  merge the shards into the main index and remove them.
+   */
+  private void closeShards()
+    throws Exception 
+  {
+    ExecutorService pool = Executors.newFixedThreadPool(shardProcessors.length);
+    try 
+    {
+      Future[] results = new Future[shardProcessors.length];
+      for (int i = 0; i < shardProcessors.length; i++) 
+      {
+        final XMLTextProcessor shard = shardProcessors[i];
+        results[i] = pool.submit(new Callable<Object>() 
+        {
+          public Object call() throws Exception 
+          {
+            try {
+              shard.processQueuedTexts();
+            }
+            finally {
+              shard.close();
+            }
+            return null;
+          }
+        });
+      }
+
+      // Wait for them all, and pass on the first failure (if any).
+      for (int i = 0; i < results.length; i++) 
+      {
+        try {
+          results[i].get();
+        }
+        catch (ExecutionException e) {
+          Throwable t = e.getCause();
+          if (t instanceof Exception)
+            throw (Exception)t;
+          throw (Error)t;
+        }
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    // Now combine them.
+    Trace.info("Merging " + shardProcessors.length + " shards ... ");
+    String[] shardPaths = new String[shardProcessors.length];
+    for (int i = 0; i < shardPaths.length; i++)
+      shardPaths[i] = calcShardPath(i);
+    IndexMerge.mergeInto(calcIndexPath(), shardPaths, cfgInfo.optimize);
+    for (int i = 0; i < shardPaths.length; i++)
+      Path.deleteDir(new File(shardPaths[i]));
+    Trace.more(Trace.info, "Done.");
+
+    shardProcessors = null;
+  } // closeShards()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Indexing close function. <br><br>
    *
    *  Calls the {@link org.cdlib.xtf.textIndexer.XMLTextProcessor}
@@ -164,25 +296,54 @@ public class SrcTreeProcessor
    *
    */
   public void close()
-    throws IOException 
+    throws Exception 
   {
-    // Flush the remaining open documents.    
-    textProcessor.processQueuedTexts();
+    try 
+    {
+      // Flush the remaining open documents.    
+      textProcessor.processQueuedTexts();
 
-    // Save the doc selector cache. We do this *after* processing the texts,
-    // in case something catastrophic happens in there.
-    //
-    saveCache();
+      // Close the index database.
+      textProcessor.close();
+
+      // If sharding, index the shards and merge them in.
+      if (shardProcessors != null)
+        closeShards();
+
+      // Save the doc selector cache and hash manifest. We do this *after* 
+      // processing the texts, in case something catastrophic happens in 
+      // there.
+      //
+      saveCache();
+      saveManifest();
+    }
+    finally {
+      // Stop converting (and get rid of the worker processes) no matter
+      // what.
+      //
+      extractionPool.shutdown();
+    }
+
+    // Forget conversions of files no longer indexed.
+    extractionPool.prune(hashManifest);
+    extractionPool = null;
 
     // Let go of the config info now that we're done with it.
     cfgInfo = null;
-
-    // Close the index database.
-    textProcessor.close();
   } // close()
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Get the keys and dates of the documents that were in the index before
+   *  this run, marked with the ones whose source files were seen during the
+   *  scan. Returns null if no files were checked against the index.
+   */
+  public IndexKeySnapshot getKeySnapshot() {
+    return textProcessor.getKeySnapshot();
+  } // getKeySnapshot()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   String calcIndexPath()
   {
     String indexPath = Path.resolveRelOrAbs(cfgInfo.xtfHomePath,
@@ -192,6 +353,26 @@ public class SrcTreeProcessor
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Figure out where a shard's sub-index goes: alongside the main index,
+   *  with a "-shardN" suffix.
+   */
+  String calcShardPath(int shardNum)
+  {
+    return calcIndexPath().replaceFirst("/$", "-shard" + (shardNum + 1) + "/");
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Figure out where converted PDF and Word files are cached: alongside the
+   *  main index, so that a clean build doesn't wipe them out.
+   */
+  String calcExtractCachePath()
+  {
+    return calcIndexPath().replaceFirst("/$", "-extractCache/");
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Load the previous docSelector cache.
    *
    *  @param cfgInfo   The {@link org.cdlib.xtf.textIndexer#IndexerConfig IndexerConfig}
@@ -270,10 +451,73 @@ public class SrcTreeProcessor
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Load the content hash manifest from the last run, if any.
+   *
+   *  @param cfgInfo   The {@link org.cdlib.xtf.textIndexer#IndexerConfig IndexerConfig}
+   *                   that indentifies the Lucene index. <br><br>
+   */
+  public void loadManifest(IndexerConfig cfgInfo) 
+  {
+    hashManifest.clear();
+    hashManifestFile = new File(calcIndexPath() + "hashManifest.dat");
+
+    // If we're making a clean index, delete the old manifest.
+    if (cfgInfo.clean) {
+      hashManifestFile.delete();
+      return;
+    }
+
+    // If the manifest doesn't exist, don't load it.
+    if (!hashManifestFile.canRead())
+      return;
+
+    try {
+      hashManifest.load(hashManifestFile);
+    }
+    catch (IOException e) {
+      Trace.warning(
+          "Warning: Error loading hash manifest \"" + hashManifestFile +
+          "\": " + e);
+      hashManifest.clear();
+    }
+  } // loadManifest()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Wait for the last content hashes to be calculated, drop entries for
+   *  documents no longer in the index, and save the manifest.
+   */
+  public void saveManifest()
+    throws InterruptedException 
+  {
+    hashManifest.finishHashing();
+
+    IndexKeySnapshot keySnapshot = textProcessor.getKeySnapshot();
+    if (keySnapshot != null)
+      hashManifest.prune(keySnapshot);
+
+    try {
+      hashManifest.save(hashManifestFile);
+    }
+    catch (IOException e) {
+      Trace.warning(
+        "Warning: Error writing hash manifest \"" + hashManifestFile + "\": " + e);
+    }
+  } // saveManifest()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Process a directory containing source XML files. <br><br>
    *
    * This method iterates through a source directory's contents indexing any
    * valid files it finds, any processing any sub-directories. <br><br>
+   * 
+   * If more than one scan thread is configured, directories are listed and
+   * run through the docSelector on a pool of threads, working ahead of the
+   * main thread. The main thread still visits the directories in the same
+   * order as a serial scan, so files are queued in a repeatable order. If
+   * a directory it needs hasn't been started yet, it does the work itself.
+   * <br><br>
    *
    * @param curDir        The current directory to be processed. <br>
    * @param subDirFilter  Sub-dirs to scan, or null for all. <br>
@@ -289,117 +533,59 @@ public class SrcTreeProcessor
   public void processDir(File curDir, SubDirFilter subDirFilter, boolean topLevel)
     throws Exception 
   {
+    if (cfgInfo.scanThreads > 1)
+      scanPool = Executors.newFixedThreadPool(cfgInfo.scanThreads);
+    try {
+      processScan(new DirScan(curDir, subDirFilter, topLevel));
+    }
+    finally 
+    {
+      // Any scans still queued are for directories we ended up skipping.
+      if (scanPool != null)
+        scanPool.shutdownNow();
+      scanPool = null;
+      scansAhead.set(0);
+    }
+  } // processDir()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Queue the files selected in a scanned directory, then go on to its
+   *  sub-directories (if appropriate.)
+   */
+  private void processScan(DirScan scan)
+    throws Exception 
+  {
+    scan.await();
+
     // If we're only doing a subset and this directory isn't in it, skip.
-    if (subDirFilter != null && !subDirFilter.approve(curDir))
+    if (scan.skipped)
       return;
     
-    // We're looking at a directory. Get the list of files it contains.
-    String[] fileStrs = curDir.getAbsoluteFile().list();
-    if (fileStrs == null) {
+    if (scan.fileStrs == null) {
       Trace.warning(
-        "Warning: error retrieving file list for directory: " + curDir);
+        "Warning: error retrieving file list for directory: " + scan.dir);
       return;
     }
+    scan.fileStrs = null;
 
-    ArrayList list = new ArrayList(fileStrs.length);
-    for (int i = 0; i < fileStrs.length; i++)
-      list.add(fileStrs[i]);
-    Collections.sort(list);
-
-    // Process all of the non-directory files first. Form a document 
-    // representing the directory and all its files.
+    // Print out dots as we process large amounts of files, just so 
+    // the user knows something is happening.
     //
-    docBuf.setLength(0);
-    dirBuf.setLength(0);
-
-    String dirPath = Path.normalizePath(curDir.toString());
-    docBuf.append("<directory dirPath=\"" + StringUtil.escapeHTMLChars(dirPath) + "\">\n");
-    int nFiles = 0;
-    for (Iterator i = list.iterator(); i.hasNext();) 
-    {
-      File subFile = new File(curDir, (String)i.next());
-      if (!subFile.getAbsoluteFile().isDirectory()) 
-      {
-        docBuf.append("  <file fileName=\"");
-        docBuf.append(StringUtil.escapeHTMLChars(subFile.getName()));
-        docBuf.append("\"/>\n");
-
-        dirBuf.append(StringUtil.escapeHTMLChars(subFile.getName()));
-        dirBuf.append(':');
-        dirBuf.append(subFile.lastModified());
-        dirBuf.append("\n");
-
-        ++nFiles;
-
-        // Print out dots as we process large amounts of files, just so 
-        // the user knows something is happening.
-        //
-        if (((nScanned++) % 200) == 0)
-          Trace.more(Trace.info, ".");
-      }
+    for (int i = 0; i < scan.nFiles; i++) {
+      if (((nScanned++) % 200) == 0)
+        Trace.more(Trace.info, ".");
     }
-    docBuf.append("</directory>\n");
 
-    // Now process the document using the docSelector stylesheet.
-    boolean anyProcessed = false;
-    boolean runStylesheet;
-    String inStr = docBuf.toString();
-    String filesAndTimes = dirBuf.toString();
-    String dirKey;
-    if (topLevel)
-      dirKey = cfgInfo.indexInfo.indexName + ":/";
-    else
-      dirKey = IndexUtil.calcDocKey(new File(cfgInfo.xtfHomePath),
-                                    cfgInfo.indexInfo, curDir);
-    
-    if (nFiles == 0)
-      runStylesheet = false;
-    else 
-    {
-      DocSelCache.Entry ent = (DocSelCache.Entry)docSelCache.get(dirKey);
-      if (ent == null)
-        runStylesheet = true;
-      else if (cfgInfo.force || !ent.filesAndTimes.equals(filesAndTimes)) {
-        docSelCache.remove(dirKey);
-        runStylesheet = true;
-      }
-      else {
-        anyProcessed = ent.anyProcessed;
-        runStylesheet = false;
-      }
-    }
+    // If the docSelector cache had the answer, we know whether anything 
+    // was processed.
+    //
+    boolean anyProcessed = scan.cachedAnyProcessed;
 
-    if (runStylesheet) 
+    if (scan.selection != null) 
     {
-      InputSource docSelectorInput = new InputSource(new StringReader(inStr));
-
-      if (Trace.getOutputLevel() >= Trace.debug) {
-        Trace.debug("*** docSelector input ***\n" + inStr);
-        Trace.debug("");
-      }
-
-      TreeBuilder tree = new TreeBuilder();
-      Transformer docSelectorTrans = docSelector.newTransformer();
-      
-      // Handle pass-through attributes from the config file.
-      for (Iterator i = cfgInfo.indexInfo.passThroughAttribs.iterator(); i.hasNext();) {
-        Attrib a = (Attrib)i.next();
-        if (a.value == null || a.value.length() == 0)
-          continue;
-        docSelectorTrans.setParameter(a.key, new StringValue(a.value));
-      }
-
-      docSelectorTrans.transform(new SAXSource(docSelectorInput), tree);
-      NodeInfo result = tree.getCurrentRoot();
-
-      if (Trace.getOutputLevel() >= Trace.debug) {
-        Trace.debug("*** docSelector output ***\n" +
-                    XMLWriter.toString(result));
-        Trace.debug("");
-      }
-
       // Iterate the result, and queue any files to index.
-      EasyNode root = new EasyNode(result);
+      EasyNode root = new EasyNode(scan.selection);
       for (int i = 0; i < root.nChildren(); i++) 
       {
         EasyNode node = root.child(i);
@@ -415,7 +601,7 @@ public class SrcTreeProcessor
         }
 
         if (tagName.equalsIgnoreCase("indexFile")) {
-          if (processFile(dirPath, node))
+          if (processFile(scan.dirPath, node))
             anyProcessed = true;
         }
         else {
@@ -424,13 +610,16 @@ public class SrcTreeProcessor
           return;
         }
       } // while
+      scan.selection = null;
 
       // Store this in the cache so we don't have to run the stylesheet
       // next time (that is, unless the directory contents or stylesheet
       // are different).
       //
-      docSelCache.put(dirKey, new DocSelCache.Entry(filesAndTimes, anyProcessed));
-    } // if nFiles > 0
+      docSelCache.put(scan.dirKey, 
+                      new DocSelCache.Entry(scan.filesAndTimes, anyProcessed));
+    } // if scan.selection != null
+    scan.filesAndTimes = null;
 
     // In the old mode (scanAllDirs = false), if we found any files to process, 
     // the convention is that subdirectories contain file related to the ones 
@@ -442,13 +631,216 @@ public class SrcTreeProcessor
     if (anyProcessed && !cfgInfo.indexInfo.scanAllDirs)
       return;
 
-    // Recursively try sub-directories.
-    for (Iterator i = list.iterator(); i.hasNext();) {
-      File subFile = new File(curDir, (String)i.next());
-      if (subFile.getAbsoluteFile().isDirectory())
-        processDir(subFile, subDirFilter, false);
+    // Recursively try sub-directories. Get as many started as we can, so
+    // the scan threads can work on them while we process the first ones,
+    // and top up the queue as we go.
+    //
+    ArrayList<DirScan> subDirs = scan.subDirs;
+    scan.subDirs = null;
+    int nextSubmit = 0;
+    for (int i = 0; i < subDirs.size(); i++) 
+    {
+      while (nextSubmit < subDirs.size() && 
+             scansAhead.get() < MAX_SCANS_AHEAD)
+        subDirs.get(nextSubmit++).submit();
+      nextSubmit = Math.max(nextSubmit, i + 1);
+
+      processScan(subDirs.get(i));
+      subDirs.set(i, null);
     }
-  } // processDir()
+  } // processScan()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Lists a single directory and (if the docSelector cache can't supply
+   *  the answer) runs the docSelector on it. This is the part of scanning
+   *  that may run on the scan threads, so it doesn't touch the text
+   *  processor.
+   */
+  private class DirScan implements Callable<Object> 
+  {
+    File dir;
+    SubDirFilter subDirFilter;
+    boolean topLevel;
+    FutureTask<Object> task = new FutureTask<Object>(this);
+    AtomicBoolean submitted = new AtomicBoolean(false);
+
+    // The results of the scan
+    boolean skipped;
+    String[] fileStrs;
+    int nFiles;
+    String dirPath;
+    String dirKey;
+    String filesAndTimes;
+    boolean cachedAnyProcessed;
+    NodeInfo selection;
+    ArrayList<DirScan> subDirs;
+
+    DirScan(File dir, SubDirFilter subDirFilter, boolean topLevel) {
+      this.dir = dir;
+      this.subDirFilter = subDirFilter;
+      this.topLevel = topLevel;
+    }
+
+    /** Queue the scan on a scan thread, if there are any. */
+    void submit() 
+    {
+      if (scanPool != null && submitted.compareAndSet(false, true)) {
+        scansAhead.incrementAndGet();
+        scanPool.execute(task);
+      }
+    } // submit()
+
+    /** Make sure the scan is done, doing it here if it hasn't started. */
+    void await()
+      throws Exception 
+    {
+      task.run(); // does nothing if already run or running
+      if (submitted.get())
+        scansAhead.decrementAndGet();
+
+      try {
+        task.get();
+      }
+      catch (ExecutionException e) {
+        Throwable t = e.getCause();
+        if (t instanceof Exception)
+          throw (Exception)t;
+        throw (Error)t;
+      }
+    } // await()
+
+    public Object call()
+      throws Exception 
+    {
+      scan();
+
+      // If all sub-directories will be scanned anyway, get a head start on
+      // them, as long as we aren't too far ahead already.
+      //
+      if (subDirs != null && cfgInfo.indexInfo.scanAllDirs) 
+      {
+        for (DirScan sub : subDirs) {
+          if (scansAhead.get() >= MAX_SCANS_AHEAD)
+            break;
+          sub.submit();
+        }
+      }
+      return null;
+    } // call()
+
+    private void scan()
+      throws Exception 
+    {
+      // If we're only doing a subset and this directory isn't in it, skip.
+      if (subDirFilter != null && !subDirFilter.approve(dir)) {
+        skipped = true;
+        return;
+      }
+      
+      // We're looking at a directory. Get the list of files it contains.
+      fileStrs = dir.getAbsoluteFile().list();
+      if (fileStrs == null)
+        return;
+
+      ArrayList list = new ArrayList(fileStrs.length);
+      for (int i = 0; i < fileStrs.length; i++)
+        list.add(fileStrs[i]);
+      Collections.sort(list);
+
+      // Note all the non-directory files and their modification times, and
+      // make a list of the sub-directories.
+      //
+      StringBuffer dirBuf = new StringBuffer(1024);
+      ArrayList<String> fileNames = new ArrayList<String>();
+      subDirs = new ArrayList<DirScan>();
+
+      dirPath = Path.normalizePath(dir.toString());
+      for (Iterator i = list.iterator(); i.hasNext();) 
+      {
+        File subFile = new File(dir, (String)i.next());
+        if (!subFile.getAbsoluteFile().isDirectory()) 
+        {
+          fileNames.add(subFile.getName());
+
+          dirBuf.append(StringUtil.escapeHTMLChars(subFile.getName()));
+          dirBuf.append(':');
+          dirBuf.append(subFile.lastModified());
+          dirBuf.append("\n");
+        }
+        else
+          subDirs.add(new DirScan(subFile, subDirFilter, false));
+      }
+      nFiles = fileNames.size();
+
+      // Now process the document using the docSelector stylesheet.
+      boolean runStylesheet;
+      filesAndTimes = dirBuf.toString();
+      if (topLevel)
+        dirKey = cfgInfo.indexInfo.indexName + ":/";
+      else
+        dirKey = IndexUtil.calcDocKey(new File(cfgInfo.xtfHomePath),
+                                      cfgInfo.indexInfo, dir);
+      
+      if (nFiles == 0)
+        runStylesheet = false;
+      else 
+      {
+        DocSelCache.Entry ent = (DocSelCache.Entry)docSelCache.get(dirKey);
+        if (ent == null)
+          runStylesheet = true;
+        else if (cfgInfo.force || !ent.filesAndTimes.equals(filesAndTimes)) {
+          docSelCache.remove(dirKey);
+          runStylesheet = true;
+        }
+        else {
+          cachedAnyProcessed = ent.anyProcessed;
+          runStylesheet = false;
+        }
+      }
+
+      if (!runStylesheet)
+        return;
+
+      // Form a document representing the directory and all its files.
+      StringBuffer docBuf = new StringBuffer(1024);
+      docBuf.append("<directory dirPath=\"" + StringUtil.escapeHTMLChars(dirPath) + "\">\n");
+      for (String fileName : fileNames) {
+        docBuf.append("  <file fileName=\"");
+        docBuf.append(StringUtil.escapeHTMLChars(fileName));
+        docBuf.append("\"/>\n");
+      }
+      docBuf.append("</directory>\n");
+      String inStr = docBuf.toString();
+
+      InputSource docSelectorInput = new InputSource(new StringReader(inStr));
+
+      if (Trace.getOutputLevel() >= Trace.debug) {
+        Trace.debug("*** docSelector input ***\n" + inStr);
+        Trace.debug("");
+      }
+
+      TreeBuilder tree = new TreeBuilder();
+      Transformer docSelectorTrans = docSelector.newTransformer();
+      
+      // Handle pass-through attributes from the config file.
+      for (Iterator i = cfgInfo.indexInfo.passThroughAttribs.iterator(); i.hasNext();) {
+        Attrib a = (Attrib)i.next();
+        if (a.value == null || a.value.length() == 0)
+          continue;
+        docSelectorTrans.setParameter(a.key, new StringValue(a.value));
+      }
+
+      docSelectorTrans.transform(new SAXSource(docSelectorInput), tree);
+      selection = tree.getCurrentRoot();
+
+      if (Trace.getOutputLevel() >= Trace.debug) {
+        Trace.debug("*** docSelector output ***\n" +
+                    XMLWriter.toString(selection));
+        Trace.debug("");
+      }
+    } // scan()
+  } // class DirScan
 
   ////////////////////////////////////////////////////////////////////////////
 
@@ -643,11 +1035,13 @@ public class SrcTreeProcessor
         ((XMLIndexSource)srcFile).removeDoctypeDecl(true);
     }
     else if (format.equalsIgnoreCase("PDF"))
-      srcFile = new PDFIndexSource(srcPath, key, preFilters, displayStyle, null);
+      srcFile = new PDFIndexSource(srcPath, key, preFilters, displayStyle,
+                                   null, extractionPool);
     else if (format.equalsIgnoreCase("HTML"))
       srcFile = new HTMLIndexSource(srcPath, key, preFilters, displayStyle, null);
     else if (format.equalsIgnoreCase("MSWord"))
-      srcFile = new MSWordIndexSource(srcPath, key, preFilters, displayStyle, null);
+      srcFile = new MSWordIndexSource(srcPath, key, preFilters, displayStyle,
+                                      null, extractionPool);
     else if (format.equalsIgnoreCase("Text"))
       srcFile = new TextIndexSource(srcPath, key, preFilters, displayStyle, null);
     else if (format.equalsIgnoreCase("MARC"))
@@ -655,8 +1049,11 @@ public class SrcTreeProcessor
     else
       throw new RuntimeException("Internal error: code missing support for type");
 
-    // Now queue up the file.
-    textProcessor.checkAndQueueText(srcFile);
+    // Now queue up the file, in the shard its key hashes to (if sharding).
+    XMLTextProcessor processor = textProcessor;
+    if (shardProcessors != null)
+      processor = shardProcessors[(key.hashCode() & 0x7fffffff) % shardProcessors.length];
+    processor.checkAndQueueText(srcFile);
 
     // Let the caller know we didn't skip the file.
     return true;
@@ -79,6 +79,47 @@ import org.cdlib.xtf.util.Trace;
  * access later. If this argument is not specified, the default behavior is
  * to build lazy versions of the documents. <br><br>
  *
+ * The <code>-lazythreads</code> argument is an optional argument that
+ * specifies how many background threads should write the lazy files. With
+ * the default of zero, each lazy file is written by the main thread while
+ * its document is parsed. <br><br>
+ *
+ * The <code>-threads</code> argument is an optional argument that specifies
+ * how many threads should parse, prefilter and chunk documents at once. The
+ * resulting chunks are still added to the index one document at a time, in
+ * the original order. The default is one thread. <br><br>
+ *
+ * The <code>-shards</code> argument is an optional argument that applies
+ * to clean builds. It splits the documents (by a hash of their keys) into
+ * that many temporary sub-indexes, which are built in parallel and then
+ * merged into the target index. Lazy files are written directly to the
+ * target index. The default is one, i.e. no sharding. <br><br>
+ *
+ * The <code>-scanthreads</code> argument is an optional argument that
+ * specifies how many threads should list the source directories and run the
+ * docSelector on them. Files are still queued for indexing in the same order
+ * as with a single thread, which is the default. <br><br>
+ *
+ * The <code>-extractthreads</code> argument is an optional argument that
+ * specifies how many background processes should convert PDF and Word files
+ * to XML. Conversion starts a little ahead of indexing, and its results
+ * are cached (by the content of the file) alongside the index, so unchanged
+ * files are never converted twice. The default is one process. <br><br>
+ *
+ * The <code>-extracttimeout</code> argument is an optional argument giving
+ * the number of seconds after which the conversion of a PDF or Word file is
+ * abandoned (and the process doing it killed) and the file skipped. The 
+ * default is 600; zero means no limit. <br><br>
+ *
+ * The <code>-extractmaxsize</code> argument is an optional argument giving
+ * a size in megabytes. Larger PDF or Word files are skipped instead of
+ * converted. The default is zero, meaning no limit. <br><br>
+ *
+ * The <code>-extractmemory</code> argument is an optional argument giving
+ * the heap size, in megabytes, of each conversion process. A file that
+ * needs more is skipped. The default is 512; zero means the JVM's default.
+ * <br><br>
+ *
  * The <code>-optimize</code> / <code>-nooptimize</code> argument is an optional
  * argument that specifies whether the indexer should optimize the indexes after
  * they are built. Optimization improves query speed, but can take a very long
@@ -274,6 +315,14 @@ public class TextIndexer
           Trace.error("-optimize|-nooptimize                 Default: -optimize");
           Trace.error("-trace errors|warnings|info|debug     Default: -trace info");
           Trace.error("-buildlazy|-nobuildlazy               Default: -buildlazy");
+          Trace.error("-lazythreads <n>                      Default: -lazythreads 0");
+          Trace.error("-threads <n>                          Default: -threads 1");
+          Trace.error("-shards <n>                           Default: -shards 1");
+          Trace.error("-scanthreads <n>                      Default: -scanthreads 1");
+          Trace.error("-extractthreads <n>                   Default: -extractthreads 1");
+          Trace.error("-extracttimeout <secs>                Default: -extracttimeout 600");
+          Trace.error("-extractmaxsize <mb>                  Default: -extractmaxsize 0");
+          Trace.error("-extractmemory <mb>                   Default: -extractmemory 512");
           Trace.error("-updatespell|-noupdatespell           Default: -updatespell");
           Trace.error("-rotate|-norotate                     Default: -rotate");
           Trace.error("-validate|-novalidate                 Default: -validate");
@@ -523,7 +572,8 @@ public class TextIndexer
     Trace.tab();
 
     culler.cullIndex(new File(cfgInfo.xtfHomePath), cfgInfo.indexInfo, 
-                     srcRootFile, subDirFilter);
+                     srcRootFile, subDirFilter, 
+                     srcTreeProcessor.getKeySnapshot());
 
     Trace.untab();
     Trace.info("Done.");
@@ -43,10 +43,18 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -79,8 +87,10 @@ import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.analysis.*;
 import org.apache.lucene.bigram.BigramStopFilter;
 import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 import org.cdlib.xtf.lazyTree.LazyDocument;
 import org.cdlib.xtf.lazyTree.LazyKeyManager;
@@ -90,7 +100,6 @@ import org.cdlib.xtf.textEngine.Constants;
 import org.cdlib.xtf.textEngine.NativeFSDirectory;
 import org.cdlib.xtf.textEngine.XtfSearcher;
 import org.cdlib.xtf.util.CharMap;
-import org.cdlib.xtf.util.FastStringReader;
 import org.cdlib.xtf.util.FastTokenizer;
 import org.cdlib.xtf.util.Path;
 import org.cdlib.xtf.util.StructuredStore;
@@ -353,7 +362,47 @@ public class XMLTextProcessor extends DefaultHandler
    *  {@link XMLTextProcessor#lazyReceiver lazyReceiver} and
    *  {@link XMLTextProcessor#lazyBuilder lazyBuilder} members for more details.
    */
-  private ReceivingContentHandler lazyHandler;
+  private ContentHandler lazyHandler;
+
+  /** If non-null, lazy trees are written by these background threads
+   *  rather than inline during the SAX pass. See
+   *  {@link #setLazyThreads(int)}. <br><br>
+   */
+  private LazyTreePipeline lazyPipeline;
+
+  /** Number of threads to parse and prefilter documents on. See
+   *  {@link #setThreads(int)}.
+   */
+  private int nThreads = 1;
+
+  /** Number of queued sources, beyond the one being indexed, to prepare in
+   *  the background. See {@link #setPrefetch(int)}.
+   */
+  private int prefetchAhead = 0;
+
+  /** Threads that parse documents in parallel, or null if each document
+   *  is parsed by the thread calling {@link #processQueuedTexts()}.
+   */
+  private ExecutorService workerPool;
+
+  /** Worker processors that aren't currently parsing a record. */
+  private LinkedBlockingQueue<XMLTextProcessor> idleWorkers;
+
+  /** Records handed to the workers, in queue order. Each one yields the
+   *  Lucene documents to add to the index for that record.
+   */
+  private LinkedList<Future<ArrayList<PendingDoc>>> pendingWrites;
+
+  /** In a worker processor, the Lucene documents built for the current
+   *  record. They're added to the index later, in order, by the main
+   *  processor.
+   */
+  private ArrayList<PendingDoc> pendingDocs;
+
+  /** In a worker processor, stands in for the index writer's analyzer
+   *  to record which fields are facets or misspelled.
+   */
+  private XTFTextAnalyzer workerAnalyzer;
 
   /** Character buffer for accumulating partial text blocks (possibly) passed
    *  in to the {@link XMLTextProcessor#characters(char[],int,int) characters()}
@@ -389,6 +438,14 @@ public class XMLTextProcessor extends DefaultHandler
    */
   private IndexSearcher indexSearcher;
 
+  /** Keys and dates of the documents in the index when it was opened, used
+   *  to check source files without a search per file.
+   */
+  private IndexKeySnapshot keySnapshot;
+
+  /** Content hashes of source files as last indexed, or null if not kept */
+  private HashManifest hashManifest;
+
   /** An Lucene index writer object, used to add or update documents
    *  to the index currently opened for writing.
    */
@@ -400,15 +457,41 @@ public class XMLTextProcessor extends DefaultHandler
   /** Keeps track of fields we already know are tokenized */
   private HashSet tokenizedFields;
 
-  /** Maximum number of document deletions to do in a single batch */
+  /** Maximum number of document deletions to buffer ahead of the adds */
   private static final int MAX_DELETION_BATCH = 50;
 
-  /** A buffer containing the "blurbified" text to be stored in the index. For
-   *  more about how text is "blurbified", see the
-   * {@link XMLTextProcessor#blurbify(StringBuffer,boolean) blurbify()}
+  /** Amount of RAM the index writer may fill with buffered documents before
+   *  they are flushed to a new segment.
+   */
+  private static final long MAX_RAM_BUFFER = 32 * 1024 * 1024;
+
+  /** Upper limit on buffered documents, regardless of RAM use, to keep the
+   *  merge of the buffered documents at flush time manageable.
+   */
+  private static final int MAX_BUFFERED_DOCS = 10000;
+
+  /** If non-null, accumulates the time all processors spend forming chunks.
+   *  See {@link #setChunkTimer(AtomicLong)}.
+   */
+  private static volatile AtomicLong chunkTimer;
+
+  /** Time this processor has spent adding chunks to the index, which
+   *  doesn't count as forming them.
+   */
+  private long chunkAddNanos;
+
+  /** A buffer containing the "blurbified" text to be stored in the index,
+   *  with any virtual words inserted. For more about how text is
+   *  "blurbified", see the
+   * {@link XMLTextProcessor#blurbify(char[],int,boolean) blurbify()}
    *  method.
    */
-  private StringBuffer blurbedText;
+  private char[] blurbedText;
+
+  /** Number of characters in use in the
+   *  {@link XMLTextProcessor#blurbedText blurbedText} buffer.
+   */
+  private int blurbedTextLen;
 
   /** A buffer used to accumulate actual words from the source text, along
    *  with "virtual words" implied by any <code>sectiontype</code> and
@@ -416,17 +499,40 @@ public class XMLTextProcessor extends DefaultHandler
    *  special markers used to locate where in the XML source text the indexed
    *  text is stored.
    */
-  private StringBuffer accumText;
+  private char[] accumText;
+
+  /** Number of characters in use in the
+   *  {@link XMLTextProcessor#accumText accumText} buffer.
+   */
+  private int accumTextLen;
 
   /** A version of the {@link XMLTextProcessor#accumText accumText} member
    *  where individual "virtual words" have been compacted down into special
    *  offset markers. To learn more about "virtual words", see the
-   *  {@link XMLTextProcessor#insertVirtualWords(StringBuffer) insertVirtualWords()}
+   *  {@link XMLTextProcessor#insertVirtualWords(char[],int) insertVirtualWords()}
    *  and
    *  {@link XMLTextProcessor#compactVirtualWords() compactVirtualWords()}
    *  methods.
    */
-  private StringBuffer compactedAccumText;
+  private char[] compactedAccumText;
+
+  /** Number of characters in use in the
+   *  {@link XMLTextProcessor#compactedAccumText compactedAccumText} buffer.
+   */
+  private int compactedAccumTextLen;
+
+  /** True if a space has been held back while filling in the
+   *  {@link XMLTextProcessor#compactedAccumText compactedAccumText} buffer.
+   */
+  private boolean compactPendingSpace;
+
+  /** Scratch copies of the blurbed and accumulated text for tokenizing.
+   *  The tokenizer may alter the characters it works on, so it never gets
+   *  one of the buffers above. Each needs its own copy, since chunks are
+   *  compacted while the blurbed text is still being tokenized.
+   */
+  private char[] blurbedTokenText;
+  private char[] accumTokenText;
 
   /** Stack containing the nesting level of the current text being processed.
    *  <br><br>
@@ -518,6 +624,7 @@ public class XMLTextProcessor extends DefaultHandler
 
       // Determine where the index database is located.
       indexPath = getIndexPath();
+      keySnapshot = null;
 
       // Determine the set of stop words to remove (if any)
       if (indexInfo.stopWords != null)
@@ -666,6 +773,12 @@ public class XMLTextProcessor extends DefaultHandler
   public void close()
     throws IOException 
   {
+    // Make sure all the lazy trees have been written.
+    if (lazyPipeline != null) {
+      lazyPipeline.close();
+      lazyPipeline = null;
+    }
+
     if (spellWriter != null)
       spellWriter.close();
     if (indexWriter != null)
@@ -683,6 +796,59 @@ public class XMLTextProcessor extends DefaultHandler
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /**
+   * Establish how many background threads should write lazy trees. By
+   * default (zero), each lazy tree is written inline as the document is
+   * parsed. With one or more threads, the SAX events for each document are
+   * buffered and the tree is written in parallel with tokenizing and
+   * Lucene indexing of the following documents. <br><br>
+   *
+   * @param nThreads  Number of lazy tree writing threads, or zero to write
+   *                  them inline.
+   */
+  public void setLazyThreads(int nThreads)
+    throws IOException 
+  {
+    if (lazyPipeline != null) {
+      lazyPipeline.close();
+      lazyPipeline = null;
+    }
+    if (nThreads > 0)
+      lazyPipeline = new LazyTreePipeline(nThreads);
+  } // setLazyThreads()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Establish how many threads should parse documents. By default (one),
+   * each queued document is parsed, prefiltered, chunked and added to the
+   * index in turn. With more threads, that work is done for several
+   * documents at once; the resulting Lucene documents are then added to
+   * the index one record at a time, in queue order, so that each record's
+   * chunks stay contiguous and are followed by its docInfo chunk. <br><br>
+   *
+   * @param nThreads  Number of parsing threads.
+   */
+  public void setThreads(int nThreads) {
+    this.nThreads = Math.max(1, nThreads);
+  } // setThreads()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Set how many queued sources ahead of the one being indexed should be
+   * asked to get ready in the background (see {@link IndexSource#prefetch()}),
+   * so that slow conversions such as PDF extraction overlap with indexing.
+   * The default is zero.
+   *
+   * @param count  Number of sources to prefetch.
+   */
+  public void setPrefetch(int count) {
+    this.prefetchAhead = Math.max(0, count);
+  } // setPrefetch()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /**
    * Utility function to create a new Lucene index database for reading or
    * searching. <br><br>
@@ -787,6 +953,41 @@ public class XMLTextProcessor extends DefaultHandler
     // we're done.
     //
     int ret = checkFile(idxSrc);
+
+    // If we're keeping content hashes, a new date doesn't necessarily mean
+    // new content. If we know the hash of the indexed version, compare it
+    // to the file's current hash before deciding to re-index. 
+    //
+    if (hashManifest != null) 
+    {
+      String key = idxSrc.key();
+      File srcPath = idxSrc.path();
+      HashManifest.Entry oldHash = hashManifest.get(key);
+      boolean hashKnown = (oldHash != null && oldHash.matches(srcPath));
+
+      if (ret == 2 && oldHash != null && !ignoreFileTimes) 
+      {
+        // If the size and time match the last hash, the content must be
+        // the same as what's in the index.
+        //
+        if (hashKnown)
+          return;
+
+        // Otherwise, we have to wait for the hash to tell.
+        FileQueueEntry ent = new FileQueueEntry(idxSrc, false);
+        ent.oldHash = oldHash;
+        ent.newHash = hashManifest.update(key, srcPath);
+        fileQueue.add(ent);
+        return;
+      }
+
+      // In all other cases, the hash won't change our decision, but we
+      // need to record it for next time.
+      //
+      if (!hashKnown)
+        hashManifest.update(key, srcPath);
+    }
+
     if (ret == 1)
       return;
 
@@ -794,11 +995,63 @@ public class XMLTextProcessor extends DefaultHandler
     // the index, make sure it will get deleted before re-indexing it.
     //
     boolean deleteFirst = (ret == 2);
+    if (deleteFirst)
+      deleteLazyFile(idxSrc.path());
     queueText(idxSrc, deleteFirst);
   } // checkAndQueueText()
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Once the content hashes have been calculated for queued texts whose
+   *  dates changed, drop the ones whose content is the same as the version
+   *  already in the index, and mark the rest for deletion before
+   *  re-indexing.
+   */
+  private void resolvePendingHashes()
+    throws IOException 
+  {
+    for (Iterator iter = fileQueue.iterator(); iter.hasNext();) 
+    {
+      FileQueueEntry ent = (FileQueueEntry)iter.next();
+      if (ent.newHash == null)
+        continue;
+
+      boolean same;
+      try {
+        same = ent.oldHash.sameContent(ent.newHash.get());
+      }
+      catch (ExecutionException e) {
+        Trace.warning("Warning: Error calculating hash for " + 
+                      ent.idxSrc.path() + ": " + e.getCause());
+        same = false;
+      }
+      catch (InterruptedException e) {
+        throw new IOException("Interrupted waiting for content hash");
+      }
+      ent.newHash = null;
+      ent.oldHash = null;
+
+      if (same)
+        iter.remove();
+      else {
+        deleteLazyFile(ent.idxSrc.path());
+        ent.deleteFirst = true;
+      }
+    }
+  } // resolvePendingHashes()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Use the given manifest to detect changed texts by their content hash,
+   *  in addition to their dates. The manifest may be shared between 
+   *  processors.
+   */
+  public void setHashManifest(HashManifest manifest) {
+    hashManifest = manifest;
+  } // setHashManifest()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Queue a source text file for indexing. Old chunks with the same
    *  key will not be deleted first, so this method should only be used
    *  for new texts, or to append chunks for an existing text. <br><br>
@@ -918,10 +1171,12 @@ public class XMLTextProcessor extends DefaultHandler
   ////////////////////////////////////////////////////////////////////////////
 
   /** If the first entry in the file queue requires deletion, we start up
-   *  a batch delete up to {@link #MAX_DELETION_BATCH} deletions. We batch
-   *  these up because in Lucene, you can only delete with an IndexReader.
-   *  It costs time to close our IndexWriter, open an IndexReader for
-   *  the deletions, and then reopen the IndexWriter.
+   *  a batch delete up to {@link #MAX_DELETION_BATCH} deletions. The
+   *  deletions are buffered by the index writer and applied along with the
+   *  added documents when it next flushes, so there is no need to close
+   *  the writer and open a reader for them. Since the writer only applies
+   *  a deletion to documents added before it, the new versions of the
+   *  texts are safe.
    *
    *  @throws
    *    IOException   Any I/O exceptions encountered when reading the source
@@ -935,11 +1190,8 @@ public class XMLTextProcessor extends DefaultHandler
         !((FileQueueEntry)fileQueue.getFirst()).deleteFirst)
       return;
 
-    // Okay, we need an index reader for the deletions. This has the effect
-    // of closing the index writer, but it will be reopened after the 
-    // deletions.
-    //
-    openIdxForReading();
+    // Make sure the index writer is open.
+    openIdxForWriting();
 
     // Let's do it.
     int batchSize = 0;
@@ -954,7 +1206,7 @@ public class XMLTextProcessor extends DefaultHandler
         continue;
 
       // Okay, delete chunks from the old document, and clear the flag.
-      indexReader.deleteDocuments(new Term("key", ent.idxSrc.key()));
+      indexWriter.deleteDocuments(new Term("key", ent.idxSrc.key()));
       ent.deleteFirst = false;
     }
   } // public batchDelete()
@@ -1004,12 +1256,17 @@ public class XMLTextProcessor extends DefaultHandler
   public void processQueuedTexts()
     throws IOException 
   {
-    // Initialize the string buffers for accumulating and compacting the 
+    // Find out which touched texts actually changed.
+    resolvePendingHashes();
+
+    // Initialize the buffers for accumulating and compacting the 
     // text to index.
     //
-    blurbedText = new StringBuffer(bufStartSize);
-    accumText = new StringBuffer(bufStartSize);
-    compactedAccumText = new StringBuffer(bufStartSize);
+    blurbedText = new char[bufStartSize];
+    accumText = new char[bufStartSize];
+    compactedAccumText = new char[bufStartSize];
+    blurbedTokenText = new char[bufStartSize];
+    accumTokenText = new char[bufStartSize];
 
     // Calculate the total size of files in the queue
     long totalSize = 0;
@@ -1023,74 +1280,244 @@ public class XMLTextProcessor extends DefaultHandler
 
     final int recordBatchSize = 100;
 
-    // Process each queued file.
-    while (!fileQueue.isEmpty()) 
+    // If parsing in parallel, get the workers ready.
+    if (nThreads > 1)
+      startWorkers();
+
+    try 
     {
-      boolean printDone = false;
+      // Process each queued file.
+      while (!fileQueue.isEmpty()) 
+      {
+        boolean printDone = false;
 
-      // Process deletions in batches.
-      batchDelete();
+        // Open the index writer (if not already open), and queue up
+        // deletions in batches.
+        //
+        openIdxForWriting();
+        batchDelete();
 
-      // Open the index writer (which might have been closed by a batch
-      // deletion.)
-      //
-      openIdxForWriting();
+        // Let the next few files get ready while we work on this one.
+        if (prefetchAhead > 0) 
+        {
+          Iterator iter = fileQueue.iterator();
+          for (int i = 0; i <= prefetchAhead && iter.hasNext(); i++)
+            ((FileQueueEntry)iter.next()).idxSrc.prefetch();
+        }
 
-      // Get the next file.
-      FileQueueEntry ent = (FileQueueEntry)fileQueue.removeFirst();
-      IndexSource idxFile = ent.idxSrc;
-      assert !ent.deleteFirst; // Should have been processed by batchDelete()
+        // Get the next file.
+        FileQueueEntry ent = (FileQueueEntry)fileQueue.removeFirst();
+        IndexSource idxFile = ent.idxSrc;
+        assert !ent.deleteFirst; // Should have been processed by batchDelete()
 
-      // Index each record within the file (often there's only one, but
-      // there may be millions.)
-      //
-      IndexRecord idxRec;
-      try 
-      {
-        while ((idxRec = idxFile.nextRecord()) != null) 
+        // Index each record within the file (often there's only one, but
+        // there may be millions.)
+        //
+        IndexRecord idxRec;
+        try 
         {
-          long fileBytesDone = idxRec.percentDone() * idxFile.totalSize() / 100;
-          int percentDone = (int)((processedSize + fileBytesDone) * 100 / totalSize);
-          int recordNum = idxRec.recordNum();
+          while ((idxRec = idxFile.nextRecord()) != null) 
+          {
+            long fileBytesDone = idxRec.percentDone() * idxFile.totalSize() / 100;
+            int percentDone = (int)((processedSize + fileBytesDone) * 100 / totalSize);
+            int recordNum = idxRec.recordNum();
 
-          // Print out a nice message to keep the user informed of
-          // our progress.
-          //
-          String key = idxFile.key();
-          curPrettyKey = (key.indexOf(':') >= 0)
-                         ? key.substring(key.indexOf(':') + 1) : key;
-          if (recordNum > 0)
-            curPrettyKey += "/" + recordNum;
+            // Print out a nice message to keep the user informed of
+            // our progress.
+            //
+            String key = idxFile.key();
+            curPrettyKey = (key.indexOf(':') >= 0)
+                           ? key.substring(key.indexOf(':') + 1) : key;
+            if (recordNum > 0)
+              curPrettyKey += "/" + recordNum;
+
+            if (recordNum == 0 || ((recordNum % recordBatchSize) == 1)) 
+            {
+              if (printDone)
+                Trace.more(Trace.info, "Done.");
+
+              // Print a message for the next record.
+              String msg = "";
+              msg = ("(" + percentDone + "%) ");
+              while (msg.length() < 7)
+                msg += " ";
+              Trace.info(msg + "Indexing [" + curPrettyKey + "] ... ");
+              printDone = true;
+            }
 
-          if (recordNum == 0 || ((recordNum % recordBatchSize) == 1)) 
-          {
-            if (printDone)
-              Trace.more(Trace.info, "Done.");
-
-            // Print a message for the next record.
-            String msg = "";
-            msg = ("(" + percentDone + "%) ");
-            while (msg.length() < 7)
-              msg += " ";
-            Trace.info(msg + "Indexing [" + curPrettyKey + "] ... ");
-            printDone = true;
-          }
+            // Now index this record, or hand it to a worker.
+            if (workerPool != null)
+              submitText(idxFile, idxRec, recordNum);
+            else
+              processText(idxFile, idxRec, recordNum);
+          } // while
+        }
+        catch (SAXException e) 
+        {
+          throw new RuntimeException(e);
+        }
+
+        if (printDone)
+          Trace.more(Trace.info, "Done.");
 
-          // Now index this record.
-          processText(idxFile, idxRec, recordNum);
-        } // while
+        processedSize += idxFile.totalSize();
       }
-      catch (SAXException e) 
+
+      // Add the last of the records parsed by the workers.
+      while (pendingWrites != null && !pendingWrites.isEmpty())
+        writeNextPending();
+    } // try
+
+    finally {
+      if (workerPool != null)
+        stopWorkers();
+    }
+
+    // Wait for any lazy trees still being written in the background.
+    if (lazyPipeline != null)
+      lazyPipeline.flush();
+  } // processQueuedTexts()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Start up the threads used to parse records in parallel, each with its
+   *  own worker processor. The workers share this processor's configuration
+   *  but never touch the index; the documents they build are added by
+   *  {@link #writeNextPending()}.
+   */
+  private void startWorkers()
+  {
+    idleWorkers = new LinkedBlockingQueue<XMLTextProcessor>();
+    for (int i = 0; i < nThreads; i++) 
+    {
+      XMLTextProcessor worker = new XMLTextProcessor();
+      worker.indexInfo = indexInfo;
+      worker.xtfHomePath = xtfHomePath;
+      worker.ignoreFileTimes = ignoreFileTimes;
+      worker.indexPath = indexPath;
+      worker.stopSet = stopSet;
+      worker.pluralMap = pluralMap;
+      worker.accentMap = accentMap;
+      worker.tokenizedFields = tokenizedFields;
+      worker.blurbedText = new char[bufStartSize];
+      worker.accumText = new char[bufStartSize];
+      worker.compactedAccumText = new char[bufStartSize];
+      worker.blurbedTokenText = new char[bufStartSize];
+      worker.accumTokenText = new char[bufStartSize];
+      worker.workerAnalyzer = new XTFTextAnalyzer(stopSet, pluralMap, accentMap);
+      idleWorkers.add(worker);
+    }
+
+    pendingWrites = new LinkedList<Future<ArrayList<PendingDoc>>>();
+    workerPool = Executors.newFixedThreadPool(nThreads);
+  } // startWorkers()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Shut down the parsing threads started by {@link #startWorkers()}. Any
+   *  records not yet added to the index are abandoned.
+   */
+  private void stopWorkers()
+  {
+    workerPool.shutdownNow();
+    workerPool = null;
+    idleWorkers = null;
+    pendingWrites = null;
+  } // stopWorkers()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Hand a record to a worker thread to be parsed. If too many records are
+   *  already waiting, the oldest ones are added to the index first so that
+   *  memory use stays bounded.
+   *
+   * @param file      The XML source text file to process.
+   * @param record    Record within the XML file to process.
+   * @param recordNum Zero-based index of this record in the XML file.
+   */
+  private void submitText(final IndexSource file, final IndexRecord record, 
+                          final int recordNum)
+    throws IOException 
+  {
+    while (pendingWrites.size() >= nThreads * 2)
+      writeNextPending();
+
+    final String prettyKey = curPrettyKey;
+    pendingWrites.add(workerPool.submit(new Callable<ArrayList<PendingDoc>>() 
+    {
+      public ArrayList<PendingDoc> call() throws Exception 
       {
-        throw new RuntimeException(e);
+        XMLTextProcessor worker = idleWorkers.take();
+        try {
+          worker.curPrettyKey = prettyKey;
+          worker.pendingDocs = new ArrayList<PendingDoc>();
+          worker.processText(file, record, recordNum);
+          return worker.pendingDocs;
+        }
+        finally {
+          worker.pendingDocs = null;
+          idleWorkers.add(worker);
+        }
       }
+    }));
+  } // submitText()
 
-      if (printDone)
-        Trace.more(Trace.info, "Done.");
+  ////////////////////////////////////////////////////////////////////////////
 
-      processedSize += idxFile.totalSize();
+  /** Wait for the oldest record handed to the workers, and add its documents
+   *  to the index.
+   *
+   *  @throws
+   *    IOException   Any I/O exceptions encountered when reading the source
+   *                  text file or writing to the Lucene index. <br><br>
+   */
+  private void writeNextPending()
+    throws IOException 
+  {
+    Future<ArrayList<PendingDoc>> future = pendingWrites.removeFirst();
+    ArrayList<PendingDoc> docs;
+    try {
+      docs = future.get();
     }
-  } // processQueuedTexts()
+    catch (InterruptedException e) {
+      throw new IOException("Interrupted waiting for record to be parsed");
+    }
+    catch (ExecutionException e) 
+    {
+      Throwable t = e.getCause();
+      if (t instanceof IOException)
+        throw (IOException)t;
+      if (t instanceof RuntimeException)
+        throw (RuntimeException)t;
+      if (t instanceof Error)
+        throw (Error)t;
+      throw new RuntimeException(t);
+    }
+
+    // Add the chunks (and docInfo) in the order the worker made them, with
+    // the analyzer set up just as it was for each one.
+    //
+    XTFTextAnalyzer analyzer = (XTFTextAnalyzer)indexWriter.getAnalyzer();
+    for (PendingDoc pending : docs) 
+    {
+      analyzer.copyFieldMarks(pending.fieldMarks);
+      try {
+        indexWriter.addDocument(pending.doc);
+        flushIfFull();
+      }
+      catch (Throwable t) 
+      {
+        Trace.tab();
+        Trace.error("*** Exception Adding Document to Index: " + t);
+        Trace.untab();
+
+        if (t instanceof RuntimeException)
+          throw (RuntimeException)t;
+        else
+          throw new RuntimeException(t);
+      }
+    }
+  } // writeNextPending()
 
   ////////////////////////////////////////////////////////////////////////////
 
@@ -1116,8 +1543,8 @@ public class XMLTextProcessor extends DefaultHandler
     throws IOException 
   {
     // Clear the text buffers.
-    accumText.setLength(0);
-    compactedAccumText.setLength(0);
+    accumTextLen = 0;
+    compactedAccumTextLen = 0;
 
     // Record the file's parameters so other methods can get to them easily. Then
     // tell the user what we're doing.
@@ -1127,7 +1554,16 @@ public class XMLTextProcessor extends DefaultHandler
 
     // Build a lazy tree if requested.
     lazyStore = record.lazyStore();
-    if (lazyStore != null) 
+    if (lazyStore != null && lazyPipeline != null) 
+    {
+      // Just record the events for now; the tree will be written in the
+      // background once the document has been parsed.
+      //
+      lazyBuilder = null;
+      lazyReceiver = null;
+      lazyHandler = lazyPipeline.newBuffer();
+    }
+    else if (lazyStore != null) 
     {
       // While we parse the source document, we're going to also build up 
       // a tree that will be written to the lazy file.
@@ -1139,9 +1575,10 @@ public class XMLTextProcessor extends DefaultHandler
 
       lazyBuilder.setNamePool(config.getNamePool());
 
-      lazyHandler = new ReceivingContentHandler();
-      lazyHandler.setReceiver(lazyReceiver);
-      lazyHandler.setPipelineConfiguration(lazyReceiver.getPipelineConfiguration());
+      ReceivingContentHandler rch = new ReceivingContentHandler();
+      rch.setReceiver(lazyReceiver);
+      rch.setPipelineConfiguration(lazyReceiver.getPipelineConfiguration());
+      lazyHandler = rch;
     }
     else {
       lazyBuilder = null;
@@ -1198,10 +1635,20 @@ public class XMLTextProcessor extends DefaultHandler
     // Now parse it.
     int result = parseText();
 
+    // If recording events for background writing, queue them up now.
+    if (lazyPipeline != null && lazyHandler != null) 
+    {
+      lazyPipeline.submit((LazyTreePipeline.EventBuffer)lazyHandler,
+                          lazyStore, 
+                          (result == 0) ? file.displayStyle() : null,
+                          curPrettyKey);
+      lazyHandler = null;
+    }
+
     // Regardless of result, finish the lazy tree so we don't leave everything
     // hanging open.
     //
-    if (lazyBuilder != null) 
+    else if (lazyBuilder != null) 
     {
       lazyBuilder.finish(lazyReceiver, false); // don't close Store yet
 
@@ -1215,7 +1662,10 @@ public class XMLTextProcessor extends DefaultHandler
         {
           try 
           {
-            precacheXSLKeys();
+            int nKeysCreated = precacheXSLKeys(displayStyle, lazyBuilder, 
+                                               lazyStore);
+            Trace.more(Trace.info, "(" + nKeysCreated + " stored " +
+                       ((nKeysCreated == 1) ? "key" : "keys") + ") ... ");
           }
           catch (IOException e) {
             Trace.tab();
@@ -1272,7 +1722,7 @@ public class XMLTextProcessor extends DefaultHandler
    *                             XML source file.
    *
    *  @.notes
-   *    For more about "blurbifying" text, see the {@link XMLTextProcessor#blurbify(StringBuffer,boolean) blurbify()}
+   *    For more about "blurbifying" text, see the {@link XMLTextProcessor#blurbify(char[],int,boolean) blurbify()}
    *    method. <br><br>
    *
    *    This function enables namespaces for XML tag attributes. Consquently,
@@ -1294,21 +1744,32 @@ public class XMLTextProcessor extends DefaultHandler
       // Instantiate a new XML parser, being sure to get the right one.
       SAXParser xmlParser = IndexUtil.createSAXParser();
 
-      // Get the input source from the record.
+      // Get the input source from the record. Some records supply their
+      // SAX events directly, rather than XML to be parsed.
+      //
       InputSource xmlSource = curIdxRecord.xmlSource();
+      XMLReader xmlReader = curIdxRecord.xmlReader();
 
       // If there are no XSLT input filters defined for this index, just 
       // parse the source XML file directly, and return early.
       //
       Templates[] prefilters = curIdxSrc.preFilters();
-      if (prefilters == null || prefilters.length == 0) {
-        xmlParser.parse(xmlSource, this);
+      if (prefilters == null || prefilters.length == 0) 
+      {
+        if (xmlReader == null)
+          xmlParser.parse(xmlSource, this);
+        else {
+          xmlReader.setContentHandler(this);
+          xmlReader.parse(xmlSource);
+        }
         return 0;
       }
 
       // Apply the prefilters.
+      if (xmlReader == null)
+        xmlReader = xmlParser.getXMLReader();
       IndexUtil.applyPreFilters(prefilters,
-                                xmlParser.getXMLReader(),
+                                xmlReader,
                                 xmlSource,
                                 indexInfo.passThroughAttribs,
                                 new SAXResult(this));
@@ -1326,6 +1787,19 @@ public class XMLTextProcessor extends DefaultHandler
         lazyReceiver = null;
         lazyHandler = null;
       }
+      else if (lazyHandler != null) 
+      {
+        // Background mode: nothing has been written yet, so just discard
+        // the recorded events.
+        //
+        lazyHandler = null;
+        try {
+          lazyStore.delete();
+        }
+        catch (IOException e) {
+          // Ignore; the parse error is the one worth reporting.
+        }
+      }
       
       // Tell the caller (and the user) that ther was an error..      
       Trace.more(Trace.info, "Skipping Due to Errors");
@@ -1342,11 +1816,15 @@ public class XMLTextProcessor extends DefaultHandler
       // otherwise they would end up improperly tacked onto the beginning of the
       // next document.
       //
-      if (docWordCount > 0 || subDocsWritten.size() > 0)
+      // (Workers haven't written anything yet, so they just drop them.)
+      //
+      if (pendingDocs != null)
+        pendingDocs.clear();
+      else if (docWordCount > 0 || subDocsWritten.size() > 0)
       {
         try {
-          openIdxForReading();
-          indexReader.deleteDocuments(new Term("key", curIdxSrc.key()));
+          openIdxForWriting();
+          indexWriter.deleteDocuments(new Term("key", curIdxSrc.key()));
         }
         catch (Throwable t2) {
           Trace.warning("Warning: Error deleting partially complete document's chunks: " + 
@@ -1372,19 +1850,28 @@ public class XMLTextProcessor extends DefaultHandler
    *  declarations that will be used. It then generates each key and stores
    *  it in the lazy file.
    *
+   * @param stylesheet   Stylesheet containing the xsl:key declarations
+   * @param lazyBuilder  Builder that just finished writing the tree
+   * @param lazyStore    Store containing the tree
+   *
+   * @return              The number of keys stored.
+   *
    * @throws Exception      If anything goes awry.
    */
-  private void precacheXSLKeys()
+  static int precacheXSLKeys(Templates stylesheet,
+                             LazyTreeBuilder lazyBuilder,
+                             StructuredStore lazyStore)
     throws Exception 
   {
-    // Get the stylesheet.
-    Templates stylesheet = curIdxSrc.displayStyle();
-
-    // Register a lazy key manager
+    // Register a lazy key manager. Lazy trees may be written on several
+    // threads at once, so be careful to only do this once.
+    //
     PreparedStylesheet pss = (PreparedStylesheet)stylesheet;
     Executable exec = pss.getExecutable();
-    if (!(exec.getKeyManager() instanceof LazyKeyManager))
-      exec.setKeyManager(new LazyKeyManager(pss.getConfiguration(), exec.getKeyManager()));
+    synchronized (exec) {
+      if (!(exec.getKeyManager() instanceof LazyKeyManager))
+        exec.setKeyManager(new LazyKeyManager(pss.getConfiguration(), exec.getKeyManager()));
+    }
 
     Transformer trans = pss.newTransformer();
     LazyKeyManager keyMgr = (LazyKeyManager)exec.getKeyManager();
@@ -1395,11 +1882,10 @@ public class XMLTextProcessor extends DefaultHandler
     //
     int nKeysCreated = keyMgr.createAllKeys(doc,
                                             ((Controller)trans).newXPathContext());
-    Trace.more(Trace.info, "(" + nKeysCreated + " stored " +
-               ((nKeysCreated == 1) ? "key" : "keys") + ") ... ");
 
     // Make sure to close it when we're done.
     doc.close();
+    return nKeysCreated;
   } // precacheXSLKeys()
 
   ////////////////////////////////////////////////////////////////////////////
@@ -1680,8 +2166,8 @@ public class XMLTextProcessor extends DefaultHandler
     // If a chunk is in progress, add a node marker to it, so that later, the
     // snippet maker can detect the change of node.
     //
-    if (accumText.length() > 0)
-      accumText.append(Constants.NODE_MARKER);
+    if (accumTextLen > 0)
+      appendAccumText(Constants.NODE_MARKER);
   } // private incrementNode()
 
   ////////////////////////////////////////////////////////////////////////////
@@ -1987,6 +2473,17 @@ public class XMLTextProcessor extends DefaultHandler
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Establish a counter to accumulate the time (in nanoseconds) that all
+   *  processors spend forming text into chunks, not counting the time taken
+   *  to add the chunks to the index. This is meant for benchmarking; pass
+   *  <code>null</code> to stop timing.
+   */
+  public static void setChunkTimer(AtomicLong timer) {
+    chunkTimer = timer;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Process any accumulated source text, writing indexing completed chunks
    *  to the Lucene database as necessary. <br><br>
    *
@@ -1999,7 +2496,7 @@ public class XMLTextProcessor extends DefaultHandler
    *
    *    <blockquote dir=ltr style="MARGIN-RIGHT: 0px">
    *     1. First the accumulated text is "blurbified." See the
-   *        {@link XMLTextProcessor#blurbify(StringBuffer,boolean) blurbify()}
+   *        {@link XMLTextProcessor#blurbify(char[],int,boolean) blurbify()}
    *        method for more information about what this entails. <br><br>
    *
    *     2. Next, a chunk is assembled a word at a time from the accumulated
@@ -2014,6 +2511,33 @@ public class XMLTextProcessor extends DefaultHandler
    */
   public void flushCharacters()
     throws SAXException 
+  {
+    // Usually we're not timing anything.
+    AtomicLong timer = chunkTimer;
+    if (timer == null) {
+      formChunks();
+      return;
+    }
+
+    // Time the chunking, leaving out any time spent adding chunks to the
+    // index.
+    //
+    long startTime = System.nanoTime();
+    long startAddNanos = chunkAddNanos;
+    try {
+      formChunks();
+    }
+    finally {
+      timer.addAndGet(System.nanoTime() - startTime - 
+                      (chunkAddNanos - startAddNanos));
+    }
+  } // flushCharacters()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Does the work of {@link #flushCharacters()}. */
+  private void formChunks()
+    throws SAXException 
   {
     // Get local references to the accumulated text buffer that we can 
     // adjust as we go.
@@ -2050,13 +2574,10 @@ public class XMLTextProcessor extends DefaultHandler
     //
     if (inMeta > 0) 
     {
-      String tmp = new String(ch, start, length);
-
       // Map special XML characters to entities, so we can tell the difference
       // between these and embedded XML in the meta-data.
       //
-      tmp = mapXMLChars(tmp);
-      metaBuf.append(tmp);
+      appendXMLChars(metaBuf, ch, start, length);
       return;
     }
 
@@ -2064,38 +2585,29 @@ public class XMLTextProcessor extends DefaultHandler
     if (section.indexFlag() == SectionInfo.noIndex)
       return;
 
-    // Create a blurbed text buffer.
-    blurbedText.setLength(0);
-
-    // Place the text section passed to this function in the buffer.
-    blurbedText.append(ch, start, length);
-
     // Blurbify the text (i.e., convert line feeds, tabs, multiple spaces, 
     // and other weird white-space into something that's nicer to read in
-    // a blurb.
+    // a blurb.) We're done with the raw characters, so this can be done
+    // in place.
     //
-    blurbify(blurbedText, true);
+    length = blurbify(ch, length, true);
 
-    // Insert any virutal words implied by section bumps, ends of sentences,
-    // global word bump changes and so on.
+    // Copy the result to the blurbed text buffer, inserting any virtual 
+    // words implied by section bumps, ends of sentences, global word bump 
+    // changes and so on.
     //
-    insertVirtualWords(blurbedText);
+    insertVirtualWords(ch, length);
 
     // If after blurbification, there's no text remaining, we're done.
-    if (blurbedText.length() <= 0)
+    if (blurbedTextLen <= 0)
       return;
 
-    // Create a string reader for use by the tokenizer.
-    String blurbedTextStr = blurbedText.toString();
-
-    //StringReader reader         = new StringReader( blurbedTextStr );
-    FastStringReader reader = new FastStringReader(blurbedTextStr);
-
     // Create a tokenizer to locate the start and end of words in the
     // blurbified text.
     //
     //TokenStream result = new StandardTokenizer( reader );
-    TokenStream result = new FastTokenizer(reader);
+    blurbedTokenText = copyChars(blurbedText, blurbedTextLen, blurbedTokenText);
+    TokenStream result = new FastTokenizer(blurbedTokenText, blurbedTextLen);
 
     // Set the start of punctuation index to the beginning of the blurbified 
     // text buffer.
@@ -2106,7 +2618,7 @@ public class XMLTextProcessor extends DefaultHandler
     // except for one, and get back the resulting length of the 
     // trimmed, accumulated text.
     //
-    int accumTextLen = trimAccumText(true);
+    int accumLen = trimAccumText(true);
 
     // Start out having to fetch the first word in the token list.
     boolean mustGetNextWord = true;
@@ -2155,7 +2667,7 @@ public class XMLTextProcessor extends DefaultHandler
           // Record how much of the current chunk's text we need to
           // keep in the buffer for the next node.
           //
-          nextChunkStartIdx = accumTextLen + punctLen;
+          nextChunkStartIdx = accumLen + punctLen;
 
           // Record what node the next chunk starts in, and what offset
           // the chunk has relative to the start of the node.
@@ -2170,7 +2682,7 @@ public class XMLTextProcessor extends DefaultHandler
         // Append the new word and its preceeding punctuation/spacing to 
         // the text to index/store.
         //
-        accumText.append(blurbedTextStr.substring(punctStart, wordEnd));
+        appendAccumText(blurbedText, punctStart, wordEnd);
 
         // Track where the punctuation starts for the next word.  
         punctStart = wordEnd;
@@ -2202,14 +2714,14 @@ public class XMLTextProcessor extends DefaultHandler
           //
           int punctEnd;
           if (word == null)
-            punctEnd = blurbedText.length();
+            punctEnd = blurbedTextLen;
           else
             punctEnd = word.startOffset();
 
           // Tack the punctuation onto the end of the chunk and clean
           // it up so as to make it look all purdy.
           //
-          accumText.append(blurbedTextStr.substring(punctStart, punctEnd));
+          appendAccumText(blurbedText, punctStart, punctEnd);
 
           // Trim all the trailing spaces off the accumulated text.
           trimAccumText(false);
@@ -2231,12 +2743,12 @@ public class XMLTextProcessor extends DefaultHandler
           // Remove the text from the buffer that was in the previous
           // chunk but not in the next one.
           //
-          accumText.delete(0, nextChunkStartIdx);
+          discardAccumText(nextChunkStartIdx);
 
           // Make sure that the next word added doesn't bump up against
           // the last one accumulated.
           //
-          accumTextLen = trimAccumText(true);
+          accumLen = trimAccumText(true);
 
           // Reset the start index for the next chunk.
           nextChunkStartIdx = 0;
@@ -2248,7 +2760,7 @@ public class XMLTextProcessor extends DefaultHandler
         // length.
         //
         else
-          accumTextLen = trimAccumText(false);
+          accumLen = trimAccumText(false);
       } // try( to process next word in token list )
 
       catch (Exception e) 
@@ -2276,12 +2788,11 @@ public class XMLTextProcessor extends DefaultHandler
     } // for(;;)
 
     // Accumulate and closing text/punctuation in this text block.
-    accumText.append(blurbedTextStr.substring(punctStart,
-                                              blurbedTextStr.length()));
+    appendAccumText(blurbedText, punctStart, blurbedTextLen);
 
     // Trim all the trailing spaces off the accumulated text buffer.
     trimAccumText(false);
-  } // public characters()
+  } // formChunks()
   
   /**
    * Map special characters in XML to their entity equivalents.
@@ -2297,6 +2808,28 @@ public class XMLTextProcessor extends DefaultHandler
     return str;
   }
 
+  /**
+   * Append characters to a buffer, mapping special characters in XML to 
+   * their entity equivalents.
+   */
+  private static void appendXMLChars(StringBuffer buf, char[] ch, int start,
+                                     int length)
+  {
+    int end = start + length;
+    for (int i = start; i < end; i++) 
+    {
+      char c = ch[i];
+      if (c == '&')
+        buf.append("&amp;");
+      else if (c == '<')
+        buf.append("&lt;");
+      else if (c == '>')
+        buf.append("&gt;");
+      else
+        buf.append(c);
+    }
+  } // appendXMLChars()
+
   //////////////////////////////////////////////////////////////////////////////
 
   /** Forces subsequent text to start at the beginning of a new chunk. <br><br>
@@ -2325,7 +2858,7 @@ public class XMLTextProcessor extends DefaultHandler
       // Remove the text from the buffer that was in the previous
       // chunk but not in the next one.
       //
-      accumText.delete(0, nextChunkStartIdx);
+      discardAccumText(nextChunkStartIdx);
 
       // Make sure that the next word added doesn't bump up against
       // the last one accumulated.
@@ -2349,7 +2882,7 @@ public class XMLTextProcessor extends DefaultHandler
     chunkWordCount = 0;
     nextChunkWordCount = 0;
     nextChunkWordOffset = 0;
-    accumText.setLength(0);
+    accumTextLen = 0;
 
     // Subsequent data might start in a new node.
     chunkStartNode = -1;
@@ -2375,31 +2908,96 @@ public class XMLTextProcessor extends DefaultHandler
    */
   private int trimAccumText(boolean oneEndSpace) 
   {
-    // Figure out how long the current accumulated text is.
-    int length = accumText.length();
-
     // Trim all the trailing spaces off the accumulated text buffer.
-    while (length > 0 && accumText.charAt(length - 1) == ' ')
-      accumText.deleteCharAt(--length);
+    while (accumTextLen > 0 && accumText[accumTextLen - 1] == ' ')
+      accumTextLen--;
 
     // If there's any accumulated text left, and the caller wants the 
     // accumulated text to end with a space (to guarantee that the next
     // word added will not run into the previously accumulated one), 
     // add back one space.
     //    
-    if (length > 0 && oneEndSpace) {
-      accumText.append(' ');
-      length++;
-    }
+    if (accumTextLen > 0 && oneEndSpace)
+      appendAccumText(' ');
 
     // Tell the caller what the final length of the accumulated text
     // buffer was.
     //
-    return length;
+    return accumTextLen;
   } // trimAccumText()
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Append a single character to the accumulated chunk text buffer. */
+  private void appendAccumText(char c) 
+  {
+    if (accumTextLen == accumText.length)
+      accumText = growChars(accumText, accumTextLen, accumTextLen + 1);
+    accumText[accumTextLen++] = c;
+  } // appendAccumText()
+
+  /** Append a range of characters to the accumulated chunk text buffer.
+   *
+   *  @param  src    Array to copy from.
+   *  @param  start  First character to copy.
+   *  @param  end    One past the last character to copy.
+   */
+  private void appendAccumText(char[] src, int start, int end) 
+  {
+    int len = end - start;
+    if (accumTextLen + len > accumText.length)
+      accumText = growChars(accumText, accumTextLen, accumTextLen + len);
+    System.arraycopy(src, start, accumText, accumTextLen, len);
+    accumTextLen += len;
+  } // appendAccumText()
+
+  /** Remove characters from the start of the accumulated chunk text buffer,
+   *  sliding the rest down to take their place.
+   */
+  private void discardAccumText(int count) 
+  {
+    System.arraycopy(accumText, count, accumText, 0, accumTextLen - count);
+    accumTextLen -= count;
+  } // discardAccumText()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Utility method to expand a character buffer, preserving its contents.
+   *
+   *  @param  buf     The buffer to expand.
+   *  @param  inUse   How many characters of the buffer to preserve.
+   *  @param  needed  The minimum size of the new buffer.
+   *
+   *  @return A new buffer at least <code>needed</code> characters long.
+   */
+  private static char[] growChars(char[] buf, int inUse, int needed) 
+  {
+    char[] newBuf = new char[Math.max(needed, buf.length * 2)];
+    System.arraycopy(buf, 0, newBuf, 0, inUse);
+    return newBuf;
+  } // growChars()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Utility method to copy characters into a scratch buffer, expanding
+   *  the buffer if necessary.
+   *
+   *  @param  src     The characters to copy.
+   *  @param  length  How many characters to copy.
+   *  @param  dest    The scratch buffer to copy them to.
+   *
+   *  @return The scratch buffer (or a larger replacement.)
+   */
+  private static char[] copyChars(char[] src, int length, char[] dest) 
+  {
+    if (dest.length < length)
+      dest = new char[Math.max(length, dest.length * 2)];
+    System.arraycopy(src, 0, dest, 0, length);
+    return dest;
+  } // copyChars()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Convert the given source text into a "blurb." <br><br>
    *
    *  This method replaces line-feeds, tabs, and other whitespace characters
@@ -2409,30 +3007,30 @@ public class XMLTextProcessor extends DefaultHandler
    *  @param  text   Upon entry, the text to be converted into a "blurb."
    *                 Upon return, the resulting "blurbed" text.
    *
+   *  @param  length The number of characters of text to convert.
+   *
    *  @param  trim   A flag indicating whether or not leading and trailing
    *                 whitespace should be trimmed from the resulting "blurb"
    *                 text. <br><br>
    *
+   *  @return The length of the resulting "blurbed" text. <br><br>
+   *
    *  @.notes
    *    This function also compresses multiple space characters into a single
    *    space character, and removes any internal processing markers (i.e.,
    *    node tracking or bump tracking markers.)
    */
-  private void blurbify(StringBuffer text, boolean trim) 
+  private int blurbify(char[] text, int length, boolean trim) 
   {
-    int i;
-
-    // Determine the length of the passed text.
-    int length = text.length();
-
-    // Run through and replace any line-feeds, tabs or other funny
-    // white-space characters in the text with a space character, as 
-    // it will be more readable in the blurb.
+    // Make a single pass over the text, copying each character down to
+    // its final position. Since we never add characters, this can be done
+    // in place.
     //
-    for (i = 0; i < length; i++) 
+    int out = 0;
+    for (int i = 0; i < length; i++) 
     {
       // Get the current character.
-      char theChar = text.charAt(i);
+      char theChar = text[i];
 
       // If it's the special token marker character, a tab, linefeed or 
       // some other spacing (but not actually a space character), replace
@@ -2441,54 +3039,37 @@ public class XMLTextProcessor extends DefaultHandler
       if (theChar == Constants.BUMP_MARKER ||
           theChar == Constants.NODE_MARKER ||
           (theChar != ' ' && Character.isWhitespace(theChar)))
-        text.setCharAt(i, ' ');
-    } // for( i = 0; i < length; i++ )
+        theChar = ' ';
 
-    // Compact multiple spaces down into a single space.
-    for (i = 0; i < length - 1;) 
-    {
-      // If there are two spaces in a row at the current position...
-      if (text.charAt(i) == ' ' && text.charAt(i + 1) == ' ') 
+      if (theChar == ' ') 
       {
-        // Remove one of the spaces.
-        text.deleteCharAt(i);
-
-        // Account for the character we removed.
-        length--;
+        // Compact multiple spaces down into a single space.
+        if (out > 0 && text[out - 1] == ' ')
+          continue;
 
-        // And resume checking at the current position.
-        continue;
+        // If the caller wants us to trim the leading spaces, do so.
+        if (out == 0 && trim)
+          continue;
       }
 
-      // We didn't encounter two spaces in a row at the current character
-      // position, so move on to the next one.
-      //
-      i++;
-    } // for( i = 0; i < length-1; )
+      text[out++] = theChar;
+    } // for( i = 0; i < length; i++ )
 
-    // If the caller wants us to trim the leading and trailing spaces, do so.
-    if (trim) 
-    {
-      // Trim the leading spaces (if any), and adjust the next chunk start
-      // index to match.
-      //
-      while (length > 0 && text.charAt(0) == ' ') {
-        text.deleteCharAt(0);
-        length--;
-      }
+    // Trim the trailing space as well (there can be at most one left.)
+    if (trim && out > 0 && text[out - 1] == ' ')
+      out--;
 
-      // Trim the trailing spaces as well.
-      while (length > 0 && text.charAt(length - 1) == ' ')
-        text.deleteCharAt(--length);
-    }
+    // Tell the caller how much text remains.
+    return out;
   } // blurbify()
 
   ////////////////////////////////////////////////////////////////////////////
 
-  /** Inserts "virtual words" into the specified text as needed. <br><br>
+  /** Copies text to the {@link XMLTextProcessor#blurbedText blurbedText}
+   *  buffer, inserting "virtual words" as needed. <br><br>
    *
    *  @param  text  The text into which virtual words should be inserted.
-   *                <br><br>
+   *  @param  len   The number of characters of text. <br><br>
    *
    *  @.notes
    *    Virtual words? What's that all about? Well... <br><br>
@@ -2567,41 +3148,12 @@ public class XMLTextProcessor extends DefaultHandler
    *
    *
    */
-  private void insertVirtualWords(StringBuffer text) 
+  private void insertVirtualWords(char[] text, int len) 
   {
     int i;
 
-    // Get a spaced representation of the virtual word that we can use 
-    // over and over again.
-    //
-    String vWord = Constants.VIRTUAL_WORD + " ";
-
-    // Determine the length of the text to adjust.
-    int len = text.length();
-
-    // Move through all the text, looking for the end of sentences.
-    for (i = 0; i < len; i++) 
-    {
-      // If we find the end of a sentence, insert the number of virtual
-      // words to match the sentence bump value.
-      //
-      if (isEndOfSentence(i, len, text)) 
-      {
-        // If this is at the end of a quote, move beyond the closing
-        // quote before inserting the virtual words.
-        //          
-        if (i < len - 1 && text.charAt(i + 1) == '"')
-          i++;
-
-        // Put in the virtual words.
-        insertVirtualWords(vWord, section.sentenceBump(), text, i + 1);
-
-        // Now that we've inserted virtual words, the length is no longer
-        // valid. So update it before we continue.
-        //
-        len = text.length();
-      }
-    }
+    // Figure out the bump (if any) to put at the beginning of the text.
+    int startBump = 0;
 
     // If there is currently no section bump pending...
     if (section.sectionBump() == 0) 
@@ -2617,7 +3169,7 @@ public class XMLTextProcessor extends DefaultHandler
         // Update: I can't figure out why the above is true. It seems
         //         quite wasteful in fact.
         //
-        insertVirtualWords(vWord, chunkWordOvlp, text, 0);
+        startBump = chunkWordOvlp;
 
         // Cancel the forced chunk flag, now that we've handled it.
         forcedChunk = false;
@@ -2628,7 +3180,39 @@ public class XMLTextProcessor extends DefaultHandler
     // of the accumulated text.
     //
     else
-      insertVirtualWords(vWord, section.useSectionBump(), text, 0);
+      startBump = section.useSectionBump();
+
+    // Build the result from scratch, starting with the bump.
+    blurbedTextLen = 0;
+    appendVirtualWords(startBump);
+
+    // Move through all the text, looking for the end of sentences, and
+    // copying everything up to each one.
+    //
+    int sentenceBump = section.sentenceBump();
+    int copied = 0;
+    for (i = 0; i < len && sentenceBump > 0; i++) 
+    {
+      // If we find the end of a sentence, insert the number of virtual
+      // words to match the sentence bump value.
+      //
+      if (isEndOfSentence(i, len, text)) 
+      {
+        // If this is at the end of a quote, move beyond the closing
+        // quote before inserting the virtual words.
+        //          
+        if (i < len - 1 && text[i + 1] == '"')
+          i++;
+
+        // Put in the text so far, then the virtual words.
+        appendBlurbedText(text, copied, i + 1);
+        copied = i + 1;
+        appendVirtualWords(sentenceBump);
+      }
+    }
+
+    // Put in the rest of the text.
+    appendBlurbedText(text, copied, len);
   } // insertVirtualWords()
 
   ////////////////////////////////////////////////////////////////////////////
@@ -2657,12 +3241,12 @@ public class XMLTextProcessor extends DefaultHandler
    *     and in acronyms (i.e., 61.7 and I.B.M.) as end of sentence markers.
    *     <br><br>
    */
-  private boolean isEndOfSentence(int idx, int len, StringBuffer text) 
+  private boolean isEndOfSentence(int idx, int len, char[] text) 
   {
     // Get the current character from the text. If it is not even a sentence
     // punctuation mark, return early.
     //
-    char currChar = text.charAt(idx);
+    char currChar = text[idx];
     if (!isSentencePunctuationChar(currChar))
       return false;
 
@@ -2672,9 +3256,9 @@ public class XMLTextProcessor extends DefaultHandler
     char prevChar = ' ';
     char nextChar = ' ';
     if (idx > 0)
-      prevChar = text.charAt(idx - 1);
+      prevChar = text[idx - 1];
     if (idx < len - 1)
-      nextChar = text.charAt(idx + 1);
+      nextChar = text[idx + 1];
 
     // If the current character is a period...
     //
@@ -2763,27 +3347,30 @@ public class XMLTextProcessor extends DefaultHandler
   ////////////////////////////////////////////////////////////////////////////
 
   /** Utility function used by the main
-   *  {@link XMLTextProcessor#insertVirtualWords(StringBuffer) insertVirtualWords()}
-   *  method to insert a specified number of virtual word symbols. <br><br>
+   *  {@link XMLTextProcessor#insertVirtualWords(char[],int) insertVirtualWords()}
+   *  method to add a specified number of virtual word symbols to the end of
+   *  the blurbed text buffer. <br><br>
    *
-   *  @param  vWord  The virtual word symbol to insert.
-   *  @param  count  The number of virtual words to insert.
-   *  @param  text   The text to insert the virtual words into.
-   *  @param  pos    The character index in the text at which to insert the
-   *                 virtual words. <br><br>
+   *  @param  count  The number of virtual words to add. <br><br>
    *
    *  @.notes
    *    For an in-depth explanation of virtual words, see the main
-   *    {@link XMLTextProcessor#insertVirtualWords(StringBuffer) insertVirtualWords()}
+   *    {@link XMLTextProcessor#insertVirtualWords(char[],int) insertVirtualWords()}
    *    method.
    */
-  private void insertVirtualWords(String vWord, int count, StringBuffer text,
-                                  int pos) 
+  private void appendVirtualWords(int count) 
   {
     // If the caller asked for no virtual words to be inserted, return early.
     if (count == 0)
       return;
 
+    // Make sure there's room for all of them.
+    String vWord = Constants.VIRTUAL_WORD;
+    int vWordLen = vWord.length();
+    int needed = blurbedTextLen + 1 + (count * (vWordLen + 1));
+    if (needed > blurbedText.length)
+      blurbedText = growChars(blurbedText, blurbedTextLen, needed);
+
     // Always start a block of virtual words with a space. Why? Because 
     // Lucene's standard tokenizer seems to treat a sequence like "it.qw"
     // as a single token. In fact, we want it to be treated like the word
@@ -2791,12 +3378,30 @@ public class XMLTextProcessor extends DefaultHandler
     // assures that this is the case. (Don't worry, we compact the extra
     // space out later anyway when we convert to bump count notation.)
     //
-    text.insert(pos++, ' ');
+    blurbedText[blurbedTextLen++] = ' ';
 
-    // Insert the required number of virtual words.
-    for (int j = 0; j < count; j++)
-      text.insert(pos, vWord);
-  } // insertVirtualWords()
+    // Add the required number of virtual words, each followed by a space.
+    for (int j = 0; j < count; j++) {
+      vWord.getChars(0, vWordLen, blurbedText, blurbedTextLen);
+      blurbedTextLen += vWordLen;
+      blurbedText[blurbedTextLen++] = ' ';
+    }
+  } // appendVirtualWords()
+
+  /** Append a range of characters to the blurbed text buffer.
+   *
+   *  @param  src    Array to copy from.
+   *  @param  start  First character to copy.
+   *  @param  end    One past the last character to copy.
+   */
+  private void appendBlurbedText(char[] src, int start, int end) 
+  {
+    int len = end - start;
+    if (blurbedTextLen + len > blurbedText.length)
+      blurbedText = growChars(blurbedText, blurbedTextLen, blurbedTextLen + len);
+    System.arraycopy(src, start, blurbedText, blurbedTextLen, len);
+    blurbedTextLen += len;
+  } // appendBlurbedText()
 
   ////////////////////////////////////////////////////////////////////////////
 
@@ -2844,7 +3449,7 @@ public class XMLTextProcessor extends DefaultHandler
     }
 
     // If after compaction there's nothing to index, we're done.
-    if (compactedAccumText.length() == 0)
+    if (compactedAccumTextLen == 0)
       return;
 
     // Make a new document, to which we can add our fields.     
@@ -2871,7 +3476,7 @@ public class XMLTextProcessor extends DefaultHandler
     // Convert the various integer field values to strings for writing.
     String nodeStr = Integer.toString(chunkStartNode);
     String wordOffsetStr = Integer.toString(chunkWordOffset);
-    String textStr = compactedAccumText.toString();
+    String textStr = new String(compactedAccumText, 0, compactedAccumTextLen);
 
     // Diagnostic output.
     //Trace.tab();
@@ -2891,7 +3496,7 @@ public class XMLTextProcessor extends DefaultHandler
     textField.setBoost(secInfo.wordBoost);
 
     // Establish whether to add words to the spellcheck dictionary.
-    XTFTextAnalyzer analyzer = (XTFTextAnalyzer)indexWriter.getAnalyzer();
+    XTFTextAnalyzer analyzer = getAnalyzer();
     analyzer.clearMisspelledFields();
     if (secInfo.spellFlag == SectionInfo.noSpell)
       analyzer.addMisspelledField("text");
@@ -2904,7 +3509,11 @@ public class XMLTextProcessor extends DefaultHandler
     try 
     {
       // Add the resulting list of fields (document) to the index.
-      indexWriter.addDocument(doc);
+      boolean timing = (chunkTimer != null);
+      long startTime = timing ? System.nanoTime() : 0;
+      addDocument(doc);
+      if (timing)
+        chunkAddNanos += System.nanoTime() - startTime;
 
       // Account for the new chunk added.
       chunkCount++;
@@ -2928,10 +3537,10 @@ public class XMLTextProcessor extends DefaultHandler
 
   ////////////////////////////////////////////////////////////////////////////
 
-  /** Utility function to check if a string or a portion of a string is
+  /** Utility function to check if a portion of a character array is
    *  entirely whitespace. <br><br>
    *
-   *  @param  str    String to check for all whitespace.
+   *  @param  str    Characters to check for all whitespace.
    *  @param  start  First character in string to check.
    *  @param  end    One index past the last character to check. <br><br>
    *
@@ -2941,10 +3550,10 @@ public class XMLTextProcessor extends DefaultHandler
    *   <code>false</code> - The specified range of the string is <b>not</b> all
    *                        whitespace. <br><br>
    */
-  private static boolean isAllWhitespace(String str, int start, int end) 
+  private static boolean isAllWhitespace(char[] str, int start, int end) 
   {
     for (int i = start; i < end; i++)
-      if (!Character.isWhitespace(str.charAt(i)))
+      if (!Character.isWhitespace(str[i]))
         return false;
 
     return true;
@@ -2960,7 +3569,7 @@ public class XMLTextProcessor extends DefaultHandler
    *
    *  @.notes
    *    For an explanation of "virtual words", see the main
-   *    {@link XMLTextProcessor#insertVirtualWords(StringBuffer) insertVirtualWords()}
+   *    {@link XMLTextProcessor#insertVirtualWords(char[],int) insertVirtualWords()}
    *    method. <br><br>
    *
    *    A virtual word count consists of a special start marker, followed by
@@ -2977,26 +3586,19 @@ public class XMLTextProcessor extends DefaultHandler
   private void compactVirtualWords()
     throws IOException 
   {
-    int i;
-
-    // Get convienient versions of the special bump token marker and the 
-    // virtual word string.
-    // 
-    char marker = Constants.BUMP_MARKER;
+    // Get a convienient version of the virtual word string.
     String vWord = Constants.VIRTUAL_WORD;
 
-    // Start by setting the compacted text buffer to the contents of the
-    // accumulated text buffer.
-    //
-    compactedAccumText.setLength(0);
-    compactedAccumText.append(accumText);
+    // Start with an empty compacted buffer.
+    compactedAccumTextLen = 0;
+    compactPendingSpace = false;
 
-    // Convert the compacted text into a list of tokens we can use.
-    String textStr = compactedAccumText.toString();
-    FastStringReader reader = new FastStringReader(textStr);
-    TokenStream tokenList = new FastTokenizer(reader);
+    // Convert the accumulated text into a list of tokens we can use.
+    accumTokenText = copyChars(accumText, accumTextLen, accumTokenText);
+    TokenStream tokenList = new FastTokenizer(accumTokenText, accumTextLen);
 
-    int posAdj = 0;
+    // Keep track of how much of the accumulated text has been copied.
+    int copied = 0;
     Token theToken = null;
 
     // Look for blocks of virtual words, and turn them into special bump
@@ -3017,7 +3619,7 @@ public class XMLTextProcessor extends DefaultHandler
       int vWordCount = 0;
 
       // Mark the start and end of the current block of virtual words.
-      int vRunStart = posAdj + theToken.startOffset();
+      int vRunStart = theToken.startOffset();
       int vRunEnd = vRunStart;
 
       // For each virtual word we encounter in a row (possibly none)...
@@ -3030,7 +3632,7 @@ public class XMLTextProcessor extends DefaultHandler
           // punctuation in there, it's not safe to compact this one
           // with the previous.
           //
-          if (!isAllWhitespace(textStr, vRunEnd - posAdj, theToken.startOffset())) 
+          if (!isAllWhitespace(accumText, vRunEnd, theToken.startOffset())) 
           {
             // Okay, we must break out of this sequence. But
             // before we do, make sure the next go-round will start
@@ -3044,11 +3646,9 @@ public class XMLTextProcessor extends DefaultHandler
         }
 
         // Advance the end of run position to the end of the next 
-        // virtual word. Note that this offset must be adjusted 
-        // based on the number of virtual words we've already
-        // removed, and the number of bump tokens we've inserted.
+        // virtual word.
         // 
-        vRunEnd = posAdj + theToken.endOffset();
+        vRunEnd = theToken.endOffset();
 
         // Keep track of how many virtual words were in the run.
         vWordCount++;
@@ -3064,57 +3664,20 @@ public class XMLTextProcessor extends DefaultHandler
       // If we found any virtual words...
       if (vWordCount > 0) 
       {
-        // Determine how long the run of virtual words was and remove them.
-        int vRunLen = vRunEnd - vRunStart;
-        compactedAccumText.delete(vRunStart, vRunEnd);
-
-        // Update the position adjustment to account for the run 
-        // of virtual words we removed.
-        //
-        posAdj -= vRunLen;
-
-        // Insert a special bump token equivalent to the number of 
-        // virtual words removed by this run.
-        //
-        String bumpStr = marker + Integer.toString(vWordCount) + marker;
-        compactedAccumText.insert(vRunStart, bumpStr);
-
-        // Update the position adjustment to account for the special
-        // bump token we just added to the text.
+        // Copy the text leading up to the run, then put in a special 
+        // bump token equivalent to the number of virtual words in the 
+        // run, in place of the words themselves.
         //
-        posAdj += bumpStr.length();
+        appendCompacted(accumText, copied, vRunStart);
+        appendBumpToken(vWordCount);
+        copied = vRunEnd;
       } // if( vWordCount > 0 )
     } // for(;;)
 
-    // Once all the bump tokens are in, we can remove any accumulated
-    // unwanted spaces left over from the original insertion of the 
-    // virtual words.
-    //
-    for (i = 0; i < compactedAccumText.length() - 1;) 
-    {
-      // Get the current and next characters.
-      char currChar = compactedAccumText.charAt(i);
-      char nextChar = compactedAccumText.charAt(i + 1);
-
-      // If the current character is a space...
-      if (currChar == ' ') 
-      {
-        // If the next character is also a space or a special bump tag
-        // marker, we can remove the space. Note that we don't advance
-        // since the deletion of the space effectively slid the remaining
-        // characters one slot to the left.
-        //
-        if (nextChar == ' ' || nextChar == marker) {
-          compactedAccumText.deleteCharAt(i);
-          continue;
-        }
-      } // if (currChar == ' ' ) 
-
-      // If we got to this point, we didn't find multiple spaces. So just
-      // advance to the next character and try again.
-      //
-      i++;
-    } // for( i = 0; i < compactedAccumText.length()-1; )
+    // Copy whatever text follows the last run.
+    appendCompacted(accumText, copied, accumTextLen);
+    if (compactPendingSpace)
+      compactedAccumText[compactedAccumTextLen++] = ' ';
 
     /*
     The following text optimization is incomplete. It attempts to null out
@@ -3129,24 +3692,98 @@ public class XMLTextProcessor extends DefaultHandler
     //////////////////////////////////////////////////////////////////////////
 
     // Begin by determining the length of the current compacted text.
-    int textLen = compactedAccumText.length();
+    int textLen = compactedAccumTextLen;
 
     // If the compacted text doesn't end in a special bump marker, we're done.
-    if( compactedAccumText.charAt(textLen-1) != marker ) return;
+    if( compactedAccumText[textLen-1] != Constants.BUMP_MARKER ) return;
 
     // Back up to find the beginning special bump marker.
-    for( i = textLen-2; compactedAccumText.charAt(i) != marker; i-- );
+    int i;
+    for( i = textLen-2; compactedAccumText[i] != Constants.BUMP_MARKER; i-- );
 
     // Once we've found the start marker, we can remove the special token.
     // Note that this will remove both ending bump tokens and zero out
     // chunks that only contain a special bump token.
     //
-    compactedAccumText.delete( i, textLen );
+    compactedAccumTextLen = i;
     */
   } // compactVirtualWords()
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Utility function used by
+   *  {@link XMLTextProcessor#compactVirtualWords() compactVirtualWords()}
+   *  to copy text into the compacted buffer. At the same time, it removes 
+   *  the unwanted spaces left over from the original insertion of the 
+   *  virtual words: multiple spaces become one, and spaces before a bump
+   *  token are removed entirely. A space is therefore held back in
+   *  {@link XMLTextProcessor#compactPendingSpace compactPendingSpace}
+   *  until we know what follows it.
+   *
+   *  @param  src    Array to copy from.
+   *  @param  start  First character to copy.
+   *  @param  end    One past the last character to copy.
+   */
+  private void appendCompacted(char[] src, int start, int end) 
+  {
+    // Make room for the text, plus a space that might be held back.
+    int needed = compactedAccumTextLen + (end - start) + 1;
+    if (needed > compactedAccumText.length) {
+      compactedAccumText = growChars(compactedAccumText, 
+                                     compactedAccumTextLen, needed);
+    }
+
+    char[] out = compactedAccumText;
+    int outLen = compactedAccumTextLen;
+    boolean pendingSpace = compactPendingSpace;
+    for (int i = start; i < end; i++) 
+    {
+      char c = src[i];
+      if (c == ' ') {
+        pendingSpace = true;
+        continue;
+      }
+      if (pendingSpace && c != Constants.BUMP_MARKER)
+        out[outLen++] = ' ';
+      pendingSpace = false;
+      out[outLen++] = c;
+    }
+    compactedAccumTextLen = outLen;
+    compactPendingSpace = pendingSpace;
+  } // appendCompacted()
+
+  /** Add a special bump token to the compacted buffer, replacing a run of
+   *  <code>count</code> virtual words. Any pending space is dropped, since
+   *  spaces before a bump token are not needed.
+   */
+  private void appendBumpToken(int count) 
+  {
+    // Make room for two markers and up to ten digits.
+    int needed = compactedAccumTextLen + 12;
+    if (needed > compactedAccumText.length) {
+      compactedAccumText = growChars(compactedAccumText, 
+                                     compactedAccumTextLen, needed);
+    }
+
+    char marker = Constants.BUMP_MARKER;
+    char[] out = compactedAccumText;
+    compactPendingSpace = false;
+    out[compactedAccumTextLen++] = marker;
+
+    // Write the digits of the count, most significant first.
+    int nDigits = 1;
+    for (int n = count / 10; n > 0; n /= 10)
+      nDigits++;
+    for (int i = nDigits - 1; i >= 0; i--) {
+      out[compactedAccumTextLen + i] = (char)('0' + (count % 10));
+      count /= 10;
+    }
+    compactedAccumTextLen += nDigits;
+    out[compactedAccumTextLen++] = marker;
+  } // appendBumpToken()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /** Utility function to check if a string contains the word <b>true</b> or
    *  <b>false</b> or the equivalent values <b>yes</b> or <b>no</b>.
    *
@@ -3569,7 +4206,7 @@ public class XMLTextProcessor extends DefaultHandler
     // Get the analyzer that will be used to tokenize fields. Tell it to
     // forget what it knows about facet fields (we'll re-mark them below.)
     //
-    XTFTextAnalyzer analyzer = (XTFTextAnalyzer)indexWriter.getAnalyzer();
+    XTFTextAnalyzer analyzer = getAnalyzer();
     analyzer.clearFacetFields();
 
     // Make sure we got meta-info for this document.
@@ -3625,9 +4262,11 @@ public class XMLTextProcessor extends DefaultHandler
         //
         if (metaField.tokenize && !metaField.isFacet) 
         {
-          if (!tokenizedFields.contains(metaField.name)) {
-            addToTokenizedFieldsFile(metaField.name);
-            tokenizedFields.add(metaField.name);
+          synchronized (tokenizedFields) {
+            if (!tokenizedFields.contains(metaField.name)) {
+              addToTokenizedFieldsFile(metaField.name);
+              tokenizedFields.add(metaField.name);
+            }
           }
         }
       } // while(  metaIter.hasNext() )
@@ -3636,7 +4275,7 @@ public class XMLTextProcessor extends DefaultHandler
     try 
     {
       // Add the document info block to the index.
-      indexWriter.addDocument(doc);
+      addDocument(doc);
     }
 
     // If something went wrong...
@@ -3656,6 +4295,45 @@ public class XMLTextProcessor extends DefaultHandler
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Get the analyzer that will tokenize the documents being built. */
+  private XTFTextAnalyzer getAnalyzer() {
+    if (workerAnalyzer != null)
+      return workerAnalyzer;
+    return (XTFTextAnalyzer)indexWriter.getAnalyzer();
+  } // getAnalyzer()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Add a chunk or docInfo document to the index. In a worker processor,
+   *  the document is instead held (along with the analyzer's field marks)
+   *  to be added later by the main processor.
+   */
+  private void addDocument(Document doc)
+    throws IOException 
+  {
+    if (pendingDocs != null)
+      pendingDocs.add(new PendingDoc(doc, workerAnalyzer.snapshotFieldMarks()));
+    else {
+      indexWriter.addDocument(doc);
+      flushIfFull();
+    }
+  } // addDocument()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Flush the documents (and deletions) buffered by the index writer once
+   *  they take up more than {@link #MAX_RAM_BUFFER} bytes, so that segment
+   *  size depends on how much text there is rather than how many chunks.
+   */
+  private void flushIfFull()
+    throws IOException 
+  {
+    if (indexWriter.ramSizeInBytes() > MAX_RAM_BUFFER)
+      indexWriter.flush();
+  } // flushIfFull()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /**
    * Adds a field to the on-disk list of tokenized fields for an index.
    * Exceptions are handled internally and thrown as RuntimeException.
@@ -3760,51 +4438,70 @@ public class XMLTextProcessor extends DefaultHandler
   private int checkFile(IndexSource srcInfo)
     throws IOException 
   {
-    // We need to find the docInfo chunk that contains the specified
-    // file. So construct a boolean query looking for a chunk with 
-    // a "docInfo" field AND a "key" field containing the specified
-    // source file key.
+    // The first time through, read the key and date of every document in
+    // the index in one pass, so that most checks are simple lookups rather
+    // than a Lucene search per file.
     //
-    BooleanQuery query = new BooleanQuery();
-    Term docInfo = new Term("docInfo", "1");
-    Term keyTerm = new Term("key", srcInfo.key());
-    query.add(new TermQuery(docInfo), BooleanClause.Occur.MUST);
-    query.add(new TermQuery(keyTerm), BooleanClause.Occur.MUST);
+    if (keySnapshot == null)
+      keySnapshot = new IndexKeySnapshot(indexReader, indexInfo.indexName);
 
-    // Use the query to see if the document is in the index..
+    // Look up the date recorded for this source. If the same key has already
+    // been checked (for instance, the file appeared twice in the scan), the
+    // snapshot may be out of date, so search the index the old way instead.
+    //
+    File srcPath = srcInfo.path();
     boolean docInIndex = false;
     boolean docChanged = false;
+    boolean dateMatches = false;
 
-    Hits match = indexSearcher.search(query);
-    if (match.length() > 0) 
+    if (keySnapshot.wasSeen(srcInfo.key())) 
     {
-      // Flag that the document is in the index.
-      docInIndex = true;
-
-      // Get the file modification date from the "docInfo" chunk.
-      Document doc = match.doc(0);
-      String indexDateStr = doc.get("fileDate");
-
-      // See what the date is on the actual source file right now.
-      File srcPath = srcInfo.path();
-      String fileDateStr = DateTools.timeToString(
-        srcPath.lastModified(), 
-        DateTools.Resolution.MILLISECOND);
-
-      // If the dates are different (or we're ignoring them)...
-      if (fileDateStr.compareTo(indexDateStr) != 0 || ignoreFileTimes) 
+      // We need to find the docInfo chunk that contains the specified
+      // file. So construct a boolean query looking for a chunk with 
+      // a "docInfo" field AND a "key" field containing the specified
+      // source file key.
+      //
+      BooleanQuery query = new BooleanQuery();
+      Term docInfo = new Term("docInfo", "1");
+      Term keyTerm = new Term("key", srcInfo.key());
+      query.add(new TermQuery(docInfo), BooleanClause.Occur.MUST);
+      query.add(new TermQuery(keyTerm), BooleanClause.Occur.MUST);
+
+      // Use the query to see if the document is in the index..
+      Hits match = indexSearcher.search(query);
+      if (match.length() > 0) 
       {
-        // Delete the old lazy file, if any. Might as well delete any
-        // empty parent directories as well.
-        //
-        File lazyFile = IndexUtil.calcLazyPath(new File(xtfHomePath),
-                                               indexInfo,
-                                               srcPath,
-                                               false);
-        Path.deletePath(lazyFile.toString());
+        docInIndex = true;
 
-        // And flag that we need to re-add them.
+        // Compare the date in the "docInfo" chunk with the date on the
+        // actual source file right now.
+        //
+        String indexDateStr = match.doc(0).get("fileDate");
+        String fileDateStr = DateTools.timeToString(
+          srcPath.lastModified(), 
+          DateTools.Resolution.MILLISECOND);
+        dateMatches = fileDateStr.equals(indexDateStr);
+      }
+    }
+    else 
+    {
+      // The snapshot holds dates at millisecond resolution, so they can be
+      // compared directly with the source file's date.
+      //
+      long indexDate = keySnapshot.checkKey(srcInfo.key());
+      if (indexDate != IndexKeySnapshot.NOT_FOUND) {
         docInIndex = true;
+        dateMatches = (indexDate == srcPath.lastModified());
+      }
+    }
+
+    if (docInIndex) 
+    {
+      // If the dates are different (or we're ignoring them), flag that 
+      // we need to re-add the document.
+      //
+      if (!dateMatches || ignoreFileTimes) 
+      {
         docChanged = true;
 
         ////////////////////////////////////////////////////////
@@ -3814,8 +4511,8 @@ public class XMLTextProcessor extends DefaultHandler
         //  operation.)                                       //
         //                                                    //
         ////////////////////////////////////////////////////////
-      } // if( fileDateStr.compareTo(indexDateStr) != 0 ) 
-    } // if( match.length() > 0 )
+      } // if( !dateMatches || ignoreFileTimes ) 
+    } // if( docInIndex )
 
     // Now let the caller know the status.
     if (!docInIndex)
@@ -3827,6 +4524,32 @@ public class XMLTextProcessor extends DefaultHandler
 
   ////////////////////////////////////////////////////////////////////////////
 
+  /** Delete the old lazy file for a source, if any. Might as well delete 
+   *  any empty parent directories as well.
+   */
+  private void deleteLazyFile(File srcPath)
+    throws IOException 
+  {
+    File lazyFile = IndexUtil.calcLazyPath(new File(xtfHomePath),
+                                           indexInfo,
+                                           srcPath,
+                                           false);
+    Path.deletePath(lazyFile.toString());
+  } // deleteLazyFile()
+
+  ////////////////////////////////////////////////////////////////////////////
+
+  /** Get the snapshot of document keys and dates used to check files
+   *  against the index, or null if no files have been checked. After the
+   *  source tree has been scanned, any key in it that was never seen is a
+   *  candidate for removal from the index.
+   */
+  public IndexKeySnapshot getKeySnapshot() {
+    return keySnapshot;
+  } // getKeySnapshot()
+
+  ////////////////////////////////////////////////////////////////////////////
+
   /**
    * Runs an optimization pass (which can be quite time-consuming) on the
    * currently open index. Optimization speeds future query access to the
@@ -3932,10 +4655,12 @@ public class XMLTextProcessor extends DefaultHandler
 
     // Since we end up adding tons of little 'documents' to Lucene, it's much 
     // faster to queue up a bunch in RAM before sorting and writing them out. 
-    // This limit gives good speed, but requires quite a bit of RAM (probably
-    // 100 megs is about right.)
+    // We flush them when they reach a certain amount of RAM (see
+    // flushIfFull()), so the document limit here is just a backstop. Deleted
+    // keys are likewise held until the next flush.
     //
-    indexWriter.setMaxBufferedDocs(100);
+    indexWriter.setMaxBufferedDocs(MAX_BUFFERED_DOCS);
+    indexWriter.setMaxBufferedDeleteTerms(MAX_BUFFERED_DOCS);
 
     // If requested to make a spellcheck dictionary for this index, attach 
     // a spelling writer to the text analyzer, so that tokenized words get 
@@ -3990,9 +4715,27 @@ public class XMLTextProcessor extends DefaultHandler
     public IndexSource idxSrc;
     public boolean deleteFirst;
 
+    /** If the decision to re-index waits on a content hash, the new one */
+    public Future<HashManifest.Entry> newHash;
+
+    /** ...and the hash of the version in the index */
+    public HashManifest.Entry oldHash;
+
     public FileQueueEntry(IndexSource idxSrc, boolean deleteFirst) {
       this.idxSrc = idxSrc;
       this.deleteFirst = deleteFirst;
     }
   } // private class FileQueueEntry
+
+  ////////////////////////////////////////////////////////////////////////////
+  private static class PendingDoc 
+  {
+    public Document doc;
+    public XTFTextAnalyzer fieldMarks;
+
+    public PendingDoc(Document doc, XTFTextAnalyzer fieldMarks) {
+      this.doc = doc;
+      this.fieldMarks = fieldMarks;
+    }
+  } // private class PendingDoc
 } // class XMLTextProcessor
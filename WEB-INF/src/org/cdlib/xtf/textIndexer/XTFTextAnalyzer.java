@@ -243,6 +243,31 @@ public class XTFTextAnalyzer extends Analyzer
     this.spellWriter = writer;
   }
 
+  /**
+   * Make a copy of the current facet and misspelled field marks, so they
+   * can be re-applied with {@link #copyFieldMarks(XTFTextAnalyzer)} when
+   * the document is actually added to the index. Used when documents are
+   * built on one thread and analyzed on another.
+   */
+  XTFTextAnalyzer snapshotFieldMarks() {
+    XTFTextAnalyzer copy = new XTFTextAnalyzer(stopSet, pluralMap, accentMap);
+    copy.copyFieldMarks(this);
+    return copy;
+  }
+
+  /**
+   * Replace the facet and misspelled field marks with those of another
+   * analyzer.
+   *
+   * @param other   Analyzer (typically a snapshot) to copy marks from.
+   */
+  void copyFieldMarks(XTFTextAnalyzer other) {
+    facetFields.clear();
+    facetFields.addAll(other.facetFields);
+    misspelledFields.clear();
+    misspelledFields.addAll(other.misspelledFields);
+  }
+
   //////////////////////////////////////////////////////////////////////////////
 
   /** Convert a chunk of contiguous text to a list of tokens, ready for
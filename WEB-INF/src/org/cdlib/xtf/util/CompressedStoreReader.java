@@ -0,0 +1,299 @@
+package org.cdlib.xtf.util;
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads data written by a {@link CompressedStoreWriter}, providing random
+ * access by uncompressed position. Only the block containing the current
+ * position is kept in memory, so sequential and nearby reads are cheap.
+ */
+public class CompressedStoreReader extends SubStoreReader 
+{
+  /** Where the compressed data comes from */
+  private SubStoreReader in;
+
+  /** Number of uncompressed bytes per block */
+  private int blockSize;
+
+  /** Total uncompressed length */
+  private long length;
+
+  /** Starting offset of each block in the underlying store, plus one
+   *  extra entry marking the end of the last block. */
+  private int[] blockStarts;
+
+  /** Which block is currently decompressed, or -1 for none */
+  private int curBlockNum = -1;
+
+  /** Uncompressed data for the current block */
+  private byte[] block;
+
+  /** Amount of valid data in the current block */
+  private int blockLen;
+
+  /** Buffer for compressed data */
+  private byte[] deflated = new byte[0];
+
+  /** Decompressor, re-used for each block */
+  private Inflater inflater = new Inflater();
+
+  /** Current uncompressed read position */
+  private long curPos = 0;
+
+  /**
+   * Open a compressed sub-store for reading.
+   *
+   * @param in    The underlying sub-store. Closed when this reader is
+   *              closed.
+   */
+  public CompressedStoreReader(SubStoreReader in)
+    throws IOException 
+  {
+    this.in = in;
+
+    // Read the trailer, then the block table before it.
+    long inLength = in.length();
+    in.seek(inLength - CompressedStoreWriter.TRAILER_SIZE);
+    blockSize = in.readInt();
+    int nBlocks = in.readInt();
+    length = in.readInt() & 0xffffffffL;
+
+    long tableStart = inLength - CompressedStoreWriter.TRAILER_SIZE -
+                      (nBlocks * 4L);
+    in.seek(tableStart);
+    blockStarts = new int[nBlocks + 1];
+    for (int i = 0; i < nBlocks; i++)
+      blockStarts[i] = in.readInt();
+    blockStarts[nBlocks] = (int)tableStart;
+
+    block = new byte[blockSize];
+  } // constructor
+
+  public void close()
+    throws IOException 
+  {
+    inflater.end();
+    in.close();
+  }
+
+  public long getFilePointer()
+    throws IOException 
+  {
+    return curPos;
+  }
+
+  public long length()
+    throws IOException 
+  {
+    return length;
+  }
+
+  public void seek(long pos)
+    throws IOException 
+  {
+    if (pos > length)
+      throw new EOFException("Cannot seek past end of subfile");
+    curPos = pos;
+  }
+
+  public void read(byte[] b, int off, int len)
+    throws IOException 
+  {
+    if (curPos + len > length)
+      throw new EOFException("End of sub-file reached");
+
+    while (len > 0) 
+    {
+      int blockOff = loadBlock();
+      int toCopy = Math.min(len, blockLen - blockOff);
+      System.arraycopy(block, blockOff, b, off, toCopy);
+      off += toCopy;
+      len -= toCopy;
+      curPos += toCopy;
+    }
+  } // read()
+
+  public byte readByte()
+    throws IOException 
+  {
+    if (curPos >= length)
+      throw new EOFException("End of sub-file reached");
+    int blockOff = loadBlock();
+    curPos++;
+    return block[blockOff];
+  }
+
+  public int readInt()
+    throws IOException 
+  {
+    int ret = (readByte() & 0xff) << 24;
+    ret |= (readByte() & 0xff) << 16;
+    ret |= (readByte() & 0xff) << 8;
+    ret |= (readByte() & 0xff);
+    return ret;
+  }
+
+  /**
+   * Make sure the block containing the current position is decompressed.
+   *
+   * @return  Offset of the current position within the block
+   */
+  private int loadBlock()
+    throws IOException 
+  {
+    int blockNum = (int)(curPos / blockSize);
+    if (blockNum != curBlockNum) 
+    {
+      int compLen = blockStarts[blockNum + 1] - blockStarts[blockNum];
+      if (deflated.length < compLen)
+        deflated = new byte[compLen];
+      in.seek(blockStarts[blockNum]);
+      in.read(deflated, 0, compLen);
+
+      inflater.reset();
+      inflater.setInput(deflated, 0, compLen);
+      try {
+        blockLen = 0;
+        while (blockLen < blockSize && !inflater.finished()) {
+          int n = inflater.inflate(block, blockLen, blockSize - blockLen);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+            break;
+          blockLen += n;
+        }
+      }
+      catch (DataFormatException e) {
+        curBlockNum = -1;
+        throw new IOException("Corrupt compressed block: " + e.getMessage());
+      }
+      curBlockNum = blockNum;
+    }
+
+    // A truncated block may not reach the position we want. Callers would
+    // otherwise read stale bytes, or loop forever copying nothing.
+    //
+    int blockOff = (int)(curPos - ((long)blockNum * blockSize));
+    if (blockOff >= blockLen) {
+      throw new IOException("Corrupt compressed block " + blockNum + 
+                            ": only " + blockLen + " bytes");
+    }
+    return blockOff;
+  } // loadBlock()
+
+  // Perform a basic regression test on compressed sub-stores. Writes a file
+  // in the current directory during the test, but erases it on completion.
+  //
+  public static final Tester tester = new Tester("CompressedStore") 
+  {
+    protected void testImpl()
+      throws Exception 
+    {
+      // Since we depend on StructuredFile, make sure it passes.
+      StructuredFile.tester.test();
+
+      File testFile = new File("CompressedStoreTest.sf");
+      StructuredFile f = null;
+
+      try 
+      {
+        f = StructuredFile.create(testFile);
+
+        // Write enough data to span several (small) blocks.
+        CompressedStoreWriter w = new CompressedStoreWriter(
+          f.createSubStore("test"), 100);
+        w.writeInt(12345);
+        byte[] bytes = new byte[1000];
+        for (int i = 0; i < bytes.length; i++)
+          bytes[i] = (byte)(i % 7);
+        w.write(bytes);
+        assert w.length() == 1004;
+        w.writeInt(-2);
+        w.close();
+
+        // Read it back, in and out of order.
+        CompressedStoreReader r = new CompressedStoreReader(
+          f.openSubStore("test"));
+        assert r.length() == 1008;
+        r.seek(1004);
+        assert r.readInt() == -2;
+        r.seek(0);
+        assert r.readInt() == 12345;
+        byte[] check = new byte[bytes.length];
+        r.read(check);
+        for (int i = 0; i < bytes.length; i++)
+          assert check[i] == bytes[i];
+        r.seek(250);
+        assert r.readByte() == bytes[246];
+        r.close();
+
+        // A block that inflates to less than it should must be reported,
+        // not read past.
+        //
+        SubStoreWriter bad = f.createSubStore("bad");
+        Deflater deflater = new Deflater();
+        deflater.setInput(new byte[] { 1, 2, 3 });
+        deflater.finish();
+        byte[] deflated = new byte[100];
+        int compLen = deflater.deflate(deflated);
+        deflater.end();
+        bad.write(deflated, 0, compLen);
+        bad.writeInt(0);    // block table
+        bad.writeInt(100);  // block size
+        bad.writeInt(1);    // # of blocks
+        bad.writeInt(50);   // length
+        bad.close();
+
+        r = new CompressedStoreReader(f.openSubStore("bad"));
+        r.seek(10);
+        try {
+          r.read(check, 0, 5);
+          assert false : "truncated block not detected";
+        }
+        catch (IOException e) {
+          // Expected
+        }
+        r.close();
+      }
+      finally {
+        // All done. Close and clean up our file.
+        if (f != null)
+          f.close();
+        testFile.delete();
+      }
+    } // testImpl()
+  };
+} // class CompressedStoreReader
@@ -0,0 +1,173 @@
+package org.cdlib.xtf.util;
+
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.zip.Deflater;
+import org.apache.lucene.util.IntList;
+
+/**
+ * Wraps a {@link SubStoreWriter}, compressing the data in fixed-size blocks
+ * so that it can later be read back at random positions by a
+ * {@link CompressedStoreReader}. Positions reported by {@link #length()}
+ * are uncompressed positions, so callers can record offsets exactly as
+ * they would with an uncompressed sub-store.
+ *
+ * The layout on disk is the compressed blocks, one after another, followed
+ * by a table giving the start of each block, and finally a trailer with
+ * the block size, the number of blocks, and the uncompressed length.
+ */
+public class CompressedStoreWriter extends SubStoreWriter 
+{
+  /** Default number of uncompressed bytes per block */
+  public static final int DEFAULT_BLOCK_SIZE = 32768;
+
+  /** Size of the trailer at the very end of the data */
+  static final int TRAILER_SIZE = 12;
+
+  /** Where the compressed data goes */
+  private SubStoreWriter out;
+
+  /** Uncompressed data for the block being built */
+  private byte[] block;
+
+  /** Amount of data in the current block */
+  private int blockFill = 0;
+
+  /** Total uncompressed bytes written before the current block */
+  private long prevLength = 0;
+
+  /** Compressed output buffer */
+  private byte[] deflated;
+
+  /** Compressor, re-used for each block */
+  private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+  /** Starting offset of each block within the underlying store */
+  private IntList blockStarts = new IntList();
+
+  /**
+   * Construct a compressing writer with the default block size.
+   *
+   * @param out   Where to write the compressed data. Closed when this
+   *              writer is closed.
+   */
+  public CompressedStoreWriter(SubStoreWriter out) {
+    this(out, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Construct a compressing writer.
+   *
+   * @param out         Where to write the compressed data. Closed when this
+   *                    writer is closed.
+   * @param blockSize   Uncompressed bytes per block. Smaller blocks make
+   *                    random reads cheaper but compress less well.
+   */
+  public CompressedStoreWriter(SubStoreWriter out, int blockSize) {
+    this.out = out;
+    block = new byte[blockSize];
+    deflated = new byte[blockSize + (blockSize / 8) + 64];
+  }
+
+  public void write(byte[] b, int off, int len)
+    throws IOException 
+  {
+    while (len > 0) 
+    {
+      int toCopy = Math.min(len, block.length - blockFill);
+      System.arraycopy(b, off, block, blockFill, toCopy);
+      blockFill += toCopy;
+      off += toCopy;
+      len -= toCopy;
+      if (blockFill == block.length)
+        flushBlock();
+    }
+  }
+
+  public void writeByte(int b)
+    throws IOException 
+  {
+    block[blockFill++] = (byte)b;
+    if (blockFill == block.length)
+      flushBlock();
+  }
+
+  public void writeInt(int v)
+    throws IOException 
+  {
+    writeByte(v >>> 24);
+    writeByte(v >>> 16);
+    writeByte(v >>> 8);
+    writeByte(v);
+  }
+
+  public long length()
+    throws IOException 
+  {
+    return prevLength + blockFill;
+  }
+
+  /** Compress and write out the current block, if it has any data. */
+  private void flushBlock()
+    throws IOException 
+  {
+    if (blockFill == 0)
+      return;
+
+    blockStarts.add((int)out.length());
+    deflater.reset();
+    deflater.setInput(block, 0, blockFill);
+    deflater.finish();
+    while (!deflater.finished()) {
+      int n = deflater.deflate(deflated);
+      out.write(deflated, 0, n);
+    }
+
+    prevLength += blockFill;
+    blockFill = 0;
+  } // flushBlock()
+
+  public void close()
+    throws IOException 
+  {
+    flushBlock();
+    deflater.end();
+
+    // Write the block table, then the trailer.
+    for (int i = 0; i < blockStarts.size(); i++)
+      out.writeInt(blockStarts.get(i));
+    out.writeInt(block.length);
+    out.writeInt(blockStarts.size());
+    out.writeInt((int)prevLength);
+    out.close();
+  } // close()
+} // class CompressedStoreWriter
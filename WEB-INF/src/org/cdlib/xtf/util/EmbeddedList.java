@@ -108,6 +108,34 @@ public class EmbeddedList
     ++count;
   }
 
+  /**
+   * Add an object just after another one in the list.
+   *
+   * @param pos   The object to add after. Must be in this list.
+   * @param l     The object to add. Note that it must not be in any other
+   *              EmbeddedList.
+   */
+  public void addAfter(Linkable pos, Linkable l)
+  {
+    if (pos.getOwner() != this || l.getOwner() != null)
+      throw new IllegalArgumentException();
+    if (pos == tail) {
+      addTail(l);
+      return;
+    }
+    l.setOwner(this);
+    assert l.getPrev() == null;
+    assert l.getNext() == null;
+
+    Linkable next = pos.getNext();
+    l.setPrev(pos);
+    l.setNext(next);
+    pos.setNext(l);
+    next.setPrev(l);
+
+    ++count;
+  }
+
   /**
    * Get the first object in the list.
    *
@@ -0,0 +1,144 @@
+package org.cdlib.xtf.util;
+
+
+/**
+ * Copyright (c) 2012, Regents of the University of California
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * - Neither the name of the University of California nor the names of its
+ *   contributors may be used to endorse or promote products derived from this
+ *   software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Base for XMLReaders that don't parse anything, but instead send events
+ * they already have (or can generate) to the content handler. Wrapped in
+ * a SAXSource, such a reader lets a transformation read the events
+ * directly, rather than parsing them back from a string. The events should
+ * be those of a namespace-aware parser that doesn't report xmlns
+ * attributes. Derived classes need only implement
+ * {@link #sendEvents(ContentHandler)}.
+ */
+public abstract class EventXMLReader implements XMLReader 
+{
+  private static final String NAMESPACES = 
+    "http://xml.org/sax/features/namespaces";
+  private static final String NAMESPACE_PREFIXES = 
+    "http://xml.org/sax/features/namespace-prefixes";
+
+  private ContentHandler contentHandler;
+  private DTDHandler dtdHandler;
+  private EntityResolver entityResolver;
+  private ErrorHandler errorHandler;
+
+  /** Send all the events to the given handler. */
+  protected abstract void sendEvents(ContentHandler handler)
+    throws IOException, SAXException;
+
+  /** Send the events; the input source is ignored. */
+  public void parse(InputSource input)
+    throws IOException, SAXException 
+  {
+    sendEvents(contentHandler);
+  }
+
+  /** Send the events; the system ID is ignored. */
+  public void parse(String systemId)
+    throws IOException, SAXException 
+  {
+    sendEvents(contentHandler);
+  }
+
+  public boolean getFeature(String name)
+    throws SAXNotRecognizedException, SAXNotSupportedException 
+  {
+    if (name.equals(NAMESPACES))
+      return true;
+    if (name.equals(NAMESPACE_PREFIXES))
+      return false;
+    throw new SAXNotRecognizedException(name);
+  }
+
+  /** Only the features we actually have can be "set". */
+  public void setFeature(String name, boolean value)
+    throws SAXNotRecognizedException, SAXNotSupportedException 
+  {
+    if (getFeature(name) != value)
+      throw new SAXNotSupportedException(name);
+  }
+
+  public Object getProperty(String name)
+    throws SAXNotRecognizedException, SAXNotSupportedException 
+  {
+    throw new SAXNotRecognizedException(name);
+  }
+
+  public void setProperty(String name, Object value)
+    throws SAXNotRecognizedException, SAXNotSupportedException 
+  {
+    throw new SAXNotRecognizedException(name);
+  }
+
+  public void setContentHandler(ContentHandler handler) {
+    contentHandler = handler;
+  }
+
+  public ContentHandler getContentHandler() {
+    return contentHandler;
+  }
+
+  public void setDTDHandler(DTDHandler handler) {
+    dtdHandler = handler;
+  }
+
+  public DTDHandler getDTDHandler() {
+    return dtdHandler;
+  }
+
+  public void setEntityResolver(EntityResolver resolver) {
+    entityResolver = resolver;
+  }
+
+  public EntityResolver getEntityResolver() {
+    return entityResolver;
+  }
+
+  public void setErrorHandler(ErrorHandler handler) {
+    errorHandler = handler;
+  }
+
+  public ErrorHandler getErrorHandler() {
+    return errorHandler;
+  }
+} // class EventXMLReader
@@ -53,6 +53,9 @@ public class FastTokenizer extends Tokenizer
   /** Position within the {@link #source} array */
   private int pos = 0;
 
+  /** End of the characters to tokenize within the {@link #source} array */
+  private int end;
+
   /** We use a special character to mark the end of a
    * {@link DribbleReader}.
    */
@@ -215,6 +218,21 @@ public class FastTokenizer extends Tokenizer
     super(reader);
     String str = reader.getString();
     source = str.toCharArray();
+    end = source.length;
+  }
+
+  /**
+   * Create a tokenizer that works directly on the first <code>length</code>
+   * characters of an array, avoiding the copy made from a string. Note
+   * that in rare cases the tokenizer alters characters in the array, so
+   * the caller should pass a scratch copy if the text is needed afterward.
+   *
+   * @param source    Characters to tokenize.
+   * @param length    How many of them to tokenize.
+   */
+  public FastTokenizer(char[] source, int length) {
+    this.source = source;
+    end = length;
   }
 
   /**
@@ -225,7 +243,7 @@ public class FastTokenizer extends Tokenizer
   {
     // Skip whitespace and punctuation.
     int tpos = pos;
-    final int tlen = source.length;
+    final int tlen = end;
     char type = 0;
     while (tpos < tlen) {
       type = charType[source[tpos]];
@@ -273,7 +291,7 @@ public class FastTokenizer extends Tokenizer
       stdTokenizer = new XTFTokenizer(dribbleReader);
     }
 
-    for (; pos < source.length; pos++) {
+    for (; pos < end; pos++) {
       type = charType[source[pos]];
       if (type == 'w')
         break;
@@ -282,7 +300,7 @@ public class FastTokenizer extends Tokenizer
     // Special case: the word "x"
     if (source[start] == 'x' || source[start] == 'X') 
     {
-      if ((start + 1 >= source.length) || (charType[source[start + 1]] != 'a')) {
+      if ((start + 1 >= end) || (charType[source[start + 1]] != 'a')) {
         pos = start + 1;
         // Was not previously handling the upper-case "X" properly; was accidentally converting to lower-case.
         return new Token(new String(new char[] {source[start]}), start, start + 1, "word");
@@ -457,12 +457,15 @@ public class Trace
    */
   private static Trace getThreadTrace() 
   {
-    Trace trace = (Trace)threadTraces.get(Thread.currentThread());
-    if (trace == null) {
-      trace = new Trace();
-      threadTraces.put(Thread.currentThread(), trace);
+    synchronized (threadTraces) 
+    {
+      Trace trace = (Trace)threadTraces.get(Thread.currentThread());
+      if (trace == null) {
+        trace = new Trace();
+        threadTraces.put(Thread.currentThread(), trace);
+      }
+      return trace;
     }
-    return trace;
   } // getThreadTrace()
 
   //////////////////////////////////////////////////////////////////////////////
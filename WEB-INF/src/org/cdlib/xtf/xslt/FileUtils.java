@@ -24,6 +24,7 @@ import javax.xml.transform.Source;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
+import org.cdlib.xtf.servletBase.TextServlet;
 import org.cdlib.xtf.textIndexer.HTMLToString;
 import org.cdlib.xtf.util.Path;
 
@@ -99,6 +100,7 @@ public class FileUtils
    * @return          true if the file exists and can be read, else false
    */
   public static boolean exists(XPathContext context, String filePath) {
+    TextServlet.markUncacheable();
     File file = resolveFile(context, filePath);
     return file.canRead();
   } // exists()
@@ -118,6 +120,7 @@ public class FileUtils
   public static String lastModified(XPathContext context, String filePath,
                                     String formatStr) 
   {
+    TextServlet.markUncacheable();
     File file = resolveFile(context, filePath);
     if (!file.canRead())
       return null;
@@ -138,6 +141,7 @@ public class FileUtils
    * @return          The file size, or -1 if it doesn't exist.
    */
   public static long length(XPathContext context, String filePath) {
+    TextServlet.markUncacheable();
     File file = resolveFile(context, filePath);
     if (!file.canRead())
       return -1;
@@ -346,6 +350,7 @@ public class FileUtils
    * @return          The formatted date/time.
    */
   public static String curDateTime(XPathContext context, String formatStr) {
+    TextServlet.markUncacheable();
     SimpleDateFormat fmt = getDateFormat(formatStr);
     String result = fmt.format(new Date());
     return result;
@@ -384,6 +389,7 @@ public class FileUtils
   public static long timeSince(XPathContext context, 
                                String targetDateStr, String units, String formatStr) 
   {
+    TextServlet.markUncacheable();
     try {
       // First, parse the target time.
       SimpleDateFormat fmt = getDateFormat(formatStr);
@@ -448,6 +454,7 @@ public class FileUtils
                                       String prefix, String suffix)
     throws IOException
   {
+    TextServlet.markUncacheable();
     File out = File.createTempFile(prefix, suffix);
     out.delete();
     ArrayList<File> files = tempFiles.get();
@@ -485,6 +492,7 @@ public class FileUtils
     throws IOException, XPathException
   {
     // First, locate the file
+    TextServlet.markUncacheable();
     File file = resolveFile(context, filePath);
     if (!file.canRead())
       throw new IOException("Cannot read file '" + file.toString() + "'");
@@ -515,6 +523,7 @@ public class FileUtils
     throws IOException, XPathException
   {
     // Read the HTML page, and convert it to an XML string
+    TextServlet.markUncacheable();
     URL url;
     URLConnection connection;
     InputStream inStream = null;
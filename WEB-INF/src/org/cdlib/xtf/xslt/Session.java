@@ -80,6 +80,7 @@ public class Session
   public static Value getData(XPathContext context, String name)
     throws XPathException 
   {
+    TextServlet.markUncacheable();
     HttpServletRequest req = TextServlet.getCurRequest();
 
     HttpSession session = req.getSession(false);
@@ -103,6 +104,8 @@ public class Session
   /** Function to put data into a session variable. */
   public static void setData(XPathContext context, String name, String value) 
   {
+    TextServlet.markUncacheable();
+
     // Make sure session tracking is enabled in the servlet.
     if (!TextServlet.getCurServlet().isSessionTrackingEnabled()) {
       throw new RuntimeException(
@@ -120,6 +123,8 @@ public class Session
 
   /** Function to encode a URL, adding session ID if necessary. */
   public static String encodeURL(XPathContext context, String origURL) {
+    TextServlet.markUncacheable();
+
     // Tomcat, starting around ver 6.0.21, started adding jsessionid everywhere. Stop that!
     if (TextServlet.getCurServlet().getConfig().sessionEncodeURLPattern == null)
       return origURL;
@@ -131,6 +136,8 @@ public class Session
   /** Function to get the current session's identifier */
   public static String getID() 
   {
+    TextServlet.markUncacheable();
+
     // Make sure session tracking is enabled in the servlet.
     if (!TextServlet.getCurServlet().isSessionTrackingEnabled()) {
       throw new RuntimeException(
@@ -147,6 +154,8 @@ public class Session
   /** Function to detect if cookies are turned off */
   public static boolean noCookie() 
   {
+    TextServlet.markUncacheable();
+
     // Make sure session tracking is enabled in the servlet.
     if (!TextServlet.getCurServlet().isSessionTrackingEnabled())
       return false;
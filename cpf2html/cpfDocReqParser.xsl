@@ -165,6 +165,15 @@
       -->
       <preFilter path="cpf2html/cpfXtfPreFilter.xsl"/>
       
+      <!-- ==================================================================
+         If the output cache is enabled in dynaXML.conf, rendered pages are
+         kept and served again to later requests for the same document. A
+         page that must be produced afresh every time (because it shows
+         something that changes) can be marked with a "dynamic" tag:
+         
+         <dynamic flag="yes"/>
+      -->
+      
       <!-- ==================================================================
          If the user specifies a text query, it needs to be parsed into the
          same format as required by CrossQuery. Uses templates imported 
@@ -185,6 +185,18 @@
       
       <index configPath="conf/textIndexer.conf" name="default"/>
       
+      <!-- ==================================================================
+         The optional "fragment" tag requests that only one element of the
+         document be rendered, rather than the whole thing. The element is
+         located using the lazy tree, so only that part of the document is
+         loaded, and output begins flowing to the client right away. The
+         display stylesheet receives the element as its context node.
+         
+         <fragment element = [local name of the element, e.g. "c01"]
+                   index   = [Optional: 1-based occurrence; default 1]
+                   namespace = [Optional: namespace URI of the element]/>
+      -->
+      
       <!-- ==================================================================
          The "prefilter" tag specifies a filesystem path, relative to the servlet
          base directory, to a stylesheet that will be used to build any lazy files